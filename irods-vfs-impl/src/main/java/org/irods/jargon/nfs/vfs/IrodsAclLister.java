@@ -0,0 +1,178 @@
+package org.irods.jargon.nfs.vfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.IRODSGenQueryExecutor;
+import org.irods.jargon.core.pub.domain.User;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.core.query.GenQueryBuilderException;
+import org.irods.jargon.core.query.IRODSGenQueryBuilder;
+import org.irods.jargon.core.query.IRODSGenQueryFromBuilder;
+import org.irods.jargon.core.query.IRODSQueryResultRow;
+import org.irods.jargon.core.query.IRODSQueryResultSetInterface;
+import org.irods.jargon.core.query.JargonQueryException;
+import org.irods.jargon.core.query.QueryConditionOperators;
+import org.irods.jargon.core.query.RodsGenQueryEnum;
+import org.irods.jargon.nfs.vfs.cache.UserIdCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists the ACLs of the children of a collection with one catalog query, so a
+ * directory listing brings the permissions of its entries along instead of
+ * one ACL query per entry
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class IrodsAclLister {
+
+	private static final Logger log = LoggerFactory.getLogger(IrodsAclLister.class);
+
+	/**
+	 * Rows asked for per round trip, an object has a row per ACL entry
+	 */
+	private static final int ROWS_PER_QUERY = 1000;
+
+	private final IRODSAccessObjectFactory irodsAccessObjectFactory;
+	private final IRODSAccount irodsAccount;
+	private final UserIdCache userIdCache;
+
+	/**
+	 * @param irodsAccessObjectFactory
+	 *            {@link IRODSAccessObjectFactory}
+	 * @param irodsAccount
+	 *            {@link IRODSAccount} used for the catalog queries, it must be
+	 *            able to see every ACL
+	 * @param userIdCache
+	 *            {@link UserIdCache} to resolve the users named in the ACLs
+	 */
+	public IrodsAclLister(final IRODSAccessObjectFactory irodsAccessObjectFactory, final IRODSAccount irodsAccount,
+			final UserIdCache userIdCache) {
+		if (irodsAccessObjectFactory == null) {
+			throw new IllegalArgumentException("null irodsAccessObjectFactory");
+		}
+
+		if (irodsAccount == null) {
+			throw new IllegalArgumentException("null irodsAccount");
+		}
+
+		if (userIdCache == null) {
+			throw new IllegalArgumentException("null userIdCache");
+		}
+
+		this.irodsAccessObjectFactory = irodsAccessObjectFactory;
+		this.irodsAccount = irodsAccount;
+		this.userIdCache = userIdCache;
+	}
+
+	/**
+	 * List the ACLs of the data objects or sub-collections of a collection
+	 * whose names fall between two bounds, which a page of a listing gives
+	 *
+	 * @param collectionPath
+	 *            <code>String</code> with the absolute path of the collection
+	 * @param dataObjects
+	 *            <code>boolean</code> to list the ACLs of data objects rather
+	 *            than sub-collections
+	 * @param firstName
+	 *            <code>String</code> with the lowest data object name or
+	 *            sub-collection absolute path wanted, <code>null</code> for no
+	 *            bound
+	 * @param lastName
+	 *            <code>String</code> with the highest name wanted,
+	 *            <code>null</code> for no bound
+	 * @return <code>Map</code> from data object name, or sub-collection
+	 *         absolute path, to its <code>List</code> of
+	 *         {@link UserFilePermission}
+	 * @throws JargonException
+	 */
+	public Map<String, List<UserFilePermission>> listAcls(final String collectionPath, final boolean dataObjects,
+			final String firstName, final String lastName) throws JargonException {
+		if (collectionPath == null || collectionPath.isEmpty()) {
+			throw new IllegalArgumentException("null or empty collectionPath");
+		}
+
+		log.debug("listAcls: {} data objects: {} from: {} to: {}", collectionPath, dataObjects, firstName, lastName);
+
+		RodsGenQueryEnum nameColumn = dataObjects ? RodsGenQueryEnum.COL_DATA_NAME : RodsGenQueryEnum.COL_COLL_NAME;
+		IRODSGenQueryBuilder builder = new IRODSGenQueryBuilder(true, null);
+		Map<String, List<UserFilePermission>> acls = new HashMap<>();
+		try {
+			if (dataObjects) {
+				builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_NAME)
+						.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_ACCESS_USER_ID)
+						.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_ACCESS_TYPE)
+						.addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_NAME, QueryConditionOperators.EQUAL,
+								collectionPath);
+			} else {
+				builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_NAME)
+						.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_ACCESS_USER_ID)
+						.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_ACCESS_TYPE)
+						.addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_PARENT_NAME,
+								QueryConditionOperators.EQUAL, collectionPath);
+			}
+
+			// names with quotes cannot be put in a condition, the range is
+			// only a narrowing of the query
+			if (isQuotable(firstName)) {
+				builder.addConditionAsGenQueryField(nameColumn, QueryConditionOperators.GREATER_THAN_OR_EQUAL_TO,
+						firstName);
+			}
+
+			if (isQuotable(lastName)) {
+				builder.addConditionAsGenQueryField(nameColumn, QueryConditionOperators.LESS_THAN_OR_EQUAL_TO,
+						lastName);
+			}
+
+			IRODSGenQueryFromBuilder query = builder.exportIRODSQueryFromBuilder(ROWS_PER_QUERY);
+			IRODSGenQueryExecutor executor = irodsAccessObjectFactory.getIRODSGenQueryExecutor(irodsAccount);
+			int offset = 0;
+			IRODSQueryResultSetInterface resultSet;
+			do {
+				resultSet = executor.executeIRODSQueryAndCloseResult(query, offset);
+				for (IRODSQueryResultRow row : resultSet.getResults()) {
+					addEntry(acls, row);
+				}
+				offset += resultSet.getResults().size();
+			} while (resultSet.isHasMoreRecords() && !resultSet.getResults().isEmpty());
+		} catch (GenQueryBuilderException | JargonQueryException e) {
+			log.error("query error listing acls under:{}", collectionPath, e);
+			throw new JargonException("error querying for acls", e);
+		}
+
+		log.debug("listed acls of {} objects", acls.size());
+		return acls;
+	}
+
+	private void addEntry(final Map<String, List<UserFilePermission>> acls, final IRODSQueryResultRow row)
+			throws JargonException, JargonQueryException {
+		String name = row.getColumn(0);
+		List<UserFilePermission> acl = acls.get(name);
+		if (acl == null) {
+			acl = new ArrayList<>();
+			acls.put(name, acl);
+		}
+
+		User user = userIdCache.userOf(Integer.parseInt(row.getColumn(1)));
+		if (user == null) {
+			log.debug("acl of {} names a removed user", name);
+			return;
+		}
+
+		acl.add(new UserFilePermission(user.getName(), user.getId(),
+				FilePermissionEnum.valueOf(Integer.parseInt(row.getColumn(2))), user.getUserType(), user.getZone()));
+	}
+
+	private static boolean isQuotable(final String name) {
+		return name != null && name.indexOf('\'') < 0;
+	}
+
+}
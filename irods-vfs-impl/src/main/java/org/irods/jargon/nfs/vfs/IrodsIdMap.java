@@ -5,8 +5,8 @@
  */
 package org.irods.jargon.nfs.vfs;
 import java.security.Principal;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import javax.security.auth.Subject;
 import javax.security.auth.kerberos.KerberosPrincipal;
@@ -23,10 +23,21 @@ import org.ietf.jgss.GSSException;
 import org.irods.jargon.core.connection.IRODSAccount;
 import org.irods.jargon.core.exception.JargonException;
 import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
-import org.irods.jargon.core.pub.IRODSAccessObjectFactoryImpl;
-import org.irods.jargon.core.pub.IRODSFileSystem;
-import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.core.pub.domain.User;
+import org.irods.jargon.nfs.vfs.cache.UserIdCache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 /**
+ * Maps Kerberos principals to iRODS user ids, and user ids to the proxy
+ * {@link IRODSAccount} calls are made with.
+ * <p/>
+ * Both maps are bounded caches with a time to live, shared by the RPC worker
+ * threads. Concurrent first logins of a principal wait for one lookup
+ * instead of each querying iRODS. Users come from the shared
+ * {@link UserIdCache}, so a login takes at most one query, and none for
+ * users already in its table.
  *
  * @author alek
  */
@@ -39,16 +50,60 @@ public class IrodsIdMap implements NfsIdMapping, RpcLoginService{
 
     private static final int DEFAULT_UID = 1001;
     private static final int DEFAULT_GID = 1001;
-    private static Map<String, Integer> irodsIdMap = new HashMap<String, Integer>();
-    private static Map<Integer, IRODSAccount> irodsAcctMap = new HashMap<Integer, IRODSAccount>();
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final LoadingCache<String, Integer> irodsIdMap;
+    private final LoadingCache<Integer, IRODSAccount> irodsAcctMap;
     private IRODSAccessObjectFactory _irods;
     private IRODSAccount _irodsAcct;
     private String _irodsAdmin;
+    private final UserIdCache _userIds;
+    // looked up once, the admin logs in as itself rather than by proxy
+    private volatile Integer _adminUid;
     
     public IrodsIdMap(IRODSAccessObjectFactory irodsFactory, IRODSAccount acct, String irodsAdmin){
+        this(irodsFactory, acct, irodsAdmin, new UserIdCache(irodsFactory, acct));
+    }
+
+    /**
+     * @param userIds
+     *            {@link UserIdCache} shared with the file system, so login and
+     *            stat resolve user names from the same table
+     */
+    public IrodsIdMap(IRODSAccessObjectFactory irodsFactory, IRODSAccount acct, String irodsAdmin, UserIdCache userIds){
+        this(irodsFactory, acct, irodsAdmin, userIds, DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttlMillis
+     *            <code>long</code> with how long a principal or account
+     *            mapping is kept before it is looked up again
+     * @param maxEntries
+     *            <code>int</code> with the most principals and accounts kept
+     */
+    public IrodsIdMap(IRODSAccessObjectFactory irodsFactory, IRODSAccount acct, String irodsAdmin, UserIdCache userIds,
+            long ttlMillis, int maxEntries){
         _irodsAdmin = irodsAdmin;
         _irods = irodsFactory;
         _irodsAcct = acct;
+        _userIds = userIds;
+
+        // a loading cache runs one load per key, concurrent callers wait for it
+        irodsIdMap = CacheBuilder.newBuilder().maximumSize(maxEntries)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS).build(new CacheLoader<String, Integer>() {
+                    @Override
+                    public Integer load(String principal) throws JargonException {
+                        return lookupUid(principal);
+                    }
+                });
+        irodsAcctMap = CacheBuilder.newBuilder().maximumSize(maxEntries)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS).build(new CacheLoader<Integer, IRODSAccount>() {
+                    @Override
+                    public IRODSAccount load(Integer userID) throws JargonException {
+                        return lookupIrodsAccount(userID);
+                    }
+                });
     }
     
     @Override
@@ -93,77 +148,98 @@ public class IrodsIdMap implements NfsIdMapping, RpcLoginService{
 		//enable getting cred delegation
 		log.debug("GSSC Name: "+ gssc.getSrcName().toString());
                 String principal =  gssc.getSrcName().toString();
-                
-                //if principal doesnt exist in mapping
-                if(irodsIdMap.get(principal) == null){
-                    
-                    //get user ID of principal
-                    String userID = "";
-                    
-                    log.debug("Substring of principal[0,4]: "+ principal.substring(0,4));
-                    //if it is service
-                    if(principal.substring(0,4).equals("nfs/")){
-                        userID = _irods.getUserAO(_irodsAcct).findByName(_irodsAdmin).getId();
-                    }
-                    else{
-                        //parse principal
-                        String[] parts = principal.split("@");
-                        userID = _irods.getUserAO(_irodsAcct).findByName(parts[0]).getId();
-                    }
-                    
-                    //add keypairing to irodsIdMap
-                    irodsIdMap.put(principal, new Integer(userID));
-                    
-                    //create Irods Account instance
-                    createIrodsAccountInstance(new Integer(userID));
-                    
-                    log.debug("IrodsIdMap Principal: " +principal +"    ID: "+ irodsIdMap.get(principal));
-                }
-                
-                
+
+                int userID = irodsIdMap.get(principal);
+
+                //create Irods Account instance
+                irodsAcctMap.get(userID);
+
                 //return id mapping
-                return Subjects.of(irodsIdMap.get(principal), irodsIdMap.get(principal));
-                
+                return Subjects.of(userID, userID);
 
         } catch (GSSException ex) {
 		log.debug("Login Error: " +ex);           
-        } catch (JargonException ex) {
-            log.debug("Jargon Exception: " +ex);  
+        } catch (ExecutionException ex) {
+            log.debug("Jargon Exception: " +ex.getCause());
         }
          return Subjects.of(DEFAULT_UID, DEFAULT_GID);
     }
-    
-    public void createIrodsAccountInstance(int userID) throws JargonException{
-        
-        try{
-        if(userID+"" == _irods.getUserAO(_irodsAcct).findByName(_irodsAdmin).getId()){
-            irodsAcctMap.put(userID, _irodsAcct);
+
+    /**
+     * Uid of a principal, a service principal acts as the iRODS admin
+     */
+    private int lookupUid(String principal) throws JargonException {
+        int userID;
+
+        //if it is service
+        if(principal.startsWith("nfs/")){
+            userID = adminUid();
         }
         else{
-            //get user name
-        String username = _irods.getUserAO(_irodsAcct).findById(""+userID).getName();
-        String userzone = _irods.getUserAO(_irodsAcct).findById(""+userID).getZone();
-        //String homedir = "/"+userzone+"/home/"+username;
-        String homedir = "/tempZone/home/rods";
-        //create Irods RootFile instance 
-        IRODSAccount acct = IRODSAccount.instanceWithProxy("localhost", 1247, "rods", "rods",homedir,"tempZone","demoResc", username, userzone);
-        IRODSFileSystem fs = IRODSFileSystem.instance();
-	IRODSAccessObjectFactory factory = IRODSAccessObjectFactoryImpl.instance(fs.getIrodsSession());
-	IRODSFile rootFile = factory.getIRODSFileFactory(acct).instanceIRODSFile(homedir);
-        
-        //save to hashmap
-        irodsAcctMap.put(userID, acct);
-        log.debug("IrodsAcct Instance Hash: "+userID+ "   Acct: "+ acct);
+            //parse principal
+            String[] parts = principal.split("@");
+            userID = _userIds.uidOf(parts[0], null);
         }
+
+        log.debug("IrodsIdMap Principal: " +principal +"    ID: "+ userID);
+        return userID;
+    }
+
+    /**
+     * Load the account of a user now rather than on its first call
+     */
+    public void createIrodsAccountInstance(int userID) throws JargonException{
+        try {
+            irodsAcctMap.get(userID);
+        } catch (ExecutionException e) {
+            throw new JargonException("no iRODS account for user id " + userID, e.getCause());
         }
-        catch(JargonException e){
-            log.debug("[IrodsIDMap] Create Irods Account Instance Jargon Error: "+e);
+    }
+
+    /**
+     * Proxy account of a user, connecting to the same server as the admin
+     * account
+     */
+    private IRODSAccount lookupIrodsAccount(int userID) throws JargonException{
+        if(userID == adminUid()){
+            return _irodsAcct;
         }
-        
+
+        User user = _userIds.userOf(userID);
+        if(user == null){
+            throw new JargonException("no iRODS user with id " + userID);
+        }
+
+        String homedir = "/" + user.getZone() + "/home/" + user.getName();
+        IRODSAccount acct = IRODSAccount.instanceWithProxy(_irodsAcct.getHost(), _irodsAcct.getPort(),
+                _irodsAcct.getUserName(), _irodsAcct.getPassword(), homedir, _irodsAcct.getZone(),
+                _irodsAcct.getDefaultStorageResource(), user.getName(), user.getZone());
+        log.debug("IrodsAcct Instance Hash: "+userID+ "   Acct: "+ acct);
+        return acct;
     }
-    
+
+    private int adminUid() throws JargonException{
+        Integer adminUid = _adminUid;
+        if(adminUid == null){
+            adminUid = _userIds.uidOf(_irodsAdmin, null);
+            _adminUid = adminUid;
+        }
+        return adminUid;
+    }
+
+    /**
+     * Account of a user, looked up again once its mapping expired
+     *
+     * @return {@link IRODSAccount}, or <code>null</code> if the user could
+     *         not be looked up
+     */
     public IRODSAccount resolveIRODSUserAccount(int userID){
-        return irodsAcctMap.get(Integer.valueOf(userID));
+        try {
+            return irodsAcctMap.get(userID);
+        } catch (ExecutionException e) {
+            log.debug("[IrodsIDMap] Create Irods Account Instance Jargon Error: "+e.getCause());
+            return null;
+        }
     }
     
     @Override
@@ -0,0 +1,104 @@
+package org.irods.jargon.nfs.vfs;
+
+import java.util.List;
+
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.IRODSGenQueryExecutor;
+import org.irods.jargon.core.query.GenQueryBuilderException;
+import org.irods.jargon.core.query.IRODSGenQueryBuilder;
+import org.irods.jargon.core.query.IRODSGenQueryFromBuilder;
+import org.irods.jargon.core.query.IRODSQueryResultRow;
+import org.irods.jargon.core.query.JargonQueryException;
+import org.irods.jargon.core.query.QueryConditionOperators;
+import org.irods.jargon.core.query.RodsGenQueryEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the current absolute path of an iRODS object from its catalog id, used
+ * to resolve file handles that have fallen out of the inode cache
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class IrodsObjectLocator {
+
+	private static final Logger log = LoggerFactory.getLogger(IrodsObjectLocator.class);
+
+	private final IRODSAccessObjectFactory irodsAccessObjectFactory;
+	private final IRODSAccount irodsAccount;
+
+	/**
+	 * @param irodsAccessObjectFactory
+	 *            {@link IRODSAccessObjectFactory}
+	 * @param irodsAccount
+	 *            {@link IRODSAccount} used for the catalog queries
+	 */
+	public IrodsObjectLocator(final IRODSAccessObjectFactory irodsAccessObjectFactory,
+			final IRODSAccount irodsAccount) {
+		if (irodsAccessObjectFactory == null) {
+			throw new IllegalArgumentException("null irodsAccessObjectFactory");
+		}
+
+		if (irodsAccount == null) {
+			throw new IllegalArgumentException("null irodsAccount");
+		}
+
+		this.irodsAccessObjectFactory = irodsAccessObjectFactory;
+		this.irodsAccount = irodsAccount;
+	}
+
+	/**
+	 * Look up the absolute path of a data object or collection
+	 *
+	 * @param irodsId
+	 *            <code>long</code> with the data id or collection id
+	 * @param collection
+	 *            <code>boolean</code> if the id is a collection id
+	 * @return <code>String</code> with the absolute path, or <code>null</code>
+	 *         if no such object exists
+	 * @throws JargonException
+	 */
+	public String findAbsolutePathForId(final long irodsId, final boolean collection) throws JargonException {
+		log.debug("findAbsolutePathForId: {} collection: {}", irodsId, collection);
+
+		IRODSGenQueryBuilder builder = new IRODSGenQueryBuilder(true, null);
+		try {
+			if (collection) {
+				builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_NAME).addConditionAsGenQueryField(
+						RodsGenQueryEnum.COL_COLL_ID, QueryConditionOperators.EQUAL, String.valueOf(irodsId));
+			} else {
+				builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_NAME)
+						.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_NAME).addConditionAsGenQueryField(
+								RodsGenQueryEnum.COL_D_DATA_ID, QueryConditionOperators.EQUAL, String.valueOf(irodsId));
+			}
+
+			IRODSGenQueryFromBuilder query = builder.exportIRODSQueryFromBuilder(1);
+			IRODSGenQueryExecutor executor = irodsAccessObjectFactory.getIRODSGenQueryExecutor(irodsAccount);
+			List<IRODSQueryResultRow> rows = executor.executeIRODSQueryAndCloseResult(query, 0).getResults();
+
+			if (rows.isEmpty()) {
+				log.debug("no object with id:{}", irodsId);
+				return null;
+			}
+
+			IRODSQueryResultRow row = rows.get(0);
+			if (collection) {
+				return row.getColumn(0);
+			}
+
+			// replicas share a data id, any row has the path
+			String collectionName = row.getColumn(0);
+			if (collectionName.endsWith("/")) {
+				return collectionName + row.getColumn(1);
+			}
+			return collectionName + "/" + row.getColumn(1);
+		} catch (GenQueryBuilderException | JargonQueryException e) {
+			log.error("query error looking up irods id:{}", irodsId, e);
+			throw new JargonException("error querying for irods id", e);
+		}
+	}
+
+}
@@ -0,0 +1,783 @@
+package org.irods.jargon.nfs.vfs;
+
+import org.irods.jargon.nfs.vfs.inode.HandleMode;
+
+/**
+ * Tunable settings for the {@link IrodsVirtualFileSystem}. The defaults suit a
+ * gateway shared by many clients: attribute, listing, permission and a 256MB
+ * block cache, read-ahead, write-back of UNSTABLE WRITEs, a pool of iRODS
+ * connections and the compact in-memory inode table. Settings documented as
+ * turning a feature off at 0 can be used to run without it.
+ * <p/>
+ * Setters reject values that make no sense, {@link #validate()} checks the
+ * settings that depend on each other and is called by the virtual file system
+ * on startup.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class IrodsVfsConfiguration {
+
+	/**
+	 * How file handles are derived, see {@link HandleMode}
+	 */
+	private HandleMode handleMode = HandleMode.SEQUENTIAL;
+
+	/**
+	 * Number of inode to path mappings kept when the inode table is only a
+	 * cache ({@link HandleMode#IRODS_ID})
+	 */
+	private long inodeCacheSize = 500000;
+
+	/**
+	 * Number of inodes whose attributes are cached
+	 */
+	private long attributeCacheSize = 100000;
+
+	/**
+	 * How long data object attributes are trusted, 0 turns caching off
+	 */
+	private long attributeFileTtlMillis = 3000;
+
+	/**
+	 * How long collection attributes are trusted, 0 turns caching off
+	 */
+	private long attributeDirectoryTtlMillis = 3000;
+
+	/**
+	 * Load the whole iRODS user table at startup rather than one user at a
+	 * time as owners are seen
+	 */
+	private boolean prewarmUserCache = true;
+
+	/**
+	 * How often the user table is reloaded in the background, 0 turns
+	 * reloading off
+	 */
+	private long userCacheRefreshMillis = 10 * 60 * 1000;
+
+	/**
+	 * Number of directory entries kept in listing snapshots across all
+	 * directories
+	 */
+	private long listingCacheMaxEntries = 200000;
+
+	/**
+	 * Listing pages kept per directory
+	 */
+	private int listingPagesPerDirectory = 4;
+
+	/**
+	 * How long a listing snapshot is served before iRODS is listed again
+	 */
+	private long listingCursorTtlMillis = 10000;
+
+	/**
+	 * Number of recently changed directories whose change count is kept for
+	 * the directory verifier
+	 */
+	private long directoryChangeCounterSize = 100000;
+
+	/**
+	 * Number of iRODS descriptors kept open across READ and WRITE calls, each
+	 * holds a connection, so at most <code>connectionPoolMaxPerAccount</code>
+	 */
+	private long maxOpenFiles = 48;
+
+	/**
+	 * How long an unused iRODS descriptor stays open
+	 */
+	private long openFileIdleMillis = 30000;
+
+	/**
+	 * Size of each read-ahead buffer, read from iRODS in one call
+	 */
+	private int readAheadBufferSize = 1024 * 1024;
+
+	/**
+	 * Most buffers one open file reads ahead of a sequential reader
+	 */
+	private int readAheadMaxWindow = 8;
+
+	/**
+	 * Read-ahead buffers shared by all open files, 0 turns read-ahead off
+	 */
+	private int readAheadPoolBuffers = 128;
+
+	/**
+	 * Size of a block in the shared content cache
+	 */
+	private int blockCacheBlockSize = 1024 * 1024;
+
+	/**
+	 * Bytes of data object content cached on the heap, 0 turns the block
+	 * cache off
+	 */
+	private long blockCacheHeapBytes = 256L * 1024 * 1024;
+
+	/**
+	 * Bytes of direct buffers for blocks evicted from the heap, 0 for none
+	 */
+	private long blockCacheOffHeapBytes = 0;
+
+	/**
+	 * Bytes of UNSTABLE writes one file buffers before they are written to
+	 * iRODS
+	 */
+	private long writeBackFileBytes = 8L * 1024 * 1024;
+
+	/**
+	 * Bytes of UNSTABLE writes all files together buffer before writers have
+	 * to flush
+	 */
+	private long writeBackTotalBytes = 256L * 1024 * 1024;
+
+	/**
+	 * How long a written file is idle before its buffered writes are sent and
+	 * registered in iRODS
+	 */
+	private long writeBackIdleMillis = 5000;
+
+	/**
+	 * Local directory WRITEs are staged in before they are uploaded, null
+	 * writes through to iRODS
+	 */
+	private String stagingDirectory = null;
+
+	/**
+	 * Most bytes staged at once
+	 */
+	private long stagingQuotaBytes = 10L * 1024 * 1024 * 1024;
+
+	/**
+	 * How long a WRITE waits for staging space before it fails with NOSPC
+	 */
+	private long stagingQuotaWaitMillis = 30000;
+
+	/**
+	 * How long a staged file is not written before it is uploaded without a
+	 * COMMIT
+	 */
+	private long stagingIdleMillis = 30000;
+
+	/**
+	 * Delay before a failed upload of staged data is tried again
+	 */
+	private long stagingRetryMillis = 60000;
+
+	/**
+	 * How often an upload of staged data is tried before the data is given
+	 * up and the client told at its next WRITE or COMMIT
+	 */
+	private int stagingUploadAttempts = 10;
+
+	/**
+	 * Number of staged files uploaded at once
+	 */
+	private int stagingUploadThreads = 4;
+
+	/**
+	 * Most iRODS transfer streams the gateway runs at once, for parallel
+	 * reads and staged uploads
+	 */
+	private int maxTransferStreams = 16;
+
+	/**
+	 * Most iRODS transfer streams one client user runs at once
+	 */
+	private int maxTransferStreamsPerClient = 4;
+
+	/**
+	 * Size from which block cache misses are read over several streams, 0
+	 * turns parallel reads off
+	 */
+	private long parallelReadThresholdBytes = 64L * 1024 * 1024;
+
+	/**
+	 * Blocks fetched by one parallel read
+	 */
+	private int parallelReadBlocks = 8;
+
+	/**
+	 * Most iRODS connections open per account, kept open across calls, 0
+	 * connects and disconnects for every call
+	 */
+	private int connectionPoolMaxPerAccount = 64;
+
+	/**
+	 * Most idle iRODS connections kept per account
+	 */
+	private int connectionPoolMaxIdle = 8;
+
+	/**
+	 * Idle iRODS connections per account that eviction leaves open
+	 */
+	private int connectionPoolMinIdle = 1;
+
+	/**
+	 * How long an iRODS connection is idle before it is closed
+	 */
+	private long connectionPoolIdleMillis = 120000;
+
+	/**
+	 * How long a call waits for a connection when its account is at the limit
+	 */
+	private long connectionPoolWaitMillis = 30000;
+
+	/**
+	 * How long a login principal's uid and a user's iRODS account are kept
+	 * before they are looked up again
+	 */
+	private long idMapTtlMillis = 10 * 60 * 1000;
+
+	/**
+	 * Most principals and user accounts kept by the id mapping
+	 */
+	private int idMapMaxEntries = 10000;
+
+	/**
+	 * Number of names found missing from a directory kept, so repeated
+	 * lookups of them skip iRODS
+	 */
+	private long negativeLookupCacheSize = 100000;
+
+	/**
+	 * How long a missing name is remembered, 0 turns negative caching off
+	 */
+	private long negativeLookupTtlMillis = 5000;
+
+	/**
+	 * Number of full paths kept by the in-memory inode table, which otherwise
+	 * rebuilds them from its tree of names
+	 */
+	private long inodePathCacheSize = 100000;
+
+	/**
+	 * Number of ACLs kept, with the permission each user was found to have
+	 */
+	private long permissionCacheSize = 100000;
+
+	/**
+	 * How long an ACL and a user's groups are kept, 0 fetches them for every
+	 * ACCESS
+	 */
+	private long permissionTtlMillis = 30000;
+
+	/**
+	 * How often resource free space, quotas and the object count are reloaded
+	 * for FSSTAT in the background, 0 queries them on every FSSTAT
+	 */
+	private long fsStatRefreshMillis = 60000;
+
+	public HandleMode getHandleMode() {
+		return handleMode;
+	}
+
+	public void setHandleMode(final HandleMode handleMode) {
+		if (handleMode == null) {
+			throw new IllegalArgumentException("null handleMode");
+		}
+		this.handleMode = handleMode;
+	}
+
+	public long getInodeCacheSize() {
+		return inodeCacheSize;
+	}
+
+	public void setInodeCacheSize(final long inodeCacheSize) {
+		checkPositive("inodeCacheSize", inodeCacheSize);
+		this.inodeCacheSize = inodeCacheSize;
+	}
+
+	public long getAttributeCacheSize() {
+		return attributeCacheSize;
+	}
+
+	public void setAttributeCacheSize(final long attributeCacheSize) {
+		checkNotNegative("attributeCacheSize", attributeCacheSize);
+		this.attributeCacheSize = attributeCacheSize;
+	}
+
+	public long getAttributeFileTtlMillis() {
+		return attributeFileTtlMillis;
+	}
+
+	public void setAttributeFileTtlMillis(final long attributeFileTtlMillis) {
+		checkNotNegative("attributeFileTtlMillis", attributeFileTtlMillis);
+		this.attributeFileTtlMillis = attributeFileTtlMillis;
+	}
+
+	public long getAttributeDirectoryTtlMillis() {
+		return attributeDirectoryTtlMillis;
+	}
+
+	public void setAttributeDirectoryTtlMillis(final long attributeDirectoryTtlMillis) {
+		checkNotNegative("attributeDirectoryTtlMillis", attributeDirectoryTtlMillis);
+		this.attributeDirectoryTtlMillis = attributeDirectoryTtlMillis;
+	}
+
+	public boolean isPrewarmUserCache() {
+		return prewarmUserCache;
+	}
+
+	public void setPrewarmUserCache(final boolean prewarmUserCache) {
+		this.prewarmUserCache = prewarmUserCache;
+	}
+
+	public long getUserCacheRefreshMillis() {
+		return userCacheRefreshMillis;
+	}
+
+	public void setUserCacheRefreshMillis(final long userCacheRefreshMillis) {
+		checkNotNegative("userCacheRefreshMillis", userCacheRefreshMillis);
+		this.userCacheRefreshMillis = userCacheRefreshMillis;
+	}
+
+	public long getListingCacheMaxEntries() {
+		return listingCacheMaxEntries;
+	}
+
+	public void setListingCacheMaxEntries(final long listingCacheMaxEntries) {
+		checkNotNegative("listingCacheMaxEntries", listingCacheMaxEntries);
+		this.listingCacheMaxEntries = listingCacheMaxEntries;
+	}
+
+	public int getListingPagesPerDirectory() {
+		return listingPagesPerDirectory;
+	}
+
+	public void setListingPagesPerDirectory(final int listingPagesPerDirectory) {
+		checkPositive("listingPagesPerDirectory", listingPagesPerDirectory);
+		this.listingPagesPerDirectory = listingPagesPerDirectory;
+	}
+
+	public long getListingCursorTtlMillis() {
+		return listingCursorTtlMillis;
+	}
+
+	public void setListingCursorTtlMillis(final long listingCursorTtlMillis) {
+		checkNotNegative("listingCursorTtlMillis", listingCursorTtlMillis);
+		this.listingCursorTtlMillis = listingCursorTtlMillis;
+	}
+
+	public long getDirectoryChangeCounterSize() {
+		return directoryChangeCounterSize;
+	}
+
+	public void setDirectoryChangeCounterSize(final long directoryChangeCounterSize) {
+		checkPositive("directoryChangeCounterSize", directoryChangeCounterSize);
+		this.directoryChangeCounterSize = directoryChangeCounterSize;
+	}
+
+	public long getMaxOpenFiles() {
+		return maxOpenFiles;
+	}
+
+	public void setMaxOpenFiles(final long maxOpenFiles) {
+		checkPositive("maxOpenFiles", maxOpenFiles);
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	public long getOpenFileIdleMillis() {
+		return openFileIdleMillis;
+	}
+
+	public void setOpenFileIdleMillis(final long openFileIdleMillis) {
+		checkPositive("openFileIdleMillis", openFileIdleMillis);
+		this.openFileIdleMillis = openFileIdleMillis;
+	}
+
+	public int getReadAheadBufferSize() {
+		return readAheadBufferSize;
+	}
+
+	public void setReadAheadBufferSize(final int readAheadBufferSize) {
+		checkPositive("readAheadBufferSize", readAheadBufferSize);
+		this.readAheadBufferSize = readAheadBufferSize;
+	}
+
+	public int getReadAheadMaxWindow() {
+		return readAheadMaxWindow;
+	}
+
+	public void setReadAheadMaxWindow(final int readAheadMaxWindow) {
+		checkPositive("readAheadMaxWindow", readAheadMaxWindow);
+		this.readAheadMaxWindow = readAheadMaxWindow;
+	}
+
+	public int getReadAheadPoolBuffers() {
+		return readAheadPoolBuffers;
+	}
+
+	public void setReadAheadPoolBuffers(final int readAheadPoolBuffers) {
+		checkNotNegative("readAheadPoolBuffers", readAheadPoolBuffers);
+		this.readAheadPoolBuffers = readAheadPoolBuffers;
+	}
+
+	public int getBlockCacheBlockSize() {
+		return blockCacheBlockSize;
+	}
+
+	public void setBlockCacheBlockSize(final int blockCacheBlockSize) {
+		checkPositive("blockCacheBlockSize", blockCacheBlockSize);
+		this.blockCacheBlockSize = blockCacheBlockSize;
+	}
+
+	public long getBlockCacheHeapBytes() {
+		return blockCacheHeapBytes;
+	}
+
+	public void setBlockCacheHeapBytes(final long blockCacheHeapBytes) {
+		checkNotNegative("blockCacheHeapBytes", blockCacheHeapBytes);
+		this.blockCacheHeapBytes = blockCacheHeapBytes;
+	}
+
+	public long getBlockCacheOffHeapBytes() {
+		return blockCacheOffHeapBytes;
+	}
+
+	public void setBlockCacheOffHeapBytes(final long blockCacheOffHeapBytes) {
+		checkNotNegative("blockCacheOffHeapBytes", blockCacheOffHeapBytes);
+		this.blockCacheOffHeapBytes = blockCacheOffHeapBytes;
+	}
+
+	public long getWriteBackFileBytes() {
+		return writeBackFileBytes;
+	}
+
+	public void setWriteBackFileBytes(final long writeBackFileBytes) {
+		checkNotNegative("writeBackFileBytes", writeBackFileBytes);
+		this.writeBackFileBytes = writeBackFileBytes;
+	}
+
+	public long getWriteBackTotalBytes() {
+		return writeBackTotalBytes;
+	}
+
+	public void setWriteBackTotalBytes(final long writeBackTotalBytes) {
+		checkNotNegative("writeBackTotalBytes", writeBackTotalBytes);
+		this.writeBackTotalBytes = writeBackTotalBytes;
+	}
+
+	public long getWriteBackIdleMillis() {
+		return writeBackIdleMillis;
+	}
+
+	public void setWriteBackIdleMillis(final long writeBackIdleMillis) {
+		checkPositive("writeBackIdleMillis", writeBackIdleMillis);
+		this.writeBackIdleMillis = writeBackIdleMillis;
+	}
+
+	public String getStagingDirectory() {
+		return stagingDirectory;
+	}
+
+	public void setStagingDirectory(final String stagingDirectory) {
+		if (stagingDirectory != null && stagingDirectory.isEmpty()) {
+			throw new IllegalArgumentException("empty stagingDirectory, use null for no staging");
+		}
+		this.stagingDirectory = stagingDirectory;
+	}
+
+	public long getStagingQuotaBytes() {
+		return stagingQuotaBytes;
+	}
+
+	public void setStagingQuotaBytes(final long stagingQuotaBytes) {
+		checkPositive("stagingQuotaBytes", stagingQuotaBytes);
+		this.stagingQuotaBytes = stagingQuotaBytes;
+	}
+
+	public long getStagingQuotaWaitMillis() {
+		return stagingQuotaWaitMillis;
+	}
+
+	public void setStagingQuotaWaitMillis(final long stagingQuotaWaitMillis) {
+		checkNotNegative("stagingQuotaWaitMillis", stagingQuotaWaitMillis);
+		this.stagingQuotaWaitMillis = stagingQuotaWaitMillis;
+	}
+
+	public long getStagingIdleMillis() {
+		return stagingIdleMillis;
+	}
+
+	public void setStagingIdleMillis(final long stagingIdleMillis) {
+		checkPositive("stagingIdleMillis", stagingIdleMillis);
+		this.stagingIdleMillis = stagingIdleMillis;
+	}
+
+	public long getStagingRetryMillis() {
+		return stagingRetryMillis;
+	}
+
+	public void setStagingRetryMillis(final long stagingRetryMillis) {
+		checkPositive("stagingRetryMillis", stagingRetryMillis);
+		this.stagingRetryMillis = stagingRetryMillis;
+	}
+
+	public int getStagingUploadAttempts() {
+		return stagingUploadAttempts;
+	}
+
+	public void setStagingUploadAttempts(final int stagingUploadAttempts) {
+		checkPositive("stagingUploadAttempts", stagingUploadAttempts);
+		this.stagingUploadAttempts = stagingUploadAttempts;
+	}
+
+	public int getStagingUploadThreads() {
+		return stagingUploadThreads;
+	}
+
+	public void setStagingUploadThreads(final int stagingUploadThreads) {
+		checkPositive("stagingUploadThreads", stagingUploadThreads);
+		this.stagingUploadThreads = stagingUploadThreads;
+	}
+
+	public int getMaxTransferStreams() {
+		return maxTransferStreams;
+	}
+
+	public void setMaxTransferStreams(final int maxTransferStreams) {
+		checkPositive("maxTransferStreams", maxTransferStreams);
+		this.maxTransferStreams = maxTransferStreams;
+	}
+
+	public int getMaxTransferStreamsPerClient() {
+		return maxTransferStreamsPerClient;
+	}
+
+	public void setMaxTransferStreamsPerClient(final int maxTransferStreamsPerClient) {
+		checkPositive("maxTransferStreamsPerClient", maxTransferStreamsPerClient);
+		this.maxTransferStreamsPerClient = maxTransferStreamsPerClient;
+	}
+
+	public long getParallelReadThresholdBytes() {
+		return parallelReadThresholdBytes;
+	}
+
+	public void setParallelReadThresholdBytes(final long parallelReadThresholdBytes) {
+		checkNotNegative("parallelReadThresholdBytes", parallelReadThresholdBytes);
+		this.parallelReadThresholdBytes = parallelReadThresholdBytes;
+	}
+
+	public int getParallelReadBlocks() {
+		return parallelReadBlocks;
+	}
+
+	public void setParallelReadBlocks(final int parallelReadBlocks) {
+		checkPositive("parallelReadBlocks", parallelReadBlocks);
+		this.parallelReadBlocks = parallelReadBlocks;
+	}
+
+	public int getConnectionPoolMaxPerAccount() {
+		return connectionPoolMaxPerAccount;
+	}
+
+	public void setConnectionPoolMaxPerAccount(final int connectionPoolMaxPerAccount) {
+		checkNotNegative("connectionPoolMaxPerAccount", connectionPoolMaxPerAccount);
+		this.connectionPoolMaxPerAccount = connectionPoolMaxPerAccount;
+	}
+
+	public int getConnectionPoolMaxIdle() {
+		return connectionPoolMaxIdle;
+	}
+
+	public void setConnectionPoolMaxIdle(final int connectionPoolMaxIdle) {
+		checkNotNegative("connectionPoolMaxIdle", connectionPoolMaxIdle);
+		this.connectionPoolMaxIdle = connectionPoolMaxIdle;
+	}
+
+	public int getConnectionPoolMinIdle() {
+		return connectionPoolMinIdle;
+	}
+
+	public void setConnectionPoolMinIdle(final int connectionPoolMinIdle) {
+		checkNotNegative("connectionPoolMinIdle", connectionPoolMinIdle);
+		this.connectionPoolMinIdle = connectionPoolMinIdle;
+	}
+
+	public long getConnectionPoolIdleMillis() {
+		return connectionPoolIdleMillis;
+	}
+
+	public void setConnectionPoolIdleMillis(final long connectionPoolIdleMillis) {
+		checkPositive("connectionPoolIdleMillis", connectionPoolIdleMillis);
+		this.connectionPoolIdleMillis = connectionPoolIdleMillis;
+	}
+
+	public long getConnectionPoolWaitMillis() {
+		return connectionPoolWaitMillis;
+	}
+
+	public void setConnectionPoolWaitMillis(final long connectionPoolWaitMillis) {
+		checkPositive("connectionPoolWaitMillis", connectionPoolWaitMillis);
+		this.connectionPoolWaitMillis = connectionPoolWaitMillis;
+	}
+
+	public long getIdMapTtlMillis() {
+		return idMapTtlMillis;
+	}
+
+	public void setIdMapTtlMillis(final long idMapTtlMillis) {
+		checkPositive("idMapTtlMillis", idMapTtlMillis);
+		this.idMapTtlMillis = idMapTtlMillis;
+	}
+
+	public int getIdMapMaxEntries() {
+		return idMapMaxEntries;
+	}
+
+	public void setIdMapMaxEntries(final int idMapMaxEntries) {
+		checkPositive("idMapMaxEntries", idMapMaxEntries);
+		this.idMapMaxEntries = idMapMaxEntries;
+	}
+
+	public long getNegativeLookupCacheSize() {
+		return negativeLookupCacheSize;
+	}
+
+	public void setNegativeLookupCacheSize(final long negativeLookupCacheSize) {
+		checkNotNegative("negativeLookupCacheSize", negativeLookupCacheSize);
+		this.negativeLookupCacheSize = negativeLookupCacheSize;
+	}
+
+	public long getNegativeLookupTtlMillis() {
+		return negativeLookupTtlMillis;
+	}
+
+	public void setNegativeLookupTtlMillis(final long negativeLookupTtlMillis) {
+		checkNotNegative("negativeLookupTtlMillis", negativeLookupTtlMillis);
+		this.negativeLookupTtlMillis = negativeLookupTtlMillis;
+	}
+
+	public long getInodePathCacheSize() {
+		return inodePathCacheSize;
+	}
+
+	public void setInodePathCacheSize(final long inodePathCacheSize) {
+		checkNotNegative("inodePathCacheSize", inodePathCacheSize);
+		this.inodePathCacheSize = inodePathCacheSize;
+	}
+
+	public long getPermissionCacheSize() {
+		return permissionCacheSize;
+	}
+
+	public void setPermissionCacheSize(final long permissionCacheSize) {
+		checkNotNegative("permissionCacheSize", permissionCacheSize);
+		this.permissionCacheSize = permissionCacheSize;
+	}
+
+	public long getPermissionTtlMillis() {
+		return permissionTtlMillis;
+	}
+
+	public void setPermissionTtlMillis(final long permissionTtlMillis) {
+		checkNotNegative("permissionTtlMillis", permissionTtlMillis);
+		this.permissionTtlMillis = permissionTtlMillis;
+	}
+
+	public long getFsStatRefreshMillis() {
+		return fsStatRefreshMillis;
+	}
+
+	public void setFsStatRefreshMillis(final long fsStatRefreshMillis) {
+		checkNotNegative("fsStatRefreshMillis", fsStatRefreshMillis);
+		this.fsStatRefreshMillis = fsStatRefreshMillis;
+	}
+
+	/**
+	 * Check the settings that depend on each other
+	 *
+	 * @throws IllegalArgumentException
+	 *             naming the first inconsistency
+	 */
+	public void validate() {
+		if (maxTransferStreamsPerClient > maxTransferStreams) {
+			throw new IllegalArgumentException("maxTransferStreamsPerClient is more than maxTransferStreams");
+		}
+
+		if (connectionPoolMaxPerAccount > 0 && connectionPoolMaxPerAccount < maxOpenFiles) {
+			// one user's open descriptors would pin every connection it has
+			throw new IllegalArgumentException("connectionPoolMaxPerAccount is less than maxOpenFiles");
+		}
+
+		if (connectionPoolMinIdle > connectionPoolMaxIdle) {
+			throw new IllegalArgumentException("connectionPoolMinIdle is more than connectionPoolMaxIdle");
+		}
+
+		if (writeBackFileBytes > writeBackTotalBytes) {
+			throw new IllegalArgumentException("writeBackFileBytes is more than writeBackTotalBytes");
+		}
+
+		if (blockCacheHeapBytes > 0 && blockCacheHeapBytes < blockCacheBlockSize) {
+			throw new IllegalArgumentException("blockCacheHeapBytes can not hold a single block");
+		}
+	}
+
+	private static void checkPositive(final String name, final long value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException(name + " must be positive");
+		}
+	}
+
+	private static void checkNotNegative(final String name, final long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("negative " + name);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("IrodsVfsConfiguration [handleMode=").append(handleMode);
+		builder.append(", inodeCacheSize=").append(inodeCacheSize);
+		builder.append(", attributeCacheSize=").append(attributeCacheSize);
+		builder.append(", attributeFileTtlMillis=").append(attributeFileTtlMillis);
+		builder.append(", attributeDirectoryTtlMillis=").append(attributeDirectoryTtlMillis);
+		builder.append(", prewarmUserCache=").append(prewarmUserCache);
+		builder.append(", userCacheRefreshMillis=").append(userCacheRefreshMillis);
+		builder.append(", listingCacheMaxEntries=").append(listingCacheMaxEntries);
+		builder.append(", listingPagesPerDirectory=").append(listingPagesPerDirectory);
+		builder.append(", listingCursorTtlMillis=").append(listingCursorTtlMillis);
+		builder.append(", directoryChangeCounterSize=").append(directoryChangeCounterSize);
+		builder.append(", maxOpenFiles=").append(maxOpenFiles);
+		builder.append(", openFileIdleMillis=").append(openFileIdleMillis);
+		builder.append(", readAheadBufferSize=").append(readAheadBufferSize);
+		builder.append(", readAheadMaxWindow=").append(readAheadMaxWindow);
+		builder.append(", readAheadPoolBuffers=").append(readAheadPoolBuffers);
+		builder.append(", blockCacheBlockSize=").append(blockCacheBlockSize);
+		builder.append(", blockCacheHeapBytes=").append(blockCacheHeapBytes);
+		builder.append(", blockCacheOffHeapBytes=").append(blockCacheOffHeapBytes);
+		builder.append(", writeBackFileBytes=").append(writeBackFileBytes);
+		builder.append(", writeBackTotalBytes=").append(writeBackTotalBytes);
+		builder.append(", writeBackIdleMillis=").append(writeBackIdleMillis);
+		builder.append(", stagingDirectory=").append(stagingDirectory);
+		builder.append(", stagingQuotaBytes=").append(stagingQuotaBytes);
+		builder.append(", stagingQuotaWaitMillis=").append(stagingQuotaWaitMillis);
+		builder.append(", stagingIdleMillis=").append(stagingIdleMillis);
+		builder.append(", stagingRetryMillis=").append(stagingRetryMillis);
+		builder.append(", stagingUploadAttempts=").append(stagingUploadAttempts);
+		builder.append(", stagingUploadThreads=").append(stagingUploadThreads);
+		builder.append(", maxTransferStreams=").append(maxTransferStreams);
+		builder.append(", maxTransferStreamsPerClient=").append(maxTransferStreamsPerClient);
+		builder.append(", parallelReadThresholdBytes=").append(parallelReadThresholdBytes);
+		builder.append(", parallelReadBlocks=").append(parallelReadBlocks);
+		builder.append(", connectionPoolMaxPerAccount=").append(connectionPoolMaxPerAccount);
+		builder.append(", connectionPoolMaxIdle=").append(connectionPoolMaxIdle);
+		builder.append(", connectionPoolMinIdle=").append(connectionPoolMinIdle);
+		builder.append(", connectionPoolIdleMillis=").append(connectionPoolIdleMillis);
+		builder.append(", connectionPoolWaitMillis=").append(connectionPoolWaitMillis);
+		builder.append(", idMapTtlMillis=").append(idMapTtlMillis);
+		builder.append(", idMapMaxEntries=").append(idMapMaxEntries);
+		builder.append(", negativeLookupCacheSize=").append(negativeLookupCacheSize);
+		builder.append(", negativeLookupTtlMillis=").append(negativeLookupTtlMillis);
+		builder.append(", inodePathCacheSize=").append(inodePathCacheSize);
+		builder.append(", permissionCacheSize=").append(permissionCacheSize);
+		builder.append(", permissionTtlMillis=").append(permissionTtlMillis);
+		builder.append(", fsStatRefreshMillis=").append(fsStatRefreshMillis);
+		builder.append("]");
+		return builder.toString();
+	}
+
+}
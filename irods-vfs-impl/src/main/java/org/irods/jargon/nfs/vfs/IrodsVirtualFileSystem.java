@@ -3,30 +3,36 @@
  */
 package org.irods.jargon.nfs.vfs;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.security.auth.Subject;
 
-import org.cliffc.high_scale_lib.NonBlockingHashMap;
-import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.dcache.nfs.status.AccessException;
 import org.dcache.nfs.status.ExistException;
 import org.dcache.nfs.status.NoEntException;
 import org.dcache.nfs.status.NotSuppException;
 import org.dcache.nfs.status.PermException;
 import org.dcache.nfs.status.ServerFaultException;
+import org.dcache.nfs.status.StaleException;
 import org.dcache.nfs.v4.NfsIdMapping;
 import org.dcache.nfs.v4.SimpleIdMap;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
 import org.dcache.nfs.v4.xdr.nfsace4;
 import org.dcache.nfs.vfs.AclCheckable;
 import org.dcache.nfs.vfs.DirectoryEntry;
@@ -38,22 +44,58 @@ import org.dcache.nfs.vfs.Stat.Type;
 import org.dcache.nfs.vfs.VirtualFileSystem;
 import org.irods.jargon.core.connection.IRODSAccount;
 import org.irods.jargon.core.exception.DataNotFoundException;
+import org.irods.jargon.core.exception.FileNotFoundException;
 import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.protovalues.UserTypeEnum;
+import org.irods.jargon.core.pub.CollectionAO;
+import org.irods.jargon.core.pub.DataObjectAO;
 import org.irods.jargon.core.pub.CollectionAndDataObjectListAndSearchAO;
 import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
 import org.irods.jargon.core.pub.IRODSFileSystemAO;
-import org.irods.jargon.core.pub.UserAO;
 import org.irods.jargon.core.pub.domain.ObjStat;
 import org.irods.jargon.core.pub.domain.User;
+import org.irods.jargon.core.pub.domain.UserGroup;
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.irods.jargon.core.pub.io.IRODSFileFactory;
 import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
-import org.irods.jargon.nfs.vfs.utils.PermissionBitmaskUtils;
+import org.irods.jargon.nfs.vfs.cache.AttributeCache;
+import org.irods.jargon.nfs.vfs.cache.BlockCache;
+import org.irods.jargon.nfs.vfs.cache.FsStatCache;
+import org.irods.jargon.nfs.vfs.cache.NegativeLookupCache;
+import org.irods.jargon.nfs.vfs.cache.PermissionCache;
+import org.irods.jargon.nfs.vfs.cache.SingleFlight;
+import org.irods.jargon.nfs.vfs.cache.UserIdCache;
+import org.irods.jargon.nfs.vfs.connection.PooledProtocolManager;
+import org.irods.jargon.nfs.vfs.inode.BoundedInodeCache;
+import org.irods.jargon.nfs.vfs.inode.CompactInodeStore;
+import org.irods.jargon.nfs.vfs.inode.HandleMode;
+import org.irods.jargon.nfs.vfs.inode.InodeStore;
+import org.irods.jargon.nfs.vfs.inode.IrodsInodeNumbers;
+import org.irods.jargon.nfs.vfs.inode.SequentialInodeStore;
+import org.irods.jargon.nfs.vfs.io.BufferPool;
+import org.irods.jargon.nfs.vfs.io.OpenFile;
+import org.irods.jargon.nfs.vfs.io.OpenFileTable;
+import org.irods.jargon.nfs.vfs.io.ParallelReader;
+import org.irods.jargon.nfs.vfs.io.StreamLimiter;
+import org.irods.jargon.nfs.vfs.io.WriteBackCache;
+import org.irods.jargon.nfs.vfs.listing.DirectoryChangeCounter;
+import org.irods.jargon.nfs.vfs.listing.DirectoryCursorCache;
+import org.irods.jargon.nfs.vfs.listing.ListingCookies;
+import org.irods.jargon.nfs.vfs.listing.ListingPage;
+import org.irods.jargon.nfs.vfs.listing.ListingPageSource;
+import org.irods.jargon.nfs.vfs.listing.PagedDirectoryStream;
+import org.irods.jargon.nfs.vfs.staging.SpoolUploader;
+import org.irods.jargon.nfs.vfs.staging.StagingArea;
+import org.irods.jargon.nfs.vfs.utils.IrodsPermissions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import java.security.AccessController;
 import jline.internal.Log;
@@ -69,6 +111,12 @@ import org.irods.jargon.core.pub.domain.UserFilePermission;
  */
 public class IrodsVirtualFileSystem implements VirtualFileSystem
 {
+    /**
+     * With {@link HandleMode#SEQUENTIAL} handles the root of the export is
+     * always the first inode handed out by the store
+     */
+    public static final long ROOT_INODE = 1;
+
     private static final Logger log = LoggerFactory.getLogger(IrodsVirtualFileSystem.class);
     private static final ObjectMapper mapper = new ObjectMapper();
     
@@ -80,13 +128,44 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     private final IRODSAccessObjectFactory irodsAccessObjectFactory;
     private final IRODSAccount rootAccount;
     private final IRODSFile root;
-    private final NonBlockingHashMapLong<Path> inodeToPath = new NonBlockingHashMapLong<>();
-    private final NonBlockingHashMap<Path, Long> pathToInode = new NonBlockingHashMap<>();
-    private final AtomicLong fileId = new AtomicLong(1); // numbering starts at 1
+    private final InodeStore inodeStore;
+    // the same store when it numbers inodes, null with id handles
+    private final SequentialInodeStore sequentialStore;
+    private final IrodsVfsConfiguration config;
+    // null when every call connects anew
+    private final PooledProtocolManager connectionPool;
+    private final IrodsObjectLocator objectLocator;
+    private final IrodsAclLister aclLister;
+    private final AttributeCache attributeCache;
+    // concurrent misses for the same stat or listing page share one iRODS call
+    private final SingleFlight<Stat> statFlights = new SingleFlight<>();
+    private final SingleFlight<ListingPage> listFlights = new SingleFlight<>();
+    private final SingleFlight<List<UserFilePermission>> aclFlights = new SingleFlight<>();
+    private final PermissionCache permissions;
+    private final UserIdCache userIdCache;
+    private final FsStatCache fsStats;
+    private final DirectoryCursorCache directoryCursors;
+    private final DirectoryChangeCounter directoryChanges;
+    private final NegativeLookupCache negativeLookups;
+    private final OpenFileTable openFiles;
+    // null when read-ahead is turned off
+    private final BufferPool readAheadPool;
+    // null when block caching is turned off
+    private final BlockCache blockCache;
+    private final WriteBackCache writeBack;
+    private final StreamLimiter streamLimiter;
+    // null unless large objects are read into the block cache over several streams
+    private final ParallelReader parallelReader;
+    // null unless WRITEs are staged on local disk
+    private final StagingArea staging;
+    private final long bootTime = System.currentTimeMillis();
+    private final Path rootPath;
+    private final long rootInodeNumber;
+    private final int handleGeneration;
     private final IrodsIdMap _idMapper;
 
     /**
-     * Default constructor
+     * Default constructor, keeps the inode table in memory
      * 
      * @param irodsAccessObjectFactory
      *            {@link IRODSAccessObjectFactory} with hooks to the core jargon
@@ -99,6 +178,76 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     public IrodsVirtualFileSystem(IRODSAccessObjectFactory _irodsAccessObjectFactory,
                                   IRODSAccount _rootAccount,
                                   IRODSFile _root) throws DataNotFoundException, JargonException
+    {
+        this(_irodsAccessObjectFactory, _rootAccount, _root, new IrodsVfsConfiguration());
+    }
+
+    /**
+     * Constructor with settings, the inode table is chosen to suit the
+     * configured {@link HandleMode}
+     * 
+     * @param irodsAccessObjectFactory
+     *            {@link IRODSAccessObjectFactory} with hooks to the core jargon
+     *            system
+     * @param rootAccount
+     *            {@link IRODSAccount} that can access the root node
+     * @param root
+     *            {@link IRODSFile} that is the root node of this file system
+     * @param config
+     *            {@link IrodsVfsConfiguration} with settings
+     */
+    public IrodsVirtualFileSystem(IRODSAccessObjectFactory _irodsAccessObjectFactory,
+                                  IRODSAccount _rootAccount,
+                                  IRODSFile _root,
+                                  IrodsVfsConfiguration _config) throws DataNotFoundException, JargonException
+    {
+        this(_irodsAccessObjectFactory, _rootAccount, _root, _config, defaultInodeStore(_config));
+    }
+
+    /**
+     * Constructor with a pluggable inode table. Pass a persistent
+     * {@link InodeStore} so file handles stay valid across gateway restarts.
+     * 
+     * @param irodsAccessObjectFactory
+     *            {@link IRODSAccessObjectFactory} with hooks to the core jargon
+     *            system
+     * @param rootAccount
+     *            {@link IRODSAccount} that can access the root node
+     * @param root
+     *            {@link IRODSFile} that is the root node of this file system
+     * @param inodeStore
+     *            {@link InodeStore} that holds the inode to path mapping
+     */
+    public IrodsVirtualFileSystem(IRODSAccessObjectFactory _irodsAccessObjectFactory,
+                                  IRODSAccount _rootAccount,
+                                  IRODSFile _root,
+                                  InodeStore _inodeStore) throws DataNotFoundException, JargonException
+    {
+        this(_irodsAccessObjectFactory, _rootAccount, _root, new IrodsVfsConfiguration(), _inodeStore);
+    }
+
+    /**
+     * Constructor with settings and a pluggable inode table. With
+     * {@link HandleMode#IRODS_ID} the store is only a cache and should be
+     * bounded, such as a {@link BoundedInodeCache}.
+     * 
+     * @param irodsAccessObjectFactory
+     *            {@link IRODSAccessObjectFactory} with hooks to the core jargon
+     *            system
+     * @param rootAccount
+     *            {@link IRODSAccount} that can access the root node
+     * @param root
+     *            {@link IRODSFile} that is the root node of this file system
+     * @param config
+     *            {@link IrodsVfsConfiguration} with settings
+     * @param inodeStore
+     *            {@link InodeStore} that holds the inode to path mapping
+     */
+    public IrodsVirtualFileSystem(IRODSAccessObjectFactory _irodsAccessObjectFactory,
+                                  IRODSAccount _rootAccount,
+                                  IRODSFile _root,
+                                  IrodsVfsConfiguration _config,
+                                  InodeStore _inodeStore) throws DataNotFoundException, JargonException
     {
         super(); // This is probably not needed.
 
@@ -116,19 +265,244 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
         {
             throw new IllegalArgumentException("null root");
         }
-        
-        
+
+        if (_config == null)
+        {
+            throw new IllegalArgumentException("null config");
+        }
+        _config.validate();
+
+        if (_inodeStore == null)
+        {
+            throw new IllegalArgumentException("null inodeStore");
+        }
+
+        if (_config.getHandleMode() == HandleMode.SEQUENTIAL && !(_inodeStore instanceof SequentialInodeStore))
+        {
+            throw new IllegalArgumentException("sequential handles need a SequentialInodeStore");
+        }
         
         irodsAccessObjectFactory = _irodsAccessObjectFactory;
         rootAccount = _rootAccount;
         root = _root;
+        config = _config;
+        inodeStore = _inodeStore;
+        sequentialStore = _inodeStore instanceof SequentialInodeStore ? (SequentialInodeStore) _inodeStore : null;
+        connectionPool = startConnectionPool();
+        objectLocator = new IrodsObjectLocator(irodsAccessObjectFactory, rootAccount);
+        attributeCache = new AttributeCache(config.getAttributeCacheSize(), config.getAttributeFileTtlMillis(),
+                config.getAttributeDirectoryTtlMillis());
+        permissions = new PermissionCache(config.getPermissionCacheSize(), config.getPermissionTtlMillis());
+        directoryCursors = new DirectoryCursorCache(config.getListingCacheMaxEntries(),
+                config.getListingPagesPerDirectory(), config.getListingCursorTtlMillis());
+        directoryChanges = new DirectoryChangeCounter(config.getDirectoryChangeCounterSize());
+        negativeLookups = new NegativeLookupCache(config.getNegativeLookupCacheSize(),
+                config.getNegativeLookupTtlMillis());
+        openFiles = new OpenFileTable(config.getMaxOpenFiles(), config.getOpenFileIdleMillis());
+        if (connectionPool != null)
+        {
+            // idle read descriptors hold connections a new call may need
+            connectionPool.setExhaustionListener(new PooledProtocolManager.ExhaustionListener()
+            {
+                @Override
+                public void exhausted(IRODSAccount irodsAccount)
+                {
+                    openFiles.closeLeastRecentlyUsed(irodsAccount);
+                }
+            });
+        }
+        readAheadPool = config.getReadAheadPoolBuffers() > 0
+                ? new BufferPool(config.getReadAheadBufferSize(), config.getReadAheadPoolBuffers())
+                : null;
+        blockCache = config.getBlockCacheHeapBytes() > 0
+                ? new BlockCache(config.getBlockCacheBlockSize(), config.getBlockCacheHeapBytes(),
+                        config.getBlockCacheOffHeapBytes())
+                : null;
+        streamLimiter = new StreamLimiter(config.getMaxTransferStreams(), config.getMaxTransferStreamsPerClient());
+        parallelReader = blockCache != null && config.getParallelReadThresholdBytes() > 0
+                ? new ParallelReader(irodsAccessObjectFactory, streamLimiter, config.getMaxTransferStreams())
+                : null;
+        WriteBackCache.Listener flushListener = new WriteBackCache.Listener()
+        {
+            @Override
+            public void flushed(long inodeNumber)
+            {
+                attributeCache.invalidate(inodeNumber);
+                if (blockCache != null)
+                {
+                    blockCache.invalidate(inodeNumber);
+                }
+            }
+        };
+        writeBack = new WriteBackCache(openFiles, config.getWriteBackFileBytes(), config.getWriteBackTotalBytes(),
+                config.getWriteBackIdleMillis(), flushListener);
+        rootPath = Paths.get(root.getAbsolutePath());
+        // handles from another zone or export root are rejected as stale
+        handleGeneration = (rootAccount.getZone() + ":" + rootPath).hashCode();
         
-        _idMapper =  new IrodsIdMap(irodsAccessObjectFactory, rootAccount, root.getName());
+        userIdCache = new UserIdCache(irodsAccessObjectFactory, rootAccount);
+        aclLister = new IrodsAclLister(irodsAccessObjectFactory, rootAccount, userIdCache);
+        startUserIdCache();
+        fsStats = new FsStatCache(irodsAccessObjectFactory, rootAccount, rootPath.toString());
+        if (config.getFsStatRefreshMillis() > 0)
+        {
+            fsStats.startRefresh(config.getFsStatRefreshMillis());
+        }
+        _idMapper =  new IrodsIdMap(irodsAccessObjectFactory, rootAccount, rootAccount.getUserName(), userIdCache,
+                config.getIdMapTtlMillis(), config.getIdMapMaxEntries());
+        staging = config.getStagingDirectory() == null ? null : startStaging(flushListener);
         
         Log.info("IdMapping: " + _idMapper.toString());
         Log.info("Root Name: " + root.getName());
+        log.info("config: {}", config);
         
         //establishRoot();
+        if (config.getHandleMode() == HandleMode.IRODS_ID)
+        {
+            rootInodeNumber = mapRootById();
+        }
+        else
+        {
+            rootInodeNumber = mapRoot();
+        }
+    }
+
+    /**
+     * Load the user table so stat never waits on a user lookup. Failing to
+     * load is not fatal, users are then looked up as they are seen.
+     */
+    private void startUserIdCache()
+    {
+        if (config.isPrewarmUserCache())
+        {
+            try
+            {
+                userIdCache.refresh();
+            }
+            catch (JargonException e)
+            {
+                log.warn("unable to load irods users, will look them up as needed", e);
+            }
+            finally
+            {
+                irodsAccessObjectFactory.closeSessionAndEatExceptions();
+            }
+        }
+
+        if (config.getUserCacheRefreshMillis() > 0)
+        {
+            userIdCache.startRefresh(config.getUserCacheRefreshMillis());
+        }
+    }
+
+    private static InodeStore defaultInodeStore(IrodsVfsConfiguration config)
+    {
+        if (config == null)
+        {
+            throw new IllegalArgumentException("null config");
+        }
+
+        if (config.getHandleMode() == HandleMode.IRODS_ID)
+        {
+            return new BoundedInodeCache(config.getInodeCacheSize());
+        }
+        return new CompactInodeStore(config.getInodePathCacheSize());
+    }
+
+    /**
+     * Root inode number for {@link HandleMode#IRODS_ID}, taken from the
+     * collection id of the root
+     */
+    private long mapRootById() throws JargonException
+    {
+        try
+        {
+            ObjStat objStat = irodsAccessObjectFactory.getCollectionAndDataObjectListAndSearchAO(rootAccount)
+                    .retrieveObjectStatForPath(rootPath.toString());
+            long inodeNumber = inodeNumberFor(objStat);
+            cacheMapping(inodeNumber, rootPath);
+            log.info("root {} is inode #{} (irods id {})", rootPath, inodeNumber, objStat.getDataId());
+            return inodeNumber;
+        }
+        finally
+        {
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
+        }
+    }
+
+    /**
+     * Make sure the root is inode #1 without a round trip to iRODS. A
+     * persistent store will already have it from an earlier run.
+     */
+    private long mapRoot()
+    {
+        Path storedRootPath = inodeStore.pathOf(ROOT_INODE);
+
+        if (storedRootPath == null)
+        {
+            log.debug("mapping root...");
+            long inodeNumber = sequentialStore.nextInodeNumber();
+            if (inodeNumber != ROOT_INODE)
+            {
+                throw new IllegalStateException("inode store has no root but has already numbered inodes");
+            }
+            map(inodeNumber, rootPath);
+        }
+        else if (!storedRootPath.equals(rootPath))
+        {
+            throw new IllegalStateException("inode store belongs to root " + storedRootPath + " not " + rootPath);
+        }
+
+        log.info("root {} is inode #{}, {} inodes mapped", rootPath, ROOT_INODE, inodeStore.size());
+        return ROOT_INODE;
+    }
+
+    /**
+     * Release the inode store, flushing a persistent store to disk
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        log.debug("vfs::close");
+        log.info("closing, {}", attributeCache);
+        log.info("closing, {}", negativeLookups);
+        log.info("closing, {}", permissions);
+        log.info("closing, shared stats {}, shared listing pages {}", statFlights.sharedCount(),
+                listFlights.sharedCount());
+        if (staging != null)
+        {
+            staging.close();
+        }
+        writeBack.close();
+        if (parallelReader != null)
+        {
+            parallelReader.close();
+        }
+        openFiles.close();
+        userIdCache.close();
+        fsStats.close();
+        inodeStore.close();
+        if (connectionPool != null)
+        {
+            log.info("closing, {}", connectionPool);
+            try
+            {
+                connectionPool.destroy();
+            }
+            catch (JargonException e)
+            {
+                log.warn("error closing iRODS connection pool", e);
+            }
+        }
+    }
+
+    /**
+     * @return {@link AttributeCache} with hit and miss counters
+     */
+    public AttributeCache getAttributeCache()
+    {
+        return attributeCache;
     }
 
     private void establishRoot() throws DataNotFoundException, JargonException
@@ -147,7 +521,7 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
             }
 
             log.debug("mapping root...");
-            map(fileId.getAndIncrement(), root.getAbsolutePath()); // so root is always inode #1
+            map(sequentialStore.nextInodeNumber(), root.getAbsolutePath()); // so root is always inode #1
         }
         finally
         {
@@ -172,93 +546,25 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     public int access(Inode inode, int mode) throws IOException
     {
         log.debug("vfs::access");
-        
-        log.debug("mode (int) = {}", mode);
-        log.debug("mode       = {}", Stat.modeToString(mode));
-        
-        if (true)
-        {
-        	// TODO Should 'mode' be returned?
-//        	return mode;
-        	
-        	// TODO Should the mode from stat be returned instead?
-        	// Either one appears to work.
-            long inodeNumber = getInodeNumber(inode);
-            Path path = resolveInode(inodeNumber);
-            log.debug("path = {}", path);
-            Stat stat = statPath(path, inodeNumber);
-            log.debug("correct mode (int) = {}", stat.getMode());
-            log.debug("correct mode       = {}", Stat.modeToString(stat.getMode()));
-            return stat.getMode();
-        }
 
         if (inode == null)
         {
             throw new IllegalArgumentException("null inode");
         }
 
-        long inodeNumber = getInodeNumber(inode);
-        // Throws NoEntException if not resolved...
-        Path path = resolveInode(inodeNumber);
-
-        log.debug("path: {}", path);
-
-        int returnMode = 0;
-        try
-        {
-            IRODSFile pathFile = irodsAccessObjectFactory.getIRODSFileFactory(resolveIrodsAccount())
-                .instanceIRODSFile(path.toString());
-
-            if (PermissionBitmaskUtils.isUserExecuteSet(mode))
-            {
-                log.debug("check user exec");
-                if (pathFile.canExecute())
-                {
-                    log.debug("determine user can execute");
-                    returnMode = PermissionBitmaskUtils.turnOnUserExecute(returnMode);
-                }
-            }
-
-            boolean canWrite = false;
-            if (PermissionBitmaskUtils.isUserWriteSet(mode))
-            {
-                log.debug("checking user write");
-                canWrite = pathFile.canWrite();
-                if (canWrite)
-                {
-                    log.debug("determine user can write");
-                    returnMode = PermissionBitmaskUtils.turnOnUserWrite(returnMode);
-                }
-            }
-
-            if (PermissionBitmaskUtils.isUserReadSet(mode))
-            {
-                log.debug("check user read");
-                if (canWrite)
-                {
-                    log.debug("user already determined to have write");
-                    returnMode = PermissionBitmaskUtils.turnOnUserRead(returnMode);
-                }
-                else if (pathFile.canRead())
-                {
-                    log.debug("user can read");
-                    returnMode = PermissionBitmaskUtils.turnOnUserRead(returnMode);
-                }
-            }
-
-            log.debug("finished!");
-            return returnMode;
-
-        }
-        catch (JargonException e)
-        {
-            log.error("exception getting access for path:{}", path, e);
-            throw new IOException(e);
-        }
-        finally
+        int uid = currentUid();
+        if (uid == 0)
         {
-            irodsAccessObjectFactory.closeSessionAndEatExceptions();
+            // the gateway's own account
+            return mode;
         }
+
+        long inodeNumber = getInodeNumber(inode);
+        FilePermissionEnum permission = permissionOf(inodeNumber, uid);
+        boolean collection = cachedStat(resolveInode(inodeNumber), inodeNumber).type() == Stat.Type.DIRECTORY;
+        int granted = mode & IrodsPermissions.accessMask(permission, collection);
+        log.debug("uid {} has {} on inode #{}, granted {} of {}", uid, permission, inodeNumber, granted, mode);
+        return granted;
     }
 
     /**
@@ -277,7 +583,15 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     public void commit(Inode inode, long offset, int count) throws IOException
     {
         log.debug("vfs::commit");
-        log.debug("commit() is right now a noop, need to think about it");
+        long inodeNumber = getInodeNumber(inode);
+        // a count of zero commits to the end of the file
+        long end = count == 0 ? Long.MAX_VALUE : offset + count;
+        writeBack.commit(inodeNumber, offset, end);
+        if (staging != null)
+        {
+            // staged data goes out whole, the upload is queued not awaited
+            staging.commit(inodeNumber);
+        }
     }
 
     /**
@@ -338,8 +652,9 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
             IRODSFile newFile = irodsFileFactory.instanceIRODSFile(newPath.toString());
             log.debug("creating new file at: {}", newFile);
             newFile.createNewFile();
-            long newInodeNumber = fileId.getAndIncrement();
-            map(newInodeNumber, newPath);
+            long newInodeNumber = mapNewObject(newPath);
+            directoryChanged(parentInodeNumber);
+            inheritAcl(parentInodeNumber, newInodeNumber, false, resolveIrodsAccount());
 //            setOwnershipAndMode(newPath, subject, mode);
             return toFh(newInodeNumber);
 
@@ -355,7 +670,26 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     public byte[] directoryVerifier(Inode inode) throws IOException
     {
         log.debug("vfs::directoryVerifier");
-        return null;
+        long inodeNumber = getInodeNumber(inode);
+        return directoryVerifier(resolveInode(inodeNumber), inodeNumber);
+    }
+
+    /**
+     * Verifier from the collection modify time and the count of changes made
+     * through this gateway, which iRODS does not always reflect in the modify
+     * time. The boot time is mixed in since the change count restarts with
+     * the gateway.
+     */
+    private byte[] directoryVerifier(Path path, long inodeNumber) throws IOException
+    {
+        long verifier = bootTime;
+        verifier = 31 * verifier + cachedStat(path, inodeNumber).getMTime();
+        verifier = 31 * verifier + directoryChanges.versionOf(inodeNumber);
+        if (verifier == 0)
+        {
+            verifier = 1; // all zeros means no verifier
+        }
+        return Longs.toByteArray(verifier);
     }
 
 //    private void setOwnershipAndMode(Path newPath, Subject subject, int mode)
@@ -369,7 +703,20 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
         log.debug("vfs::getAcl");
         // info on nfsace4:
         // https://www.ibm.com/support/knowledgecenter/en/ssw_aix_61/com.ibm.aix.osdevice/acl_type_nfs4.htm
-        return new nfsace4[0]; // TODO: this is same in local need to look at what nfsace4 is composed of
+        long inodeNumber = getInodeNumber(inode);
+        Path path = resolveInode(inodeNumber);
+        boolean collection = cachedStat(path, inodeNumber).type() == Stat.Type.DIRECTORY;
+        List<UserFilePermission> acl = aclOf(inodeNumber);
+        boolean inheritable = collection && inherits(inodeNumber, path);
+        List<UserFilePermission> parentAcl = parentAclPassedOn(path);
+
+        nfsace4[] aces = new nfsace4[acl.size()];
+        for (int i = 0; i < aces.length; i++)
+        {
+            UserFilePermission entry = acl.get(i);
+            aces[i] = IrodsPermissions.toAce(entry, inheritable, IrodsPermissions.contains(parentAcl, entry));
+        }
+        return aces;
     }
 
     @Override
@@ -383,10 +730,31 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     public FsStat getFsStat() throws IOException
     {
         log.debug("vfs::getFsStat");
-        FileStore store = Files.getFileStore(Paths.get(root.getAbsolutePath()));
-        long total = store.getTotalSpace();
-        long free = store.getUsableSpace();
-        return new FsStat(total, Long.MAX_VALUE, total - free, pathToInode.size());
+        int uid = currentUid();
+        try
+        {
+            // loaded in the background, see FsStatCache
+            if (config.getFsStatRefreshMillis() <= 0)
+            {
+                fsStats.invalidate();
+            }
+
+            User user = userIdCache.userOf(uid);
+            if (user == null)
+            {
+                return fsStats.fsStatFor(null, null);
+            }
+            return fsStats.fsStatFor(user.getName(), groupsOf(uid, user));
+        }
+        catch (JargonException e)
+        {
+            log.error("error getting file system statistics", e);
+            throw new IOException(e);
+        }
+        finally
+        {
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
+        }
     }
 
     @Override
@@ -400,11 +768,15 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     public Inode getRootInode() throws IOException
     {
         log.debug("vfs::getRootInode");
-        return toFh(1); // always #1 (see constructor)
+        return toFh(rootInodeNumber); // #1 unless handles carry irods ids (see constructor)
     }
 
     private Inode toFh(long inodeNumber)
     {
+        if (config.getHandleMode() == HandleMode.IRODS_ID)
+        {
+            return Inode.forFile(Bytes.concat(Longs.toByteArray(inodeNumber), Ints.toByteArray(handleGeneration)));
+        }
         return Inode.forFile(Longs.toByteArray(inodeNumber));
     }
 
@@ -424,7 +796,29 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
         Path path = resolveInode(inodeNumber);
         log.debug("vfs::getattr - inode number = {}", inodeNumber);
         log.debug("vfs::getattr - path         = {}", path);
-        return statPath(path, inodeNumber);
+        Stat stat = withUnregisteredWrites(inodeNumber, cachedStat(path, inodeNumber));
+        return forCaller(inodeNumber, stat, currentUid());
+    }
+
+    /**
+     * iRODS registers the size of a written object when the descriptor is
+     * closed, until then the size comes from what was written here
+     */
+    private Stat withUnregisteredWrites(long inodeNumber, Stat stat)
+    {
+        long writtenSize = writeBack.sizeOf(inodeNumber);
+        if (staging != null)
+        {
+            writtenSize = Math.max(writtenSize, staging.sizeOf(inodeNumber));
+        }
+        if (writtenSize <= stat.getSize())
+        {
+            return stat;
+        }
+
+        Stat written = stat.clone();
+        written.setSize(writtenSize);
+        return written;
     }
 
     @Override
@@ -469,9 +863,9 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
             throw new ServerFaultException("Failed to create: " + e.getMessage(), e);
         }
 
-        long newInodeNumber = fileId.getAndIncrement();
-        map(newInodeNumber, targetPath);
-        return toFh(newInodeNumber);
+        directoryChanged(parentInodeNumber);
+        invalidateInode(existingInodeNumber); // link count
+        return toFh(mapNewObject(targetPath));
     }
 
     @Override
@@ -479,42 +873,106 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     {
         log.debug("vfs::list");
 
-        final List<DirectoryEntry> list = new ArrayList<>();
+        final long inodeNumber = getInodeNumber(_inode);
+        final Path parentPath = resolveInode(inodeNumber);
+        final int uid = currentUid();
+        log.debug("vfs::list - list contents of [{}] after cookie {}", parentPath, _cookie);
+
+        ListingCookies.validate(_cookie);
+
+        // pages are fetched as nfs4j reads the stream, not all up front
+        byte[] verifier = directoryVerifier(parentPath, inodeNumber);
+        return new PagedDirectoryStream(verifier, inodeNumber, _cookie, new ListingPageSource()
+        {
+            @Override
+            public ListingPage fetch(final boolean dataObjects, final int offset) throws IOException
+            {
+                SingleFlight.Key key = new SingleFlight.Key(dataObjects ? "listDataObjects" : "listCollections",
+                        inodeNumber, uid, offset, directoryCursors.version(inodeNumber));
+                return listFlights.execute(key, new Callable<ListingPage>()
+                {
+                    @Override
+                    public ListingPage call() throws IOException
+                    {
+                        return listPage(parentPath, dataObjects, offset);
+                    }
+                });
+            }
+
+            @Override
+            public DirectoryEntry entryFor(DirectoryEntry entry) throws IOException
+            {
+                Stat stat = forCaller(getInodeNumber(entry.getInode()), entry.getStat(), uid);
+                if (stat == entry.getStat())
+                {
+                    return entry;
+                }
+                return new DirectoryEntry(entry.getName(), entry.getInode(), stat, entry.getCookie());
+            }
+        }, directoryCursors);
+    }
+
+    /**
+     * Fetch one page of sub-collections or data objects. The listing carries
+     * the attributes, no per entry stat is needed, and the ACLs of the page
+     * come with one more query, not one per entry.
+     */
+    private ListingPage listPage(Path parentPath, boolean dataObjects, int offset) throws IOException
+    {
+        log.debug("vfs::listPage - {} data objects: {} offset: {}", parentPath, dataObjects, offset);
 
         try
         {
             CollectionAndDataObjectListAndSearchAO listAO = irodsAccessObjectFactory
                 .getCollectionAndDataObjectListAndSearchAO(rootAccount);
 
-            // get collection listing from root node
-            Path parentPath = resolveInode(getInodeNumber(_inode));
-            log.debug("vfs::list - list contents of [{}] ...", parentPath);
-
             String irodsAbsPath = parentPath.normalize().toString();
 
-            List<CollectionAndDataObjectListingEntry> entries = listAO
-                .listDataObjectsAndCollectionsUnderPath(irodsAbsPath);
+            long epoch = attributeCache.epoch();
+            List<CollectionAndDataObjectListingEntry> entries;
+            if (dataObjects)
+            {
+                entries = listAO.listDataObjectsUnderPath(irodsAbsPath, offset);
+            }
+            else
+            {
+                entries = listAO.listCollectionsUnderPath(irodsAbsPath, offset);
+            }
+
+            long aclEpoch = permissions.epoch();
+            Map<String, List<UserFilePermission>> acls = pageAcls(irodsAbsPath, dataObjects, parentPath, entries);
+
+            final List<DirectoryEntry> list = new ArrayList<>(entries.size());
+            boolean last = true;
+            long position = offset;
 
             for (final CollectionAndDataObjectListingEntry dataObj : entries)
             {
                 Path filePath = parentPath.resolve(dataObj.getPathOrName());
-                long inodeNumber = -1;
-                
-                log.debug("vfs::list - entry = {}", filePath);
+                log.debug("vfs::listPage - entry = {}", filePath);
+
+                long inodeNumber = mapListedObject(filePath, dataObj);
 
-                if (inodeToPath.containsValue(filePath))
+                Stat stat = toStat(inodeNumber, dataObj.getObjectType(), dataObj.getDataSize(),
+                        dataObj.getCreatedAt(), dataObj.getModifiedAt(), dataObj.getOwnerName(),
+                        dataObj.getOwnerZone());
+                attributeCache.put(inodeNumber, stat, epoch);
+                contentSeen(inodeNumber, stat);
+                List<UserFilePermission> acl = acls.get(aclKey(dataObjects, filePath));
+                if (acl != null)
                 {
-                    inodeNumber = resolvePath(filePath);
+                    permissions.putAcl(inodeNumber, acl, aclEpoch);
                 }
-                else
-                {
-                    inodeNumber = fileId.getAndIncrement();
-                    map(inodeNumber, filePath);
-                }
-
-                Stat stat = statPath(filePath, inodeNumber);
-                list.add(new DirectoryEntry(filePath.getFileName().toString(), toFh(inodeNumber), stat, inodeNumber));
+                list.add(new DirectoryEntry(filePath.getFileName().toString(), toFh(inodeNumber), stat,
+                        ListingCookies.cookieOf(dataObjects, position++)));
+                last = dataObj.isLastResult();
             }
+
+            return new ListingPage(dataObjects, offset, list, last);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new NoEntException("path " + parentPath);
         }
         catch (JargonException e)
         {
@@ -525,18 +983,75 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
         {
             irodsAccessObjectFactory.closeSessionAndEatExceptions();
         }
+    }
+
+    /**
+     * ACLs of the entries of a listing page, by {@link #aclKey(boolean, Path)}.
+     * The query is narrowed to the names of the page. Entries it misses, or
+     * all of them if it fails, have their ACL fetched when it is needed.
+     */
+    private Map<String, List<UserFilePermission>> pageAcls(String irodsAbsPath, boolean dataObjects, Path parentPath,
+            List<CollectionAndDataObjectListingEntry> entries)
+    {
+        if (entries.isEmpty() || !permissions.isEnabled())
+        {
+            return Collections.emptyMap();
+        }
+
+        String first = null;
+        String last = null;
+        for (CollectionAndDataObjectListingEntry entry : entries)
+        {
+            String key = aclKey(dataObjects, parentPath.resolve(entry.getPathOrName()));
+            if (first == null || key.compareTo(first) < 0)
+            {
+                first = key;
+            }
+            if (last == null || key.compareTo(last) > 0)
+            {
+                last = key;
+            }
+        }
+
+        try
+        {
+            return aclLister.listAcls(irodsAbsPath, dataObjects, first, last);
+        }
+        catch (JargonException e)
+        {
+            log.warn("unable to list acls under {}, fetching them as needed", irodsAbsPath, e);
+            return Collections.emptyMap();
+        }
+    }
 
-        return new DirectoryStream(list);
+    /**
+     * Data objects are listed by name, collections by absolute path
+     */
+    private static String aclKey(boolean dataObjects, Path path)
+    {
+        return dataObjects ? path.getFileName().toString() : path.toString();
     }
 
-    private long resolvePath(Path path) throws NoEntException
+    /**
+     * Inode number for a path. Paths not yet in the inode store (e.g. a
+     * lookup that was not preceded by a listing, or a handle table that
+     * was evicted) are checked against iRODS and mapped.
+     */
+    private long resolvePath(Path path) throws IOException
     {
-        Long inodeNumber = pathToInode.get(path);
-        if (inodeNumber == null)
+        long inodeNumber = inodeStore.inodeOf(path);
+        if (inodeNumber != InodeStore.UNMAPPED)
+        {
+            return inodeNumber;
+        }
+
+        if (!path.startsWith(rootPath))
         {
             throw new NoEntException("path " + path);
         }
-        return inodeNumber;
+
+        log.debug("path {} not mapped, checking irods", path);
+        return statAndMap(path);
     }
 
     @Override
@@ -544,12 +1059,35 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     {
         log.debug("vfs::lookup");
         
-        Path parentPath = resolveInode(getInodeNumber(_parent));
+        long parentInodeNumber = getInodeNumber(_parent);
+        Path parentPath = resolveInode(parentInodeNumber);
         Path filePath = parentPath.resolve(_path);
         
         log.debug("looking up [{}] ...", filePath);
-        
-        return toFh(resolvePath(filePath));
+
+        long inodeNumber = inodeStore.inodeOf(filePath);
+        if (inodeNumber != InodeStore.UNMAPPED)
+        {
+            return toFh(inodeNumber);
+        }
+
+        // names just found missing are not asked for again until the
+        // directory changes through this gateway or the entry expires
+        long parentVersion = directoryChanges.versionOf(parentInodeNumber);
+        if (negativeLookups.isMissing(parentInodeNumber, parentVersion, _path))
+        {
+            throw new NoEntException("path " + filePath);
+        }
+
+        try
+        {
+            return toFh(resolvePath(filePath));
+        }
+        catch (NoEntException e)
+        {
+            negativeLookups.missing(parentInodeNumber, parentVersion, _path);
+            throw e;
+        }
     }
 
     @Override
@@ -560,20 +1098,21 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
 
         try
         {
-            Path parentPath = resolveInode(getInodeNumber(_inode));
+            long parentInodeNumber = getInodeNumber(_inode);
+            Path parentPath = resolveInode(parentInodeNumber);
 
             IRODSFileFactory fileFactory = irodsAccessObjectFactory.getIRODSFileFactory(rootAccount);
             IRODSFile irodsFile = fileFactory.instanceIRODSFile(parentPath.toString(), _path);
 
-            log.debug("vfs::mkdir - inode map (before creating new directory) = {}", mapper.writeValueAsString(inodeToPath));
+            log.debug("vfs::mkdir - inode map (before creating new directory) has {} entries", inodeStore.size());
             log.debug("vfs::mkdir - new directory path = {}", irodsFile.getAbsolutePath());
             irodsFile.mkdir();
 
-            long inodeNumber = fileId.getAndIncrement();
+            long inodeNumber = mapNewObject(Paths.get(irodsFile.getAbsolutePath()));
+            directoryChanged(parentInodeNumber);
+            inheritAcl(parentInodeNumber, inodeNumber, true, rootAccount);
             log.debug("vfs::mkdir - new inode number = {}", inodeNumber);
 
-            map(inodeNumber, irodsFile.getAbsolutePath());
-
             return toFh(inodeNumber);
         }
         catch (JargonException e)
@@ -593,17 +1132,17 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
         log.debug("vfs::move");
         log.debug("vfs::move:: OldName: "+ oldName + "node: " + inode.toString());
         log.debug("vfs::move:: newName: "+ newName + "node: " + dest.toString());
-        
-        //get IrodsUserID
-        int irodsUserID = Integer.parseInt(Subject.getSubject(AccessController.getContext()).getPrincipals().iterator().next().getName());
+
 
         try
         {
             // get file path
-            Path parentPath = resolveInode(getInodeNumber(inode));
+            long parentInodeNumber = getInodeNumber(inode);
+            Path parentPath = resolveInode(parentInodeNumber);
 
             // get dest path
-            Path destPath = resolveInode(getInodeNumber(dest));
+            long destInodeNumber = getInodeNumber(dest);
+            Path destPath = resolveInode(destInodeNumber);
 
             // create IRODSFile for file to move
             String irodsParentPath = parentPath.toString()+"/"+oldName;
@@ -621,6 +1160,11 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
                 destPathString = destPath.toString() + "/" + oldName;
             
             log.debug("vfs::move:: Destination Path: "+ destPathString);
+            Path oldPath = Paths.get(irodsParentPath);
+            Path newPath = Paths.get(destPathString);
+            // look up before the rename, the old path is gone afterwards
+            long movedInodeNumber = inodeStore.inodeOf(oldPath);
+
             // create irods destination file object
             IRODSFile destFile = irodsAccessObjectFactory.getIRODSFileFactory(resolveIrodsAccount())
                     .instanceIRODSFile(destPathString);
@@ -628,26 +1172,56 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
             // get file system controls
             IRODSFileSystemAO fileSystemAO = irodsAccessObjectFactory.getIRODSFileSystemAO(resolveIrodsAccount());
             
-            log.debug("vfs::move:: is file? "+ pathFile.isFile());
+            boolean isFile = pathFile.isFile();
+            log.debug("vfs::move:: is file? "+ isFile);
 
-            // check if file or directory and run appropriate commands
-            if (pathFile.isFile())
+            // check if file or directory and run appropriate commands, write
+            // descriptors are opened by path so buffered writes go out first
+            if (isFile)
             {
+                if (movedInodeNumber != InodeStore.UNMAPPED)
+                {
+                    writeBack.sync(movedInodeNumber);
+                    if (staging != null)
+                    {
+                        staging.drain(movedInodeNumber);
+                    }
+                }
                 fileSystemAO.renameFile(pathFile, destFile);
             }
             else
             {
+                syncBelow(oldPath);
                 fileSystemAO.renameDirectory(pathFile, destFile);
             }
 
-            // TODO: Is remap needed when moving files iRODS side, or will list be regened
-            // via list() call?
-            Path oldPath = Paths.get(irodsParentPath);
-            Path newPath = Paths.get(destPathString);
             log.debug("VFS::Move: Old Path: "+ oldPath);
             log.debug("VFS::Move: new Path: "+ newPath);
-            log.debug("VFS::Move: Inode #: "+ pathToInode.get(oldPath));
-            remap(pathToInode.get(oldPath), oldPath, newPath);
+            log.debug("VFS::Move: Inode #: "+ movedInodeNumber);
+            directoryChanged(parentInodeNumber);
+            directoryChanged(destInodeNumber);
+            // an object the rename replaced is gone
+            long replacedInodeNumber = inodeStore.inodeOf(newPath);
+            if (replacedInodeNumber != InodeStore.UNMAPPED)
+            {
+                invalidateInode(replacedInodeNumber);
+                unmapTree(replacedInodeNumber, newPath);
+            }
+
+            // a collection dropped from a bounded inode cache can still have
+            // its contents mapped, those move by the old path
+            if (movedInodeNumber != InodeStore.UNMAPPED || !isFile)
+            {
+                // the contents of a collection keep their inodes and cached
+                // attributes and listings, which do not hold paths, only
+                // their paths in the inode store change
+                if (movedInodeNumber != InodeStore.UNMAPPED)
+                {
+                    invalidateInode(movedInodeNumber);
+                    permissions.invalidate(movedInodeNumber);
+                }
+                moveTree(movedInodeNumber, oldPath, newPath);
+            }
 
             return true;
         }
@@ -676,10 +1250,252 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
         log.debug("vfs::read");
         long inodeNumber = getInodeNumber(inode);
         Path path = resolveInode(inodeNumber);
-        ByteBuffer destBuffer = ByteBuffer.wrap(data, 0, count);
-        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+
+        if (staging != null && staging.isStaged(inodeNumber))
+        {
+            checkCanRead(inodeNumber);
+            return readStaged(inodeNumber, path, offset, data, count);
+        }
+
+        if (writeBack.isWritten(inodeNumber))
+        {
+            // read back what was written, cached blocks and sizes are stale
+            writeBack.flush(inodeNumber);
+            return readOpenFile(inodeNumber, path, offset, data, 0, count);
+        }
+
+        if (blockCache == null)
+        {
+            return readOpenFile(inodeNumber, path, offset, data, 0, count);
+        }
+
+        // blocks are shared by all users, iRODS only checks the one who read
+        // them in
+        checkCanRead(inodeNumber);
+
+        // the cached stat decides which version of the content is current
+        Stat stat = cachedStat(path, inodeNumber);
+        long size = stat.getSize();
+        long modifyTime = stat.getMTime();
+        int blockSize = blockCache.getBlockSize();
+
+        int total = 0;
+        while (total < count && offset + total < size)
+        {
+            long position = offset + total;
+            long blockIndex = position / blockSize;
+            long blockStart = blockIndex * blockSize;
+
+            byte[] block = blockCache.get(inodeNumber, modifyTime, blockIndex);
+            if (block == null && parallelReader != null && size >= config.getParallelReadThresholdBytes())
+            {
+                block = readBlocksParallel(inodeNumber, path, size, modifyTime, blockIndex);
+            }
+            if (block == null)
+            {
+                long epoch = blockCache.epoch();
+                block = new byte[(int) Math.min(blockSize, size - blockStart)];
+                int read = readOpenFile(inodeNumber, path, blockStart, block, 0, block.length);
+                if (read < block.length)
+                {
+                    // shorter than the stat says, changed under us, don't keep it
+                    block = Arrays.copyOf(block, read);
+                }
+                else
+                {
+                    blockCache.put(inodeNumber, modifyTime, blockIndex, block, epoch);
+                }
+            }
+
+            int blockOffset = (int) (position - blockStart);
+            if (blockOffset >= block.length)
+            {
+                break;
+            }
+
+            int length = Math.min(count - total, block.length - blockOffset);
+            System.arraycopy(block, blockOffset, data, total, length);
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Fetch the missing blocks from a block on over several streams and
+     * cache them, a large sequential reader then finds the next blocks cached
+     *
+     * @return <code>byte[]</code> with the first block, <code>null</code> if
+     *         one stream would do
+     */
+    private byte[] readBlocksParallel(long inodeNumber, Path path, long size, long modifyTime, long blockIndex)
+            throws IOException
+    {
+        int blockSize = blockCache.getBlockSize();
+        long lastBlock = (size - 1) / blockSize;
+        int blocks = 1;
+        while (blocks < config.getParallelReadBlocks() && blockIndex + blocks <= lastBlock
+                && blockCache.get(inodeNumber, modifyTime, blockIndex + blocks) == null)
+        {
+            blocks++;
+        }
+
+        if (blocks == 1)
+        {
+            return null;
+        }
+
+        long epoch = blockCache.epoch();
+        List<byte[]> read = parallelReader.read(resolveIrodsAccount(), currentUid(), path.toString(),
+                blockIndex * blockSize, blockSize, blocks, size);
+        for (int i = 0; i < read.size(); i++)
+        {
+            long blockStart = (blockIndex + i) * blockSize;
+            // shorter than the stat says, changed under us, don't keep it
+            if (read.get(i).length == Math.min(blockSize, size - blockStart))
+            {
+                blockCache.put(inodeNumber, modifyTime, blockIndex + i, read.get(i), epoch);
+            }
+        }
+        return read.get(0);
+    }
+
+    /**
+     * Read an object with staged data, from the spool where it was written and
+     * from iRODS in between. Parts past the end of the object in iRODS that
+     * were not staged are holes and read as zeros.
+     */
+    private int readStaged(long inodeNumber, Path path, long offset, byte[] data, int count) throws IOException
+    {
+        long size = Math.max(cachedStat(path, inodeNumber).getSize(), staging.sizeOf(inodeNumber));
+        int total = 0;
+        while (total < count && offset + total < size)
+        {
+            long position = offset + total;
+            int wanted = (int) Math.min(count - total, size - position);
+            int copied = staging.copy(inodeNumber, position, data, total, wanted);
+            if (copied > 0)
+            {
+                total += copied;
+                continue;
+            }
+
+            // a gap up to the next staged range
+            int gap = (int) Math.min(wanted, staging.nextStaged(inodeNumber, position) - position);
+            int read = readOpenFile(inodeNumber, path, position, data, total, gap);
+            if (read < gap)
+            {
+                Arrays.fill(data, total + Math.max(read, 0), total + gap, (byte) 0);
+            }
+            total += gap;
+        }
+        return total;
+    }
+
+    /**
+     * Check the caller may read an object before serving data the gateway
+     * holds for it, cached blocks or staged writes, from memory or disk
+     *
+     * @throws AccessException
+     *             if the caller's iRODS permissions do not allow reading
+     */
+    private void checkCanRead(long inodeNumber) throws IOException
+    {
+        checkPermission(inodeNumber, FilePermissionEnum.READ);
+    }
+
+    /**
+     * Check the caller may write an object before a WRITE is staged, the
+     * upload to iRODS only happens after the WRITE was acknowledged
+     *
+     * @throws AccessException
+     *             if the caller's iRODS permissions do not allow writing
+     */
+    private void checkCanWrite(long inodeNumber) throws IOException
+    {
+        checkPermission(inodeNumber, FilePermissionEnum.WRITE);
+    }
+
+    private void checkPermission(long inodeNumber, FilePermissionEnum needed) throws IOException
+    {
+        int uid = currentUid();
+        if (uid == 0)
+        {
+            // the gateway's own account
+            return;
+        }
+
+        if (IrodsPermissions.rank(permissionOf(inodeNumber, uid)) < IrodsPermissions.rank(needed))
+        {
+            throw new AccessException("uid " + uid + " lacks " + needed + " on inode #" + inodeNumber);
+        }
+    }
+
+    /**
+     * Read through the open file table, opening the data object again if an
+     * idle timeout closed it
+     */
+    private int readOpenFile(long inodeNumber, Path path, long offset, byte[] data, int dataOffset, int count)
+            throws IOException
+    {
+        for (int attempt = 0;; attempt++)
+        {
+            OpenFile openFile = openFiles.get(inodeNumber, currentUid(), false, opener(inodeNumber, path, OpenFlags.READ));
+            try
+            {
+                return openFile.read(offset, data, dataOffset, count);
+            }
+            catch (ClosedChannelException e)
+            {
+                // idle timeout closed it between lookup and read, open again
+                if (attempt > 0)
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a data object as the calling user, for the open file table. With
+     * id handles the path is checked against the id first, so a descriptor
+     * never opens an object that replaced the inode's one at its old path.
+     */
+    private Callable<OpenFile> opener(final long inodeNumber, final Path path, final OpenFlags openFlags)
+            throws PermException
+    {
+        final IRODSAccount account = resolveIrodsAccount();
+        return new Callable<OpenFile>()
+        {
+            @Override
+            public OpenFile call() throws IOException
+            {
+                Path openPath = path;
+                if (config.getHandleMode() == HandleMode.IRODS_ID)
+                {
+                    openPath = verifiedPath(inodeNumber, path);
+                }
+                return OpenFile.open(irodsAccessObjectFactory, account, openPath.toString(), openFlags,
+                        readAheadPool, config.getReadAheadMaxWindow());
+            }
+        };
+    }
+
+    private Path verifiedPath(long inodeNumber, Path path) throws IOException
+    {
+        try
+        {
+            objStatOf(inodeNumber, path);
+            Path current = inodeStore.pathOf(inodeNumber);
+            return current == null ? path : current;
+        }
+        catch (JargonException e)
+        {
+            log.error("error checking inode #{} at {}", inodeNumber, path, e);
+            throw new IOException(e);
+        }
+        finally
         {
-            return channel.read(destBuffer, offset);
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
         }
     }
 
@@ -702,7 +1518,8 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
 
         try
         {
-            Path parentPath = resolveInode(getInodeNumber(parent));
+            long parentInodeNumber = getInodeNumber(parent);
+            Path parentPath = resolveInode(parentInodeNumber);
             Path objectPath = parentPath.resolve(path);
             String irodsParentPath = parentPath.toString();
 
@@ -711,8 +1528,33 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
             IRODSFile pathFile = irodsAccessObjectFactory.getIRODSFileFactory(rootAccount)
                 .instanceIRODSFile(irodsParentPath, path);
 
+            long objectInodeNumber = inodeStore.inodeOf(objectPath);
+            Stat cached = null;
+            if (objectInodeNumber != InodeStore.UNMAPPED)
+            {
+                cached = attributeCache.get(objectInodeNumber);
+                writeBack.discard(objectInodeNumber);
+                if (staging != null)
+                {
+                    staging.discard(objectInodeNumber);
+                }
+            }
+            boolean collection = cached != null ? cached.type() == Stat.Type.DIRECTORY : pathFile.isDirectory();
             pathFile.delete();
-            unmap(resolvePath(objectPath), objectPath);
+            directoryChanged(parentInodeNumber);
+            if (objectInodeNumber != InodeStore.UNMAPPED)
+            {
+                invalidateInode(objectInodeNumber);
+            }
+            // a collection is removed with its contents
+            if (collection)
+            {
+                unmapTree(objectInodeNumber, objectPath);
+            }
+            else if (objectInodeNumber != InodeStore.UNMAPPED)
+            {
+                unmap(objectInodeNumber, objectPath);
+            }
         }
         catch (JargonException e)
         {
@@ -729,13 +1571,99 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     public void setAcl(Inode inode, nfsace4[] acl) throws IOException
     {
         log.debug("vfs::setAcl");
-        System.out.println("setacl: " + inode.toString());
+
+        long inodeNumber = getInodeNumber(inode);
+        Path path = resolveInode(inodeNumber);
+        Stat stat = cachedStat(path, inodeNumber);
+        boolean collection = stat.type() == Stat.Type.DIRECTORY;
+        List<UserFilePermission> current = aclOf(inodeNumber);
+
+        // iRODS only grants, deny entries have no equivalent
+        Map<String, UserFilePermission> wanted = new HashMap<>();
+        boolean inheritable = false;
+        try
+        {
+            for (nfsace4 ace : acl)
+            {
+                if (ace.type.value != nfs4_prot.ACE4_ACCESS_ALLOWED_ACE_TYPE)
+                {
+                    log.debug("ignoring ace of type {}", ace.type.value);
+                    continue;
+                }
+
+                inheritable |= IrodsPermissions.isInheritable(ace);
+                if ((ace.flag.value & nfs4_prot.ACE4_INHERIT_ONLY_ACE) != 0)
+                {
+                    continue;
+                }
+
+                UserFilePermission entry = entryOf(ace, stat);
+                if (entry == null)
+                {
+                    continue;
+                }
+
+                UserFilePermission other = wanted.get(entry.getUserName());
+                if (other == null || IrodsPermissions.rank(entry.getFilePermissionEnum()) > IrodsPermissions
+                        .rank(other.getFilePermissionEnum()))
+                {
+                    wanted.put(entry.getUserName(), entry);
+                }
+            }
+
+            // changed as the caller, iRODS checks they may
+            IRODSAccount account = resolveIrodsAccount();
+            for (UserFilePermission entry : current)
+            {
+                // the owner keeps their permission whatever the client sends
+                if (!wanted.containsKey(entry.getUserName()) && !String.valueOf(stat.getUid()).equals(entry.getUserId()))
+                {
+                    setPermission(account, collection, path, entry.getUserName(), zoneOf(entry, account),
+                            FilePermissionEnum.NONE);
+                }
+            }
+
+            for (UserFilePermission entry : wanted.values())
+            {
+                if (!IrodsPermissions.contains(current, entry))
+                {
+                    setPermission(account, collection, path, entry.getUserName(), zoneOf(entry, account),
+                            entry.getFilePermissionEnum());
+                }
+            }
+
+            if (collection && inheritable != inherits(inodeNumber, path))
+            {
+                CollectionAO collectionAO = irodsAccessObjectFactory.getCollectionAO(account);
+                if (inheritable)
+                {
+                    collectionAO.setAccessPermissionInherit(account.getZone(), path.toString(), false);
+                }
+                else
+                {
+                    collectionAO.setAccessPermissionToNotInherit(account.getZone(), path.toString(), false);
+                }
+            }
+        }
+        catch (JargonException e)
+        {
+            log.error("error setting acl of {}", path, e);
+            throw new IOException(e);
+        }
+        finally
+        {
+            permissions.invalidate(inodeNumber);
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
+        }
     }
 
     @Override
     public void setattr(Inode inode, Stat stat) throws IOException
     {
         log.debug("vfs::setattr");
+        long inodeNumber = getInodeNumber(inode);
+        invalidateInode(inodeNumber);
+        permissions.invalidate(inodeNumber);
         /*
          * long inodeNumber = getInodeNumber(inode);
          * Path path = resolveInode(inodeNumber);
@@ -812,33 +1740,596 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
         return null;
     }
 
+    /**
+     * Buffer a WRITE. UNSTABLE data is acknowledged from memory and sent to
+     * iRODS later in large writes, DATA_SYNC waits until the data is written
+     * and FILE_SYNC also until iRODS has registered the new size.
+     */
     @Override
     public WriteResult write(Inode inode, byte[] data, long offset, int count, StabilityLevel stabilityLevel)
         throws IOException
     {
         log.debug("vfs::write");
-        System.out.println("write: " + inode.toString());
-        return null;
+        long inodeNumber = getInodeNumber(inode);
+        Path path = resolveInode(inodeNumber);
+
+        if (staging != null)
+        {
+            return writeStaged(inodeNumber, path, data, offset, count, stabilityLevel);
+        }
+
+        writeBack.write(inodeNumber, currentUid(), opener(inodeNumber, path, OpenFlags.READ_WRITE), offset, data, count);
+
+        switch (stabilityLevel)
+        {
+            case UNSTABLE:
+                return new WriteResult(StabilityLevel.UNSTABLE, count);
+            case DATA_SYNC:
+                writeBack.flush(inodeNumber);
+                return new WriteResult(StabilityLevel.DATA_SYNC, count);
+            default:
+                writeBack.sync(inodeNumber);
+                return new WriteResult(StabilityLevel.FILE_SYNC, count);
+        }
     }
 
     
 
     /**
-     * Get the iRODS absolute path given the inode number
-     * 
-     * @param inodeNumber
-     *            <code>long</code> with the inode number
-     * @return {@link Path} that is the inode
+     * Stage a WRITE on local disk. The spool is recovered after a restart, so
+     * once it is on disk the data is stable even before it reaches iRODS, as
+     * long as iRODS lets the user write the object.
+     */
+    private WriteResult writeStaged(long inodeNumber, Path path, byte[] data, long offset, int count,
+            StabilityLevel stabilityLevel) throws IOException
+    {
+        checkCanWrite(inodeNumber);
+        staging.write(inodeNumber, currentUid(), path.toString(), cachedStat(path, inodeNumber).getSize(), offset,
+                data, count);
+        if (stabilityLevel == StabilityLevel.UNSTABLE)
+        {
+            return new WriteResult(StabilityLevel.UNSTABLE, count);
+        }
+
+        staging.sync(inodeNumber);
+        return new WriteResult(StabilityLevel.FILE_SYNC, count);
+    }
+
+    /**
+     * Keep iRODS connections open across calls. Jargon returns a thread's
+     * connections to the protocol manager on
+     * <code>closeSessionAndEatExceptions()</code>, with the pool installed
+     * that no longer disconnects them.
+     */
+    private PooledProtocolManager startConnectionPool()
+    {
+        if (config.getConnectionPoolMaxPerAccount() <= 0)
+        {
+            return null;
+        }
+
+        PooledProtocolManager pool = new PooledProtocolManager(config.getConnectionPoolMaxPerAccount(),
+                config.getConnectionPoolMaxIdle(), config.getConnectionPoolMinIdle(),
+                config.getConnectionPoolIdleMillis(), config.getConnectionPoolWaitMillis());
+        irodsAccessObjectFactory.getIrodsSession().setIrodsProtocolManager(pool);
+        return pool;
+    }
+
+    /**
+     * Open the staging directory and resume uploads left by an earlier run
+     */
+    private StagingArea startStaging(WriteBackCache.Listener flushListener) throws JargonException
+    {
+        SpoolUploader uploader = new SpoolUploader(irodsAccessObjectFactory, new SpoolUploader.AccountResolver()
+        {
+            @Override
+            public IRODSAccount accountFor(int uid) throws IOException
+            {
+                return accountForUid(uid);
+            }
+        }, streamLimiter);
+
+        try
+        {
+            return new StagingArea(new File(config.getStagingDirectory()), config.getStagingQuotaBytes(),
+                    config.getStagingQuotaWaitMillis(), config.getStagingIdleMillis(),
+                    config.getStagingRetryMillis(), config.getStagingUploadAttempts(), config.getStagingUploadThreads(),
+                    uploader, flushListener);
+        }
+        catch (IOException e)
+        {
+            log.error("cannot open staging directory {}", config.getStagingDirectory(), e);
+            throw new JargonException("cannot open staging directory " + config.getStagingDirectory(), e);
+        }
+    }
+
+    /**
+     * Account of a user by uid, for work not done on an NFS call, e.g.
+     * uploads recovered after a restart, before that user logged in again
+     */
+    private IRODSAccount accountForUid(int uid) throws IOException
+    {
+        if (uid == 0)
+        {
+            return rootAccount;
+        }
+
+        try
+        {
+            _idMapper.createIrodsAccountInstance(uid);
+        }
+        catch (JargonException e)
+        {
+            throw new IOException("no iRODS account for uid " + uid, e);
+        }
+        return _idMapper.resolveIRODSUserAccount(uid);
+    }
+
+    /**
+     * Get the iRODS absolute path given the inode number
+     * 
+     * @param inodeNumber
+     *            <code>long</code> with the inode number
+     * @return {@link Path} that is the inode
      * @throws NoEntException
      */
-    private Path resolveInode(long inodeNumber) throws NoEntException
+    private Path resolveInode(long inodeNumber) throws IOException
     {
-        Path path = inodeToPath.get(inodeNumber);
-        if (path == null)
+        Path path = inodeStore.pathOf(inodeNumber);
+        if (path != null)
+        {
+            return path;
+        }
+
+        if (config.getHandleMode() == HandleMode.IRODS_ID)
+        {
+            return locateInode(inodeNumber);
+        }
+        throw new NoEntException("inode #" + inodeNumber);
+    }
+
+    /**
+     * Find an evicted inode in iRODS by the object id in its number. A
+     * missing object, or one moved out of the export, is a stale handle.
+     */
+    private Path locateInode(long inodeNumber) throws IOException
+    {
+        log.debug("inode #{} not cached, locating in irods", inodeNumber);
+
+        try
+        {
+            String absolutePath = objectLocator.findAbsolutePathForId(IrodsInodeNumbers.irodsId(inodeNumber),
+                    IrodsInodeNumbers.isCollection(inodeNumber));
+            if (absolutePath == null)
+            {
+                throw new StaleException("inode #" + inodeNumber);
+            }
+
+            Path path = Paths.get(absolutePath);
+            if (!path.startsWith(rootPath))
+            {
+                throw new StaleException("inode #" + inodeNumber + " is outside of " + rootPath);
+            }
+
+            cacheMapping(inodeNumber, path);
+            return path;
+        }
+        catch (JargonException e)
+        {
+            log.error("error locating inode #{}", inodeNumber, e);
+            throw new IOException(e);
+        }
+        finally
+        {
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
+        }
+    }
+
+    /**
+     * Drop everything cached about an inode that was changed through this
+     * gateway, for a collection that includes its listing. Open
+     * descriptors are closed too.
+     */
+    private void invalidateInode(long inodeNumber)
+    {
+        openFiles.close(inodeNumber);
+        attributeCache.invalidate(inodeNumber);
+        if (blockCache != null)
+        {
+            blockCache.invalidate(inodeNumber);
+        }
+        directoryCursors.invalidate(inodeNumber);
+    }
+
+    /**
+     * A directory's contents changed through this gateway, so its cached
+     * listing is dropped and its verifier moves on
+     */
+    private void directoryChanged(long inodeNumber)
+    {
+        directoryChanges.changed(inodeNumber);
+        invalidateInode(inodeNumber);
+    }
+
+    /**
+     * A fresh stat from iRODS shows the current modify time, cached blocks of
+     * older versions are freed
+     */
+    private void contentSeen(long inodeNumber, Stat stat)
+    {
+        if (blockCache != null && stat.type() == Stat.Type.REGULAR)
+        {
+            blockCache.validate(inodeNumber, stat.getMTime());
+        }
+    }
+
+    /**
+     * {@link #statPath(Path, long)} through the attribute cache
+     */
+    private Stat cachedStat(final Path path, final long inodeNumber) throws IOException
+    {
+        Stat stat = attributeCache.get(inodeNumber);
+        if (stat != null)
+        {
+            return stat;
+        }
+
+        long epoch = attributeCache.epoch();
+        stat = statFlights.execute(
+                new SingleFlight.Key("stat", inodeNumber, currentUid(), 0, attributeCache.version(inodeNumber)),
+                new Callable<Stat>()
+                {
+                    @Override
+                    public Stat call() throws IOException
+                    {
+                        return statPath(path, inodeNumber);
+                    }
+                });
+        attributeCache.put(inodeNumber, stat, epoch);
+        return stat;
+    }
+
+    /**
+     * Permission of a user on an object from the object's ACL and the user's
+     * groups. The ACL is fetched once for all users and each user's
+     * permission worked out once, until either is invalidated or expires.
+     */
+    private FilePermissionEnum permissionOf(long inodeNumber, int uid) throws IOException
+    {
+        FilePermissionEnum permission = permissions.permission(inodeNumber, uid);
+        if (permission != null)
+        {
+            return permission;
+        }
+
+        List<UserFilePermission> acl = aclOf(inodeNumber);
+        try
+        {
+            User user = userIdCache.userOf(uid);
+            if (user == null)
+            {
+                permission = FilePermissionEnum.NONE;
+            }
+            else
+            {
+                permission = IrodsPermissions.effectivePermission(acl, user.getName(), user.getZone(),
+                        groupsOf(uid, user));
+            }
+        }
+        catch (JargonException e)
+        {
+            log.error("error resolving permissions of uid {}", uid, e);
+            throw new IOException(e);
+        }
+        finally
+        {
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
+        }
+
+        permissions.putPermission(inodeNumber, uid, acl, permission);
+        return permission;
+    }
+
+    /**
+     * ACL of an object through the permission cache, concurrent misses share
+     * one fetch
+     */
+    private List<UserFilePermission> aclOf(final long inodeNumber) throws IOException
+    {
+        List<UserFilePermission> acl = permissions.acl(inodeNumber);
+        if (acl != null)
+        {
+            return acl;
+        }
+
+        final Path path = resolveInode(inodeNumber);
+        final boolean collection = cachedStat(path, inodeNumber).type() == Stat.Type.DIRECTORY;
+        long epoch = permissions.epoch();
+        acl = aclFlights.execute(new SingleFlight.Key("acl", inodeNumber, 0, 0, permissions.version(inodeNumber)),
+                new Callable<List<UserFilePermission>>()
+                {
+                    @Override
+                    public List<UserFilePermission> call() throws IOException
+                    {
+                        return fetchAcl(path, collection);
+                    }
+                });
+        permissions.putAcl(inodeNumber, acl, epoch);
+        return acl;
+    }
+
+    /**
+     * Every ACL entry of an object in one query, as the gateway's account
+     * so the result can be shared by all users
+     */
+    private List<UserFilePermission> fetchAcl(Path path, boolean collection) throws IOException
+    {
+        log.debug("fetching acl of {}", path);
+        try
+        {
+            if (collection)
+            {
+                return irodsAccessObjectFactory.getCollectionAO(rootAccount)
+                        .listPermissionsForCollection(path.toString());
+            }
+            return irodsAccessObjectFactory.getDataObjectAO(rootAccount).listPermissionsForDataObject(path.toString());
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new NoEntException("path " + path);
+        }
+        catch (JargonException e)
+        {
+            log.error("error getting acl of {}", path, e);
+            throw new IOException(e);
+        }
+        finally
+        {
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
+        }
+    }
+
+    /**
+     * Whether a collection passes its ACL on to new children, through the
+     * permission cache
+     */
+    private boolean inherits(long inodeNumber, Path path) throws IOException
+    {
+        Boolean inherits = permissions.inherits(inodeNumber);
+        if (inherits != null)
+        {
+            return inherits;
+        }
+
+        long epoch = permissions.epoch();
+        try
+        {
+            inherits = irodsAccessObjectFactory.getCollectionAO(rootAccount)
+                    .isCollectionSetForPermissionInheritance(path.toString());
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new NoEntException("path " + path);
+        }
+        catch (JargonException e)
+        {
+            log.error("error getting inheritance of {}", path, e);
+            throw new IOException(e);
+        }
+        finally
+        {
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
+        }
+
+        permissions.putInherits(inodeNumber, inherits, epoch);
+        return inherits;
+    }
+
+    /**
+     * ACL of the parent collection if it passes it on to new children,
+     * otherwise empty. Both come from the cache for all children of the
+     * collection.
+     */
+    private List<UserFilePermission> parentAclPassedOn(Path path) throws IOException
+    {
+        Path parentPath = path.getParent();
+        if (path.equals(rootPath) || parentPath == null)
         {
-            throw new NoEntException("inode #" + inodeNumber);
+            return Collections.emptyList();
         }
-        return path;
+
+        long parentInodeNumber = resolvePath(parentPath);
+        if (!inherits(parentInodeNumber, parentPath))
+        {
+            return Collections.emptyList();
+        }
+        return aclOf(parentInodeNumber);
+    }
+
+    /**
+     * An object created in a collection that passes its ACL on starts with
+     * the collection's ACL, and the creator owns it. With the collection's
+     * ACL cached the new object's ACL is known without asking iRODS.
+     */
+    private void inheritAcl(long parentInodeNumber, long inodeNumber, boolean collection, IRODSAccount creator)
+    {
+        long epoch = permissions.epoch();
+        Boolean inherits = permissions.inherits(parentInodeNumber);
+        List<UserFilePermission> parentAcl = permissions.acl(parentInodeNumber);
+        if (inherits == null || !inherits || parentAcl == null)
+        {
+            return;
+        }
+
+        try
+        {
+            int uid = userIdCache.uidOf(creator.getUserName(), creator.getZone());
+            permissions.putAcl(inodeNumber, IrodsPermissions.inheritedAcl(parentAcl, creator.getUserName(),
+                    String.valueOf(uid), creator.getZone()), epoch);
+            if (collection)
+            {
+                permissions.putInherits(inodeNumber, true, epoch);
+            }
+        }
+        catch (JargonException e)
+        {
+            // it will be fetched when asked for
+            log.warn("unable to derive the acl of inode #{}", inodeNumber, e);
+        }
+    }
+
+    /**
+     * iRODS ACL entry an allow ACE asks for, <code>null</code> for the
+     * owning group, which the gateway does not have, or an unknown principal
+     */
+    private UserFilePermission entryOf(nfsace4 ace, Stat stat) throws JargonException
+    {
+        FilePermissionEnum permission = IrodsPermissions.permissionOfAceMask(ace.access_mask.value);
+        String who = ace.who.toString();
+        if (IrodsPermissions.EVERYONE_WHO.equals(who))
+        {
+            return new UserFilePermission(IrodsPermissions.PUBLIC_GROUP, null, permission, UserTypeEnum.RODS_GROUP,
+                    null);
+        }
+
+        int id;
+        if (IrodsPermissions.OWNER_WHO.equals(who))
+        {
+            id = stat.getUid();
+        }
+        else if (IrodsPermissions.GROUP_WHO.equals(who))
+        {
+            return null;
+        }
+        else
+        {
+            id = (ace.flag.value & nfs4_prot.ACE4_IDENTIFIER_GROUP) != 0 ? _idMapper.principalToGid(who)
+                    : _idMapper.principalToUid(who);
+        }
+
+        User user = userIdCache.userOf(id);
+        if (user == null)
+        {
+            log.warn("no irods user or group for ace principal {}", who);
+            return null;
+        }
+        return new UserFilePermission(user.getName(), user.getId(), permission, user.getUserType(), user.getZone());
+    }
+
+    private static String zoneOf(UserFilePermission entry, IRODSAccount account)
+    {
+        String zone = entry.getUserZone();
+        return zone == null || zone.isEmpty() ? account.getZone() : zone;
+    }
+
+    /**
+     * Give a user a permission on an object, or take theirs away for
+     * <code>NONE</code>
+     */
+    private void setPermission(IRODSAccount account, boolean collection, Path path, String userName, String zone,
+            FilePermissionEnum permission) throws JargonException
+    {
+        log.debug("setting {} for {} on {}", permission, userName, path);
+        String absolutePath = path.toString();
+        if (collection)
+        {
+            CollectionAO collectionAO = irodsAccessObjectFactory.getCollectionAO(account);
+            switch (IrodsPermissions.rank(permission))
+            {
+            case 3:
+                collectionAO.setAccessPermissionOwn(zone, absolutePath, userName, false);
+                break;
+            case 2:
+                collectionAO.setAccessPermissionWrite(zone, absolutePath, userName, false);
+                break;
+            case 1:
+                collectionAO.setAccessPermissionRead(zone, absolutePath, userName, false);
+                break;
+            default:
+                collectionAO.removeAccessPermissionForUser(zone, absolutePath, userName, false);
+            }
+            return;
+        }
+
+        DataObjectAO dataObjectAO = irodsAccessObjectFactory.getDataObjectAO(account);
+        switch (IrodsPermissions.rank(permission))
+        {
+        case 3:
+            dataObjectAO.setAccessPermissionOwn(zone, absolutePath, userName);
+            break;
+        case 2:
+            dataObjectAO.setAccessPermissionWrite(zone, absolutePath, userName);
+            break;
+        case 1:
+            dataObjectAO.setAccessPermissionRead(zone, absolutePath, userName);
+            break;
+        default:
+            dataObjectAO.removeAccessPermissionsForUser(zone, absolutePath, userName);
+        }
+    }
+
+    /**
+     * Attributes with the mode bits as a user should see them: the owner bits
+     * are the owner's permission, the group and other bits the caller's, so a
+     * client deciding from the mode does not try what iRODS will refuse. When
+     * the owner asks, group and other bits are what the public group has.
+     * Cached attributes are shared by all users and are left alone.
+     */
+    private Stat forCaller(long inodeNumber, Stat stat, int uid) throws IOException
+    {
+        if (uid == 0)
+        {
+            return stat;
+        }
+
+        List<UserFilePermission> acl = aclOf(inodeNumber);
+        FilePermissionEnum callers = permissionOf(inodeNumber, uid);
+        FilePermissionEnum owners;
+        FilePermissionEnum others;
+        if (uid == stat.getUid())
+        {
+            owners = callers;
+            others = IrodsPermissions.effectivePermission(acl, IrodsPermissions.PUBLIC_GROUP, null, null);
+        }
+        else
+        {
+            owners = IrodsPermissions.permissionOfUserId(acl, String.valueOf(stat.getUid()));
+            others = callers;
+        }
+
+        boolean collection = stat.type() == Stat.Type.DIRECTORY;
+        int otherBits = IrodsPermissions.modeBits(others, collection);
+        int mode = (stat.getMode() & ~0777) | IrodsPermissions.modeBits(owners, collection) << 6 | otherBits << 3
+                | otherBits;
+        if (mode == stat.getMode())
+        {
+            return stat;
+        }
+
+        Stat visible = stat.clone();
+        visible.setMode(mode);
+        return visible;
+    }
+
+    /**
+     * Names of the iRODS groups of a user, for ACL entries that name a group
+     */
+    private Set<String> groupsOf(int uid, User user) throws JargonException
+    {
+        Set<String> groups = permissions.groups(uid);
+        if (groups != null)
+        {
+            return groups;
+        }
+
+        groups = new HashSet<>();
+        for (UserGroup userGroup : irodsAccessObjectFactory.getUserGroupAO(rootAccount)
+                .findUserGroupsForUser(user.getName()))
+        {
+            groups.add(userGroup.getUserGroupName());
+        }
+        permissions.putGroups(uid, groups);
+        return groups;
     }
 
     /**
@@ -864,69 +2355,16 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
 
         String irodsAbsPath = path.normalize().toString();
         log.debug("vfs::statPath - absolute path =  {}", irodsAbsPath);
-        IRODSAccount acct = resolveIrodsAccount();
-        log.debug("vfs::statPath - IRODSAccount: "+acct+"  Proxy Name: "+ acct.getProxyName());
 
         try
         {
-            CollectionAndDataObjectListAndSearchAO listAO = irodsAccessObjectFactory
-                .getCollectionAndDataObjectListAndSearchAO(rootAccount);
-            ObjStat objStat = listAO.retrieveObjectStatForPath(irodsAbsPath);
+            ObjStat objStat = objStatOf(inodeNumber, Paths.get(irodsAbsPath));
             log.debug("vfs::statPath - objStat = {}", objStat);
 
-            Stat stat = new Stat();
-
-            stat.setATime(objStat.getModifiedAt().getTime());
-            stat.setCTime(objStat.getCreatedAt().getTime());
-            stat.setMTime(objStat.getModifiedAt().getTime());
-            
-
-            UserAO userAO = irodsAccessObjectFactory.getUserAO(acct);
-            StringBuilder sb = new StringBuilder();
-            sb.append(objStat.getOwnerName());
-            sb.append("#");
-            sb.append(objStat.getOwnerZone());
-            User user = userAO.findByName(objStat.getOwnerName());
-            log.debug("user: " + user);
-
-            //Set User stats
-            //int irodsUserID = Integer.parseInt(Subject.getSubject(AccessController.getContext()).getPrincipals().iterator().next().getName());
-            //log.debug("Subject: " + AccessController.getContext().getDomainCombiner().getClass().getName());
-            //log.debug("Subject UserID: " + subject.getPrincipals().iterator().next().getName());
-            //int userId = Integer.parseInt(Subject.getSubject(AccessController.getContext()).getPrincipals().iterator().next().getName());
-            int userId = Integer.parseInt(user.getId());
-            stat.setUid(userId);
-            stat.setGid(userId); // iRODS does not have a gid
-            log.debug("vfs::statPath - user id = {}", userId);
-
-            // TODO right now don't have soft link or mode support
-            //stat.setMode(PermissionBitmaskUtils.USER_READ | PermissionBitmaskUtils.USER_WRITE);
-            
-            //get file permission
-            
-            
-            //log.debug("vfs::statPath - object type = {}", objStat.getObjectType());
-            
-            if (objStat.getObjectType() == CollectionAndDataObjectListingEntry.ObjectType.COLLECTION)
-            {
-                stat.setMode(Stat.S_IFDIR | 0777);
-            }
-            else if (objStat.getObjectType() == CollectionAndDataObjectListingEntry.ObjectType.DATA_OBJECT)
-            {
-                stat.setMode(Stat.S_IFREG | 0666);
-            }
-            
-            log.debug("vfs::statPath - permissions = {}", Stat.modeToString(stat.getMode()));
-
-            stat.setNlink(1);
-            stat.setDev(17);
-            stat.setIno((int) inodeNumber);
-            stat.setRdev(17);
-            stat.setSize(objStat.getObjSize());
-            stat.setFileid((int) inodeNumber);
-            stat.setGeneration(objStat.getModifiedAt().getTime());
-
+            Stat stat = toStat(inodeNumber, objStat.getObjectType(), objStat.getObjSize(), objStat.getCreatedAt(),
+                    objStat.getModifiedAt(), objStat.getOwnerName(), objStat.getOwnerZone());
             log.debug("vfs::statPath - stat = {}", stat);
+            contentSeen(inodeNumber, stat);
 
             return stat;
         }
@@ -941,9 +2379,109 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
         }
     }
 
-    private long getInodeNumber(Inode inode)
+    /**
+     * ObjStat of the object an inode stands for. With id handles the id is
+     * checked, an object renamed or replaced outside the gateway is found
+     * again by its id and the inode remapped.
+     *
+     * @throws StaleException
+     *             if the object is gone
+     */
+    private ObjStat objStatOf(long inodeNumber, Path path) throws IOException, JargonException
+    {
+        ObjStat objStat = objStatOrNull(path);
+        if (config.getHandleMode() != HandleMode.IRODS_ID)
+        {
+            if (objStat == null)
+            {
+                throw new StaleException("inode #" + inodeNumber + " no longer at " + path);
+            }
+            return objStat;
+        }
+
+        if (objStat != null && inodeNumberFor(objStat) == inodeNumber)
+        {
+            return objStat;
+        }
+
+        log.info("inode #{} is no longer at {}, locating by id", inodeNumber, path);
+        Path located = locateInode(inodeNumber);
+        objStat = objStatOrNull(located);
+        if (objStat == null || inodeNumberFor(objStat) != inodeNumber)
+        {
+            throw new StaleException("inode #" + inodeNumber + " moved while locating it");
+        }
+        return objStat;
+    }
+
+    private ObjStat objStatOrNull(Path path) throws JargonException
     {
-        return Longs.fromByteArray(inode.getFileId());
+        try
+        {
+            return irodsAccessObjectFactory.getCollectionAndDataObjectListAndSearchAO(rootAccount)
+                    .retrieveObjectStatForPath(path.toString());
+        }
+        catch (FileNotFoundException | DataNotFoundException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Build a {@link Stat} from iRODS catalog values, which both an objStat
+     * and a collection listing entry carry
+     */
+    private Stat toStat(long inodeNumber, CollectionAndDataObjectListingEntry.ObjectType objectType, long size,
+            Date createdAt, Date modifiedAt, String ownerName, String ownerZone) throws JargonException
+    {
+        Stat stat = new Stat();
+
+        stat.setATime(modifiedAt.getTime());
+        stat.setCTime(createdAt.getTime());
+        stat.setMTime(modifiedAt.getTime());
+
+        int userId = userIdCache.uidOf(ownerName, ownerZone);
+        stat.setUid(userId);
+        stat.setGid(userId); // iRODS does not have a gid
+        log.debug("vfs::toStat - user id = {}", userId);
+
+        // no soft link support, the permission bits are the caller's and are
+        // set on the way out, see forCaller
+        if (objectType == CollectionAndDataObjectListingEntry.ObjectType.COLLECTION)
+        {
+            stat.setMode(Stat.S_IFDIR | 0777);
+        }
+        else if (objectType == CollectionAndDataObjectListingEntry.ObjectType.DATA_OBJECT)
+        {
+            stat.setMode(Stat.S_IFREG | 0666);
+        }
+
+        log.debug("vfs::toStat - permissions = {}", Stat.modeToString(stat.getMode()));
+
+        stat.setNlink(1);
+        stat.setDev(17);
+        stat.setIno((int) inodeNumber);
+        stat.setRdev(17);
+        stat.setSize(size);
+        stat.setFileid(inodeNumber);
+        stat.setGeneration(modifiedAt.getTime());
+        return stat;
+    }
+
+    private long getInodeNumber(Inode inode) throws StaleException
+    {
+        byte[] fileId = inode.getFileId();
+
+        if (config.getHandleMode() == HandleMode.IRODS_ID)
+        {
+            // handles from another export or handle mode can't be trusted
+            if (fileId.length != Longs.BYTES + Ints.BYTES
+                    || Ints.fromBytes(fileId[8], fileId[9], fileId[10], fileId[11]) != handleGeneration)
+            {
+                throw new StaleException("handle is not from this export");
+            }
+        }
+        return Longs.fromByteArray(fileId);
     }
 
     /*
@@ -958,11 +2496,10 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
      * 
      * @return
      */
-    private IRODSAccount resolveIrodsAccount()
+    private IRODSAccount resolveIrodsAccount() throws PermException
     {
         
-        int userID = 0;
-        userID = Integer.parseInt(Subject.getSubject(AccessController.getContext()).getPrincipals().iterator().next().getName());
+        int userID = currentUid();
         
         log.debug("[ResolveIrodsAccount] UserID: " + userID);
         
@@ -976,49 +2513,211 @@ public class IrodsVirtualFileSystem implements VirtualFileSystem
     }
  
     
+    /**
+     * Uid of the NFS caller, the login service puts the iRODS user id in the
+     * subject
+     *
+     * @throws PermException
+     *             if the call does not run as an NFS caller, there is no one
+     *             to check iRODS permissions for
+     */
+    private int currentUid() throws PermException
+    {
+        Subject subject = Subject.getSubject(AccessController.getContext());
+        if (subject == null || subject.getPrincipals().isEmpty())
+        {
+            throw new PermException("no NFS caller, run the call with Subject.doAs");
+        }
+
+        String name = subject.getPrincipals().iterator().next().getName();
+        try
+        {
+            return Integer.parseInt(name);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new PermException("NFS caller " + name + " has no numeric uid");
+        }
+    }
+
     /**Mapping**/
     
-    private void map(long inodeNumber, String irodsPath)
+    /**
+     * Inode number for an object that was just created at the given path
+     */
+    private long mapNewObject(Path path) throws IOException
     {
-        map(inodeNumber, Paths.get(irodsPath));
+        if (config.getHandleMode() == HandleMode.IRODS_ID)
+        {
+            return statAndMap(path);
+        }
+
+        long inodeNumber = sequentialStore.nextInodeNumber();
+        map(inodeNumber, path);
+        return inodeNumber;
     }
 
-    private void map(long inodeNumber, Path path)
+    /**
+     * Inode number for a listing entry, the listing already carries the
+     * iRODS id so no extra round trip is needed
+     */
+    private long mapListedObject(Path path, CollectionAndDataObjectListingEntry entry)
     {
-        if (inodeToPath.putIfAbsent(inodeNumber, path) != null)
+        if (config.getHandleMode() == HandleMode.IRODS_ID)
         {
-            throw new IllegalStateException();
+            long inodeNumber = IrodsInodeNumbers.forObject(entry.getId(),
+                    entry.getObjectType() == CollectionAndDataObjectListingEntry.ObjectType.COLLECTION);
+            cacheMapping(inodeNumber, path);
+            return inodeNumber;
         }
-        Long otherInodeNumber = pathToInode.putIfAbsent(path, inodeNumber);
-        if (otherInodeNumber != null)
+
+        long inodeNumber = inodeStore.inodeOf(path);
+        if (inodeNumber == InodeStore.UNMAPPED)
         {
-            // try rollback
-            if (inodeToPath.remove(inodeNumber) != path)
+            inodeNumber = mapNextInode(path);
+        }
+        return inodeNumber;
+    }
+
+    /**
+     * Check a path against iRODS and map it
+     * 
+     * @throws NoEntException
+     *             if there is no such object
+     */
+    private long statAndMap(Path path) throws IOException
+    {
+        try
+        {
+            ObjStat objStat = irodsAccessObjectFactory.getCollectionAndDataObjectListAndSearchAO(rootAccount)
+                    .retrieveObjectStatForPath(path.toString());
+
+            if (config.getHandleMode() == HandleMode.IRODS_ID)
             {
-                throw new IllegalStateException("cant map, rollback failed");
+                long inodeNumber = inodeNumberFor(objStat);
+                cacheMapping(inodeNumber, path);
+                return inodeNumber;
             }
-            throw new IllegalStateException("path ");
+            return mapNextInode(path);
+        }
+        catch (JargonException e)
+        {
+            if (e instanceof FileNotFoundException || e instanceof DataNotFoundException)
+            {
+                throw new NoEntException("path " + path);
+            }
+            log.error("error looking up path: {}", path, e);
+            throw new IOException(e);
+        }
+        finally
+        {
+            irodsAccessObjectFactory.closeSessionAndEatExceptions();
         }
     }
-    
-    private void unmap(long inodeNumber, Path path)
+
+    /**
+     * Give a path the next sequential inode number, tolerating another
+     * thread having just mapped it
+     */
+    private long mapNextInode(Path path)
     {
-        Path removedPath = inodeToPath.remove(inodeNumber);
-        log.debug("VFS::unmap: Path: " + path +" removedPath: "+removedPath);
-        if (!path.equals(removedPath))
+        long inodeNumber = sequentialStore.nextInodeNumber();
+        try
         {
-            throw new IllegalStateException();
+            map(inodeNumber, path);
+            return inodeNumber;
         }
-        if (pathToInode.remove(path) != inodeNumber)
+        catch (IllegalStateException e)
         {
-            throw new IllegalStateException();
+            long mappedInodeNumber = inodeStore.inodeOf(path);
+            if (mappedInodeNumber == InodeStore.UNMAPPED)
+            {
+                throw e;
+            }
+            return mappedInodeNumber;
         }
     }
 
-    private void remap(long inodeNumber, Path oldPath, Path newPath)
+    private static long inodeNumberFor(ObjStat objStat)
+    {
+        return IrodsInodeNumbers.forObject(objStat.getDataId(),
+                objStat.getObjectType() == CollectionAndDataObjectListingEntry.ObjectType.COLLECTION);
+    }
+
+    /**
+     * Record an id derived inode at its current path, replacing whatever the
+     * cache held for either. iRODS is authoritative in this mode, the
+     * object may have been renamed or replaced behind our back.
+     */
+    private void cacheMapping(long inodeNumber, Path path)
+    {
+        Path cachedPath = inodeStore.pathOf(inodeNumber);
+        if (path.equals(cachedPath))
+        {
+            return;
+        }
+
+        long otherInodeNumber = inodeStore.inodeOf(path);
+        if (otherInodeNumber != InodeStore.UNMAPPED && otherInodeNumber != inodeNumber)
+        {
+            inodeStore.unmap(otherInodeNumber, path);
+        }
+
+        if (cachedPath == null)
+        {
+            inodeStore.map(inodeNumber, path);
+        }
+        else
+        {
+            inodeStore.remap(inodeNumber, cachedPath, path);
+        }
+    }
+
+    private void map(long inodeNumber, String irodsPath)
     {
-        // TODO - attempt rollback?
-        unmap(inodeNumber, oldPath);
-        map(inodeNumber, newPath);
+        map(inodeNumber, Paths.get(irodsPath));
+    }
+
+    private void map(long inodeNumber, Path path)
+    {
+        inodeStore.map(inodeNumber, path);
+    }
+    
+    private void unmap(long inodeNumber, Path path)
+    {
+        log.debug("VFS::unmap: Path: " + path + " inode: " + inodeNumber);
+        inodeStore.unmap(inodeNumber, path);
+    }
+
+    private void unmapTree(long inodeNumber, Path path)
+    {
+        log.debug("VFS::unmapTree: Path: " + path + " inode: " + inodeNumber);
+        inodeStore.unmapTree(inodeNumber, path);
+    }
+
+    private void moveTree(long inodeNumber, Path oldPath, Path newPath)
+    {
+        inodeStore.moveTree(inodeNumber, oldPath, newPath);
+    }
+
+    /**
+     * Write out buffered and staged data of the objects below a collection,
+     * their write descriptors are opened by path
+     */
+    private void syncBelow(Path collectionPath) throws IOException
+    {
+        for (Long inodeNumber : writeBack.writtenInodes())
+        {
+            // an inode dropped from a bounded cache could be anywhere
+            Path path = inodeStore.pathOf(inodeNumber);
+            if (path == null || path.startsWith(collectionPath))
+            {
+                writeBack.sync(inodeNumber);
+            }
+        }
+        if (staging != null)
+        {
+            staging.drainBelow(collectionPath.toString());
+        }
     }
 }
@@ -2,6 +2,7 @@ package org.irods.jargon.nfs.vfs;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import javax.crypto.Cipher;
 
 import java.security.NoSuchAlgorithmException;
@@ -23,6 +24,8 @@ import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
 import org.irods.jargon.core.pub.IRODSAccessObjectFactoryImpl;
 import org.irods.jargon.core.pub.IRODSFileSystem;
 import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.nfs.vfs.inode.InodeStore;
+import org.irods.jargon.nfs.vfs.inode.MappedLogInodeStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,7 +66,9 @@ public class NfsMain {
 		ExportFile exportFile = new ExportFile(new File(PREFIX + "config/exports"));
 		
 		
-		VirtualFileSystem vfs = new IrodsVirtualFileSystem(factory, acct, rootFile);
+		// persistent inode table so file handles survive a restart
+		InodeStore inodeStore = MappedLogInodeStore.open(Paths.get(PREFIX + "data/inodes"));
+		IrodsVirtualFileSystem vfs = new IrodsVirtualFileSystem(factory, acct, rootFile, inodeStore);
 			
 		NFSServerV41 nfs4 = new NFSServerV41.Builder()
 		    .withExportFile(exportFile)
@@ -85,6 +90,7 @@ public class NfsMain {
 		
 		log.info("shutting down ...");
 		nfsSvc.stop();
+		vfs.close();
 
 		log.info("shutdown complete.");
 	}
@@ -0,0 +1,191 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcache.nfs.vfs.Stat;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded cache of {@link Stat} by inode number, so repeated GETATTR, ACCESS
+ * and READDIR calls do not each cost a round trip to the iCAT.
+ * <p/>
+ * Files and collections have separate time to live values, a TTL of zero turns
+ * caching off for that type. Callers invalidate an inode whenever they change
+ * it, the TTL only bounds how long changes made by other iRODS clients go
+ * unnoticed.
+ * <p/>
+ * A load that races with an invalidation must not put stale attributes back.
+ * Take an {@link #epoch()} before fetching from iRODS and pass it to
+ * {@link #put(long, Stat, long)}, the put is dropped if the same inode was
+ * invalidated in between, see {@link Invalidations}.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class AttributeCache {
+
+	private final Cache<Long, Entry> cache;
+	private final Ticker ticker;
+	private final long fileTtlNanos;
+	private final long directoryTtlNanos;
+	private final Invalidations invalidations = new Invalidations();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maximumSize
+	 *            <code>long</code> with the number of inodes to keep
+	 * @param fileTtlMillis
+	 *            <code>long</code> with the time to live for data objects
+	 * @param directoryTtlMillis
+	 *            <code>long</code> with the time to live for collections
+	 */
+	public AttributeCache(final long maximumSize, final long fileTtlMillis, final long directoryTtlMillis) {
+		this(maximumSize, fileTtlMillis, directoryTtlMillis, Ticker.systemTicker());
+	}
+
+	AttributeCache(final long maximumSize, final long fileTtlMillis, final long directoryTtlMillis,
+			final Ticker ticker) {
+		if (maximumSize < 0) {
+			throw new IllegalArgumentException("negative maximumSize");
+		}
+
+		if (fileTtlMillis < 0 || directoryTtlMillis < 0) {
+			throw new IllegalArgumentException("negative ttl");
+		}
+
+		if (ticker == null) {
+			throw new IllegalArgumentException("null ticker");
+		}
+
+		this.ticker = ticker;
+		this.fileTtlNanos = TimeUnit.MILLISECONDS.toNanos(fileTtlMillis);
+		this.directoryTtlNanos = TimeUnit.MILLISECONDS.toNanos(directoryTtlMillis);
+		// per entry expiry is checked on read, the builder just sweeps
+		cache = CacheBuilder.newBuilder().maximumSize(maximumSize)
+				.expireAfterWrite(Math.max(fileTtlNanos, directoryTtlNanos), TimeUnit.NANOSECONDS).ticker(ticker)
+				.build();
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @return {@link Stat} that was cached and has not expired, or
+	 *         <code>null</code>
+	 */
+	public Stat get(final long inodeNumber) {
+		Entry entry = cache.getIfPresent(inodeNumber);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		if (ticker.read() - entry.expiresAt >= 0) {
+			cache.asMap().remove(inodeNumber, entry);
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return entry.stat;
+	}
+
+	/**
+	 * @return <code>long</code> to pass to {@link #put(long, Stat, long)},
+	 *         taken before fetching the attributes
+	 */
+	public long epoch() {
+		return invalidations.epoch();
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @return <code>long</code> that changes whenever the inode is
+	 *         invalidated
+	 */
+	public long version(final long inodeNumber) {
+		return invalidations.version(inodeNumber);
+	}
+
+	/**
+	 * Cache attributes unless the inode was invalidated since the given epoch
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param stat
+	 *            {@link Stat} fetched from iRODS, not to be changed afterwards
+	 * @param epoch
+	 *            <code>long</code> from {@link #epoch()} taken before the fetch
+	 */
+	public void put(final long inodeNumber, final Stat stat, final long epoch) {
+		if (stat == null) {
+			throw new IllegalArgumentException("null stat");
+		}
+
+		long ttlNanos = stat.type() == Stat.Type.DIRECTORY ? directoryTtlNanos : fileTtlNanos;
+		if (ttlNanos == 0 || !invalidations.isCurrent(inodeNumber, epoch)) {
+			return;
+		}
+
+		cache.put(inodeNumber, new Entry(stat, ticker.read() + ttlNanos));
+
+		// an invalidation may have slipped in between the check and the put
+		if (!invalidations.isCurrent(inodeNumber, epoch)) {
+			cache.invalidate(inodeNumber);
+		}
+	}
+
+	/**
+	 * Drop the attributes of an inode that was changed through this gateway
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 */
+	public void invalidate(final long inodeNumber) {
+		invalidations.invalidate(inodeNumber);
+		cache.invalidate(inodeNumber);
+	}
+
+	public void invalidateAll() {
+		invalidations.invalidateAll();
+		cache.invalidateAll();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("AttributeCache [size=").append(size());
+		builder.append(", hits=").append(hits.get());
+		builder.append(", misses=").append(misses.get());
+		builder.append("]");
+		return builder.toString();
+	}
+
+	private static final class Entry {
+		private final Stat stat;
+		private final long expiresAt;
+
+		private Entry(final Stat stat, final long expiresAt) {
+			this.stat = stat;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
@@ -0,0 +1,280 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Data object content in fixed size blocks, shared by all users and open
+ * files, so data many clients read is served from gateway memory instead of
+ * iRODS.
+ * <p/>
+ * Blocks are keyed by object, modify time and block index. Once a stat shows
+ * a new modify time the old blocks can no longer be found, and
+ * {@link #validate(long, long)} frees them. The on-heap tier is bounded in
+ * bytes with least recently used eviction. Blocks it evicts move to an
+ * optional off-heap tier of direct buffers, see {@link OffHeapBlockStore}.
+ * <p/>
+ * As with {@link AttributeCache}, take an {@link #epoch()} before reading a
+ * block from iRODS, a put is dropped if the object was invalidated in
+ * between.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class BlockCache {
+
+	private final int blockSize;
+	private final Cache<BlockKey, byte[]> heap;
+	private final OffHeapBlockStore offHeap;
+	// last modify time seen per object, to notice when it changes
+	private final Cache<Long, Long> modifyTimes;
+	private final Invalidations invalidations = new Invalidations();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param blockSize
+	 *            <code>int</code> with the size of a block
+	 * @param heapBytes
+	 *            <code>long</code> with the most bytes kept on the heap
+	 * @param offHeapBytes
+	 *            <code>long</code> with the bytes of direct buffers for the
+	 *            second tier, 0 for none
+	 */
+	public BlockCache(final int blockSize, final long heapBytes, final long offHeapBytes) {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("blockSize must be positive");
+		}
+
+		if (heapBytes < 0 || offHeapBytes < 0) {
+			throw new IllegalArgumentException("negative cache size");
+		}
+
+		this.blockSize = blockSize;
+		int offHeapBlocks = (int) Math.min(Integer.MAX_VALUE, offHeapBytes / blockSize);
+		offHeap = offHeapBlocks > 0 ? new OffHeapBlockStore(blockSize, offHeapBlocks) : null;
+
+		heap = CacheBuilder.newBuilder().maximumWeight(heapBytes).weigher(new Weigher<BlockKey, byte[]>() {
+			@Override
+			public int weigh(final BlockKey key, final byte[] block) {
+				return block.length;
+			}
+		}).removalListener(new RemovalListener<BlockKey, byte[]>() {
+			@Override
+			public void onRemoval(final RemovalNotification<BlockKey, byte[]> notification) {
+				if (offHeap != null && notification.getCause() == RemovalCause.SIZE) {
+					offHeap.put(notification.getKey(), notification.getValue());
+				}
+			}
+		}).build();
+
+		// objects without blocks fall out with their last block at the latest
+		modifyTimes = CacheBuilder.newBuilder()
+				.maximumSize(Math.max(1, heapBytes / blockSize + offHeapBlocks)).build();
+	}
+
+	/**
+	 * @param objectId
+	 *            <code>long</code> identifying the data object
+	 * @param modifyTime
+	 *            <code>long</code> with the modify time the caller saw
+	 * @param blockIndex
+	 *            <code>long</code> with the offset divided by
+	 *            {@link #getBlockSize()}
+	 * @return <code>byte[]</code> with the block, shorter than a full block at
+	 *         the end of the object, or <code>null</code>. Not to be changed.
+	 */
+	public byte[] get(final long objectId, final long modifyTime, final long blockIndex) {
+		BlockKey key = new BlockKey(objectId, modifyTime, blockIndex);
+		byte[] block = heap.getIfPresent(key);
+		if (block == null && offHeap != null) {
+			block = offHeap.get(key);
+			if (block != null) {
+				heap.put(key, block);
+			}
+		}
+
+		if (block == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return block;
+	}
+
+	/**
+	 * @return <code>long</code> to pass to
+	 *         {@link #put(long, long, long, byte[], long)}, taken before
+	 *         reading the block
+	 */
+	public long epoch() {
+		return invalidations.epoch();
+	}
+
+	/**
+	 * Cache a block unless the object was invalidated since the given epoch
+	 *
+	 * @param objectId
+	 *            <code>long</code> identifying the data object
+	 * @param modifyTime
+	 *            <code>long</code> with the modify time the block was read
+	 *            under
+	 * @param blockIndex
+	 *            <code>long</code> with the block index
+	 * @param block
+	 *            <code>byte[]</code> of at most {@link #getBlockSize()}
+	 *            bytes, not to be changed afterwards
+	 * @param epoch
+	 *            <code>long</code> from {@link #epoch()} taken before the read
+	 */
+	public void put(final long objectId, final long modifyTime, final long blockIndex, final byte[] block,
+			final long epoch) {
+		if (block == null || block.length > blockSize) {
+			throw new IllegalArgumentException("null or oversized block");
+		}
+
+		if (!invalidations.isCurrent(objectId, epoch)) {
+			return;
+		}
+
+		modifyTimes.asMap().putIfAbsent(objectId, modifyTime);
+		heap.put(new BlockKey(objectId, modifyTime, blockIndex), block);
+
+		// an invalidation may have slipped in between the check and the put
+		if (!invalidations.isCurrent(objectId, epoch)) {
+			invalidate(objectId);
+		}
+	}
+
+	/**
+	 * Note the modify time a stat returned, freeing blocks of older versions
+	 * of the object
+	 *
+	 * @param objectId
+	 *            <code>long</code> identifying the data object
+	 * @param modifyTime
+	 *            <code>long</code> with the current modify time
+	 */
+	public void validate(final long objectId, final long modifyTime) {
+		Long previous = modifyTimes.asMap().put(objectId, modifyTime);
+		if (previous != null && previous != modifyTime) {
+			remove(objectId, modifyTime);
+		}
+	}
+
+	/**
+	 * Drop the blocks of an object that was changed through this gateway
+	 *
+	 * @param objectId
+	 *            <code>long</code> identifying the data object
+	 */
+	public void invalidate(final long objectId) {
+		invalidations.invalidate(objectId);
+		modifyTimes.invalidate(objectId);
+		remove(objectId, null);
+	}
+
+	public void invalidateAll() {
+		invalidations.invalidateAll();
+		modifyTimes.invalidateAll();
+		heap.invalidateAll();
+		if (offHeap != null) {
+			offHeap.clear();
+		}
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return <code>long</code> with the bytes held on the heap
+	 */
+	public long heapBytes() {
+		long bytes = 0;
+		for (byte[] block : heap.asMap().values()) {
+			bytes += block.length;
+		}
+		return bytes;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("BlockCache [blockSize=").append(blockSize);
+		builder.append(", heapBlocks=").append(heap.size());
+		builder.append(", offHeapBlocks=").append(offHeap == null ? 0 : offHeap.size());
+		builder.append(", hits=").append(hits.get());
+		builder.append(", misses=").append(misses.get());
+		builder.append("]");
+		return builder.toString();
+	}
+
+	/**
+	 * Remove an object's blocks, except those of the modify time to keep if
+	 * one is given. Walks the cache, which is fine for how rarely objects
+	 * change.
+	 */
+	private void remove(final long objectId, final Long keepModifyTime) {
+		Iterator<BlockKey> keys = heap.asMap().keySet().iterator();
+		while (keys.hasNext()) {
+			BlockKey key = keys.next();
+			if (key.objectId == objectId && (keepModifyTime == null || key.modifyTime != keepModifyTime)) {
+				keys.remove();
+			}
+		}
+
+		if (offHeap != null) {
+			offHeap.remove(objectId, keepModifyTime);
+		}
+	}
+
+	static final class BlockKey {
+		final long objectId;
+		final long modifyTime;
+		final long blockIndex;
+
+		BlockKey(final long objectId, final long modifyTime, final long blockIndex) {
+			this.objectId = objectId;
+			this.modifyTime = modifyTime;
+			this.blockIndex = blockIndex;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = Long.hashCode(objectId);
+			result = 31 * result + Long.hashCode(modifyTime);
+			return 31 * result + Long.hashCode(blockIndex);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+
+			if (!(obj instanceof BlockKey)) {
+				return false;
+			}
+
+			BlockKey other = (BlockKey) obj;
+			return objectId == other.objectId && modifyTime == other.modifyTime && blockIndex == other.blockIndex;
+		}
+	}
+
+}
@@ -0,0 +1,311 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.dcache.nfs.vfs.FsStat;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.IRODSGenQueryExecutor;
+import org.irods.jargon.core.pub.domain.Quota;
+import org.irods.jargon.core.pub.domain.Resource;
+import org.irods.jargon.core.query.GenQueryBuilderException;
+import org.irods.jargon.core.query.IRODSGenQueryBuilder;
+import org.irods.jargon.core.query.IRODSQueryResultSetInterface;
+import org.irods.jargon.core.query.JargonQueryException;
+import org.irods.jargon.core.query.QueryConditionOperators;
+import org.irods.jargon.core.query.RodsGenQueryEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * File system statistics worked out from iRODS: free space of the storage
+ * resource, the quotas of the user and their groups, and the number of
+ * objects under the exported root. Some clients send FSSTAT before every
+ * write and <code>df</code> sends it too, so the figures are loaded in the
+ * background and FSSTAT is answered from memory.
+ * <p/>
+ * iRODS does not record the size of a resource, only its free space, and
+ * only if an administrator or a rule sets it. The used space comes from the
+ * quota that leaves the least room, without a quota the file system shows as
+ * empty with the resource's free space.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class FsStatCache implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(FsStatCache.class);
+
+	private final IRODSAccessObjectFactory irodsAccessObjectFactory;
+	private final IRODSAccount irodsAccount;
+	private final String rootPath;
+	private volatile Snapshot snapshot;
+	private ScheduledExecutorService refresher;
+
+	/**
+	 * @param irodsAccessObjectFactory
+	 *            {@link IRODSAccessObjectFactory}
+	 * @param irodsAccount
+	 *            {@link IRODSAccount} used for the queries, its default
+	 *            storage resource is the one whose free space is reported, all
+	 *            root resources if it has none
+	 * @param rootPath
+	 *            <code>String</code> with the absolute path of the exported
+	 *            collection
+	 */
+	public FsStatCache(final IRODSAccessObjectFactory irodsAccessObjectFactory, final IRODSAccount irodsAccount,
+			final String rootPath) {
+		if (irodsAccessObjectFactory == null) {
+			throw new IllegalArgumentException("null irodsAccessObjectFactory");
+		}
+
+		if (irodsAccount == null) {
+			throw new IllegalArgumentException("null irodsAccount");
+		}
+
+		if (rootPath == null || rootPath.isEmpty()) {
+			throw new IllegalArgumentException("null or empty rootPath");
+		}
+
+		this.irodsAccessObjectFactory = irodsAccessObjectFactory;
+		this.irodsAccount = irodsAccount;
+		this.rootPath = rootPath;
+	}
+
+	/**
+	 * Get the statistics a user sees. Loads them if they have never been
+	 * loaded, otherwise nothing is queried.
+	 *
+	 * @param userName
+	 *            <code>String</code> with the iRODS user name, or
+	 *            <code>null</code> to leave quotas out
+	 * @param groups
+	 *            <code>Set</code> of <code>String</code> with the names of the
+	 *            user's groups, whose quotas also apply
+	 * @return {@link FsStat}
+	 * @throws JargonException
+	 */
+	public FsStat fsStatFor(final String userName, final Set<String> groups) throws JargonException {
+		Snapshot current = snapshot;
+		if (current == null) {
+			current = load();
+			snapshot = current;
+		}
+
+		List<Quota> quotas = new ArrayList<>();
+		if (userName != null) {
+			addQuotas(quotas, current.quotas.get(userName));
+		}
+
+		if (groups != null) {
+			for (String group : groups) {
+				addQuotas(quotas, current.quotas.get(group));
+			}
+		}
+		return fsStat(current.freeSpace, quotas, current.objects);
+	}
+
+	/**
+	 * Reload free space, quotas and object count
+	 *
+	 * @throws JargonException
+	 */
+	public void refresh() throws JargonException {
+		log.debug("refresh()");
+		snapshot = load();
+	}
+
+	private Snapshot load() throws JargonException {
+		String resourceName = irodsAccount.getDefaultStorageResource();
+		Set<String> resourceNames = new HashSet<>();
+		long freeSpace = 0;
+		boolean allResources = resourceName == null || resourceName.isEmpty();
+		for (Resource resource : irodsAccessObjectFactory.getResourceAO(irodsAccount).findAll()) {
+			resourceNames.add(resource.getName());
+			// the children of a resource hierarchy are counted with its root
+			boolean root = resource.getParentName() == null || resource.getParentName().isEmpty();
+			if (allResources ? root : resourceName.equals(resource.getName())) {
+				freeSpace += Math.max(resource.getFreeSpace(), 0);
+			}
+		}
+
+		// quotas on other resources do not limit writes here, global ones do
+		Map<String, List<Quota>> quotas = new HashMap<>();
+		for (Quota quota : irodsAccessObjectFactory.getQuotaAO(irodsAccount).listAllQuota()) {
+			String quotaResource = quota.getResourceName();
+			if (!allResources && resourceNames.contains(quotaResource)
+					&& !resourceName.equals(quotaResource)) {
+				continue;
+			}
+
+			List<Quota> forName = quotas.get(quota.getUserName());
+			if (forName == null) {
+				forName = new ArrayList<>();
+				quotas.put(quota.getUserName(), forName);
+			}
+			forName.add(quota);
+		}
+
+		long objects = count(RodsGenQueryEnum.COL_D_DATA_ID) + count(RodsGenQueryEnum.COL_COLL_ID);
+		log.debug("loaded free space:{} quotas for:{} objects:{}", freeSpace, quotas.keySet(), objects);
+		return new Snapshot(freeSpace, quotas, objects);
+	}
+
+	/**
+	 * Reload periodically on a daemon thread, starting now
+	 *
+	 * @param intervalMillis
+	 *            <code>long</code> with the time between reloads
+	 */
+	public synchronized void startRefresh(final long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("intervalMillis must be positive");
+		}
+
+		if (refresher != null) {
+			throw new IllegalStateException("refresh already started");
+		}
+
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "irods-fsstat-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (JargonException | RuntimeException e) {
+					// keep the old figures, try again next time
+					log.warn("error refreshing file system statistics", e);
+				} finally {
+					irodsAccessObjectFactory.closeSessionAndEatExceptions();
+				}
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Drop the loaded figures so the next call queries iRODS, for when
+	 * nothing refreshes them
+	 */
+	public void invalidate() {
+		snapshot = null;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	/**
+	 * Work out the statistics from free space and the quotas that apply
+	 *
+	 * @param freeSpace
+	 *            <code>long</code> with the free space of the resource, 0 if
+	 *            not known
+	 * @param quotas
+	 *            <code>Collection</code> of {@link Quota} that apply
+	 * @param objects
+	 *            <code>long</code> with the number of objects
+	 * @return {@link FsStat}
+	 */
+	static FsStat fsStat(final long freeSpace, final Collection<Quota> quotas, final long objects) {
+		long available = freeSpace > 0 ? freeSpace : Long.MAX_VALUE;
+		long used = 0;
+		for (Quota quota : quotas) {
+			if (quota.getQuotaLimit() <= 0) {
+				continue;
+			}
+
+			// iRODS keeps how far over the limit a quota is, negative when under
+			long left = Math.max(-quota.getQuotaOver(), 0);
+			if (left < available) {
+				available = left;
+				used = Math.max(quota.getQuotaLimit() + quota.getQuotaOver(), 0);
+			}
+		}
+
+		long total = available == Long.MAX_VALUE || used > Long.MAX_VALUE - available ? Long.MAX_VALUE
+				: used + available;
+		return new FsStat(total, Long.MAX_VALUE, used, objects);
+	}
+
+	/**
+	 * Count in the root collection and below it, but not in siblings whose
+	 * names start with the root's name. A data object has a row per replica,
+	 * so ids are counted once each.
+	 */
+	private long count(final RodsGenQueryEnum idColumn) throws JargonException {
+		String below = belowPattern(rootPath);
+		long count = count(idColumn, QueryConditionOperators.LIKE, below);
+		if (!below.equals(rootPath + "%")) {
+			count += count(idColumn, QueryConditionOperators.EQUAL, rootPath);
+		}
+		return count;
+	}
+
+	/**
+	 * @return <code>String</code> with the LIKE pattern of everything below a
+	 *         collection, which for the zone root is everything
+	 */
+	static String belowPattern(final String collectionPath) {
+		return collectionPath.endsWith("/") ? collectionPath + "%" : collectionPath + "/%";
+	}
+
+	private long count(final RodsGenQueryEnum idColumn, final QueryConditionOperators operator,
+			final String collectionName) throws JargonException {
+		// distinct ids with the total row count, only one row comes back
+		IRODSGenQueryBuilder builder = new IRODSGenQueryBuilder(true, false, true, null);
+		try {
+			builder.addSelectAsGenQueryValue(idColumn).addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_NAME,
+					operator, collectionName);
+			IRODSGenQueryExecutor executor = irodsAccessObjectFactory.getIRODSGenQueryExecutor(irodsAccount);
+			IRODSQueryResultSetInterface result = executor
+					.executeIRODSQueryAndCloseResult(builder.exportIRODSQueryFromBuilder(1), 0);
+			return result.getTotalRecords();
+		} catch (GenQueryBuilderException | JargonQueryException e) {
+			log.error("query error counting objects under:{}", rootPath, e);
+			throw new JargonException("error counting objects", e);
+		}
+	}
+
+	private static void addQuotas(final List<Quota> quotas, final List<Quota> more) {
+		if (more != null) {
+			quotas.addAll(more);
+		}
+	}
+
+	private static final class Snapshot {
+		private final long freeSpace;
+		private final Map<String, List<Quota>> quotas;
+		private final long objects;
+
+		private Snapshot(final long freeSpace, final Map<String, List<Quota>> quotas, final long objects) {
+			this.freeSpace = freeSpace;
+			this.quotas = quotas;
+			this.objects = objects;
+		}
+	}
+
+}
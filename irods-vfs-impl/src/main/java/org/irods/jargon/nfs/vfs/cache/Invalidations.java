@@ -0,0 +1,94 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When each inode was last invalidated, for caches that must not keep a value
+ * fetched before an invalidation of the same inode.
+ * <p/>
+ * Invalidations are stamped from one sequence. A caller takes an
+ * {@link #epoch()} before fetching from iRODS, and the fetched value is stale
+ * only if its own inode, or everything, was invalidated since. Writes to
+ * other files do not drop it, so the caches keep filling under write load.
+ * Inodes share a fixed number of stripes to keep memory bounded, two inodes
+ * in one stripe only cost a put that could have been kept.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class Invalidations {
+
+	private static final int STRIPE_BITS = 12;
+
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLongArray stamps = new AtomicLongArray(1 << STRIPE_BITS);
+	private final AtomicLong allStamp = new AtomicLong();
+
+	/**
+	 * @return <code>long</code> to pass to {@link #isCurrent(long, long)},
+	 *         taken before fetching
+	 */
+	public long epoch() {
+		return sequence.get();
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @return <code>long</code> that changes whenever the inode is
+	 *         invalidated
+	 */
+	public long version(final long inodeNumber) {
+		return Math.max(stamps.get(stripe(inodeNumber)), allStamp.get());
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param epoch
+	 *            <code>long</code> from {@link #epoch()} taken before the
+	 *            fetch
+	 * @return <code>boolean</code> if the inode was not invalidated since the
+	 *         epoch
+	 */
+	public boolean isCurrent(final long inodeNumber, final long epoch) {
+		return version(inodeNumber) <= epoch;
+	}
+
+	/**
+	 * Stamp an invalidation of an inode, before its cached value is dropped
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 */
+	public void invalidate(final long inodeNumber) {
+		long stamp = sequence.incrementAndGet();
+		int stripe = stripe(inodeNumber);
+		for (;;) {
+			long current = stamps.get(stripe);
+			if (current >= stamp || stamps.compareAndSet(stripe, current, stamp)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stamp an invalidation of every inode
+	 */
+	public void invalidateAll() {
+		long stamp = sequence.incrementAndGet();
+		for (;;) {
+			long current = allStamp.get();
+			if (current >= stamp || allStamp.compareAndSet(current, stamp)) {
+				return;
+			}
+		}
+	}
+
+	private static int stripe(final long inodeNumber) {
+		// spread sequential inode numbers over the stripes
+		return (int) ((inodeNumber * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS));
+	}
+
+}
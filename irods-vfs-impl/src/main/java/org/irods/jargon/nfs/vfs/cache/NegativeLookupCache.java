@@ -0,0 +1,148 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded cache of names recently found missing from a directory, so repeated
+ * LOOKUPs of names that do not exist (compilers searching include paths,
+ * Python imports, shell PATH searches) do not each cost an iCAT query.
+ * <p/>
+ * An entry records the directory version it was found missing in, see
+ * {@link org.irods.jargon.nfs.vfs.listing.DirectoryChangeCounter}. Creating,
+ * linking or moving a name into a directory through this gateway changes its
+ * version, which retires every negative entry of that directory at once. Take
+ * the version before asking iRODS, a name created while the query runs then
+ * lands under a newer version. The time to live bounds how long names created
+ * by other iRODS clients go unnoticed.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class NegativeLookupCache {
+
+	private final Cache<Key, Boolean> missing;
+	private final boolean enabled;
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * @param maximumSize
+	 *            <code>long</code> with the number of missing names to keep
+	 * @param ttlMillis
+	 *            <code>long</code> with how long a name stays missing, 0 turns
+	 *            the cache off
+	 */
+	public NegativeLookupCache(final long maximumSize, final long ttlMillis) {
+		this(maximumSize, ttlMillis, Ticker.systemTicker());
+	}
+
+	NegativeLookupCache(final long maximumSize, final long ttlMillis, final Ticker ticker) {
+		if (maximumSize < 0) {
+			throw new IllegalArgumentException("negative maximumSize");
+		}
+
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException("negative ttl");
+		}
+
+		if (ticker == null) {
+			throw new IllegalArgumentException("null ticker");
+		}
+
+		this.enabled = ttlMillis > 0 && maximumSize > 0;
+		missing = CacheBuilder.newBuilder().maximumSize(maximumSize)
+				.expireAfterWrite(Math.max(ttlMillis, 1), TimeUnit.MILLISECONDS).ticker(ticker).build();
+	}
+
+	/**
+	 * @param directoryInode
+	 *            <code>long</code> with the inode number of the directory
+	 * @param directoryVersion
+	 *            <code>long</code> with the directory's current version
+	 * @param name
+	 *            <code>String</code> with the name looked up
+	 * @return <code>boolean</code> if the name was found missing from this
+	 *         version of the directory and has not expired
+	 */
+	public boolean isMissing(final long directoryInode, final long directoryVersion, final String name) {
+		if (!enabled || missing.getIfPresent(new Key(directoryInode, directoryVersion, name)) == null) {
+			return false;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Record a name iRODS does not have
+	 *
+	 * @param directoryInode
+	 *            <code>long</code> with the inode number of the directory
+	 * @param directoryVersion
+	 *            <code>long</code> with the directory version taken before
+	 *            the lookup
+	 * @param name
+	 *            <code>String</code> with the missing name
+	 */
+	public void missing(final long directoryInode, final long directoryVersion, final String name) {
+		if (enabled) {
+			missing.put(new Key(directoryInode, directoryVersion, name), Boolean.TRUE);
+		}
+	}
+
+	public long size() {
+		return missing.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("NegativeLookupCache [size=").append(size());
+		builder.append(", hits=").append(hits.get());
+		builder.append("]");
+		return builder.toString();
+	}
+
+	private static final class Key {
+		private final long directoryInode;
+		private final long directoryVersion;
+		private final String name;
+
+		private Key(final long directoryInode, final long directoryVersion, final String name) {
+			this.directoryInode = directoryInode;
+			this.directoryVersion = directoryVersion;
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) obj;
+			return directoryInode == other.directoryInode && directoryVersion == other.directoryVersion
+					&& name.equals(other.name);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = (int) (directoryInode ^ (directoryInode >>> 32));
+			result = 31 * result + (int) (directoryVersion ^ (directoryVersion >>> 32));
+			result = 31 * result + name.hashCode();
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.irods.jargon.nfs.vfs.cache.BlockCache.BlockKey;
+
+/**
+ * Second tier of the {@link BlockCache}, a fixed number of block sized slots
+ * in direct buffers. Keeping blocks outside the heap lets the cache grow
+ * without adding to garbage collection work.
+ * <p/>
+ * Slots are reused with the clock algorithm: a hit sets a slot's reference
+ * bit, and the hand clears bits as it passes until it finds a slot whose bit
+ * is clear. Slot buffers are allocated on first use.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+class OffHeapBlockStore {
+
+	private final int blockSize;
+	private final ByteBuffer[] buffers;
+	private final BlockKey[] keys;
+	private final int[] lengths;
+	private final boolean[] referenced;
+	private final Map<BlockKey, Integer> slots = new HashMap<>();
+	private int hand = 0;
+
+	OffHeapBlockStore(final int blockSize, final int blockCount) {
+		this.blockSize = blockSize;
+		buffers = new ByteBuffer[blockCount];
+		keys = new BlockKey[blockCount];
+		lengths = new int[blockCount];
+		referenced = new boolean[blockCount];
+	}
+
+	/**
+	 * @return <code>byte[]</code> copied out of the slot, or
+	 *         <code>null</code>
+	 */
+	synchronized byte[] get(final BlockKey key) {
+		Integer slot = slots.get(key);
+		if (slot == null) {
+			return null;
+		}
+
+		referenced[slot] = true;
+		byte[] block = new byte[lengths[slot]];
+		ByteBuffer buffer = buffers[slot].duplicate();
+		buffer.clear();
+		buffer.get(block);
+		return block;
+	}
+
+	synchronized void put(final BlockKey key, final byte[] block) {
+		Integer slot = slots.get(key);
+		if (slot == null) {
+			slot = victim();
+			if (keys[slot] != null) {
+				slots.remove(keys[slot]);
+			}
+			keys[slot] = key;
+			slots.put(key, slot);
+		}
+
+		if (buffers[slot] == null) {
+			buffers[slot] = ByteBuffer.allocateDirect(blockSize);
+		}
+
+		ByteBuffer buffer = buffers[slot].duplicate();
+		buffer.clear();
+		buffer.put(block);
+		lengths[slot] = block.length;
+		referenced[slot] = false;
+	}
+
+	/**
+	 * Free an object's slots, except those of the modify time to keep if one
+	 * is given
+	 */
+	synchronized void remove(final long objectId, final Long keepModifyTime) {
+		for (int slot = 0; slot < keys.length; slot++) {
+			BlockKey key = keys[slot];
+			if (key != null && key.objectId == objectId
+					&& (keepModifyTime == null || key.modifyTime != keepModifyTime)) {
+				free(slot);
+			}
+		}
+	}
+
+	synchronized void clear() {
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != null) {
+				free(slot);
+			}
+		}
+	}
+
+	synchronized int size() {
+		return slots.size();
+	}
+
+	private void free(final int slot) {
+		slots.remove(keys[slot]);
+		keys[slot] = null;
+		referenced[slot] = false;
+	}
+
+	/**
+	 * Advance the clock hand to a free or unreferenced slot
+	 */
+	private int victim() {
+		while (keys[hand] != null && referenced[hand]) {
+			referenced[hand] = false;
+			hand = (hand + 1) % keys.length;
+		}
+
+		int slot = hand;
+		hand = (hand + 1) % keys.length;
+		return slot;
+	}
+
+}
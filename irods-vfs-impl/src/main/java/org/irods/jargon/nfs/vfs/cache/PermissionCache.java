@@ -0,0 +1,286 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded cache of iRODS ACLs by inode number, together with the permission
+ * each NFS user has been worked out to have from them. Clients send ACCESS
+ * before nearly every open, with this cache that is answered from memory.
+ * <p/>
+ * An ACL is fetched once for all users of the object, the permission of a
+ * user is kept next to it and goes with it. The iRODS groups of each user are
+ * cached as well, for ACL entries that name a group, and the inheritance
+ * flag of each collection, so the ACL of an object created in a collection
+ * that passes its ACL on can be derived without a query. Callers invalidate an
+ * inode whenever they change its ACL, owner or path, the time to live bounds
+ * how long changes made by other iRODS clients go unnoticed. As with
+ * {@link AttributeCache}, take an {@link #epoch()} before fetching an ACL so a
+ * fetch that races with an invalidation of the same inode is dropped.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class PermissionCache {
+
+	private final Cache<Long, Entry> acls;
+	private final Cache<Integer, Set<String>> groups;
+	private final Cache<Long, Boolean> inheritance;
+	private final boolean enabled;
+	private final Invalidations invalidations = new Invalidations();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maximumSize
+	 *            <code>long</code> with the number of ACLs to keep
+	 * @param ttlMillis
+	 *            <code>long</code> with the time to live of an ACL and of a
+	 *            user's groups, 0 turns the cache off
+	 */
+	public PermissionCache(final long maximumSize, final long ttlMillis) {
+		this(maximumSize, ttlMillis, Ticker.systemTicker());
+	}
+
+	PermissionCache(final long maximumSize, final long ttlMillis, final Ticker ticker) {
+		if (maximumSize < 0) {
+			throw new IllegalArgumentException("negative maximumSize");
+		}
+
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException("negative ttl");
+		}
+
+		if (ticker == null) {
+			throw new IllegalArgumentException("null ticker");
+		}
+
+		this.enabled = ttlMillis > 0 && maximumSize > 0;
+		long expiry = Math.max(ttlMillis, 1);
+		acls = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(expiry, TimeUnit.MILLISECONDS)
+				.ticker(ticker).build();
+		groups = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(expiry, TimeUnit.MILLISECONDS)
+				.ticker(ticker).build();
+		inheritance = CacheBuilder.newBuilder().maximumSize(maximumSize)
+				.expireAfterWrite(expiry, TimeUnit.MILLISECONDS).ticker(ticker).build();
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @return <code>List</code> of {@link UserFilePermission} that was cached
+	 *         and has not expired, or <code>null</code>
+	 */
+	public List<UserFilePermission> acl(final long inodeNumber) {
+		Entry entry = acls.getIfPresent(inodeNumber);
+		return entry == null ? null : entry.acl;
+	}
+
+	/**
+	 * @return <code>long</code> to pass to
+	 *         {@link #putAcl(long, List, long)}, taken before fetching the ACL
+	 */
+	public long epoch() {
+		return invalidations.epoch();
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @return <code>long</code> that changes whenever the inode is
+	 *         invalidated
+	 */
+	public long version(final long inodeNumber) {
+		return invalidations.version(inodeNumber);
+	}
+
+	/**
+	 * Cache an ACL unless the inode was invalidated since the given epoch
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param acl
+	 *            <code>List</code> of {@link UserFilePermission} fetched from
+	 *            iRODS, not to be changed afterwards
+	 * @param epoch
+	 *            <code>long</code> from {@link #epoch()} taken before the fetch
+	 */
+	public void putAcl(final long inodeNumber, final List<UserFilePermission> acl, final long epoch) {
+		if (acl == null) {
+			throw new IllegalArgumentException("null acl");
+		}
+
+		if (!enabled || !invalidations.isCurrent(inodeNumber, epoch)) {
+			return;
+		}
+
+		acls.put(inodeNumber, new Entry(acl));
+
+		// an invalidation may have slipped in between the check and the put
+		if (!invalidations.isCurrent(inodeNumber, epoch)) {
+			acls.invalidate(inodeNumber);
+		}
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param uid
+	 *            <code>int</code> with the NFS user
+	 * @return {@link FilePermissionEnum} the user was found to have from the
+	 *         cached ACL, or <code>null</code>
+	 */
+	public FilePermissionEnum permission(final long inodeNumber, final int uid) {
+		Entry entry = acls.getIfPresent(inodeNumber);
+		FilePermissionEnum permission = entry == null ? null : entry.permissions.get(uid);
+		if (permission == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return permission;
+	}
+
+	/**
+	 * Remember the permission of a user, if the ACL it was worked out from is
+	 * still the cached one
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param uid
+	 *            <code>int</code> with the NFS user
+	 * @param acl
+	 *            <code>List</code> of {@link UserFilePermission} the
+	 *            permission comes from
+	 * @param permission
+	 *            {@link FilePermissionEnum} of the user
+	 */
+	public void putPermission(final long inodeNumber, final int uid, final List<UserFilePermission> acl,
+			final FilePermissionEnum permission) {
+		if (permission == null) {
+			throw new IllegalArgumentException("null permission");
+		}
+
+		Entry entry = acls.getIfPresent(inodeNumber);
+		if (entry != null && entry.acl == acl) {
+			entry.permissions.put(uid, permission);
+		}
+	}
+
+	/**
+	 * @param uid
+	 *            <code>int</code> with the NFS user
+	 * @return <code>Set</code> of <code>String</code> with the user's iRODS
+	 *         group names, or <code>null</code> if not cached
+	 */
+	public Set<String> groups(final int uid) {
+		return groups.getIfPresent(uid);
+	}
+
+	public void putGroups(final int uid, final Set<String> groupNames) {
+		if (groupNames == null) {
+			throw new IllegalArgumentException("null groupNames");
+		}
+
+		if (enabled) {
+			groups.put(uid, Collections.unmodifiableSet(groupNames));
+		}
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number of a collection
+	 * @return <code>Boolean</code> with whether the collection passes its ACL
+	 *         on to new children, or <code>null</code> if not cached
+	 */
+	public Boolean inherits(final long inodeNumber) {
+		return inheritance.getIfPresent(inodeNumber);
+	}
+
+	/**
+	 * Cache the inheritance flag of a collection unless it was invalidated
+	 * since the given epoch
+	 */
+	public void putInherits(final long inodeNumber, final boolean inherits, final long epoch) {
+		if (!enabled || !invalidations.isCurrent(inodeNumber, epoch)) {
+			return;
+		}
+
+		inheritance.put(inodeNumber, inherits);
+		if (!invalidations.isCurrent(inodeNumber, epoch)) {
+			inheritance.invalidate(inodeNumber);
+		}
+	}
+
+	/**
+	 * Drop the ACL and inheritance flag of an inode whose permissions, owner
+	 * or path changed through this gateway
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 */
+	public void invalidate(final long inodeNumber) {
+		invalidations.invalidate(inodeNumber);
+		acls.invalidate(inodeNumber);
+		inheritance.invalidate(inodeNumber);
+	}
+
+	public void invalidateAll() {
+		invalidations.invalidateAll();
+		acls.invalidateAll();
+		groups.invalidateAll();
+		inheritance.invalidateAll();
+	}
+
+	/**
+	 * @return <code>boolean</code> if anything is cached at all, callers can
+	 *         skip fetching what would not be kept
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long size() {
+		return acls.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("PermissionCache [size=").append(size());
+		builder.append(", hits=").append(hits.get());
+		builder.append(", misses=").append(misses.get());
+		builder.append("]");
+		return builder.toString();
+	}
+
+	private static final class Entry {
+		private final List<UserFilePermission> acl;
+		private final ConcurrentHashMap<Integer, FilePermissionEnum> permissions = new ConcurrentHashMap<>();
+
+		private Entry(final List<UserFilePermission> acl) {
+			this.acl = acl;
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Table of iRODS requests in flight, so concurrent identical requests make
+ * one call and share its result. When thousands of clients miss the cache
+ * for the same hot directory at once the iCAT sees one query instead of
+ * thousands.
+ * <p/>
+ * The first caller of a key runs the request on its own thread, later
+ * callers of the same key wait for it. Nothing is kept once the request is
+ * done, caching results is up to the caller. A failure is thrown to every
+ * caller that waited for it.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class SingleFlight<V> {
+
+	private final ConcurrentHashMap<Key, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * Run a request, or wait for the identical one already running
+	 *
+	 * @param key
+	 *            {@link Key} identifying the request
+	 * @param request
+	 *            <code>Callable</code> making the iRODS call
+	 * @return the result of the one call
+	 * @throws IOException
+	 */
+	public V execute(final Key key, final Callable<V> request) throws IOException {
+		if (key == null) {
+			throw new IllegalArgumentException("null key");
+		}
+
+		FutureTask<V> task = new FutureTask<>(request);
+		FutureTask<V> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			running = task;
+		} else {
+			shared.incrementAndGet();
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for " + key);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @return <code>long</code> with the callers that got the result of a
+	 *         request another caller made
+	 */
+	public long sharedCount() {
+		return shared.get();
+	}
+
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * What makes two requests identical: the operation, the inode, the
+	 * calling user, an operation argument such as a listing offset, and the
+	 * cache version of the inode the caller saw, so no caller gets a result
+	 * fetched before an invalidation of the inode it has seen, while
+	 * invalidations of other inodes do not split the flight
+	 */
+	public static final class Key {
+		private final String operation;
+		private final long inodeNumber;
+		private final int uid;
+		private final long argument;
+		private final long version;
+
+		public Key(final String operation, final long inodeNumber, final int uid, final long argument,
+				final long version) {
+			if (operation == null) {
+				throw new IllegalArgumentException("null operation");
+			}
+
+			this.operation = operation;
+			this.inodeNumber = inodeNumber;
+			this.uid = uid;
+			this.argument = argument;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) obj;
+			return inodeNumber == other.inodeNumber && uid == other.uid && argument == other.argument
+					&& version == other.version && operation.equals(other.operation);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = operation.hashCode();
+			result = 31 * result + (int) (inodeNumber ^ (inodeNumber >>> 32));
+			result = 31 * result + uid;
+			result = 31 * result + (int) (argument ^ (argument >>> 32));
+			result = 31 * result + (int) (version ^ (version >>> 32));
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return operation + "(" + inodeNumber + ", uid " + uid + ", " + argument + ")";
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.DataNotFoundException;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.domain.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps iRODS user name and zone to the numeric user id that is handed to NFS
+ * clients as the uid. iRODS has a handful of users owning millions of objects,
+ * so the whole user table is kept in memory, loaded up front with one query
+ * and reloaded in the background.
+ * <p/>
+ * Users missing from the table (created since the last reload) are looked up
+ * one at a time. Names that are not iRODS users map to {@link #NOBODY_UID}
+ * until the next reload. Users are also kept by uid, so a user looked up by
+ * name can be found by uid without another query.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class UserIdCache implements Closeable {
+
+	public static final int NOBODY_UID = 65534;
+
+	private static final Logger log = LoggerFactory.getLogger(UserIdCache.class);
+
+	private final IRODSAccessObjectFactory irodsAccessObjectFactory;
+	private final IRODSAccount irodsAccount;
+	private volatile Map<String, Integer> uids = new NonBlockingHashMap<>();
+	private volatile Map<Integer, User> users = new NonBlockingHashMap<>();
+	private ScheduledExecutorService refresher;
+
+	/**
+	 * @param irodsAccessObjectFactory
+	 *            {@link IRODSAccessObjectFactory}
+	 * @param irodsAccount
+	 *            {@link IRODSAccount} used to query users, its zone is the
+	 *            local zone
+	 */
+	public UserIdCache(final IRODSAccessObjectFactory irodsAccessObjectFactory, final IRODSAccount irodsAccount) {
+		if (irodsAccessObjectFactory == null) {
+			throw new IllegalArgumentException("null irodsAccessObjectFactory");
+		}
+
+		if (irodsAccount == null) {
+			throw new IllegalArgumentException("null irodsAccount");
+		}
+
+		this.irodsAccessObjectFactory = irodsAccessObjectFactory;
+		this.irodsAccount = irodsAccount;
+	}
+
+	/**
+	 * Get the uid of an iRODS user
+	 *
+	 * @param userName
+	 *            <code>String</code> with the user name
+	 * @param zone
+	 *            <code>String</code> with the user's zone, blank for the local
+	 *            zone
+	 * @return <code>int</code> with the uid, or {@link #NOBODY_UID} if there is
+	 *         no such user
+	 * @throws JargonException
+	 */
+	public int uidOf(final String userName, final String zone) throws JargonException {
+		if (userName == null || userName.isEmpty()) {
+			throw new IllegalArgumentException("null or empty userName");
+		}
+
+		String key = keyOf(userName, zone);
+		Integer uid = uids.get(key);
+		if (uid != null) {
+			return uid;
+		}
+
+		log.debug("user {} not cached, looking up", key);
+		uid = NOBODY_UID;
+		try {
+			User user = irodsAccessObjectFactory.getUserAO(irodsAccount).findByName(queryNameOf(userName, zone));
+			uid = Integer.valueOf(user.getId());
+			users.put(uid, user);
+		} catch (DataNotFoundException e) {
+			log.warn("no irods user:{}, mapping to nobody", key);
+		}
+
+		uids.put(key, uid);
+		return uid;
+	}
+
+	/**
+	 * Get an iRODS user by uid
+	 *
+	 * @param uid
+	 *            <code>int</code> with the uid
+	 * @return {@link User}, or <code>null</code> if there is no such user
+	 * @throws JargonException
+	 */
+	public User userOf(final int uid) throws JargonException {
+		User user = users.get(uid);
+		if (user != null) {
+			return user;
+		}
+
+		log.debug("uid {} not cached, looking up", uid);
+		try {
+			user = irodsAccessObjectFactory.getUserAO(irodsAccount).findById(String.valueOf(uid));
+		} catch (DataNotFoundException e) {
+			log.warn("no irods user with id:{}", uid);
+			return null;
+		}
+
+		users.put(uid, user);
+		uids.put(keyOf(user.getName(), user.getZone()), uid);
+		return user;
+	}
+
+	/**
+	 * Reload the whole user table with one query. Entries for users that
+	 * have been removed are dropped.
+	 *
+	 * @throws JargonException
+	 */
+	public void refresh() throws JargonException {
+		log.debug("refresh()");
+		List<User> users = irodsAccessObjectFactory.getUserAO(irodsAccount).findAll();
+		Map<String, Integer> loaded = new NonBlockingHashMap<>();
+		Map<Integer, User> loadedUsers = new NonBlockingHashMap<>();
+		for (User user : users) {
+			Integer uid = Integer.valueOf(user.getId());
+			loaded.put(keyOf(user.getName(), user.getZone()), uid);
+			loadedUsers.put(uid, user);
+		}
+		uids = loaded;
+		this.users = loadedUsers;
+		log.info("cached {} irods users", loaded.size());
+	}
+
+	/**
+	 * Reload the user table periodically on a daemon thread
+	 *
+	 * @param intervalMillis
+	 *            <code>long</code> with the time between reloads
+	 */
+	public synchronized void startRefresh(final long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("intervalMillis must be positive");
+		}
+
+		if (refresher != null) {
+			throw new IllegalStateException("refresh already started");
+		}
+
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "irods-user-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (JargonException | RuntimeException e) {
+					// keep the old table, try again next time
+					log.warn("error refreshing irods users", e);
+				} finally {
+					irodsAccessObjectFactory.closeSessionAndEatExceptions();
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public long size() {
+		return uids.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	private String keyOf(final String userName, final String zone) {
+		if (zone == null || zone.isEmpty()) {
+			return userName + "#" + irodsAccount.getZone();
+		}
+		return userName + "#" + zone;
+	}
+
+	private String queryNameOf(final String userName, final String zone) {
+		if (zone == null || zone.isEmpty() || zone.equals(irodsAccount.getZone())) {
+			return userName;
+		}
+		return userName + "#" + zone;
+	}
+
+}
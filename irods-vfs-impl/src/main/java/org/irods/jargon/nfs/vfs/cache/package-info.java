@@ -0,0 +1,8 @@
+/**
+ * Caches that save iRODS round trips for metadata the NFS clients ask for
+ * over and over, such as object attributes
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+package org.irods.jargon.nfs.vfs.cache;
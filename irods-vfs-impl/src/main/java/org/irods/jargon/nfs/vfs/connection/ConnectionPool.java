@@ -0,0 +1,303 @@
+package org.irods.jargon.nfs.vfs.connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irods.jargon.core.exception.JargonException;
+
+/**
+ * Bounded pool of connections per key. Idle connections are handed out most
+ * recently returned first, so the ones left over age and get evicted.
+ * <p/>
+ * Each key has at most <code>maxPerKey</code> connections open, borrowed or
+ * idle. A borrower at the limit first asks its {@link Factory} to have one
+ * given back, then waits for one to come back up to a time limit. At most
+ * <code>maxIdlePerKey</code> are kept idle, connections idle longer than the
+ * idle time are closed by {@link #evictIdle()} down to
+ * <code>minIdlePerKey</code>. A connection is checked when it is borrowed
+ * and when it is returned, broken ones are closed.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+class ConnectionPool<K, T> {
+
+	/**
+	 * Creates, checks and closes pooled connections
+	 */
+	interface Lifecycle<T> {
+		boolean isHealthy(T connection);
+
+		void destroy(T connection);
+	}
+
+	/**
+	 * Opens a connection for a borrower when none is idle
+	 */
+	interface Factory<T> {
+		T create() throws JargonException;
+
+		/**
+		 * Every connection of the key is borrowed, called once per borrow
+		 * before waiting and without holding pool locks
+		 */
+		void exhausted();
+	}
+
+	private final int maxPerKey;
+	private final int maxIdlePerKey;
+	private final int minIdlePerKey;
+	private final long idleMillis;
+	private final long maxWaitMillis;
+	private final Lifecycle<T> lifecycle;
+	private final ConcurrentHashMap<K, Slots<T>> pools = new ConcurrentHashMap<>();
+	private final Map<T, Slots<T>> borrowed = Collections.synchronizedMap(new IdentityHashMap<T, Slots<T>>());
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+
+	ConnectionPool(final int maxPerKey, final int maxIdlePerKey, final int minIdlePerKey, final long idleMillis,
+			final long maxWaitMillis, final Lifecycle<T> lifecycle) {
+		if (maxPerKey <= 0) {
+			throw new IllegalArgumentException("maxPerKey must be positive");
+		}
+
+		if (maxIdlePerKey < 0 || minIdlePerKey < 0 || minIdlePerKey > maxIdlePerKey) {
+			throw new IllegalArgumentException("need 0 <= minIdlePerKey <= maxIdlePerKey");
+		}
+
+		if (lifecycle == null) {
+			throw new IllegalArgumentException("null lifecycle");
+		}
+
+		this.maxPerKey = maxPerKey;
+		this.maxIdlePerKey = maxIdlePerKey;
+		this.minIdlePerKey = minIdlePerKey;
+		this.idleMillis = idleMillis;
+		this.maxWaitMillis = maxWaitMillis;
+		this.lifecycle = lifecycle;
+	}
+
+	/**
+	 * Take an idle connection of the key, or open one if the key is under its
+	 * limit
+	 *
+	 * @throws JargonException
+	 *             if opening failed or none came free in time
+	 */
+	T borrow(final K key, final Factory<T> factory) throws JargonException {
+		Slots<T> slots = slots(key);
+		long deadline = System.currentTimeMillis() + maxWaitMillis;
+		List<T> broken = new ArrayList<>();
+		boolean asked = false;
+		try {
+			for (;;) {
+				synchronized (slots) {
+					Idle<T> idle = slots.idle.pollFirst();
+					if (idle != null) {
+						if (lifecycle.isHealthy(idle.connection)) {
+							borrowed.put(idle.connection, slots);
+							reused.incrementAndGet();
+							return idle.connection;
+						}
+						slots.open--;
+						broken.add(idle.connection);
+						continue;
+					}
+
+					if (slots.open < maxPerKey) {
+						slots.open++;
+						break;
+					}
+
+					if (asked) {
+						long wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) {
+							throw new JargonException("no iRODS connection came free for " + key);
+						}
+
+						try {
+							slots.wait(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new JargonException("interrupted waiting for an iRODS connection");
+						}
+						continue;
+					}
+				}
+
+				// outside the lock, giving a connection back takes it
+				asked = true;
+				factory.exhausted();
+			}
+		} finally {
+			destroy(broken);
+		}
+
+		T connection;
+		try {
+			connection = factory.create();
+		} catch (JargonException | RuntimeException e) {
+			closed(slots);
+			throw e;
+		}
+		borrowed.put(connection, slots);
+		created.incrementAndGet();
+		return connection;
+	}
+
+	/**
+	 * Give a borrowed connection back
+	 *
+	 * @return <code>boolean</code> <code>false</code> if the connection was
+	 *         not borrowed from this pool, the caller closes it
+	 */
+	boolean giveBack(final T connection) {
+		Slots<T> slots = borrowed.remove(connection);
+		if (slots == null) {
+			return false;
+		}
+
+		boolean keep = lifecycle.isHealthy(connection);
+		if (keep) {
+			synchronized (slots) {
+				keep = slots.idle.size() < maxIdlePerKey;
+				if (keep) {
+					slots.idle.addFirst(new Idle<T>(connection, System.currentTimeMillis()));
+					slots.notifyAll();
+					return true;
+				}
+			}
+		}
+
+		closed(slots);
+		lifecycle.destroy(connection);
+		return true;
+	}
+
+	/**
+	 * A borrowed connection was closed by its user, e.g. after an error
+	 */
+	void invalidate(final T connection) {
+		Slots<T> slots = borrowed.remove(connection);
+		if (slots != null) {
+			closed(slots);
+		}
+	}
+
+	/**
+	 * Close connections idle longer than the idle time, keeping the minimum
+	 */
+	void evictIdle() {
+		long idleSince = System.currentTimeMillis() - idleMillis;
+		List<T> evicted = new ArrayList<>();
+		for (Slots<T> slots : pools.values()) {
+			synchronized (slots) {
+				Iterator<Idle<T>> oldestFirst = slots.idle.descendingIterator();
+				while (oldestFirst.hasNext() && slots.idle.size() > minIdlePerKey) {
+					Idle<T> idle = oldestFirst.next();
+					if (idle.returnedMillis > idleSince) {
+						break;
+					}
+					oldestFirst.remove();
+					slots.open--;
+					evicted.add(idle.connection);
+				}
+				slots.notifyAll();
+			}
+		}
+		destroy(evicted);
+	}
+
+	/**
+	 * Close all idle connections, borrowed ones are closed when they come
+	 * back
+	 */
+	void close() {
+		List<T> idle = new ArrayList<>();
+		for (Slots<T> slots : pools.values()) {
+			synchronized (slots) {
+				for (Idle<T> entry : slots.idle) {
+					idle.add(entry.connection);
+				}
+				slots.open -= slots.idle.size();
+				slots.idle.clear();
+				slots.notifyAll();
+			}
+		}
+		destroy(idle);
+	}
+
+	int idleConnections() {
+		int idle = 0;
+		for (Slots<T> slots : pools.values()) {
+			synchronized (slots) {
+				idle += slots.idle.size();
+			}
+		}
+		return idle;
+	}
+
+	int borrowedConnections() {
+		return borrowed.size();
+	}
+
+	long reusedCount() {
+		return reused.get();
+	}
+
+	long createdCount() {
+		return created.get();
+	}
+
+	private void closed(final Slots<T> slots) {
+		synchronized (slots) {
+			slots.open--;
+			slots.notifyAll();
+		}
+	}
+
+	private void destroy(final List<T> connections) {
+		for (T connection : connections) {
+			lifecycle.destroy(connection);
+		}
+	}
+
+	private Slots<T> slots(final K key) {
+		Slots<T> slots = pools.get(key);
+		if (slots == null) {
+			Slots<T> created = new Slots<>();
+			slots = pools.putIfAbsent(key, created);
+			if (slots == null) {
+				slots = created;
+			}
+		}
+		return slots;
+	}
+
+	/**
+	 * Connections of one key, guarded by its own monitor
+	 */
+	private static final class Slots<T> {
+		final Deque<Idle<T>> idle = new ArrayDeque<>();
+		int open = 0;
+	}
+
+	private static final class Idle<T> {
+		final T connection;
+		final long returnedMillis;
+
+		Idle(final T connection, final long returnedMillis) {
+			this.connection = connection;
+			this.returnedMillis = returnedMillis;
+		}
+	}
+
+}
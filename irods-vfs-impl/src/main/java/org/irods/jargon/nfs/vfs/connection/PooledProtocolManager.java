@@ -0,0 +1,202 @@
+package org.irods.jargon.nfs.vfs.connection;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.irods.jargon.core.connection.AbstractIRODSMidLevelProtocol;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.connection.IRODSProtocolManager;
+import org.irods.jargon.core.connection.IRODSSession;
+import org.irods.jargon.core.connection.PipelineConfiguration;
+import org.irods.jargon.core.exception.AuthenticationException;
+import org.irods.jargon.core.exception.JargonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Jargon protocol manager that keeps authenticated iRODS connections open in
+ * a {@link ConnectionPool} per account instead of disconnecting them.
+ * <p/>
+ * Jargon hands a connection back to the protocol manager when a session is
+ * closed, so with this manager installed on the {@link IRODSSession}
+ * <code>closeSessionAndEatExceptions()</code> returns the thread's
+ * connections to the pool, and the next call of the same user, on any
+ * thread, skips connect, handshake and authentication. Connections are
+ * pooled by account including the proxied user, each NFS user gets their
+ * own.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class PooledProtocolManager extends IRODSProtocolManager {
+
+	private static final Logger log = LoggerFactory.getLogger(PooledProtocolManager.class);
+
+	/**
+	 * Told when every connection of an account is borrowed, so holders of
+	 * long lived connections can give one back
+	 */
+	public interface ExhaustionListener {
+		void exhausted(IRODSAccount irodsAccount);
+	}
+
+	private final ConnectionPool<String, AbstractIRODSMidLevelProtocol> pool;
+	private final ScheduledExecutorService evictor;
+	private volatile ExhaustionListener exhaustionListener;
+
+	/**
+	 * @param maxPerAccount
+	 *            <code>int</code> with the most connections open per account
+	 * @param maxIdlePerAccount
+	 *            <code>int</code> with the most idle connections kept per
+	 *            account
+	 * @param minIdlePerAccount
+	 *            <code>int</code> with the idle connections per account
+	 *            eviction leaves open
+	 * @param idleMillis
+	 *            <code>long</code> with how long a connection is idle before
+	 *            it is closed, shorter than the server's own timeout
+	 * @param maxWaitMillis
+	 *            <code>long</code> with how long a caller waits for a
+	 *            connection of an account at its limit
+	 */
+	public PooledProtocolManager(final int maxPerAccount, final int maxIdlePerAccount, final int minIdlePerAccount,
+			final long idleMillis, final long maxWaitMillis) {
+		if (idleMillis <= 0) {
+			throw new IllegalArgumentException("idleMillis must be positive");
+		}
+
+		pool = new ConnectionPool<>(maxPerAccount, maxIdlePerAccount, minIdlePerAccount, idleMillis, maxWaitMillis,
+				new ConnectionPool.Lifecycle<AbstractIRODSMidLevelProtocol>() {
+					@Override
+					public boolean isHealthy(final AbstractIRODSMidLevelProtocol connection) {
+						return connection.isConnected();
+					}
+
+					@Override
+					public void destroy(final AbstractIRODSMidLevelProtocol connection) {
+						disconnect(connection);
+					}
+				});
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "irods-connection-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long sweepMillis = Math.max(idleMillis / 2, 100);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				pool.evictIdle();
+			}
+		}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public AbstractIRODSMidLevelProtocol getIRODSProtocol(final IRODSAccount irodsAccount,
+			final PipelineConfiguration pipelineConfiguration, final IRODSSession irodsSession)
+			throws AuthenticationException, JargonException {
+		return pool.borrow(key(irodsAccount), new ConnectionPool.Factory<AbstractIRODSMidLevelProtocol>() {
+			@Override
+			public AbstractIRODSMidLevelProtocol create() throws JargonException {
+				log.debug("connecting for {}", key(irodsAccount));
+				return createNewProtocol(irodsAccount, pipelineConfiguration, irodsSession);
+			}
+
+			@Override
+			public void exhausted() {
+				ExhaustionListener listener = exhaustionListener;
+				if (listener != null) {
+					log.debug("connections exhausted for {}", key(irodsAccount));
+					listener.exhausted(irodsAccount);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param exhaustionListener
+	 *            {@link ExhaustionListener} told when an account is at its
+	 *            limit, <code>null</code> for none
+	 */
+	public void setExhaustionListener(final ExhaustionListener exhaustionListener) {
+		this.exhaustionListener = exhaustionListener;
+	}
+
+	@Override
+	public void returnIRODSProtocol(final AbstractIRODSMidLevelProtocol abstractIRODSMidLevelProtocol)
+			throws JargonException {
+		if (!pool.giveBack(abstractIRODSMidLevelProtocol)) {
+			// opened before this manager was installed
+			disconnect(abstractIRODSMidLevelProtocol);
+		}
+	}
+
+	@Override
+	public void returnWithForce(final AbstractIRODSMidLevelProtocol abstractIRODSMidLevelProtocol) {
+		pool.invalidate(abstractIRODSMidLevelProtocol);
+		super.returnWithForce(abstractIRODSMidLevelProtocol);
+	}
+
+	@Override
+	public void initialize() throws JargonException {
+	}
+
+	/**
+	 * Close idle connections and stop evicting, borrowed connections are
+	 * closed when they come back
+	 */
+	@Override
+	public void destroy() throws JargonException {
+		evictor.shutdownNow();
+		pool.close();
+	}
+
+	public int idleConnections() {
+		return pool.idleConnections();
+	}
+
+	public int borrowedConnections() {
+		return pool.borrowedConnections();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("PooledProtocolManager [idle=").append(pool.idleConnections());
+		builder.append(", borrowed=").append(pool.borrowedConnections());
+		builder.append(", reused=").append(pool.reusedCount());
+		builder.append(", created=").append(pool.createdCount());
+		builder.append("]");
+		return builder.toString();
+	}
+
+	/**
+	 * Accounts that connect as the same user to the same server share
+	 * connections
+	 */
+	static String key(final IRODSAccount irodsAccount) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(irodsAccount.getUserName()).append('#').append(irodsAccount.getZone());
+		builder.append('@').append(irodsAccount.getHost()).append(':').append(irodsAccount.getPort());
+		builder.append(" as ").append(irodsAccount.getProxyName()).append('#').append(irodsAccount.getProxyZone());
+		builder.append(" resc ").append(irodsAccount.getDefaultStorageResource());
+		return builder.toString();
+	}
+
+	private static void disconnect(final AbstractIRODSMidLevelProtocol connection) {
+		try {
+			connection.shutdown();
+		} catch (JargonException | RuntimeException e) {
+			log.debug("error closing iRODS connection", e);
+			connection.obliterateConnectionAndDiscardErrors();
+		}
+	}
+
+}
@@ -0,0 +1,7 @@
+/**
+ * Pooling of authenticated iRODS connections across NFS calls
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+package org.irods.jargon.nfs.vfs.connection;
@@ -0,0 +1,138 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Size-bounded {@link InodeStore} for {@link HandleMode#IRODS_ID}, where every
+ * inode can be recovered from iRODS and the store only saves round trips.
+ * <p/>
+ * Least recently used inodes are evicted once the bound is reached. Mapping
+ * calls are lenient: mapping an inode or a path that is already present
+ * replaces the old entry, since iRODS, not the cache, is authoritative.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class BoundedInodeCache implements InodeStore {
+
+	private final Cache<Long, Path> inodeToPath;
+	private final NonBlockingHashMap<Path, Long> pathToInode = new NonBlockingHashMap<>();
+
+	/**
+	 * @param maximumSize
+	 *            <code>long</code> with the number of inodes to keep
+	 */
+	public BoundedInodeCache(final long maximumSize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive");
+		}
+
+		inodeToPath = CacheBuilder.newBuilder().maximumSize(maximumSize)
+				.removalListener(new RemovalListener<Long, Path>() {
+					@Override
+					public void onRemoval(final RemovalNotification<Long, Path> notification) {
+						// only drop the reverse entry if it still points at this inode
+						pathToInode.remove(notification.getValue(), notification.getKey());
+					}
+				}).build();
+	}
+
+	@Override
+	public Path pathOf(final long inodeNumber) {
+		return inodeToPath.getIfPresent(inodeNumber);
+	}
+
+	@Override
+	public long inodeOf(final Path path) {
+		Long inodeNumber = pathToInode.get(path);
+		if (inodeNumber == null) {
+			return UNMAPPED;
+		}
+		return inodeNumber;
+	}
+
+	@Override
+	public void map(final long inodeNumber, final Path path) {
+		// replacing fires the removal listener, so the reverse entry goes last
+		inodeToPath.put(inodeNumber, path);
+		pathToInode.put(path, inodeNumber);
+	}
+
+	@Override
+	public void unmap(final long inodeNumber, final Path path) {
+		inodeToPath.asMap().remove(inodeNumber, path);
+		pathToInode.remove(path, inodeNumber);
+	}
+
+	@Override
+	public void remap(final long inodeNumber, final Path oldPath, final Path newPath) {
+		unmap(inodeNumber, oldPath);
+		map(inodeNumber, newPath);
+	}
+
+	@Override
+	public void moveTree(final long inodeNumber, final Path oldPath, final Path newPath) {
+		// left behind below a path that is gone
+		for (Path path : pathsBelow(newPath)) {
+			Long stale = pathToInode.get(path);
+			if (stale != null) {
+				unmap(stale, path);
+			}
+		}
+
+		List<Path> below = pathsBelow(oldPath);
+		if (inodeNumber != UNMAPPED) {
+			remap(inodeNumber, oldPath, newPath);
+		}
+		for (Path path : below) {
+			Long descendant = pathToInode.get(path);
+			if (descendant != null) {
+				remap(descendant, path, newPath.resolve(oldPath.relativize(path)));
+			}
+		}
+	}
+
+	@Override
+	public void unmapTree(final long inodeNumber, final Path path) {
+		List<Path> below = pathsBelow(path);
+		if (inodeNumber != UNMAPPED) {
+			unmap(inodeNumber, path);
+		}
+		for (Path descendant : below) {
+			Long descendantInode = pathToInode.get(descendant);
+			if (descendantInode != null) {
+				unmap(descendantInode, descendant);
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return inodeToPath.size();
+	}
+
+	@Override
+	public void close() {
+		inodeToPath.invalidateAll();
+	}
+
+	private List<Path> pathsBelow(final Path path) {
+		List<Path> below = new ArrayList<>();
+		for (Path mapped : pathToInode.keySet()) {
+			if (mapped.startsWith(path) && !mapped.equals(path)) {
+				below.add(mapped);
+			}
+		}
+		return below;
+	}
+
+}
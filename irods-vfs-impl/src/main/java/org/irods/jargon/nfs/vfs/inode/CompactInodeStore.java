@@ -0,0 +1,656 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * In-heap {@link InodeStore} that keeps the mapped paths as a tree of names
+ * instead of one {@link Path} per inode, for gateways that touch tens of
+ * millions of objects. Mappings are lost when the gateway stops, like
+ * {@link MemoryInodeStore}.
+ * <p/>
+ * Each node of the tree is one path component: its parent node, its name as
+ * UTF-8 bytes and the inode number mapped to it, if any, held in parallel
+ * primitive arrays. A name is stored once however many directories hold it.
+ * Nodes are found through open addressing tables of <code>int</code> node
+ * indexes, by inode number and by parent and name, so there is no boxed key
+ * and no entry object per mapping. Directories that are not mapped themselves
+ * but lead to a mapped path are nodes without an inode, removed with their
+ * last descendant.
+ * <p/>
+ * A full path is rebuilt from the tree when it is asked for, the most recently
+ * built ones are kept in a bounded cache. A mapped object costs about 50 bytes
+ * of arrays and tables plus its name, a name already held by another
+ * directory costs nothing more.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class CompactInodeStore implements SequentialInodeStore {
+
+	public static final long DEFAULT_PATH_CACHE_SIZE = 100000;
+
+	private static final int ROOT = 0;
+	private static final int NONE = -1;
+	private static final byte[] NO_NAME = new byte[0];
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final AtomicLong fileId = new AtomicLong(1); // numbering starts at 1
+	private final Cache<Long, Path> paths;
+
+	/*
+	 * the tree, a node is an index into these arrays, free nodes are chained
+	 * through parents
+	 */
+	private long[] inodes = new long[64];
+	private int[] parents = new int[64];
+	private byte[][] names = new byte[64][];
+	private int[] childCounts = new int[64];
+	private int nodeCount = 1;
+	private int freeNodes = NONE;
+	private int liveNodes = 1;
+	private long mapped = 0;
+
+	private final NodeTable byInode = new NodeTable() {
+		@Override
+		int hashOf(final int node) {
+			return mix(inodes[node]);
+		}
+	};
+
+	private final NodeTable byName = new NodeTable() {
+		@Override
+		int hashOf(final int node) {
+			return childHash(parents[node], names[node]);
+		}
+	};
+
+	private final NameTable nameTable = new NameTable();
+
+	public CompactInodeStore() {
+		this(DEFAULT_PATH_CACHE_SIZE);
+	}
+
+	/**
+	 * @param pathCacheSize
+	 *            <code>long</code> with the number of rebuilt paths to keep, 0
+	 *            rebuilds every time
+	 */
+	public CompactInodeStore(final long pathCacheSize) {
+		if (pathCacheSize < 0) {
+			throw new IllegalArgumentException("negative pathCacheSize");
+		}
+
+		paths = CacheBuilder.newBuilder().maximumSize(pathCacheSize).build();
+		inodes[ROOT] = UNMAPPED;
+		parents[ROOT] = NONE;
+		names[ROOT] = NO_NAME;
+	}
+
+	@Override
+	public Path pathOf(final long inodeNumber) {
+		Path path = paths.getIfPresent(inodeNumber);
+		if (path != null) {
+			return path;
+		}
+
+		lock.readLock().lock();
+		try {
+			int node = findInode(inodeNumber);
+			if (node == NONE) {
+				return null;
+			}
+			// cached under the lock so a concurrent unmap cannot be undone
+			path = pathAt(node);
+			paths.put(inodeNumber, path);
+			return path;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long inodeOf(final Path path) {
+		byte[][] components = components(path);
+		lock.readLock().lock();
+		try {
+			int node = find(components);
+			return node == NONE ? UNMAPPED : inodes[node];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void map(final long inodeNumber, final Path path) {
+		byte[][] components = components(path);
+		lock.writeLock().lock();
+		try {
+			if (findInode(inodeNumber) != NONE) {
+				throw new IllegalStateException("inode #" + inodeNumber + " already mapped");
+			}
+
+			int node = find(components);
+			if (node != NONE && inodes[node] != UNMAPPED) {
+				throw new IllegalStateException("path " + path + " already mapped");
+			}
+
+			if (node == NONE) {
+				node = create(components);
+			}
+			inodes[node] = inodeNumber;
+			byInode.insert(node);
+			mapped++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void unmap(final long inodeNumber, final Path path) {
+		byte[][] components = components(path);
+		lock.writeLock().lock();
+		try {
+			int node = findInode(inodeNumber);
+			if (node == NONE || node != find(components)) {
+				throw new IllegalStateException("inode #" + inodeNumber + " not mapped to " + path);
+			}
+			unmapNode(node);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void remap(final long inodeNumber, final Path oldPath, final Path newPath) {
+		byte[][] newComponents = components(newPath);
+		lock.writeLock().lock();
+		try {
+			int newNode = find(newComponents);
+			if (newNode != NONE && inodes[newNode] != UNMAPPED) {
+				throw new IllegalStateException("path " + newPath + " already mapped");
+			}
+
+			// both under the one lock, no reader sees the inode unmapped
+			unmap(inodeNumber, oldPath);
+			map(inodeNumber, newPath);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The node of the moved path gets a new parent and name, its descendants
+	 * hang off it and are not touched, so the move costs the same whatever
+	 * the size of the subtree. Only the cached paths below the old path are
+	 * dropped. A node without an inode at the new path is only there for
+	 * stale mappings below it, those are unmapped first.
+	 */
+	@Override
+	public void moveTree(final long inodeNumber, final Path oldPath, final Path newPath) {
+		byte[][] oldComponents = components(oldPath);
+		byte[][] newComponents = components(newPath);
+		if (newComponents.length == 0 || newPath.startsWith(oldPath) || oldPath.startsWith(newPath)) {
+			throw new IllegalArgumentException("cannot move " + oldPath + " to " + newPath);
+		}
+
+		lock.writeLock().lock();
+		try {
+			int node;
+			if (inodeNumber == UNMAPPED) {
+				node = find(oldComponents);
+				if (node == NONE) {
+					return; // nothing mapped below it either
+				}
+				if (inodes[node] != UNMAPPED) {
+					throw new IllegalStateException("path " + oldPath + " mapped to inode #" + inodes[node]);
+				}
+			} else {
+				node = findInode(inodeNumber);
+				if (node == NONE || node != find(oldComponents)) {
+					throw new IllegalStateException("inode #" + inodeNumber + " not mapped to " + oldPath);
+				}
+			}
+
+			int target = find(newComponents);
+			if (target != NONE) {
+				if (inodes[target] != UNMAPPED) {
+					throw new IllegalStateException("path " + newPath + " already mapped");
+				}
+				unmapSubtree(target);
+			}
+
+			int oldParent = parents[node];
+			int newParent = create(Arrays.copyOf(newComponents, newComponents.length - 1));
+			byte[] oldName = names[node];
+			byName.remove(node);
+			parents[node] = newParent;
+			names[node] = nameTable.intern(newComponents[newComponents.length - 1]);
+			nameTable.release(oldName);
+			byName.insert(node);
+			childCounts[newParent]++;
+			childCounts[oldParent]--;
+			prune(oldParent);
+
+			if (childCounts[node] == 0) {
+				paths.invalidate(inodeNumber);
+			} else {
+				invalidatePathsUnder(oldPath);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void unmapTree(final long inodeNumber, final Path path) {
+		byte[][] components = components(path);
+		lock.writeLock().lock();
+		try {
+			int node = find(components);
+			if (inodeNumber == UNMAPPED) {
+				if (node == NONE) {
+					return; // nothing mapped below it either
+				}
+				if (inodes[node] != UNMAPPED) {
+					throw new IllegalStateException("path " + path + " mapped to inode #" + inodes[node]);
+				}
+			} else if (node == NONE || inodes[node] != inodeNumber) {
+				throw new IllegalStateException("inode #" + inodeNumber + " not mapped to " + path);
+			}
+			unmapSubtree(node);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long nextInodeNumber() {
+		return fileId.getAndIncrement();
+	}
+
+	@Override
+	public long size() {
+		lock.readLock().lock();
+		try {
+			return mapped;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		paths.invalidateAll();
+	}
+
+	/**
+	 * @return <code>int</code> with the nodes of the tree, mapped or not,
+	 *         including the root
+	 */
+	int nodeCount() {
+		lock.readLock().lock();
+		try {
+			return liveNodes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.readLock().lock();
+		try {
+			StringBuilder builder = new StringBuilder();
+			builder.append("CompactInodeStore [mapped=").append(mapped);
+			builder.append(", nodes=").append(liveNodes);
+			builder.append(", names=").append(nameTable.count);
+			builder.append(", cachedPaths=").append(paths.size());
+			builder.append("]");
+			return builder.toString();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void unmapNode(final int node) {
+		long inodeNumber = inodes[node];
+		byInode.remove(node);
+		inodes[node] = UNMAPPED;
+		mapped--;
+		paths.invalidate(inodeNumber);
+		prune(node);
+	}
+
+	/**
+	 * Unmap a node and every mapped node below it, the last unmapped node
+	 * prunes the rest. Nodes only link to their parent, so a node with
+	 * children costs a pass over the tree.
+	 */
+	private void unmapSubtree(final int top) {
+		if (inodes[top] != UNMAPPED) {
+			unmapNode(top);
+		}
+		if (childCounts[top] == 0) {
+			return;
+		}
+
+		int[] below = new int[16];
+		int count = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			if (names[node] != null && inodes[node] != UNMAPPED && isBelow(node, top)) {
+				if (count == below.length) {
+					below = Arrays.copyOf(below, count * 2);
+				}
+				below[count++] = node;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			unmapNode(below[i]);
+		}
+	}
+
+	private boolean isBelow(final int node, final int top) {
+		for (int n = parents[node]; n != NONE; n = parents[n]) {
+			if (n == top) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void invalidatePathsUnder(final Path path) {
+		Iterator<Path> cached = paths.asMap().values().iterator();
+		while (cached.hasNext()) {
+			if (cached.next().startsWith(path)) {
+				cached.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove nodes without an inode or children, from the given one up
+	 */
+	private void prune(final int start) {
+		int node = start;
+		while (node != ROOT && inodes[node] == UNMAPPED && childCounts[node] == 0) {
+			int parent = parents[node];
+			byName.remove(node);
+			nameTable.release(names[node]);
+			names[node] = null;
+			parents[node] = freeNodes;
+			freeNodes = node;
+			liveNodes--;
+			childCounts[parent]--;
+			node = parent;
+		}
+	}
+
+	private int find(final byte[][] components) {
+		int node = ROOT;
+		for (int i = 0; i < components.length && node != NONE; i++) {
+			node = findChild(node, components[i]);
+		}
+		return node;
+	}
+
+	/**
+	 * Walk the path, adding the nodes that are missing
+	 */
+	private int create(final byte[][] components) {
+		int node = ROOT;
+		for (byte[] name : components) {
+			int child = findChild(node, name);
+			if (child == NONE) {
+				child = newNode(node, nameTable.intern(name));
+				byName.insert(child);
+				childCounts[node]++;
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	private int newNode(final int parent, final byte[] name) {
+		int node = freeNodes;
+		if (node != NONE) {
+			freeNodes = parents[node];
+		} else {
+			if (nodeCount == inodes.length) {
+				int capacity = inodes.length + (inodes.length >> 1);
+				inodes = Arrays.copyOf(inodes, capacity);
+				parents = Arrays.copyOf(parents, capacity);
+				names = Arrays.copyOf(names, capacity);
+				childCounts = Arrays.copyOf(childCounts, capacity);
+			}
+			node = nodeCount++;
+		}
+
+		inodes[node] = UNMAPPED;
+		parents[node] = parent;
+		names[node] = name;
+		childCounts[node] = 0;
+		liveNodes++;
+		return node;
+	}
+
+	private int findInode(final long inodeNumber) {
+		int[] slots = byInode.slots;
+		int mask = slots.length - 1;
+		for (int i = mix(inodeNumber) & mask;; i = (i + 1) & mask) {
+			int node = slots[i];
+			if (node == NONE || inodes[node] == inodeNumber) {
+				return node;
+			}
+		}
+	}
+
+	private int findChild(final int parent, final byte[] name) {
+		int[] slots = byName.slots;
+		int mask = slots.length - 1;
+		for (int i = childHash(parent, name) & mask;; i = (i + 1) & mask) {
+			int node = slots[i];
+			if (node == NONE || (parents[node] == parent && Arrays.equals(names[node], name))) {
+				return node;
+			}
+		}
+	}
+
+	private Path pathAt(final int node) {
+		int length = 0;
+		for (int n = node; n != ROOT; n = parents[n]) {
+			length += names[n].length + 1;
+		}
+
+		if (length == 0) {
+			return Paths.get("/");
+		}
+
+		byte[] bytes = new byte[length];
+		int end = length;
+		for (int n = node; n != ROOT; n = parents[n]) {
+			byte[] name = names[n];
+			end -= name.length;
+			System.arraycopy(name, 0, bytes, end, name.length);
+			bytes[--end] = '/';
+		}
+		return Paths.get(new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	private static byte[][] components(final Path path) {
+		if (path == null) {
+			throw new IllegalArgumentException("null path");
+		}
+
+		if (!path.isAbsolute()) {
+			throw new IllegalArgumentException("path must be absolute:" + path);
+		}
+
+		byte[][] components = new byte[path.getNameCount()][];
+		for (int i = 0; i < components.length; i++) {
+			components[i] = path.getName(i).toString().getBytes(StandardCharsets.UTF_8);
+		}
+		return components;
+	}
+
+	private static int childHash(final int parent, final byte[] name) {
+		return mix(((long) parent << 32) ^ Arrays.hashCode(name));
+	}
+
+	private static int mix(final long value) {
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	private static int[] emptySlots(final int capacity) {
+		int[] slots = new int[capacity];
+		Arrays.fill(slots, NONE);
+		return slots;
+	}
+
+	/**
+	 * Linear probing table of node indexes, hashed on what the node holds.
+	 * Removal shifts the following entries back, so there are no tombstones.
+	 */
+	private abstract static class NodeTable {
+		int[] slots = emptySlots(64);
+		int count = 0;
+
+		abstract int hashOf(int node);
+
+		void insert(final int node) {
+			if ((count + 1) * 4L > slots.length * 3L) {
+				int[] old = slots;
+				slots = emptySlots(old.length << 1);
+				for (int entry : old) {
+					if (entry != NONE) {
+						place(entry);
+					}
+				}
+			}
+			place(node);
+			count++;
+		}
+
+		void remove(final int node) {
+			int mask = slots.length - 1;
+			int hole = hashOf(node) & mask;
+			while (slots[hole] != node) {
+				if (slots[hole] == NONE) {
+					return;
+				}
+				hole = (hole + 1) & mask;
+			}
+
+			for (int i = (hole + 1) & mask; slots[i] != NONE; i = (i + 1) & mask) {
+				int home = hashOf(slots[i]) & mask;
+				if (i > hole ? (home <= hole || home > i) : (home <= hole && home > i)) {
+					slots[hole] = slots[i];
+					hole = i;
+				}
+			}
+			slots[hole] = NONE;
+			count--;
+		}
+
+		private void place(final int node) {
+			int mask = slots.length - 1;
+			int i = hashOf(node) & mask;
+			while (slots[i] != NONE) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = node;
+		}
+	}
+
+	/**
+	 * Reference counted set of names, so each distinct name is held once. The
+	 * count is a byte, a name used by more than 254 nodes, the usual
+	 * <code>data</code> or <code>README</code>, is kept for good.
+	 */
+	private static final class NameTable {
+		private static final int PINNED = 0xff;
+
+		byte[][] slots = new byte[64][];
+		byte[] references = new byte[64];
+		int count = 0;
+
+		byte[] intern(final byte[] name) {
+			int mask = slots.length - 1;
+			for (int i = mix(Arrays.hashCode(name)) & mask; slots[i] != null; i = (i + 1) & mask) {
+				if (Arrays.equals(slots[i], name)) {
+					if ((references[i] & 0xff) != PINNED) {
+						references[i]++;
+					}
+					return slots[i];
+				}
+			}
+
+			if ((count + 1) * 4L > slots.length * 3L) {
+				byte[][] oldSlots = slots;
+				byte[] oldReferences = references;
+				slots = new byte[oldSlots.length << 1][];
+				references = new byte[oldSlots.length << 1];
+				for (int i = 0; i < oldSlots.length; i++) {
+					if (oldSlots[i] != null) {
+						place(oldSlots[i], oldReferences[i]);
+					}
+				}
+			}
+			place(name, (byte) 1);
+			count++;
+			return name;
+		}
+
+		void release(final byte[] name) {
+			int mask = slots.length - 1;
+			int hole = mix(Arrays.hashCode(name)) & mask;
+			while (slots[hole] != name) {
+				if (slots[hole] == null) {
+					return;
+				}
+				hole = (hole + 1) & mask;
+			}
+
+			if ((references[hole] & 0xff) == PINNED || --references[hole] != 0) {
+				return;
+			}
+
+			for (int i = (hole + 1) & mask; slots[i] != null; i = (i + 1) & mask) {
+				int home = mix(Arrays.hashCode(slots[i])) & mask;
+				if (i > hole ? (home <= hole || home > i) : (home <= hole && home > i)) {
+					slots[hole] = slots[i];
+					references[hole] = references[i];
+					hole = i;
+				}
+			}
+			slots[hole] = null;
+			references[hole] = 0;
+			count--;
+		}
+
+		private void place(final byte[] name, final byte referenceCount) {
+			int mask = slots.length - 1;
+			int i = mix(Arrays.hashCode(name)) & mask;
+			while (slots[i] != null) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = name;
+			references[i] = referenceCount;
+		}
+	}
+
+}
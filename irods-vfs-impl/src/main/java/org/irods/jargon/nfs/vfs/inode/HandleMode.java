@@ -0,0 +1,25 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+/**
+ * How NFS file handles are derived
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public enum HandleMode {
+
+	/**
+	 * Inode numbers are handed out in sequence by the {@link InodeStore}, which
+	 * is the source of truth for every handle. Use a persistent store so handles
+	 * survive a restart.
+	 */
+	SEQUENTIAL,
+
+	/**
+	 * Inode numbers are derived from the iRODS data object or collection id, so
+	 * any handle can be resolved with a query against the catalog and the
+	 * {@link InodeStore} is only a bounded cache.
+	 */
+	IRODS_ID
+
+}
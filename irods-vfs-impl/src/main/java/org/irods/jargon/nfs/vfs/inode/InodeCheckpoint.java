@@ -0,0 +1,585 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Immutable, memory-mapped snapshot of an inode tree, written by
+ * {@link MappedLogInodeStore} when its log is compacted.
+ * <p/>
+ * The tree is held as in {@link CompactInodeStore}: a node per path
+ * component with its parent node, its name and the inode mapped to it, if
+ * any. Moving a collection changes only its own node. Opening a checkpoint
+ * only reads its header, lookups binary search the mapped indexes, so startup
+ * cost does not depend on the number of nodes. The file layout is:
+ *
+ * <pre>
+ * header      magic, version, generation, next inode, counts, next node, section offsets
+ * node index  node count x (node, parent, inode, children, heap offset), sorted by node
+ * heap        node count x (length, UTF-8 name bytes)
+ * inode index mapped count x (inode, node), sorted by inode
+ * child index node count x (parent, name hash, node), sorted by parent and hash
+ * </pre>
+ *
+ * The root node, number {@link #ROOT}, is implied and not written.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+final class InodeCheckpoint implements Closeable {
+
+	static final int MAGIC = 0x49434b50; // ICKP
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 96;
+	static final long ROOT = 0;
+	static final long NONE = -1;
+	private static final int NODE_ENTRY_SIZE = 40;
+	private static final int INODE_ENTRY_SIZE = 16;
+	private static final int CHILD_ENTRY_SIZE = 24;
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private final long generation;
+	private final long nextInodeNumber;
+	private final long nodeCount;
+	private final long mappedCount;
+	private final long nextNodeId;
+	private final long nodeIndexOffset;
+	private final long heapOffset;
+	private final long inodeIndexOffset;
+	private final long childIndexOffset;
+
+	private InodeCheckpoint(final FileChannel channel, final MappedByteBuffer[] segments, final ByteBuffer header) {
+		this.channel = channel;
+		this.segments = segments;
+		this.generation = header.getLong(8);
+		this.nextInodeNumber = header.getLong(16);
+		this.nodeCount = header.getLong(24);
+		this.mappedCount = header.getLong(32);
+		this.nextNodeId = header.getLong(40);
+		this.nodeIndexOffset = header.getLong(48);
+		this.heapOffset = header.getLong(56);
+		this.inodeIndexOffset = header.getLong(64);
+		this.childIndexOffset = header.getLong(72);
+	}
+
+	/**
+	 * @return empty checkpoint used before the first compaction
+	 */
+	static InodeCheckpoint empty() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(16, 1); // numbering starts at 1
+		header.putLong(40, ROOT + 1);
+		for (int offset = 48; offset <= 72; offset += 8) {
+			header.putLong(offset, HEADER_SIZE);
+		}
+		return new InodeCheckpoint(null, new MappedByteBuffer[0], header);
+	}
+
+	/**
+	 * Map an existing checkpoint file, or return an empty checkpoint if the
+	 * file does not exist
+	 *
+	 * @param file
+	 *            {@link Path} of the checkpoint
+	 * @return {@link InodeCheckpoint}
+	 * @throws IOException
+	 */
+	static InodeCheckpoint open(final Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return empty();
+		}
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException("truncated inode checkpoint:" + file);
+			}
+			int segmentCount = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+			MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+			for (int i = 0; i < segmentCount; i++) {
+				long position = (long) i << SEGMENT_SHIFT;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(SEGMENT_SIZE, size - position));
+			}
+
+			ByteBuffer header = segments[0];
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException("not an inode checkpoint:" + file);
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new IOException("inode checkpoint " + file + " is version " + header.getInt(4)
+						+ ", only version " + VERSION + " can be read. Remove the inode store directory to start"
+						+ " a new one, file handles given out before become stale.");
+			}
+
+			return new InodeCheckpoint(channel, segments, header);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return <code>long</code> with the log generation this checkpoint
+	 *         includes
+	 */
+	long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return <code>long</code> with the next unallocated inode number at the
+	 *         time the checkpoint was written
+	 */
+	long getNextInodeNumber() {
+		return nextInodeNumber;
+	}
+
+	/**
+	 * @return <code>long</code> with the next unallocated node number at the
+	 *         time the checkpoint was written
+	 */
+	long getNextNodeId() {
+		return nextNodeId;
+	}
+
+	/**
+	 * @return <code>long</code> with the number of nodes, without the root
+	 */
+	long nodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return <code>long</code> with the number of nodes that have an inode
+	 */
+	long mappedCount() {
+		return mappedCount;
+	}
+
+	/**
+	 * @param index
+	 *            <code>long</code> position in node order
+	 * @return <code>long</code> with the node number at the position
+	 */
+	long nodeIdAt(final long index) {
+		return getLong(nodeIndexOffset + index * NODE_ENTRY_SIZE);
+	}
+
+	/**
+	 * @param index
+	 *            <code>long</code> position in node order
+	 * @return {@link Node} at the position
+	 */
+	Node nodeAt(final long index) {
+		long entry = nodeIndexOffset + index * NODE_ENTRY_SIZE;
+		long position = heapOffset + getLong(entry + 32);
+		byte[] name = new byte[getInt(position)];
+		read(position + 4, name);
+		return new Node(getLong(entry + 8), name, getLong(entry + 16), (int) getLong(entry + 24));
+	}
+
+	/**
+	 * @param nodeId
+	 *            <code>long</code> with the node number
+	 * @return {@link Node} or <code>null</code> if not in the checkpoint
+	 */
+	Node node(final long nodeId) {
+		long index = indexOfNode(nodeId);
+		return index < 0 ? null : nodeAt(index);
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @return <code>long</code> with the node the inode is mapped to, or
+	 *         {@link #NONE}
+	 */
+	long nodeOfInode(final long inodeNumber) {
+		long lo = 0;
+		long hi = mappedCount - 1;
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			long midInode = getLong(inodeIndexOffset + mid * INODE_ENTRY_SIZE);
+			if (midInode < inodeNumber) {
+				lo = mid + 1;
+			} else if (midInode > inodeNumber) {
+				hi = mid - 1;
+			} else {
+				return getLong(inodeIndexOffset + mid * INODE_ENTRY_SIZE + 8);
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Find a node by its parent and name
+	 *
+	 * @param parent
+	 *            <code>long</code> with the parent node
+	 * @param name
+	 *            <code>byte[]</code> with the UTF-8 name
+	 * @return <code>long</code> with the node, or {@link #NONE}
+	 */
+	long childOf(final long parent, final byte[] name) {
+		long hash = hash(name);
+		// walk the (almost always single) entries with a matching hash
+		for (long i = firstChild(parent, hash); i < nodeCount; i++) {
+			long entry = childIndexOffset + i * CHILD_ENTRY_SIZE;
+			if (getLong(entry) != parent || getLong(entry + 8) != hash) {
+				break;
+			}
+			long nodeId = getLong(entry + 16);
+			if (Arrays.equals(name, node(nodeId).name)) {
+				return nodeId;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * @param parent
+	 *            <code>long</code> with the parent node
+	 * @return <code>long[]</code> with the child nodes
+	 */
+	long[] childrenOf(final long parent) {
+		long first = firstChild(parent, Long.MIN_VALUE);
+		int count = 0;
+		while (first + count < nodeCount && getLong(childIndexOffset + (first + count) * CHILD_ENTRY_SIZE) == parent) {
+			count++;
+		}
+
+		long[] children = new long[count];
+		for (int i = 0; i < count; i++) {
+			children[i] = getLong(childIndexOffset + (first + i) * CHILD_ENTRY_SIZE + 16);
+		}
+		return children;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// mappings stay valid for readers still holding them until collected
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return <code>long</code> with the first child index entry at or after
+	 *         the parent and hash
+	 */
+	private long firstChild(final long parent, final long hash) {
+		long lo = 0;
+		long hi = nodeCount;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			long entry = childIndexOffset + mid * CHILD_ENTRY_SIZE;
+			long midParent = getLong(entry);
+			if (midParent < parent || (midParent == parent && getLong(entry + 8) < hash)) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private long indexOfNode(final long nodeId) {
+		long lo = 0;
+		long hi = nodeCount - 1;
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			long midNode = nodeIdAt(mid);
+			if (midNode < nodeId) {
+				lo = mid + 1;
+			} else if (midNode > nodeId) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private long getLong(final long position) {
+		// index entries are 8-byte aligned so never straddle a segment
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+	}
+
+	private int getInt(final long position) {
+		byte[] bytes = new byte[4];
+		read(position, bytes);
+		return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+	}
+
+	private void read(long position, final byte[] dest) {
+		int copied = 0;
+		while (copied < dest.length) {
+			ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+			segment.position((int) (position & SEGMENT_MASK));
+			int length = Math.min(dest.length - copied, segment.remaining());
+			segment.get(dest, copied, length);
+			copied += length;
+			position += length;
+		}
+	}
+
+	static Path toPath(final byte[] pathBytes) {
+		return Paths.get(new String(pathBytes, StandardCharsets.UTF_8));
+	}
+
+	static byte[] toBytes(final Path path) {
+		return path.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of a name
+	 */
+	static long hash(final byte[] name) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : name) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * One node of the tree, immutable
+	 */
+	static final class Node {
+		final long parent;
+		final byte[] name;
+		final long inode;
+		final int children;
+
+		Node(final long parent, final byte[] name, final long inode, final int children) {
+			this.parent = parent;
+			this.name = name;
+			this.inode = inode;
+			this.children = children;
+		}
+
+		Node withInode(final long inodeNumber) {
+			return new Node(parent, name, inodeNumber, children);
+		}
+
+		Node withChildren(final int count) {
+			return new Node(parent, name, inode, count);
+		}
+
+		Node movedTo(final long newParent, final byte[] newName) {
+			return new Node(newParent, newName, inode, children);
+		}
+	}
+
+	/**
+	 * Streams a new checkpoint to disk. Nodes must be added in ascending node
+	 * order, the inode and child indexes are sorted and written on close.
+	 */
+	static final class Writer implements Closeable {
+
+		private final Path file;
+		private final Path heapFile;
+		private final FileChannel channel;
+		private final FileChannel heapChannel;
+		private final DataOutputStream indexOut;
+		private final DataOutputStream heapOut;
+		private final long generation;
+		private final long nextInodeNumber;
+		private final long nextNodeId;
+		private long[] inodes = new long[1024];
+		private long[] inodeNodes = new long[1024];
+		private long[] parents = new long[1024];
+		private long[] hashes = new long[1024];
+		private long[] childNodes = new long[1024];
+		private int count = 0;
+		private int mapped = 0;
+		private long heapSize = 0;
+		private long lastNodeId = ROOT;
+
+		Writer(final Path file, final long generation, final long nextInodeNumber, final long nextNodeId)
+				throws IOException {
+			this.file = file;
+			this.heapFile = file.resolveSibling(file.getFileName() + ".heap");
+			this.generation = generation;
+			this.nextInodeNumber = nextInodeNumber;
+			this.nextNodeId = nextNodeId;
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			heapChannel = FileChannel.open(heapFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.position(HEADER_SIZE);
+			indexOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			heapOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(heapChannel), 1 << 16));
+		}
+
+		void add(final long nodeId, final Node node) throws IOException {
+			if (nodeId <= lastNodeId) {
+				throw new IllegalStateException("checkpoint nodes out of order at node #" + nodeId);
+			}
+			lastNodeId = nodeId;
+
+			indexOut.writeLong(nodeId);
+			indexOut.writeLong(node.parent);
+			indexOut.writeLong(node.inode);
+			indexOut.writeLong(node.children);
+			indexOut.writeLong(heapSize);
+			heapOut.writeInt(node.name.length);
+			heapOut.write(node.name);
+			heapSize += 4 + node.name.length;
+
+			if (count == parents.length) {
+				parents = Arrays.copyOf(parents, count * 2);
+				hashes = Arrays.copyOf(hashes, count * 2);
+				childNodes = Arrays.copyOf(childNodes, count * 2);
+			}
+			parents[count] = node.parent;
+			hashes[count] = hash(node.name);
+			childNodes[count] = nodeId;
+			count++;
+
+			if (node.inode != InodeStore.UNMAPPED) {
+				if (mapped == inodes.length) {
+					inodes = Arrays.copyOf(inodes, mapped * 2);
+					inodeNodes = Arrays.copyOf(inodeNodes, mapped * 2);
+				}
+				inodes[mapped] = node.inode;
+				inodeNodes[mapped] = nodeId;
+				mapped++;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				indexOut.flush();
+				heapOut.flush();
+
+				long heapOffset = HEADER_SIZE + (long) count * NODE_ENTRY_SIZE;
+				long transferred = 0;
+				while (transferred < heapSize) {
+					transferred += channel.transferFrom(heapChannel.position(transferred), heapOffset + transferred,
+							heapSize - transferred);
+				}
+
+				long inodeIndexOffset = (heapOffset + heapSize + 7) & ~7L;
+				sort(inodes, inodeNodes, null, 0, mapped - 1);
+				channel.position(inodeIndexOffset);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+				for (int i = 0; i < mapped; i++) {
+					out.writeLong(inodes[i]);
+					out.writeLong(inodeNodes[i]);
+				}
+
+				long childIndexOffset = inodeIndexOffset + (long) mapped * INODE_ENTRY_SIZE;
+				sort(parents, hashes, childNodes, 0, count - 1);
+				for (int i = 0; i < count; i++) {
+					out.writeLong(parents[i]);
+					out.writeLong(hashes[i]);
+					out.writeLong(childNodes[i]);
+				}
+				out.flush();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putLong(generation);
+				header.putLong(nextInodeNumber);
+				header.putLong(count);
+				header.putLong(mapped);
+				header.putLong(nextNodeId);
+				header.putLong(HEADER_SIZE);
+				header.putLong(heapOffset);
+				header.putLong(inodeIndexOffset);
+				header.putLong(childIndexOffset);
+				header.position(0);
+				while (header.hasRemaining()) {
+					channel.write(header, header.position());
+				}
+				channel.force(true);
+			} finally {
+				channel.close();
+				heapChannel.close();
+				Files.deleteIfExists(heapFile);
+			}
+		}
+
+		Path getFile() {
+			return file;
+		}
+
+		/**
+		 * Quicksort on the first array, then the second if there is a third,
+		 * keeping the others in step
+		 */
+		private static void sort(final long[] keys, final long[] second, final long[] third, int lo, int hi) {
+			while (lo < hi) {
+				int middle = (lo + hi) >>> 1;
+				long pivot = keys[middle];
+				long pivotSecond = third == null ? 0 : second[middle];
+				int i = lo;
+				int j = hi;
+				while (i <= j) {
+					while (compare(keys, second, third, i, pivot, pivotSecond) < 0) {
+						i++;
+					}
+					while (compare(keys, second, third, j, pivot, pivotSecond) > 0) {
+						j--;
+					}
+					if (i <= j) {
+						swap(keys, i, j);
+						swap(second, i, j);
+						if (third != null) {
+							swap(third, i, j);
+						}
+						i++;
+						j--;
+					}
+				}
+				// recurse into the smaller half to bound stack depth
+				if (j - lo < hi - i) {
+					sort(keys, second, third, lo, j);
+					lo = i;
+				} else {
+					sort(keys, second, third, i, hi);
+					hi = j;
+				}
+			}
+		}
+
+		private static int compare(final long[] keys, final long[] second, final long[] third, final int index,
+				final long pivot, final long pivotSecond) {
+			int result = Long.compare(keys[index], pivot);
+			if (result != 0 || third == null) {
+				return result;
+			}
+			return Long.compare(second[index], pivotSecond);
+		}
+
+		private static void swap(final long[] values, final int i, final int j) {
+			long value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Bidirectional mapping between NFS inode numbers and iRODS absolute paths.
+ * The virtual file system writes every <code>map</code>, <code>unmap</code>,
+ * <code>remap</code> and <code>moveTree</code> through to the store, so an implementation that
+ * persists these changes lets file handles survive a restart of the gateway.
+ * <p/>
+ * Implementations must be safe for concurrent use by the RPC worker threads.
+ * Stores that also hand out inode numbers, for
+ * {@link HandleMode#SEQUENTIAL}, implement {@link SequentialInodeStore}.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public interface InodeStore extends Closeable {
+
+	/**
+	 * Value returned by {@link #inodeOf(Path)} when a path is not mapped
+	 */
+	long UNMAPPED = -1L;
+
+	/**
+	 * Get the path mapped to the given inode number
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @return {@link Path} that is mapped, or <code>null</code> if the inode
+	 *         number is not mapped
+	 */
+	Path pathOf(long inodeNumber);
+
+	/**
+	 * Get the inode number mapped to the given path
+	 *
+	 * @param path
+	 *            {@link Path} with the iRODS absolute path
+	 * @return <code>long</code> with the inode number, or {@link #UNMAPPED}
+	 */
+	long inodeOf(Path path);
+
+	/**
+	 * Add a mapping between an inode number and a path
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param path
+	 *            {@link Path} with the iRODS absolute path
+	 * @throws IllegalStateException
+	 *             if either the inode number or the path is already mapped
+	 */
+	void map(long inodeNumber, Path path);
+
+	/**
+	 * Remove a mapping between an inode number and a path
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param path
+	 *            {@link Path} currently mapped to the inode number
+	 * @throws IllegalStateException
+	 *             if the inode number is not mapped to the given path
+	 */
+	void unmap(long inodeNumber, Path path);
+
+	/**
+	 * Move an inode number from one path to another
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param oldPath
+	 *            {@link Path} currently mapped to the inode number
+	 * @param newPath
+	 *            {@link Path} that will be mapped to the inode number
+	 */
+	void remap(long inodeNumber, Path oldPath, Path newPath);
+
+	/**
+	 * Move an inode number from one path to another together with every inode
+	 * mapped below the old path, as a rename of a collection moves its
+	 * contents. A store that drops entries can hold contents of a collection
+	 * that is no longer mapped itself, those still move with
+	 * {@link #UNMAPPED} for the inode number.
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number, or {@link #UNMAPPED}
+	 *            to move only what is mapped below the old path
+	 * @param oldPath
+	 *            {@link Path} currently mapped to the inode number
+	 * @param newPath
+	 *            {@link Path} that will be mapped to the inode number, nothing
+	 *            may be mapped at it. Whatever is still mapped below it is
+	 *            stale and is unmapped.
+	 */
+	void moveTree(long inodeNumber, Path oldPath, Path newPath);
+
+	/**
+	 * Remove the mapping of an inode number together with every inode mapped
+	 * below its path, as a recursive remove of a collection removes its
+	 * contents
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number, or {@link #UNMAPPED}
+	 *            to remove only what is mapped below the path
+	 * @param path
+	 *            {@link Path} currently mapped to the inode number
+	 * @throws IllegalStateException
+	 *             if the inode number is not mapped to the given path
+	 */
+	void unmapTree(long inodeNumber, Path path);
+
+	/**
+	 * @return <code>long</code> with the number of mapped inodes
+	 */
+	long size();
+
+	/**
+	 * Release any resources held by the store. Persistent implementations flush
+	 * pending changes to stable storage.
+	 */
+	@Override
+	void close() throws IOException;
+
+}
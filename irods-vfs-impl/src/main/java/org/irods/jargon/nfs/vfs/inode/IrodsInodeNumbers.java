@@ -0,0 +1,55 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+/**
+ * Encodes iRODS object ids as inode numbers for {@link HandleMode#IRODS_ID}.
+ * Data objects and collections draw their ids from the same catalog sequence,
+ * the collection flag is carried along so a handle can be resolved with a
+ * single query.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public final class IrodsInodeNumbers {
+
+	private static final long COLLECTION_FLAG = 1L << 62;
+
+	private IrodsInodeNumbers() {
+	}
+
+	/**
+	 * Build the inode number for an iRODS object
+	 *
+	 * @param irodsId
+	 *            <code>long</code> with the data id or collection id
+	 * @param collection
+	 *            <code>boolean</code> if the id is a collection id
+	 * @return <code>long</code> with the inode number
+	 */
+	public static long forObject(final long irodsId, final boolean collection) {
+		if (irodsId <= 0 || irodsId >= COLLECTION_FLAG) {
+			throw new IllegalArgumentException("invalid irods id:" + irodsId);
+		}
+		return collection ? irodsId | COLLECTION_FLAG : irodsId;
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with an inode number built by
+	 *            {@link #forObject(long, boolean)}
+	 * @return <code>long</code> with the iRODS data id or collection id
+	 */
+	public static long irodsId(final long inodeNumber) {
+		return inodeNumber & ~COLLECTION_FLAG;
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with an inode number built by
+	 *            {@link #forObject(long, boolean)}
+	 * @return <code>boolean</code> if the inode is a collection
+	 */
+	public static boolean isCollection(final long inodeNumber) {
+		return (inodeNumber & COLLECTION_FLAG) != 0;
+	}
+
+}
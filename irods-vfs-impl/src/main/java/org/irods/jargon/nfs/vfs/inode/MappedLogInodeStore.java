@@ -0,0 +1,836 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.irods.jargon.nfs.vfs.inode.InodeCheckpoint.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Persistent, log-structured {@link InodeStore} for an embedded directory on
+ * the gateway host.
+ * <p/>
+ * Every change is appended to a memory-mapped log before it is visible. The
+ * log sits on top of an {@link InodeCheckpoint}, and the two are merged into a
+ * new checkpoint when the log fills up. Only the log tail since the last
+ * checkpoint is replayed when the store is opened, so recovery time follows
+ * the amount of recent change rather than the size of the namespace. Replaying
+ * a record, a move included, costs a few lookups in the checkpoint indexes per
+ * path component. Only unmapping a subtree visits the nodes below it.
+ * <p/>
+ * Mappings are kept as a tree of names like {@link CompactInodeStore}, a node
+ * per path component. Nodes changed since the checkpoint are held in heap and
+ * take precedence over the checkpointed ones. Moving or renaming a collection
+ * re-parents its one node, and is logged and replayed as one record whatever
+ * the size of the subtree. Full paths are rebuilt from the tree, the most
+ * recently built ones are cached.
+ * <p/>
+ * Each log record carries a CRC that is seeded with the log generation, so a
+ * torn write at the end of the log, or records left over from before the last
+ * compaction, end the replay instead of being applied.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class MappedLogInodeStore implements SequentialInodeStore {
+
+	private static final Logger log = LoggerFactory.getLogger(MappedLogInodeStore.class);
+
+	public static final String CHECKPOINT_FILE_NAME = "inodes.ckpt";
+	public static final String LOG_FILE_NAME = "inodes.log";
+	public static final int DEFAULT_LOG_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_PATH_CACHE_SIZE = CompactInodeStore.DEFAULT_PATH_CACHE_SIZE;
+
+	static final int LOG_MAGIC = 0x494c4f47; // ILOG
+	static final int LOG_VERSION = 3;
+	static final int LOG_HEADER_SIZE = 32;
+	private static final byte OP_MAP = 1;
+	private static final byte OP_UNMAP = 2;
+	private static final byte OP_REMAP = 3;
+	private static final byte OP_MOVE_TREE = 4; // since log version 2, only replayed
+	private static final byte OP_MOVE_PATH = 5; // since log version 3
+	private static final byte OP_UNMAP_TREE = 6; // since log version 3
+	/*
+	 * record is length, op, inode, path bytes, crc. A move carries the old and
+	 * new path separated by a zero byte.
+	 */
+	private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 4;
+	private static final long ROOT = InodeCheckpoint.ROOT;
+	private static final long NONE = InodeCheckpoint.NONE;
+	private static final Node ROOT_NODE = new Node(NONE, new byte[0], UNMAPPED, 0);
+	private static final Node REMOVED = new Node(NONE, new byte[0], UNMAPPED, 0);
+
+	private final Path checkpointFile;
+	private final Path logFile;
+	private final boolean syncOnWrite;
+	/*
+	 * nodes changed since the checkpoint was written, REMOVED once pruned
+	 */
+	private final NonBlockingHashMapLong<Node> nodes = new NonBlockingHashMapLong<>();
+	private final NonBlockingHashMapLong<Long> inodeNodes = new NonBlockingHashMapLong<>();
+	private final NonBlockingHashMap<ChildKey, Long> childNodes = new NonBlockingHashMap<>();
+	private final Cache<Long, Path> paths = CacheBuilder.newBuilder().maximumSize(DEFAULT_PATH_CACHE_SIZE).build();
+	/*
+	 * bumped after each change to the tree, a path built across a change is
+	 * not left in the cache
+	 */
+	private final AtomicLong pathChanges = new AtomicLong();
+	private final AtomicLong fileId;
+	private final CRC32 crc = new CRC32();
+	private final FileChannel logChannel;
+	private final MappedByteBuffer logBuffer;
+	private volatile InodeCheckpoint checkpoint;
+	private volatile long mapped;
+	private long nextNodeId;
+	private long generation;
+	private int logPosition;
+	private boolean closed = false;
+
+	/**
+	 * Open or create a store in the given directory with default settings
+	 *
+	 * @param directory
+	 *            {@link Path} to a local directory that holds the checkpoint
+	 *            and log files
+	 * @return {@link MappedLogInodeStore}
+	 * @throws IOException
+	 */
+	public static MappedLogInodeStore open(final Path directory) throws IOException {
+		return open(directory, DEFAULT_LOG_SIZE, false);
+	}
+
+	/**
+	 * Open or create a store in the given directory
+	 *
+	 * @param directory
+	 *            {@link Path} to a local directory that holds the checkpoint
+	 *            and log files
+	 * @param logSize
+	 *            <code>int</code> with the size of the mapped log, a
+	 *            checkpoint is written each time it fills
+	 * @param syncOnWrite
+	 *            <code>boolean</code> to force each log record to disk. Without
+	 *            this, records survive a crash of the gateway process but not
+	 *            of the host.
+	 * @return {@link MappedLogInodeStore}
+	 * @throws IOException
+	 */
+	public static MappedLogInodeStore open(final Path directory, final int logSize, final boolean syncOnWrite)
+			throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("null directory");
+		}
+
+		if (logSize < LOG_HEADER_SIZE + RECORD_OVERHEAD + 4096) {
+			throw new IllegalArgumentException("logSize too small");
+		}
+
+		Files.createDirectories(directory);
+		return new MappedLogInodeStore(directory, logSize, syncOnWrite);
+	}
+
+	private MappedLogInodeStore(final Path directory, final int logSize, final boolean syncOnWrite)
+			throws IOException {
+		this.syncOnWrite = syncOnWrite;
+		checkpointFile = directory.resolve(CHECKPOINT_FILE_NAME);
+		logFile = directory.resolve(LOG_FILE_NAME);
+
+		long start = System.currentTimeMillis();
+		checkpoint = InodeCheckpoint.open(checkpointFile);
+		generation = checkpoint.getGeneration();
+		mapped = checkpoint.mappedCount();
+		nextNodeId = checkpoint.getNextNodeId();
+
+		logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long existingSize = logChannel.size();
+		logBuffer = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(existingSize, logSize));
+
+		long maxInodeNumber = checkpoint.getNextInodeNumber() - 1;
+		int replayed = 0;
+		if (existingSize == 0 || logBuffer.getInt(0) == 0) {
+			resetLog();
+		} else {
+			int logVersion = logBuffer.getInt(4);
+			if (logBuffer.getInt(0) != LOG_MAGIC || logVersion < 1 || logVersion > LOG_VERSION) {
+				logChannel.close();
+				throw new IOException("not an inode log:" + logFile);
+			}
+
+			long logGeneration = logBuffer.getLong(8);
+			if (logGeneration == generation) {
+				logPosition = LOG_HEADER_SIZE;
+				ReplayedRecord record;
+				while ((record = readRecord(logPosition)) != null) {
+					apply(record.op, record.inodeNumber, record.path, record.newPath);
+					maxInodeNumber = Math.max(maxInodeNumber, record.inodeNumber);
+					logPosition = record.nextPosition;
+					replayed++;
+				}
+				// records appended from now on may be of the current version
+				logBuffer.putInt(4, LOG_VERSION);
+			} else if (logGeneration < generation) {
+				log.info("inode log generation {} already folded into checkpoint {}", logGeneration, generation);
+				resetLog();
+			} else {
+				logChannel.close();
+				throw new IOException("inode log generation " + logGeneration + " is newer than checkpoint "
+						+ generation + ", checkpoint is missing");
+			}
+		}
+
+		fileId = new AtomicLong(maxInodeNumber + 1);
+		log.info("opened inode store at {} with {} checkpointed inodes, replayed {} log records in {} ms", directory,
+				checkpoint.mappedCount(), replayed, System.currentTimeMillis() - start);
+	}
+
+	@Override
+	public Path pathOf(final long inodeNumber) {
+		Path path = paths.getIfPresent(inodeNumber);
+		if (path != null) {
+			return path;
+		}
+
+		long changes = pathChanges.get();
+		long node = findInode(inodeNumber);
+		if (node == NONE) {
+			return null;
+		}
+		path = pathAt(node);
+		if (path != null) {
+			paths.put(inodeNumber, path);
+			if (pathChanges.get() != changes) {
+				paths.invalidate(inodeNumber); // may have been built from the old tree
+			}
+		}
+		return path;
+	}
+
+	@Override
+	public long inodeOf(final Path path) {
+		long node = find(components(path));
+		Node state = node == NONE ? null : node(node);
+		return state == null ? UNMAPPED : state.inode;
+	}
+
+	@Override
+	public synchronized void map(final long inodeNumber, final Path path) {
+		if (pathOf(inodeNumber) != null) {
+			throw new IllegalStateException("inode #" + inodeNumber + " already mapped");
+		}
+		if (inodeOf(path) != UNMAPPED) {
+			throw new IllegalStateException("path " + path + " already mapped");
+		}
+		append(OP_MAP, inodeNumber, InodeCheckpoint.toBytes(path));
+		apply(OP_MAP, inodeNumber, path, null);
+	}
+
+	@Override
+	public synchronized void unmap(final long inodeNumber, final Path path) {
+		if (!path.equals(pathOf(inodeNumber))) {
+			throw new IllegalStateException("inode #" + inodeNumber + " not mapped to " + path);
+		}
+		append(OP_UNMAP, inodeNumber, new byte[0]);
+		apply(OP_UNMAP, inodeNumber, null, null);
+	}
+
+	@Override
+	public synchronized void remap(final long inodeNumber, final Path oldPath, final Path newPath) {
+		if (!oldPath.equals(pathOf(inodeNumber))) {
+			throw new IllegalStateException("inode #" + inodeNumber + " not mapped to " + oldPath);
+		}
+		if (inodeOf(newPath) != UNMAPPED) {
+			throw new IllegalStateException("path " + newPath + " already mapped");
+		}
+		// single record so a crash never leaves the inode unmapped
+		append(OP_REMAP, inodeNumber, InodeCheckpoint.toBytes(newPath));
+		apply(OP_REMAP, inodeNumber, newPath, null);
+	}
+
+	/**
+	 * The node of the moved path gets a new parent and name and its
+	 * descendants are not touched, so the move is one log record and costs the
+	 * same whatever the size of the subtree, when it is made and when it is
+	 * replayed. The record names both paths, so a collection that is not
+	 * mapped itself moves the same way.
+	 */
+	@Override
+	public synchronized void moveTree(final long inodeNumber, final Path oldPath, final Path newPath) {
+		if (newPath.getNameCount() == 0 || newPath.startsWith(oldPath) || oldPath.startsWith(newPath)) {
+			throw new IllegalArgumentException("cannot move " + oldPath + " to " + newPath);
+		}
+		if (inodeNumber == UNMAPPED ? inodeOf(oldPath) != UNMAPPED : !oldPath.equals(pathOf(inodeNumber))) {
+			throw new IllegalStateException("inode #" + inodeNumber + " not mapped to " + oldPath);
+		}
+		if (inodeOf(newPath) != UNMAPPED) {
+			throw new IllegalStateException("path " + newPath + " already mapped");
+		}
+
+		byte[] oldBytes = InodeCheckpoint.toBytes(oldPath);
+		byte[] newBytes = InodeCheckpoint.toBytes(newPath);
+		byte[] pathBytes = Arrays.copyOf(oldBytes, oldBytes.length + 1 + newBytes.length);
+		System.arraycopy(newBytes, 0, pathBytes, oldBytes.length + 1, newBytes.length);
+		append(OP_MOVE_PATH, inodeNumber, pathBytes);
+		apply(OP_MOVE_PATH, inodeNumber, oldPath, newPath);
+	}
+
+	@Override
+	public synchronized void unmapTree(final long inodeNumber, final Path path) {
+		if (inodeNumber == UNMAPPED ? inodeOf(path) != UNMAPPED : !path.equals(pathOf(inodeNumber))) {
+			throw new IllegalStateException("inode #" + inodeNumber + " not mapped to " + path);
+		}
+		append(OP_UNMAP_TREE, inodeNumber, InodeCheckpoint.toBytes(path));
+		apply(OP_UNMAP_TREE, inodeNumber, path, null);
+	}
+
+	@Override
+	public long nextInodeNumber() {
+		return fileId.getAndIncrement();
+	}
+
+	@Override
+	public long size() {
+		return mapped;
+	}
+
+	/**
+	 * Merge the log into a new checkpoint and start an empty log. This happens
+	 * automatically when the log is full.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException {
+		long start = System.currentTimeMillis();
+		long newGeneration = generation + 1;
+		InodeCheckpoint current = checkpoint;
+		Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+
+		long[] overlayNodes = new long[nodes.size()];
+		int overlayCount = 0;
+		for (long node : nodes.keySet()) {
+			overlayNodes[overlayCount++] = node;
+		}
+		Arrays.sort(overlayNodes, 0, overlayCount);
+
+		try (InodeCheckpoint.Writer writer = new InodeCheckpoint.Writer(tempFile, newGeneration, fileId.get(),
+				nextNodeId)) {
+			long checkpointIndex = 0;
+			int overlayIndex = 0;
+			while (checkpointIndex < current.nodeCount() || overlayIndex < overlayCount) {
+				long checkpointNode = checkpointIndex < current.nodeCount() ? current.nodeIdAt(checkpointIndex)
+						: Long.MAX_VALUE;
+				long overlayNode = overlayIndex < overlayCount ? overlayNodes[overlayIndex] : Long.MAX_VALUE;
+
+				if (overlayNode <= checkpointNode) {
+					Node state = nodes.get(overlayNode);
+					if (state != REMOVED) {
+						writer.add(overlayNode, state);
+					}
+					overlayIndex++;
+					if (overlayNode == checkpointNode) {
+						checkpointIndex++; // superseded by the changed node
+					}
+				} else {
+					writer.add(checkpointNode, current.nodeAt(checkpointIndex));
+					checkpointIndex++;
+				}
+			}
+		}
+
+		Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		/*
+		 * the new checkpoint holds everything, readers look in the overlay
+		 * first so it is cleared only once the checkpoint is published
+		 */
+		checkpoint = InodeCheckpoint.open(checkpointFile);
+		childNodes.clear();
+		inodeNodes.clear();
+		nodes.clear();
+		current.close();
+
+		generation = newGeneration;
+		resetLog();
+		log.info("wrote inode checkpoint generation {} with {} inodes in {} ms", generation,
+				checkpoint.mappedCount(), System.currentTimeMillis() - start);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		logBuffer.force();
+		logChannel.close();
+		checkpoint.close();
+		paths.invalidateAll();
+	}
+
+	/**
+	 * @return <code>int</code> with the bytes of log written since the last
+	 *         checkpoint, used by tests
+	 */
+	synchronized int logSize() {
+		return logPosition - LOG_HEADER_SIZE;
+	}
+
+	private void apply(final byte op, final long inodeNumber, final Path path, final Path newPath) {
+		long node;
+		switch (op) {
+		case OP_MAP:
+			node = create(components(path));
+			setNode(node, node(node).withInode(inodeNumber));
+			inodeNodes.put(inodeNumber, Long.valueOf(node));
+			mapped++;
+			break;
+		case OP_UNMAP:
+			node = findInode(inodeNumber);
+			if (node != NONE) {
+				unmapNode(node);
+				prune(node);
+				pathChanges.incrementAndGet();
+				paths.invalidate(inodeNumber);
+			}
+			break;
+		case OP_REMAP:
+			apply(OP_UNMAP, inodeNumber, null, null);
+			apply(OP_MAP, inodeNumber, path, null);
+			break;
+		case OP_MOVE_TREE:
+			node = findInode(inodeNumber);
+			if (node != NONE) {
+				moveNode(node, path);
+			}
+			break;
+		case OP_MOVE_PATH:
+			node = find(components(path));
+			if (node != NONE) {
+				moveNode(node, newPath);
+			}
+			break;
+		case OP_UNMAP_TREE:
+			node = find(components(path));
+			if (node != NONE) {
+				unmapSubtree(node);
+			}
+			break;
+		default:
+			throw new IllegalStateException("unknown inode log op " + op);
+		}
+	}
+
+	/**
+	 * Give a node a new parent and name, anything stale at the new path is
+	 * dropped first
+	 */
+	private void moveNode(final long node, final Path newPath) {
+		byte[][] newComponents = components(newPath);
+		Path oldPath = pathAt(node);
+		long target = find(newComponents);
+		if (target != NONE) {
+			unmapSubtree(target);
+		}
+
+		Node state = node(node);
+		long newParent = create(Arrays.copyOf(newComponents, newComponents.length - 1));
+		byte[] newName = newComponents[newComponents.length - 1];
+		setNode(node, state.movedTo(newParent, newName));
+		childNodes.put(new ChildKey(newParent, newName), node);
+		childNodes.remove(new ChildKey(state.parent, state.name), node);
+		addChildren(newParent, 1);
+		addChildren(state.parent, -1);
+		prune(state.parent);
+
+		pathChanges.incrementAndGet();
+		Iterator<Path> cached = paths.asMap().values().iterator();
+		while (cached.hasNext()) {
+			if (cached.next().startsWith(oldPath)) {
+				cached.remove();
+			}
+		}
+	}
+
+	/**
+	 * Unmap and remove a node and everything below it. The nodes added since
+	 * the checkpoint are grouped by parent once, checkpointed children are read
+	 * from the child index.
+	 */
+	private void unmapSubtree(final long top) {
+		Node topState = node(top);
+		List<Long> subtree = new ArrayList<>();
+		subtree.add(top);
+		if (topState.children > 0) {
+			Map<Long, List<Long>> overlayChildren = new HashMap<>();
+			for (Map.Entry<ChildKey, Long> entry : childNodes.entrySet()) {
+				List<Long> children = overlayChildren.get(entry.getKey().parent);
+				if (children == null) {
+					children = new ArrayList<>();
+					overlayChildren.put(entry.getKey().parent, children);
+				}
+				children.add(entry.getValue());
+			}
+
+			Set<Long> seen = new HashSet<>(subtree);
+			for (int i = 0; i < subtree.size(); i++) {
+				long parent = subtree.get(i);
+				List<Long> children = new ArrayList<>();
+				for (long child : checkpoint.childrenOf(parent)) {
+					children.add(child);
+				}
+				if (overlayChildren.containsKey(parent)) {
+					children.addAll(overlayChildren.get(parent));
+				}
+				for (long child : children) {
+					Node state = node(child);
+					if (state != null && state.parent == parent && seen.add(child)) {
+						subtree.add(child);
+					}
+				}
+			}
+		}
+
+		List<Long> unmapped = new ArrayList<>();
+		for (long node : subtree) {
+			Node state = node(node);
+			if (state.inode != UNMAPPED) {
+				unmapped.add(state.inode);
+				unmapNode(node);
+			}
+			if (node != ROOT) {
+				removeNode(node, state);
+			}
+		}
+		if (top != ROOT) {
+			addChildren(topState.parent, -1);
+			prune(topState.parent);
+		}
+
+		pathChanges.incrementAndGet();
+		for (long inodeNumber : unmapped) {
+			paths.invalidate(inodeNumber);
+		}
+	}
+
+	private void unmapNode(final long node) {
+		Node state = node(node);
+		inodeNodes.remove(state.inode);
+		setNode(node, state.withInode(UNMAPPED));
+		mapped--;
+	}
+
+	/**
+	 * Remove nodes without an inode or children, from the given one up
+	 */
+	private void prune(final long start) {
+		long node = start;
+		Node state = node(node);
+		while (node != ROOT && state.inode == UNMAPPED && state.children == 0) {
+			removeNode(node, state);
+			node = state.parent;
+			state = addChildren(node, -1);
+		}
+	}
+
+	private void removeNode(final long node, final Node state) {
+		setNode(node, REMOVED);
+		childNodes.remove(new ChildKey(state.parent, state.name), node);
+	}
+
+	private Node addChildren(final long node, final int delta) {
+		if (node == ROOT) {
+			return ROOT_NODE;
+		}
+		Node state = node(node);
+		state = state.withChildren(state.children + delta);
+		setNode(node, state);
+		return state;
+	}
+
+	private void setNode(final long node, final Node state) {
+		nodes.put(node, state);
+	}
+
+	/**
+	 * @return <code>long</code> with the node at the path, created with its
+	 *         parents if it is not there
+	 */
+	private long create(final byte[][] components) {
+		long node = ROOT;
+		for (byte[] name : components) {
+			long child = child(node, name);
+			if (child == NONE) {
+				child = nextNodeId++;
+				setNode(child, new Node(node, name, UNMAPPED, 0));
+				childNodes.put(new ChildKey(node, name), child);
+				addChildren(node, 1);
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	private long find(final byte[][] components) {
+		long node = ROOT;
+		for (int i = 0; i < components.length && node != NONE; i++) {
+			node = child(node, components[i]);
+		}
+		return node;
+	}
+
+	/**
+	 * @return <code>long</code> with the current node named by its parent, the
+	 *         checkpointed one only if it has not been moved or removed since
+	 */
+	private long child(final long parent, final byte[] name) {
+		Long node = childNodes.get(new ChildKey(parent, name));
+		if (node != null) {
+			return node;
+		}
+
+		long candidate = checkpoint.childOf(parent, name);
+		if (candidate == NONE) {
+			return NONE;
+		}
+		Node state = node(candidate);
+		return state != null && state.parent == parent && Arrays.equals(state.name, name) ? candidate : NONE;
+	}
+
+	private long findInode(final long inodeNumber) {
+		Long node = inodeNodes.get(inodeNumber);
+		if (node != null) {
+			return node;
+		}
+
+		long candidate = checkpoint.nodeOfInode(inodeNumber);
+		if (candidate == NONE) {
+			return NONE;
+		}
+		Node state = node(candidate);
+		return state != null && state.inode == inodeNumber ? candidate : NONE;
+	}
+
+	/**
+	 * @return {@link Node} with the current state, or <code>null</code> if it
+	 *         was removed
+	 */
+	private Node node(final long node) {
+		if (node == ROOT) {
+			return ROOT_NODE;
+		}
+		Node state = nodes.get(node);
+		if (state == null) {
+			state = checkpoint.node(node);
+		}
+		return state == REMOVED ? null : state;
+	}
+
+	/**
+	 * @return {@link Path} rebuilt from the tree, or <code>null</code> if a
+	 *         node was removed on the way up
+	 */
+	private Path pathAt(final long node) {
+		List<byte[]> names = new ArrayList<>();
+		int length = 0;
+		for (long n = node; n != ROOT;) {
+			Node state = node(n);
+			if (state == null) {
+				return null;
+			}
+			names.add(state.name);
+			length += state.name.length + 1;
+			n = state.parent;
+		}
+
+		if (length == 0) {
+			return Paths.get("/");
+		}
+
+		byte[] bytes = new byte[length];
+		int position = 0;
+		for (int i = names.size() - 1; i >= 0; i--) {
+			byte[] name = names.get(i);
+			bytes[position++] = '/';
+			System.arraycopy(name, 0, bytes, position, name.length);
+			position += name.length;
+		}
+		return InodeCheckpoint.toPath(bytes);
+	}
+
+	private static byte[][] components(final Path path) {
+		if (path == null) {
+			throw new IllegalArgumentException("null path");
+		}
+
+		if (!path.isAbsolute()) {
+			throw new IllegalArgumentException("path must be absolute:" + path);
+		}
+
+		byte[][] components = new byte[path.getNameCount()][];
+		for (int i = 0; i < components.length; i++) {
+			components[i] = InodeCheckpoint.toBytes(path.getName(i));
+		}
+		return components;
+	}
+
+	private void append(final byte op, final long inodeNumber, final byte[] pathBytes) {
+		if (closed) {
+			throw new IllegalStateException("inode store is closed");
+		}
+
+		int recordSize = RECORD_OVERHEAD + pathBytes.length;
+		try {
+			if (logPosition + recordSize + 4 > logBuffer.capacity()) {
+				checkpoint();
+			}
+			if (logPosition + recordSize + 4 > logBuffer.capacity()) {
+				throw new IOException("inode log record of " + recordSize + " bytes larger than log");
+			}
+
+			int payloadLength = 1 + 8 + pathBytes.length;
+			ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+			payload.put(op);
+			payload.putLong(inodeNumber);
+			payload.put(pathBytes);
+
+			// terminator first so a replay never runs into a stale record
+			logBuffer.putInt(logPosition + recordSize, 0);
+			logBuffer.putInt(logPosition + 4 + payloadLength, checksum(payload.array(), payloadLength));
+			ByteBuffer target = logBuffer.duplicate();
+			target.position(logPosition + 4);
+			target.put(payload.array());
+			logBuffer.putInt(logPosition, payloadLength);
+			logPosition += recordSize;
+
+			if (syncOnWrite) {
+				logBuffer.force();
+			}
+		} catch (IOException e) {
+			log.error("unable to write inode log record for inode #{}", inodeNumber, e);
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private ReplayedRecord readRecord(final int position) {
+		if (position + 4 > logBuffer.capacity()) {
+			return null;
+		}
+		int payloadLength = logBuffer.getInt(position);
+		if (payloadLength < 9 || position + 4 + payloadLength + 4 > logBuffer.capacity()) {
+			return null;
+		}
+
+		byte[] payload = new byte[payloadLength];
+		ByteBuffer source = logBuffer.duplicate();
+		source.position(position + 4);
+		source.get(payload);
+		if (logBuffer.getInt(position + 4 + payloadLength) != checksum(payload, payloadLength)) {
+			log.warn("inode log ends with a torn or stale record at offset {}", position);
+			return null;
+		}
+
+		ByteBuffer record = ByteBuffer.wrap(payload);
+		byte op = record.get();
+		long inodeNumber = record.getLong();
+		Path path = null;
+		Path newPath = null;
+		if (op == OP_MOVE_PATH) {
+			int separator = 9;
+			while (payload[separator] != 0) {
+				separator++;
+			}
+			path = InodeCheckpoint.toPath(Arrays.copyOfRange(payload, 9, separator));
+			newPath = InodeCheckpoint.toPath(Arrays.copyOfRange(payload, separator + 1, payloadLength));
+		} else if (payloadLength > 9) {
+			path = InodeCheckpoint.toPath(Arrays.copyOfRange(payload, 9, payloadLength));
+		}
+		return new ReplayedRecord(op, inodeNumber, path, newPath, position + 4 + payloadLength + 4);
+	}
+
+	private int checksum(final byte[] payload, final int length) {
+		crc.reset();
+		for (int i = 0; i < 8; i++) {
+			crc.update((int) (generation >>> (56 - i * 8)));
+		}
+		crc.update(payload, 0, length);
+		return (int) crc.getValue();
+	}
+
+	private void resetLog() {
+		logBuffer.putInt(LOG_HEADER_SIZE, 0);
+		logBuffer.putLong(8, generation);
+		logBuffer.putInt(4, LOG_VERSION);
+		logBuffer.putInt(0, LOG_MAGIC);
+		logBuffer.force();
+		logPosition = LOG_HEADER_SIZE;
+	}
+
+	/**
+	 * Parent and name of a node, the key of the child lookup
+	 */
+	private static final class ChildKey {
+		private final long parent;
+		private final byte[] name;
+
+		ChildKey(final long parent, final byte[] name) {
+			this.parent = parent;
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof ChildKey)) {
+				return false;
+			}
+			ChildKey key = (ChildKey) other;
+			return parent == key.parent && Arrays.equals(name, key.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (parent ^ (parent >>> 32)) * 31 + Arrays.hashCode(name);
+		}
+	}
+
+	private static final class ReplayedRecord {
+		private final byte op;
+		private final long inodeNumber;
+		private final Path path;
+		private final Path newPath;
+		private final int nextPosition;
+
+		ReplayedRecord(final byte op, final long inodeNumber, final Path path, final Path newPath,
+				final int nextPosition) {
+			this.op = op;
+			this.inodeNumber = inodeNumber;
+			this.path = path;
+			this.newPath = newPath;
+			this.nextPosition = nextPosition;
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+
+/**
+ * In-heap {@link InodeStore}. Mappings are lost when the gateway stops, so
+ * clients will see stale file handles after a restart.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class MemoryInodeStore implements SequentialInodeStore {
+
+	private final NonBlockingHashMapLong<Path> inodeToPath = new NonBlockingHashMapLong<>();
+	private final NonBlockingHashMap<Path, Long> pathToInode = new NonBlockingHashMap<>();
+	private final AtomicLong fileId = new AtomicLong(1); // numbering starts at 1
+
+	@Override
+	public Path pathOf(final long inodeNumber) {
+		return inodeToPath.get(inodeNumber);
+	}
+
+	@Override
+	public long inodeOf(final Path path) {
+		Long inodeNumber = pathToInode.get(path);
+		if (inodeNumber == null) {
+			return UNMAPPED;
+		}
+		return inodeNumber;
+	}
+
+	@Override
+	public void map(final long inodeNumber, final Path path) {
+		if (inodeToPath.putIfAbsent(inodeNumber, path) != null) {
+			throw new IllegalStateException("inode #" + inodeNumber + " already mapped");
+		}
+		Long otherInodeNumber = pathToInode.putIfAbsent(path, inodeNumber);
+		if (otherInodeNumber != null) {
+			// try rollback
+			if (inodeToPath.remove(inodeNumber) != path) {
+				throw new IllegalStateException("cant map, rollback failed");
+			}
+			throw new IllegalStateException("path " + path + " already mapped");
+		}
+	}
+
+	@Override
+	public void unmap(final long inodeNumber, final Path path) {
+		Path removedPath = inodeToPath.remove(inodeNumber);
+		if (!path.equals(removedPath)) {
+			throw new IllegalStateException("inode #" + inodeNumber + " not mapped to " + path);
+		}
+		Long removedInodeNumber = pathToInode.remove(path);
+		if (removedInodeNumber == null || removedInodeNumber != inodeNumber) {
+			throw new IllegalStateException("path " + path + " not mapped to inode #" + inodeNumber);
+		}
+	}
+
+	@Override
+	public void remap(final long inodeNumber, final Path oldPath, final Path newPath) {
+		// TODO - attempt rollback?
+		unmap(inodeNumber, oldPath);
+		map(inodeNumber, newPath);
+	}
+
+	/**
+	 * Every mapping below the old path is moved one at a time, a concurrent
+	 * reader may find part of the tree still at the old path
+	 */
+	@Override
+	public void moveTree(final long inodeNumber, final Path oldPath, final Path newPath) {
+		if (newPath.startsWith(oldPath)) {
+			throw new IllegalArgumentException("cannot move " + oldPath + " to " + newPath);
+		}
+
+		// left behind below a path that is gone
+		for (Path path : pathsBelow(newPath)) {
+			Long stale = pathToInode.get(path);
+			if (stale != null) {
+				unmap(stale, path);
+			}
+		}
+
+		List<Path> below = pathsBelow(oldPath);
+		if (inodeNumber != UNMAPPED) {
+			remap(inodeNumber, oldPath, newPath);
+		}
+		for (Path path : below) {
+			Long descendant = pathToInode.get(path);
+			if (descendant != null) {
+				remap(descendant, path, newPath.resolve(oldPath.relativize(path)));
+			}
+		}
+	}
+
+	@Override
+	public long nextInodeNumber() {
+		return fileId.getAndIncrement();
+	}
+
+	@Override
+	public void unmapTree(final long inodeNumber, final Path path) {
+		List<Path> below = pathsBelow(path);
+		if (inodeNumber != UNMAPPED) {
+			unmap(inodeNumber, path);
+		}
+		for (Path descendant : below) {
+			Long descendantInode = pathToInode.get(descendant);
+			if (descendantInode != null) {
+				unmap(descendantInode, descendant);
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return pathToInode.size();
+	}
+
+	@Override
+	public void close() {
+		// nothing to release
+	}
+
+	private List<Path> pathsBelow(final Path path) {
+		List<Path> below = new ArrayList<>();
+		for (Path mapped : pathToInode.keySet()) {
+			if (mapped.startsWith(path) && !mapped.equals(path)) {
+				below.add(mapped);
+			}
+		}
+		return below;
+	}
+
+}
@@ -0,0 +1,22 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+/**
+ * {@link InodeStore} that also numbers the inodes, for
+ * {@link HandleMode#SEQUENTIAL}. With {@link HandleMode#IRODS_ID} numbers
+ * come from iRODS object ids and a plain {@link InodeStore} will do.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public interface SequentialInodeStore extends InodeStore {
+
+	/**
+	 * Allocate a new inode number. Numbering starts at 1 and numbers are never
+	 * handed out twice by the same store, including across restarts for
+	 * persistent implementations.
+	 *
+	 * @return <code>long</code> with a fresh inode number
+	 */
+	long nextInodeNumber();
+
+}
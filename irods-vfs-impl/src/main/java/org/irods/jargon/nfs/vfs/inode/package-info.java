@@ -0,0 +1,8 @@
+/**
+ * Inode number to iRODS path mapping, including the persistent inode store
+ * that lets file handles survive a restart of the NFS gateway
+ * 
+ * @author Mike Conway - NIEHS
+ *
+ */
+package org.irods.jargon.nfs.vfs.inode;
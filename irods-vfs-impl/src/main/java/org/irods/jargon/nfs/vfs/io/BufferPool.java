@@ -0,0 +1,84 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size buffers shared by all open files, bounding the memory that
+ * read-ahead can hold. Buffers are allocated on first use and recycled, a
+ * caller that finds the pool exhausted does without rather than waits.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final ArrayBlockingQueue<byte[]> free;
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * @param bufferSize
+	 *            <code>int</code> with the size of each buffer
+	 * @param maxBuffers
+	 *            <code>int</code> with the most buffers that can exist
+	 */
+	public BufferPool(final int bufferSize, final int maxBuffers) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+
+		if (maxBuffers <= 0) {
+			throw new IllegalArgumentException("maxBuffers must be positive");
+		}
+
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+		this.free = new ArrayBlockingQueue<>(maxBuffers);
+	}
+
+	/**
+	 * @return <code>byte[]</code> of {@link #getBufferSize()} bytes, or
+	 *         <code>null</code> if all buffers are in use
+	 */
+	public byte[] acquire() {
+		byte[] buffer = free.poll();
+		if (buffer != null) {
+			return buffer;
+		}
+
+		if (allocated.incrementAndGet() > maxBuffers) {
+			allocated.decrementAndGet();
+			return null;
+		}
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * @param buffer
+	 *            <code>byte[]</code> from {@link #acquire()} that is no
+	 *            longer used
+	 */
+	public void release(final byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			throw new IllegalArgumentException("not a buffer from this pool");
+		}
+
+		if (!free.offer(buffer)) {
+			throw new IllegalStateException("buffer released twice");
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return <code>int</code> with the buffers currently handed out
+	 */
+	public int inUse() {
+		return allocated.get() - free.size();
+	}
+
+}
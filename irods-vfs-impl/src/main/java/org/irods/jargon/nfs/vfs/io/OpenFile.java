@@ -0,0 +1,405 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.dcache.nfs.status.NoEntException;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.FileNotFoundException;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An iRODS data object held open across NFS calls, so sequential READs seek
+ * on one descriptor instead of each paying connect, open and close.
+ * <p/>
+ * Jargon keeps connections per thread, and a descriptor is only valid on the
+ * connection that opened it. Each open file therefore owns one thread that
+ * opens, uses and closes the descriptor, callers hand their work to it.
+ * Calls are serialized.
+ * <p/>
+ * With a {@link BufferPool} the file reads ahead of sequential readers, see
+ * {@link ReadAhead}. Prefetches queue on the same thread, so they run on the
+ * same descriptor without extra seeks, and a READ that misses waits behind
+ * any prefetch already queued for its range.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class OpenFile implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(OpenFile.class);
+
+	private final IRODSAccessObjectFactory irodsAccessObjectFactory;
+	private final IRODSAccount irodsAccount;
+	private final String absolutePath;
+	private final ExecutorService executor;
+	private final ReadAhead readAhead;
+
+	// only touched on the executor thread
+	private IRODSRandomAccessFile file;
+	private long filePointer;
+
+	private volatile Future<Void> closed;
+	// stamped by the open file table, to find the least recently used
+	volatile long lastUsedMillis = System.currentTimeMillis();
+
+	private OpenFile(final IRODSAccessObjectFactory irodsAccessObjectFactory, final IRODSAccount irodsAccount,
+			final String absolutePath, final ReadAhead readAhead) {
+		this.irodsAccessObjectFactory = irodsAccessObjectFactory;
+		this.irodsAccount = irodsAccount;
+		this.absolutePath = absolutePath;
+		this.readAhead = readAhead;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "irods-open-file");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Open a data object without read-ahead
+	 *
+	 * @param irodsAccessObjectFactory
+	 *            {@link IRODSAccessObjectFactory}
+	 * @param irodsAccount
+	 *            {@link IRODSAccount} of the user the descriptor belongs to
+	 * @param absolutePath
+	 *            <code>String</code> with the iRODS absolute path
+	 * @param openFlags
+	 *            {@link OpenFlags} for the open
+	 * @return {@link OpenFile}
+	 * @throws IOException
+	 */
+	public static OpenFile open(final IRODSAccessObjectFactory irodsAccessObjectFactory,
+			final IRODSAccount irodsAccount, final String absolutePath, final OpenFlags openFlags)
+			throws IOException {
+		return open(irodsAccessObjectFactory, irodsAccount, absolutePath, openFlags, null, 0);
+	}
+
+	/**
+	 * Open a data object
+	 *
+	 * @param irodsAccessObjectFactory
+	 *            {@link IRODSAccessObjectFactory}
+	 * @param irodsAccount
+	 *            {@link IRODSAccount} of the user the descriptor belongs to
+	 * @param absolutePath
+	 *            <code>String</code> with the iRODS absolute path
+	 * @param openFlags
+	 *            {@link OpenFlags} for the open
+	 * @param readAheadPool
+	 *            {@link BufferPool} for read-ahead, <code>null</code> for none
+	 * @param maxReadAheadWindow
+	 *            <code>int</code> with the most pool buffers to read ahead
+	 * @return {@link OpenFile}
+	 * @throws IOException
+	 */
+	public static OpenFile open(final IRODSAccessObjectFactory irodsAccessObjectFactory,
+			final IRODSAccount irodsAccount, final String absolutePath, final OpenFlags openFlags,
+			final BufferPool readAheadPool, final int maxReadAheadWindow) throws IOException {
+		if (irodsAccessObjectFactory == null) {
+			throw new IllegalArgumentException("null irodsAccessObjectFactory");
+		}
+
+		if (irodsAccount == null) {
+			throw new IllegalArgumentException("null irodsAccount");
+		}
+
+		if (absolutePath == null || absolutePath.isEmpty()) {
+			throw new IllegalArgumentException("null or empty absolutePath");
+		}
+
+		if (openFlags == null) {
+			throw new IllegalArgumentException("null openFlags");
+		}
+
+		ReadAhead readAhead = null;
+		if (readAheadPool != null && maxReadAheadWindow > 0) {
+			readAhead = new ReadAhead(readAheadPool, maxReadAheadWindow);
+		}
+
+		final OpenFile openFile = new OpenFile(irodsAccessObjectFactory, irodsAccount, absolutePath, readAhead);
+		try {
+			openFile.execute(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					log.debug("opening {} for {}", absolutePath, irodsAccount.getUserName());
+					openFile.file = irodsAccessObjectFactory.getIRODSFileFactory(irodsAccount)
+							.instanceIRODSRandomAccessFile(absolutePath, openFlags);
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			openFile.close();
+			throw e;
+		}
+		return openFile;
+	}
+
+	/**
+	 * Read at an offset, seeking only if the descriptor is not already there
+	 *
+	 * @param offset
+	 *            <code>long</code> with the file offset
+	 * @param data
+	 *            <code>byte[]</code> to read into
+	 * @param dataOffset
+	 *            <code>int</code> with the offset in <code>data</code>
+	 * @param count
+	 *            <code>int</code> with the number of bytes wanted
+	 * @return <code>int</code> with the bytes read, less than
+	 *         <code>count</code> only at the end of the file
+	 * @throws ClosedChannelException
+	 *             if the file was closed, e.g. by an idle timeout, callers
+	 *             can open it again
+	 * @throws IOException
+	 */
+	public int read(final long offset, final byte[] data, final int dataOffset, final int count)
+			throws IOException {
+		if (readAhead == null) {
+			return execute(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return readAt(offset, data, dataOffset, count);
+				}
+			});
+		}
+
+		int copied = readAhead.copy(offset, data, dataOffset, count);
+		if (copied < count && !readAhead.atEof(offset + copied)) {
+			final int prefetched = copied;
+			copied = execute(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					// a prefetch queued ahead of this may have filled the rest
+					int total = prefetched
+							+ readAhead.copy(offset + prefetched, data, dataOffset + prefetched, count - prefetched);
+					if (total < count && !readAhead.atEof(offset + total)) {
+						total += readAt(offset + total, data, dataOffset + total, count - total);
+					}
+					return total;
+				}
+			});
+		}
+
+		prefetch(readAhead.generation(), readAhead.accessed(offset, copied));
+		return copied;
+	}
+
+	/**
+	 * Write at an offset, seeking only if the descriptor is not already there.
+	 * iRODS registers the new size and modify time when the descriptor is
+	 * closed.
+	 *
+	 * @param offset
+	 *            <code>long</code> with the file offset
+	 * @param data
+	 *            <code>byte[]</code> to write from
+	 * @param dataOffset
+	 *            <code>int</code> with the offset in <code>data</code>
+	 * @param count
+	 *            <code>int</code> with the number of bytes to write
+	 * @throws ClosedChannelException
+	 *             if the file was closed, callers can open it again
+	 * @throws IOException
+	 */
+	public void write(final long offset, final byte[] data, final int dataOffset, final int count)
+			throws IOException {
+		discardReadAhead();
+		execute(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				if (filePointer != offset) {
+					file.seek(offset);
+					filePointer = offset;
+				}
+				file.write(data, dataOffset, count);
+				filePointer += count;
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Drop read-ahead data, e.g. because the file was written
+	 */
+	public void discardReadAhead() {
+		if (readAhead != null) {
+			readAhead.clear();
+		}
+	}
+
+	public String getAbsolutePath() {
+		return absolutePath;
+	}
+
+	public IRODSAccount getIrodsAccount() {
+		return irodsAccount;
+	}
+
+	/**
+	 * Close the descriptor once work already handed to the file is done. Does
+	 * not wait, see {@link #awaitClosed()}.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed != null) {
+			return;
+		}
+
+		closed = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					if (file != null) {
+						log.debug("closing {}", absolutePath);
+						file.close();
+					}
+					return null;
+				} catch (IOException e) {
+					log.warn("error closing {}", absolutePath, e);
+					throw e;
+				} finally {
+					discardReadAhead();
+					file = null;
+					irodsAccessObjectFactory.closeSessionAndEatExceptions();
+				}
+			}
+		});
+		executor.shutdown();
+	}
+
+	/**
+	 * Wait for {@link #close()} to finish. For a file that was written this
+	 * is when iRODS has registered the new size and modify time.
+	 *
+	 * @throws IOException
+	 *             if closing the descriptor failed
+	 */
+	public void awaitClosed() throws IOException {
+		Future<Void> future = closed;
+		if (future == null) {
+			throw new IllegalStateException("not closed");
+		}
+		await(future);
+	}
+
+	/**
+	 * Read on the owning thread, seeking only if the descriptor is not
+	 * already at the offset
+	 */
+	private int readAt(final long offset, final byte[] data, final int dataOffset, final int count)
+			throws IOException {
+		if (filePointer != offset) {
+			file.seek(offset);
+			filePointer = offset;
+		}
+
+		int total = 0;
+		while (total < count) {
+			int read = file.read(data, dataOffset + total, count - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+
+		filePointer += total;
+		return total;
+	}
+
+	/**
+	 * Queue reads of one pool buffer at each offset, behind any work already
+	 * handed to the file
+	 */
+	private void prefetch(final long generation, final List<Long> starts) {
+		for (final Long start : starts) {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (file == null || readAhead.generation() != generation) {
+							return;
+						}
+
+						byte[] buffer = readAhead.getPool().acquire();
+						if (buffer == null) {
+							log.debug("read-ahead pool exhausted, skipping {} of {}", start, absolutePath);
+							readAhead.skipped(generation, start);
+							return;
+						}
+
+						try {
+							readAhead.fill(generation, start, buffer, readAt(start, buffer, 0, buffer.length));
+						} catch (IOException | RuntimeException e) {
+							log.warn("read-ahead of {} failed", absolutePath, e);
+							readAhead.getPool().release(buffer);
+							readAhead.skipped(generation, start);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				return; // closed
+			}
+		}
+	}
+
+	/**
+	 * Run work on the thread that owns the descriptor and wait for it
+	 */
+	private <T> T execute(final Callable<T> task) throws IOException {
+		Future<T> future;
+		try {
+			future = executor.submit(task);
+		} catch (RejectedExecutionException e) {
+			throw new ClosedChannelException();
+		}
+		return await(future);
+	}
+
+	private <T> T await(final Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting on " + absolutePath);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof FileNotFoundException) {
+				throw new NoEntException("no data object " + absolutePath);
+			}
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			if (cause instanceof JargonException) {
+				throw new IOException(cause);
+			}
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+}
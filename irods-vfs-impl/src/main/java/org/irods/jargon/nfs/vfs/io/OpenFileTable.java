@@ -0,0 +1,227 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Open iRODS descriptors by inode, user and whether they are open for
+ * writing. NFS is stateless about reads and writes, so a descriptor is
+ * closed once it has been idle for a while, or when the table is full and it
+ * is the least recently used. Each descriptor holds an iRODS connection of
+ * its user, read descriptors also give theirs up least recently used first
+ * when the user has none left, see {@link #closeLeastRecentlyUsed(IRODSAccount)}.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class OpenFileTable implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(OpenFileTable.class);
+
+	private final Cache<Key, OpenFile> openFiles;
+	private final ScheduledExecutorService sweeper;
+
+	/**
+	 * @param maximumSize
+	 *            <code>long</code> with the number of descriptors kept open
+	 * @param idleMillis
+	 *            <code>long</code> with how long an unused descriptor stays
+	 *            open
+	 */
+	public OpenFileTable(final long maximumSize, final long idleMillis) {
+		if (maximumSize < 0) {
+			throw new IllegalArgumentException("negative maximumSize");
+		}
+
+		if (idleMillis <= 0) {
+			throw new IllegalArgumentException("idleMillis must be positive");
+		}
+
+		openFiles = CacheBuilder.newBuilder().maximumSize(maximumSize)
+				.expireAfterAccess(idleMillis, TimeUnit.MILLISECONDS)
+				.removalListener(new RemovalListener<Key, OpenFile>() {
+					@Override
+					public void onRemoval(final RemovalNotification<Key, OpenFile> notification) {
+						log.debug("closing {} ({})", notification.getValue().getAbsolutePath(),
+								notification.getCause());
+						notification.getValue().close();
+					}
+				}).build();
+
+		// the cache only expires entries when it is used, close idle files
+		// even when nothing is being read
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "irods-open-file-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long sweepMillis = Math.max(idleMillis / 2, 1000);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				openFiles.cleanUp();
+			}
+		}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the open file for an inode and user, opening it if needed.
+	 * Concurrent callers for the same key share one open.
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param uid
+	 *            <code>int</code> with the user the descriptor belongs to
+	 * @param writable
+	 *            <code>boolean</code> if the descriptor is for writing
+	 * @param opener
+	 *            <code>Callable</code> that opens the file
+	 * @return {@link OpenFile}
+	 * @throws IOException
+	 */
+	public OpenFile get(final long inodeNumber, final int uid, final boolean writable,
+			final Callable<OpenFile> opener) throws IOException {
+		try {
+			OpenFile openFile = openFiles.get(new Key(inodeNumber, uid, writable), opener);
+			openFile.lastUsedMillis = System.currentTimeMillis();
+			return openFile;
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Close every descriptor on an inode, e.g. because it was removed
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 */
+	public void close(final long inodeNumber) {
+		for (Key key : openFiles.asMap().keySet()) {
+			if (key.inodeNumber == inodeNumber) {
+				openFiles.invalidate(key);
+			}
+		}
+	}
+
+	/**
+	 * Take a descriptor out of the table and close it
+	 *
+	 * @return {@link OpenFile} that was closed, to
+	 *         {@link OpenFile#awaitClosed()} on, or <code>null</code> if none
+	 *         was open
+	 */
+	public OpenFile remove(final long inodeNumber, final int uid, final boolean writable) {
+		return openFiles.asMap().remove(new Key(inodeNumber, uid, writable));
+	}
+
+	/**
+	 * Drop read-ahead of every descriptor on an inode, because it was written
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 */
+	public void discardReadAhead(final long inodeNumber) {
+		for (Map.Entry<Key, OpenFile> entry : openFiles.asMap().entrySet()) {
+			if (entry.getKey().inodeNumber == inodeNumber) {
+				entry.getValue().discardReadAhead();
+			}
+		}
+	}
+
+	/**
+	 * Close the least recently used read descriptor of an account, e.g.
+	 * because the account has no iRODS connection left. Write descriptors
+	 * stay, they close when their data is committed.
+	 *
+	 * @param irodsAccount
+	 *            {@link IRODSAccount} whose descriptors are looked at
+	 * @return <code>boolean</code> if a descriptor was closed, its connection
+	 *         is given back once the close has run
+	 */
+	public boolean closeLeastRecentlyUsed(final IRODSAccount irodsAccount) {
+		Map.Entry<Key, OpenFile> oldest = null;
+		for (Map.Entry<Key, OpenFile> entry : openFiles.asMap().entrySet()) {
+			IRODSAccount account = entry.getValue().getIrodsAccount();
+			if (entry.getKey().writable || !account.getUserName().equals(irodsAccount.getUserName())
+					|| !account.getZone().equals(irodsAccount.getZone())) {
+				continue;
+			}
+
+			if (oldest == null || entry.getValue().lastUsedMillis < oldest.getValue().lastUsedMillis) {
+				oldest = entry;
+			}
+		}
+		return oldest != null && openFiles.asMap().remove(oldest.getKey(), oldest.getValue());
+	}
+
+	public long size() {
+		return openFiles.size();
+	}
+
+	@Override
+	public void close() {
+		sweeper.shutdownNow();
+		openFiles.invalidateAll();
+	}
+
+	private static final class Key {
+		private final long inodeNumber;
+		private final int uid;
+		private final boolean writable;
+
+		private Key(final long inodeNumber, final int uid, final boolean writable) {
+			this.inodeNumber = inodeNumber;
+			this.uid = uid;
+			this.writable = writable;
+		}
+
+		@Override
+		public int hashCode() {
+			return 2 * (31 * Long.hashCode(inodeNumber) + uid) + (writable ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) obj;
+			return inodeNumber == other.inodeNumber && uid == other.uid && writable == other.writable;
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.dcache.nfs.status.NoEntException;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.FileNotFoundException;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads consecutive aligned chunks of a large data object over several iRODS
+ * connections at once. One connection is one TCP stream to the server, so a
+ * single reader is otherwise capped at what one stream carries.
+ * <p/>
+ * The chunks are striped over the streams a {@link StreamLimiter} grants.
+ * Each stream is a thread of this reader with its own Jargon connection and
+ * descriptor, opened for the call and closed after it, so no connection is
+ * left open between calls.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class ParallelReader implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(ParallelReader.class);
+
+	private final IRODSAccessObjectFactory irodsAccessObjectFactory;
+	private final StreamLimiter streamLimiter;
+	private final ExecutorService streams;
+
+	/**
+	 * @param irodsAccessObjectFactory
+	 *            {@link IRODSAccessObjectFactory}
+	 * @param streamLimiter
+	 *            {@link StreamLimiter} with the gateway and client limits
+	 * @param maxStreams
+	 *            <code>int</code> with the gateway limit on streams, the
+	 *            number of threads
+	 */
+	public ParallelReader(final IRODSAccessObjectFactory irodsAccessObjectFactory,
+			final StreamLimiter streamLimiter, final int maxStreams) {
+		if (irodsAccessObjectFactory == null) {
+			throw new IllegalArgumentException("null irodsAccessObjectFactory");
+		}
+
+		if (streamLimiter == null) {
+			throw new IllegalArgumentException("null streamLimiter");
+		}
+
+		if (maxStreams <= 0) {
+			throw new IllegalArgumentException("maxStreams must be positive");
+		}
+
+		this.irodsAccessObjectFactory = irodsAccessObjectFactory;
+		this.streamLimiter = streamLimiter;
+		this.streams = Executors.newFixedThreadPool(maxStreams, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "irods-parallel-read");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Read consecutive chunks
+	 *
+	 * @param irodsAccount
+	 *            {@link IRODSAccount} of the reading user
+	 * @param uid
+	 *            <code>int</code> with the reading user, for the client limit
+	 * @param absolutePath
+	 *            <code>String</code> with the iRODS absolute path
+	 * @param offset
+	 *            <code>long</code> with the start of the first chunk
+	 * @param chunkSize
+	 *            <code>int</code> with the size of a chunk
+	 * @param chunks
+	 *            <code>int</code> with the number of chunks
+	 * @param size
+	 *            <code>long</code> with the size of the object, the last
+	 *            chunk ends there
+	 * @return <code>List</code> of <code>byte[]</code> with one array per
+	 *         chunk, shorter than <code>chunkSize</code> where the object
+	 *         ended
+	 * @throws IOException
+	 */
+	public List<byte[]> read(final IRODSAccount irodsAccount, final int uid, final String absolutePath,
+			final long offset, final int chunkSize, final int chunks, final long size) throws IOException {
+		final byte[][] data = new byte[chunks][];
+		final int lanes = streamLimiter.acquire(uid, chunks);
+		try {
+			log.debug("reading {} chunks of {} over {} streams", chunks, absolutePath, lanes);
+			List<Future<Void>> futures = new ArrayList<>(lanes);
+			for (int lane = 0; lane < lanes; lane++) {
+				final int first = lane;
+				futures.add(streams.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						readLane(irodsAccount, absolutePath, offset, chunkSize, chunks, size, first, lanes, data);
+						return null;
+					}
+				}));
+			}
+			await(futures, absolutePath);
+		} finally {
+			streamLimiter.release(uid, lanes);
+		}
+		return Arrays.asList(data);
+	}
+
+	@Override
+	public void close() {
+		streams.shutdownNow();
+	}
+
+	/**
+	 * Read every <code>lanes</code>th chunk on one descriptor, on a stream
+	 * thread
+	 */
+	private void readLane(final IRODSAccount irodsAccount, final String absolutePath, final long offset,
+			final int chunkSize, final int chunks, final long size, final int first, final int lanes,
+			final byte[][] data) throws JargonException, IOException {
+		IRODSRandomAccessFile file = null;
+		try {
+			file = irodsAccessObjectFactory.getIRODSFileFactory(irodsAccount)
+					.instanceIRODSRandomAccessFile(absolutePath, OpenFlags.READ);
+			for (int chunk = first; chunk < chunks; chunk += lanes) {
+				long start = offset + (long) chunk * chunkSize;
+				byte[] buffer = new byte[(int) Math.max(0, Math.min(chunkSize, size - start))];
+				file.seek(start);
+				int total = 0;
+				while (total < buffer.length) {
+					int read = file.read(buffer, total, buffer.length - total);
+					if (read < 0) {
+						break;
+					}
+					total += read;
+				}
+				data[chunk] = total < buffer.length ? Arrays.copyOf(buffer, total) : buffer;
+			}
+		} finally {
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} finally {
+				irodsAccessObjectFactory.closeSessionAndEatExceptions();
+			}
+		}
+	}
+
+	/**
+	 * Wait for every lane, so none is still reading when its stream is
+	 * released, then throw the first failure
+	 */
+	private void await(final List<Future<Void>> futures, final String absolutePath) throws IOException {
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<Void> future : futures) {
+			for (;;) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted reading " + absolutePath);
+		}
+
+		if (failure == null) {
+			return;
+		}
+
+		if (failure instanceof FileNotFoundException) {
+			throw new NoEntException("no data object " + absolutePath);
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		throw new IOException(failure);
+	}
+
+}
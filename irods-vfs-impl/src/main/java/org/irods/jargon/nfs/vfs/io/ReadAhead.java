@@ -0,0 +1,195 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sequential access detection and prefetched data for one {@link OpenFile}.
+ * <p/>
+ * Every READ that starts where the previous one ended doubles the window of
+ * buffers kept ahead of the reader, up to a maximum. A READ within a buffer
+ * of that point leaves the window alone, a READ anywhere else collapses it
+ * and drops what was prefetched. Buffers come from a
+ * shared {@link BufferPool} and go back as soon as the reader has passed
+ * them.
+ * <p/>
+ * This class only does the bookkeeping, {@link OpenFile} does the reads.
+ * A generation number lets it discard prefetches that complete after the
+ * window collapsed.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+class ReadAhead {
+
+	private final BufferPool pool;
+	private final int maxWindow;
+	private final TreeMap<Long, Chunk> chunks = new TreeMap<>();
+
+	private long nextExpected = 0;
+	private int window = 0;
+	private long queuedEnd = 0;
+	private long eofOffset = Long.MAX_VALUE;
+	private long generation = 0;
+
+	/**
+	 * @param pool
+	 *            {@link BufferPool} for prefetched data
+	 * @param maxWindow
+	 *            <code>int</code> with the most buffers to keep ahead of the
+	 *            reader
+	 */
+	ReadAhead(final BufferPool pool, final int maxWindow) {
+		if (pool == null) {
+			throw new IllegalArgumentException("null pool");
+		}
+
+		if (maxWindow <= 0) {
+			throw new IllegalArgumentException("maxWindow must be positive");
+		}
+
+		this.pool = pool;
+		this.maxWindow = maxWindow;
+	}
+
+	/**
+	 * Copy prefetched data starting at an offset
+	 *
+	 * @return <code>int</code> with the number of contiguous bytes copied
+	 *         from the offset, 0 if it was not prefetched
+	 */
+	synchronized int copy(final long offset, final byte[] data, final int dataOffset, final int count) {
+		int copied = 0;
+		while (copied < count) {
+			long position = offset + copied;
+			Map.Entry<Long, Chunk> entry = chunks.floorEntry(position);
+			if (entry == null || position >= entry.getValue().end()) {
+				break;
+			}
+
+			Chunk chunk = entry.getValue();
+			int length = (int) Math.min(count - copied, chunk.end() - position);
+			System.arraycopy(chunk.buffer, (int) (position - chunk.start), data, dataOffset + copied, length);
+			copied += length;
+		}
+		return copied;
+	}
+
+	/**
+	 * @return <code>boolean</code> if a prefetch found the end of the file at
+	 *         or before the offset
+	 */
+	synchronized boolean atEof(final long offset) {
+		return offset >= eofOffset;
+	}
+
+	/**
+	 * Record a READ and work out what to prefetch next
+	 *
+	 * @param offset
+	 *            <code>long</code> with the offset read
+	 * @param count
+	 *            <code>int</code> with the bytes returned
+	 * @return <code>List</code> of offsets to prefetch one buffer at, under
+	 *         the current {@link #generation()}
+	 */
+	synchronized List<Long> accessed(final long offset, final int count) {
+		if (offset == nextExpected) {
+			window = window == 0 ? 1 : Math.min(maxWindow, window * 2);
+		} else if (window > 0 && Math.abs(offset - nextExpected) <= pool.getBufferSize()) {
+			// clients keep several READs in flight, which can arrive slightly
+			// out of order, keep the window but do not grow it
+		} else {
+			clear();
+			nextExpected = offset;
+		}
+		nextExpected = Math.max(nextExpected, offset + count);
+
+		// give back what the reader has passed
+		while (!chunks.isEmpty() && chunks.firstEntry().getValue().end() <= offset) {
+			pool.release(chunks.pollFirstEntry().getValue().buffer);
+		}
+
+		if (window == 0 || count == 0) {
+			return Collections.emptyList();
+		}
+
+		long target = nextExpected + (long) window * pool.getBufferSize();
+		queuedEnd = Math.max(queuedEnd, nextExpected);
+		List<Long> starts = new ArrayList<>();
+		while (queuedEnd < target && queuedEnd < eofOffset) {
+			starts.add(queuedEnd);
+			queuedEnd += pool.getBufferSize();
+		}
+		return starts;
+	}
+
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Keep data a prefetch read, or give the buffer back if the window
+	 * collapsed while it was being read
+	 */
+	synchronized void fill(final long generation, final long start, final byte[] buffer, final int length) {
+		if (generation != this.generation || length <= 0 || chunks.containsKey(start)) {
+			pool.release(buffer);
+		} else {
+			chunks.put(start, new Chunk(start, buffer, length));
+		}
+
+		if (generation == this.generation && length < buffer.length) {
+			eofOffset = Math.min(eofOffset, start + Math.max(length, 0));
+		}
+	}
+
+	/**
+	 * A prefetch could not get a buffer or failed, let a later READ queue it
+	 * again
+	 */
+	synchronized void skipped(final long generation, final long start) {
+		if (generation == this.generation) {
+			queuedEnd = Math.min(queuedEnd, start);
+		}
+	}
+
+	/**
+	 * Drop all prefetched data, e.g. on random access or because the file
+	 * changed
+	 */
+	synchronized void clear() {
+		for (Chunk chunk : chunks.values()) {
+			pool.release(chunk.buffer);
+		}
+		chunks.clear();
+		window = 0;
+		queuedEnd = 0;
+		eofOffset = Long.MAX_VALUE;
+		generation++;
+	}
+
+	BufferPool getPool() {
+		return pool;
+	}
+
+	private static final class Chunk {
+		private final long start;
+		private final byte[] buffer;
+		private final int length;
+
+		private Chunk(final long start, final byte[] buffer, final int length) {
+			this.start = start;
+			this.buffer = buffer;
+			this.length = length;
+		}
+
+		private long end() {
+			return start + length;
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the concurrent iRODS transfer streams of the gateway and of each
+ * client, so one client cannot take every connection to the iRODS server.
+ * <p/>
+ * A transfer asks for the streams it could use and gets at least one, more
+ * only if they are free right now. It never waits for the extra streams.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class StreamLimiter {
+
+	private final int maxStreamsPerClient;
+	private final Semaphore gateway;
+	private final ConcurrentHashMap<Integer, Semaphore> clients = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxStreams
+	 *            <code>int</code> with the most streams of the gateway
+	 * @param maxStreamsPerClient
+	 *            <code>int</code> with the most streams of one uid
+	 */
+	public StreamLimiter(final int maxStreams, final int maxStreamsPerClient) {
+		if (maxStreams <= 0 || maxStreamsPerClient <= 0) {
+			throw new IllegalArgumentException("stream limits must be positive");
+		}
+
+		this.maxStreamsPerClient = maxStreamsPerClient;
+		this.gateway = new Semaphore(maxStreams, true);
+	}
+
+	/**
+	 * Take streams for a transfer, waiting only for the first one
+	 *
+	 * @param uid
+	 *            <code>int</code> with the client's user
+	 * @param wanted
+	 *            <code>int</code> with the streams the transfer could use
+	 * @return <code>int</code> with the streams granted, at least 1, give
+	 *         them back with {@link #release(int, int)}
+	 * @throws InterruptedIOException
+	 */
+	public int acquire(final int uid, final int wanted) throws InterruptedIOException {
+		int limit = Math.max(1, Math.min(wanted, maxStreamsPerClient));
+		Semaphore client = client(uid);
+		try {
+			client.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for a transfer stream");
+		}
+
+		try {
+			gateway.acquire();
+		} catch (InterruptedException e) {
+			client.release();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for a transfer stream");
+		}
+
+		int granted = 1;
+		while (granted < limit && client.tryAcquire()) {
+			if (!gateway.tryAcquire()) {
+				client.release();
+				break;
+			}
+			granted++;
+		}
+		return granted;
+	}
+
+	public void release(final int uid, final int streams) {
+		gateway.release(streams);
+		client(uid).release(streams);
+	}
+
+	/**
+	 * @return <code>int</code> with the gateway streams not in use
+	 */
+	public int availableStreams() {
+		return gateway.availablePermits();
+	}
+
+	public int getMaxStreamsPerClient() {
+		return maxStreamsPerClient;
+	}
+
+	private Semaphore client(final int uid) {
+		Semaphore client = clients.get(uid);
+		if (client == null) {
+			Semaphore created = new Semaphore(maxStreamsPerClient, true);
+			client = clients.putIfAbsent(uid, created);
+			if (client == null) {
+				client = created;
+			}
+		}
+		return client;
+	}
+
+}
@@ -0,0 +1,430 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-back buffering of NFS WRITEs, one {@link WriteBuffer} per inode.
+ * <p/>
+ * UNSTABLE WRITEs only go into memory. Buffered data is written to iRODS, as
+ * few large writes as the extents allow, when a file has more dirty data
+ * than a limit, when all buffers together are over a limit, when it has not
+ * been written for a while, or when a caller asks with
+ * {@link #flush(long)} or {@link #sync(long)}.
+ * <p/>
+ * Flushing only writes through the descriptor, iRODS registers size and
+ * modify time when the descriptor is closed. {@link #commit(long, long, long)}
+ * does both for a range, and drops the buffer once nothing is left in it.
+ * <p/>
+ * A failed flush keeps its data buffered for the next attempt and is
+ * recorded until the next COMMIT of the inode fails with it. nfs4j owns the
+ * write verifier, so failing the COMMIT is how the client learns it has to
+ * write its unstable data again, the way a local file system reports write
+ * back errors at fsync.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class WriteBackCache implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteBackCache.class);
+
+	/**
+	 * Told when buffered data of an inode reached iRODS, so cached content
+	 * and attributes can be dropped
+	 */
+	public interface Listener {
+		void flushed(long inodeNumber);
+	}
+
+	private final OpenFileTable openFiles;
+	private final long maxDirtyBytesPerFile;
+	private final long maxDirtyBytes;
+	private final long idleMillis;
+	private final Listener listener;
+	private final ConcurrentHashMap<Long, WriteBuffer> buffers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, IOException> failures = new ConcurrentHashMap<>();
+	private final AtomicLong dirtyBytes = new AtomicLong();
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * @param openFiles
+	 *            {@link OpenFileTable} the write descriptors are kept in
+	 * @param maxDirtyBytesPerFile
+	 *            <code>long</code> with the dirty bytes one file can hold
+	 *            before it is flushed
+	 * @param maxDirtyBytes
+	 *            <code>long</code> with the dirty bytes all files can hold
+	 *            before writers flush their own file
+	 * @param idleMillis
+	 *            <code>long</code> with how long a file is not written before
+	 *            it is synced
+	 * @param listener
+	 *            {@link Listener} told about flushes
+	 */
+	public WriteBackCache(final OpenFileTable openFiles, final long maxDirtyBytesPerFile, final long maxDirtyBytes,
+			final long idleMillis, final Listener listener) {
+		if (openFiles == null) {
+			throw new IllegalArgumentException("null openFiles");
+		}
+
+		if (maxDirtyBytesPerFile < 0 || maxDirtyBytes < 0) {
+			throw new IllegalArgumentException("negative dirty byte limit");
+		}
+
+		if (idleMillis <= 0) {
+			throw new IllegalArgumentException("idleMillis must be positive");
+		}
+
+		if (listener == null) {
+			throw new IllegalArgumentException("null listener");
+		}
+
+		this.openFiles = openFiles;
+		this.maxDirtyBytesPerFile = maxDirtyBytesPerFile;
+		this.maxDirtyBytes = maxDirtyBytes;
+		this.idleMillis = idleMillis;
+		this.listener = listener;
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "irods-write-back");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long sweepMillis = Math.max(idleMillis / 2, 100);
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				syncIdle();
+			}
+		}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Buffer a WRITE, flushing if limits are reached
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param uid
+	 *            <code>int</code> with the user writing
+	 * @param opener
+	 *            <code>Callable</code> that opens the file for writing as
+	 *            that user
+	 * @param offset
+	 *            <code>long</code> with the file offset
+	 * @param data
+	 *            <code>byte[]</code> with the data, copied
+	 * @param count
+	 *            <code>int</code> with the number of bytes
+	 * @throws IOException
+	 *             if a flush triggered now fails
+	 */
+	public void write(final long inodeNumber, final int uid, final Callable<OpenFile> opener, final long offset,
+			final byte[] data, final int count) throws IOException {
+		WriteBuffer buffer;
+		for (;;) {
+			buffer = buffers.get(inodeNumber);
+			if (buffer != null && buffer.getUid() != uid) {
+				// another user's data goes out through their own descriptor
+				sync(inodeNumber);
+				continue;
+			}
+
+			if (buffer == null) {
+				WriteBuffer created = new WriteBuffer(uid, opener);
+				buffer = buffers.putIfAbsent(inodeNumber, created);
+				if (buffer == null) {
+					buffer = created;
+				}
+			}
+
+			synchronized (buffer) {
+				// a concurrent sync may have taken the buffer out of the map
+				if (buffers.get(inodeNumber) == buffer) {
+					dirtyBytes.addAndGet(buffer.write(offset, data, 0, count));
+					break;
+				}
+			}
+		}
+
+		if (buffer.dirtyBytes() > maxDirtyBytesPerFile || dirtyBytes.get() > maxDirtyBytes) {
+			flush(inodeNumber, buffer, 0, Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Write all buffered data of an inode to iRODS
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @throws IOException
+	 */
+	public void flush(final long inodeNumber) throws IOException {
+		WriteBuffer buffer = buffers.get(inodeNumber);
+		if (buffer != null) {
+			flush(inodeNumber, buffer, 0, Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Write all buffered data of an inode to iRODS and close the write
+	 * descriptor, so iRODS registers the new size and modify time
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @throws IOException
+	 */
+	public void sync(final long inodeNumber) throws IOException {
+		// a failure stays recorded for the client's COMMIT
+		commitBuffer(inodeNumber, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * For an NFS COMMIT, write the buffered data within a range to iRODS and
+	 * close the write descriptor, so iRODS registers the new size and modify
+	 * time. Data outside the range stays buffered.
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param from
+	 *            <code>long</code> with the first offset
+	 * @param to
+	 *            <code>long</code> with the offset after the range
+	 * @throws IOException
+	 *             if this or an earlier write back of the inode failed since
+	 *             the last COMMIT, the client has to write the data again
+	 */
+	public void commit(final long inodeNumber, final long from, final long to) throws IOException {
+		try {
+			commitBuffer(inodeNumber, from, to);
+		} catch (IOException | RuntimeException e) {
+			// reported now
+			failures.remove(inodeNumber);
+			throw e;
+		}
+
+		IOException failure = failures.remove(inodeNumber);
+		if (failure != null) {
+			throw new IOException("earlier write back failed", failure);
+		}
+	}
+
+	private void commitBuffer(final long inodeNumber, final long from, final long to) throws IOException {
+		WriteBuffer buffer = buffers.get(inodeNumber);
+		if (buffer == null) {
+			return;
+		}
+
+		try {
+			synchronized (buffer.flushLock) {
+				flush(inodeNumber, buffer, from, to);
+				synchronized (buffer) {
+					if (buffer.dirtyBytes() == 0) {
+						buffers.remove(inodeNumber, buffer);
+					}
+				}
+
+				OpenFile openFile = openFiles.remove(inodeNumber, buffer.getUid(), true);
+				if (openFile != null) {
+					openFile.awaitClosed();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			recordFailure(inodeNumber, e);
+			throw e;
+		}
+		listener.flushed(inodeNumber);
+	}
+
+	/**
+	 * Drop buffered data without writing it, because the object is gone
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 */
+	public void discard(final long inodeNumber) {
+		WriteBuffer buffer = buffers.remove(inodeNumber);
+		if (buffer != null) {
+			synchronized (buffer) {
+				long bytes = buffer.dirtyBytes();
+				buffer.drain(0, Long.MAX_VALUE);
+				dirtyBytes.addAndGet(-bytes);
+			}
+		}
+		failures.remove(inodeNumber);
+	}
+
+	/**
+	 * @return <code>long</code> with the size of the object including
+	 *         buffered and unregistered writes, or -1 if it has none
+	 */
+	public long sizeOf(final long inodeNumber) {
+		WriteBuffer buffer = buffers.get(inodeNumber);
+		return buffer == null ? -1 : buffer.highWater();
+	}
+
+	/**
+	 * @return <code>boolean</code> if the inode was written and not yet
+	 *         synced
+	 */
+	public boolean isWritten(final long inodeNumber) {
+		return buffers.containsKey(inodeNumber);
+	}
+
+	/**
+	 * @return <code>Set</code> of the inodes written and not yet synced, a
+	 *         live view
+	 */
+	public Set<Long> writtenInodes() {
+		return Collections.unmodifiableSet(buffers.keySet());
+	}
+
+	public long dirtyBytes() {
+		return dirtyBytes.get();
+	}
+
+	/**
+	 * Sync every written inode, e.g. when the file system closes
+	 *
+	 * @throws IOException
+	 *             with the first failure, after trying all inodes
+	 */
+	public void syncAll() throws IOException {
+		IOException failure = null;
+		for (Long inodeNumber : buffers.keySet()) {
+			try {
+				sync(inodeNumber);
+			} catch (IOException e) {
+				log.error("sync of inode {} failed", inodeNumber, e);
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Sync everything, e.g. on shutdown
+	 */
+	@Override
+	public void close() {
+		flusher.shutdownNow();
+		try {
+			syncAll();
+		} catch (IOException e) {
+			log.error("lost buffered writes on close", e);
+		}
+	}
+
+	/**
+	 * Write the extents in a range, in offset order, through the buffer
+	 * owner's write descriptor
+	 */
+	void flush(final long inodeNumber, final WriteBuffer buffer, final long from, final long to)
+			throws IOException {
+		synchronized (buffer.flushLock) {
+			List<WriteBuffer.Extent> extents;
+			synchronized (buffer) {
+				extents = buffer.drain(from, to);
+			}
+
+			if (extents.isEmpty()) {
+				return;
+			}
+
+			int written = 0;
+			try {
+				for (WriteBuffer.Extent extent : extents) {
+					write(inodeNumber, buffer, extent);
+					dirtyBytes.addAndGet(-extent.getLength());
+					written++;
+				}
+			} catch (IOException | RuntimeException e) {
+				// acknowledged data stays buffered for the next flush, the
+				// client hears about the failure at its next COMMIT
+				restore(inodeNumber, buffer, extents.subList(written, extents.size()));
+				recordFailure(inodeNumber, e);
+				throw e;
+			} finally {
+				openFiles.discardReadAhead(inodeNumber);
+				listener.flushed(inodeNumber);
+			}
+		}
+	}
+
+	private void write(final long inodeNumber, final WriteBuffer buffer, final WriteBuffer.Extent extent)
+			throws IOException {
+		for (int attempt = 0;; attempt++) {
+			OpenFile openFile = openFiles.get(inodeNumber, buffer.getUid(), true, buffer.getOpener());
+			try {
+				openFile.write(extent.getOffset(), extent.getBuffer(), 0, extent.getLength());
+				return;
+			} catch (ClosedChannelException e) {
+				// idle timeout closed it between lookup and write, open again
+				if (attempt > 0) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Put extents that were not written back into their buffer, unless the
+	 * buffer was discarded meanwhile
+	 */
+	private void restore(final long inodeNumber, final WriteBuffer buffer, final List<WriteBuffer.Extent> unwritten) {
+		long unwrittenBytes = 0;
+		for (WriteBuffer.Extent extent : unwritten) {
+			unwrittenBytes += extent.getLength();
+		}
+
+		synchronized (buffer) {
+			long restored = buffers.get(inodeNumber) == buffer ? buffer.restore(unwritten) : 0;
+			// newer writes that cover drained data were already counted
+			dirtyBytes.addAndGet(restored - unwrittenBytes);
+		}
+	}
+
+	private void recordFailure(final long inodeNumber, final Exception e) {
+		log.warn("write back of inode {} failed", inodeNumber, e);
+		failures.putIfAbsent(inodeNumber, e instanceof IOException ? (IOException) e : new IOException(e));
+	}
+
+	private void syncIdle() {
+		long idleSince = System.currentTimeMillis() - idleMillis;
+		for (Map.Entry<Long, WriteBuffer> entry : buffers.entrySet()) {
+			if (entry.getValue().lastWriteMillis() > idleSince) {
+				continue;
+			}
+
+			try {
+				commitBuffer(entry.getKey(), 0, Long.MAX_VALUE);
+			} catch (IOException | RuntimeException e) {
+				// recorded, kept for the client's next COMMIT
+			}
+		}
+	}
+
+}
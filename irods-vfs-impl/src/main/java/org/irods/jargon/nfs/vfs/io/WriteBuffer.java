@@ -0,0 +1,236 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * Data written to one data object that has not been sent to iRODS yet, as
+ * non overlapping extents. WRITEs that touch or overlap an extent are merged
+ * into it, so a client streaming a file in small WRITEs, even slightly out of
+ * order, ends up with a few large extents that each go to iRODS in one call.
+ * <p/>
+ * The buffer belongs to the user who wrote the data, it is flushed through
+ * that user's descriptor.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+class WriteBuffer {
+
+	private final int uid;
+	private final Callable<OpenFile> opener;
+	private final TreeMap<Long, Extent> extents = new TreeMap<>();
+	private long dirtyBytes = 0;
+	private long highWater = 0;
+	private long lastWriteMillis;
+
+	// held while extents are written to iRODS, so flushes do not overtake
+	// each other
+	final Object flushLock = new Object();
+
+	WriteBuffer(final int uid, final Callable<OpenFile> opener) {
+		this.uid = uid;
+		this.opener = opener;
+		this.lastWriteMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Add written data, newer data replaces older data where they overlap
+	 *
+	 * @return <code>long</code> with the change in dirty bytes
+	 */
+	synchronized long write(final long offset, final byte[] data, final int dataOffset, final int count) {
+		long end = offset + count;
+		lastWriteMillis = System.currentTimeMillis();
+		highWater = Math.max(highWater, end);
+		long before = dirtyBytes;
+
+		// extents that overlap or touch [offset, end)
+		Map.Entry<Long, Extent> floor = extents.floorEntry(offset);
+		long from = floor != null && floor.getValue().end() >= offset ? floor.getKey() : offset;
+		NavigableMap<Long, Extent> touching = extents.subMap(from, true, end, true);
+
+		if (touching.isEmpty()) {
+			Extent extent = new Extent(offset, count);
+			extent.put(offset, data, dataOffset, count);
+			extents.put(offset, extent);
+			dirtyBytes += count;
+		} else if (touching.size() == 1 && touching.firstKey() <= offset) {
+			// overwrite or append, the common case
+			Extent extent = touching.firstEntry().getValue();
+			dirtyBytes -= extent.length;
+			extent.put(offset, data, dataOffset, count);
+			dirtyBytes += extent.length;
+		} else {
+			long start = Math.min(touching.firstKey(), offset);
+			Extent merged = new Extent(start, (int) (Math.max(touching.lastEntry().getValue().end(), end) - start));
+			for (Extent extent : touching.values()) {
+				merged.put(extent.offset, extent.buffer, 0, extent.length);
+				dirtyBytes -= extent.length;
+			}
+			merged.put(offset, data, dataOffset, count);
+			touching.clear();
+			extents.put(start, merged);
+			dirtyBytes += merged.length;
+		}
+		return dirtyBytes - before;
+	}
+
+	/**
+	 * Take out the dirty data within a range, splitting extents that reach
+	 * outside it
+	 *
+	 * @param from
+	 *            <code>long</code> with the first offset
+	 * @param to
+	 *            <code>long</code> with the offset after the range
+	 * @return <code>List</code> of {@link Extent} in offset order
+	 */
+	synchronized List<Extent> drain(final long from, final long to) {
+		List<Extent> drained = new ArrayList<>();
+		Long start = extents.floorKey(from);
+		if (start == null) {
+			start = from;
+		}
+
+		for (Extent extent : new ArrayList<>(extents.subMap(start, true, to, false).values())) {
+			if (extent.end() <= from) {
+				continue;
+			}
+
+			extents.remove(extent.offset);
+			dirtyBytes -= extent.length;
+			if (extent.offset < from) {
+				keep(extent.slice(extent.offset, from));
+			}
+
+			if (extent.end() > to) {
+				keep(extent.slice(to, extent.end()));
+			}
+			drained.add(extent.slice(Math.max(from, extent.offset), Math.min(to, extent.end())));
+		}
+		return drained;
+	}
+
+	/**
+	 * Put drained extents that could not be written back. Data written since
+	 * the drain is newer and wins, only the parts it does not cover return.
+	 *
+	 * @param drained
+	 *            <code>List</code> of {@link Extent} from
+	 *            {@link #drain(long, long)}
+	 * @return <code>long</code> with the change in dirty bytes
+	 */
+	synchronized long restore(final List<Extent> drained) {
+		long before = dirtyBytes;
+		for (Extent extent : drained) {
+			long position = extent.offset;
+			while (position < extent.end()) {
+				Map.Entry<Long, Extent> floor = extents.floorEntry(position);
+				if (floor != null && floor.getValue().end() > position) {
+					// covered by newer data
+					position = floor.getValue().end();
+					continue;
+				}
+
+				Long next = extents.higherKey(position);
+				long gapEnd = next == null ? extent.end() : Math.min(next, extent.end());
+				keep(extent.slice(position, gapEnd));
+				position = gapEnd;
+			}
+		}
+		return dirtyBytes - before;
+	}
+
+	synchronized long dirtyBytes() {
+		return dirtyBytes;
+	}
+
+	/**
+	 * @return <code>long</code> with the end of the furthest write, the size
+	 *         of the object at least until iRODS registers it
+	 */
+	synchronized long highWater() {
+		return highWater;
+	}
+
+	synchronized long lastWriteMillis() {
+		return lastWriteMillis;
+	}
+
+	int getUid() {
+		return uid;
+	}
+
+	Callable<OpenFile> getOpener() {
+		return opener;
+	}
+
+	private void keep(final Extent extent) {
+		extents.put(extent.offset, extent);
+		dirtyBytes += extent.length;
+	}
+
+	/**
+	 * A contiguous run of dirty data
+	 */
+	static final class Extent {
+		private final long offset;
+		private byte[] buffer;
+		private int length;
+
+		private Extent(final long offset, final int capacity) {
+			this.offset = offset;
+			this.buffer = new byte[capacity];
+		}
+
+		/**
+		 * Copy data in at a position from the start of the extent up to its
+		 * end, growing it if needed
+		 */
+		private void put(final long position, final byte[] data, final int dataOffset, final int count) {
+			int at = (int) (position - offset);
+			int end = at + count;
+			if (end > buffer.length) {
+				// double so streaming appends copy each byte a bounded number
+				// of times
+				byte[] grown = new byte[Math.max(end, (int) Math.min(Integer.MAX_VALUE - 8, 2L * buffer.length))];
+				System.arraycopy(buffer, 0, grown, 0, length);
+				buffer = grown;
+			}
+			System.arraycopy(data, dataOffset, buffer, at, count);
+			length = Math.max(length, end);
+		}
+
+		private Extent slice(final long from, final long to) {
+			if (from == offset && to == end()) {
+				return this;
+			}
+
+			Extent slice = new Extent(from, (int) (to - from));
+			slice.put(from, buffer, (int) (from - offset), (int) (to - from));
+			return slice;
+		}
+
+		long getOffset() {
+			return offset;
+		}
+
+		byte[] getBuffer() {
+			return buffer;
+		}
+
+		int getLength() {
+			return length;
+		}
+
+		long end() {
+			return offset + length;
+		}
+	}
+
+}
@@ -0,0 +1,8 @@
+/**
+ * Data path to iRODS: open descriptors shared across NFS READ and WRITE
+ * calls, and the buffering around them
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+package org.irods.jargon.nfs.vfs.io;
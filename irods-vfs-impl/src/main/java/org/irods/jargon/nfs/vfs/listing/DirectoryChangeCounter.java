@@ -0,0 +1,78 @@
+package org.irods.jargon.nfs.vfs.listing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Counts changes made through this gateway to each directory, one input to
+ * the READDIR cookie verifier. iRODS does not reliably move a collection's
+ * modify time when its members change, so the modify time alone would let
+ * clients keep stale listings.
+ * <p/>
+ * Versions come from one sequence shared by all directories. Only recently
+ * changed directories are tracked, a directory that falls out reports the
+ * highest version evicted so far, so its version can move forward but never
+ * back to a value a client may have cached.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class DirectoryChangeCounter {
+
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong evictedVersion = new AtomicLong();
+	private final Cache<Long, Long> versions;
+
+	/**
+	 * @param maximumSize
+	 *            <code>long</code> with the number of directories tracked
+	 */
+	public DirectoryChangeCounter(final long maximumSize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive");
+		}
+
+		versions = CacheBuilder.newBuilder().maximumSize(maximumSize)
+				.removalListener(new RemovalListener<Long, Long>() {
+					@Override
+					public void onRemoval(final RemovalNotification<Long, Long> notification) {
+						if (!notification.wasEvicted()) {
+							return;
+						}
+
+						long version = notification.getValue();
+						long floor = evictedVersion.get();
+						while (version > floor && !evictedVersion.compareAndSet(floor, version)) {
+							floor = evictedVersion.get();
+						}
+					}
+				}).build();
+	}
+
+	/**
+	 * @param directoryInode
+	 *            <code>long</code> with the inode number of a directory whose
+	 *            contents changed
+	 */
+	public void changed(final long directoryInode) {
+		versions.put(directoryInode, sequence.incrementAndGet());
+	}
+
+	/**
+	 * @param directoryInode
+	 *            <code>long</code> with the directory inode number
+	 * @return <code>long</code> that changes whenever the directory does
+	 */
+	public long versionOf(final long directoryInode) {
+		Long version = versions.getIfPresent(directoryInode);
+		if (version == null) {
+			return evictedVersion.get();
+		}
+		return version;
+	}
+
+}
@@ -0,0 +1,192 @@
+package org.irods.jargon.nfs.vfs.listing;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.irods.jargon.nfs.vfs.cache.Invalidations;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Short lived snapshot of the recently fetched listing pages of each
+ * directory, keyed by directory inode and verifier. READDIR continuations
+ * resume from the page the previous call was reading, and many clients
+ * listing the same hot directory are served from memory. An iRODS query
+ * returns far more entries than fit in one READDIR reply.
+ * <p/>
+ * A directory holds one snapshot, for its current verifier, a page with a
+ * new verifier replaces the old snapshot. The cache is bounded by the total
+ * number of entries held and each directory by a number of pages, when a
+ * directory is over its limit the page furthest back in the listing is
+ * dropped. Snapshots expire a fixed time after they are created, which
+ * bounds how stale the attributes in them can be.
+ * <p/>
+ * Callers invalidate a directory when they change its contents, and pass an
+ * {@link #epoch()} taken before a fetch to
+ * {@link #put(long, long, ListingPage, long)} so a page that raced with an
+ * invalidation of its directory is not kept.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class DirectoryCursorCache {
+
+	private final Cache<Long, Snapshot> directories;
+	private final int pagesPerDirectory;
+	private final Invalidations invalidations = new Invalidations();
+
+	/**
+	 * @param maximumEntries
+	 *            <code>long</code> with the number of directory entries to
+	 *            keep across all directories
+	 * @param pagesPerDirectory
+	 *            <code>int</code> with the number of pages kept per directory
+	 * @param ttlMillis
+	 *            <code>long</code> with how long a snapshot is kept
+	 */
+	public DirectoryCursorCache(final long maximumEntries, final int pagesPerDirectory, final long ttlMillis) {
+		if (maximumEntries < 0) {
+			throw new IllegalArgumentException("negative maximumEntries");
+		}
+
+		if (pagesPerDirectory <= 0) {
+			throw new IllegalArgumentException("pagesPerDirectory must be positive");
+		}
+
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException("negative ttl");
+		}
+
+		this.pagesPerDirectory = pagesPerDirectory;
+		directories = CacheBuilder.newBuilder().maximumWeight(maximumEntries).weigher(new Weigher<Long, Snapshot>() {
+			@Override
+			public int weigh(final Long key, final Snapshot value) {
+				return value.weight();
+			}
+		}).expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS).build();
+	}
+
+	/**
+	 * Find a cached page holding a listing position
+	 *
+	 * @param directoryInode
+	 *            <code>long</code> with the directory inode number
+	 * @param verifier
+	 *            <code>long</code> with the current directory verifier
+	 * @param dataObjects
+	 *            <code>boolean</code> if the position is in the data object
+	 *            list
+	 * @param offset
+	 *            <code>int</code> with the offset in that list
+	 * @return {@link ListingPage} that covers the position, or
+	 *         <code>null</code>
+	 */
+	public ListingPage find(final long directoryInode, final long verifier, final boolean dataObjects,
+			final int offset) {
+		Snapshot snapshot = directories.getIfPresent(directoryInode);
+		if (snapshot == null || snapshot.verifier != verifier) {
+			return null;
+		}
+
+		Map.Entry<Long, ListingPage> floor = snapshot.pages.floorEntry(ListingCookies.cookieOf(dataObjects, offset));
+		if (floor == null || !floor.getValue().covers(dataObjects, offset)) {
+			return null;
+		}
+		return floor.getValue();
+	}
+
+	/**
+	 * @return <code>long</code> to pass to
+	 *         {@link #put(long, long, ListingPage, long)}, taken before the
+	 *         fetch
+	 */
+	public long epoch() {
+		return invalidations.epoch();
+	}
+
+	/**
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @return <code>long</code> that changes whenever the inode is
+	 *         invalidated
+	 */
+	public long version(final long inodeNumber) {
+		return invalidations.version(inodeNumber);
+	}
+
+	/**
+	 * @param directoryInode
+	 *            <code>long</code> with the directory inode number
+	 * @param verifier
+	 *            <code>long</code> with the directory verifier the page was
+	 *            listed under
+	 * @param page
+	 *            {@link ListingPage} just fetched from iRODS
+	 * @param epoch
+	 *            <code>long</code> from {@link #epoch()} taken before the fetch
+	 */
+	public void put(final long directoryInode, final long verifier, final ListingPage page, final long epoch) {
+		if (page == null) {
+			throw new IllegalArgumentException("null page");
+		}
+
+		if (!invalidations.isCurrent(directoryInode, epoch)) {
+			return;
+		}
+
+		Snapshot snapshot = directories.getIfPresent(directoryInode);
+		if (snapshot == null || snapshot.verifier != verifier) {
+			snapshot = new Snapshot(verifier);
+		}
+
+		snapshot.pages.put(ListingCookies.cookieOf(page.isDataObjects(), page.getStartOffset()), page);
+		while (snapshot.pages.size() > pagesPerDirectory) {
+			snapshot.pages.pollFirstEntry();
+		}
+
+		// put again so the cache weighs the snapshot with the new page
+		directories.put(directoryInode, snapshot);
+
+		// an invalidation may have slipped in between the check and the put
+		if (!invalidations.isCurrent(directoryInode, epoch)) {
+			directories.invalidate(directoryInode);
+		}
+	}
+
+	/**
+	 * Drop the snapshot of a directory whose contents changed
+	 *
+	 * @param directoryInode
+	 *            <code>long</code> with the directory inode number
+	 */
+	public void invalidate(final long directoryInode) {
+		invalidations.invalidate(directoryInode);
+		directories.invalidate(directoryInode);
+	}
+
+	public void invalidateAll() {
+		invalidations.invalidateAll();
+		directories.invalidateAll();
+	}
+
+	private static final class Snapshot {
+		private final long verifier;
+		private final ConcurrentSkipListMap<Long, ListingPage> pages = new ConcurrentSkipListMap<>();
+
+		private Snapshot(final long verifier) {
+			this.verifier = verifier;
+		}
+
+		private int weight() {
+			int weight = 1;
+			for (ListingPage page : pages.values()) {
+				weight += page.getEntries().size();
+			}
+			return weight;
+		}
+	}
+
+}
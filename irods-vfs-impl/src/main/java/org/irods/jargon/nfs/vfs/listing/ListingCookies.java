@@ -0,0 +1,77 @@
+package org.irods.jargon.nfs.vfs.listing;
+
+import org.dcache.nfs.status.BadCookieException;
+
+/**
+ * READDIR cookies that encode a position in the iRODS listing of a
+ * collection. iRODS lists sub-collections and data objects with separate
+ * queries, each with its own offset, so the cookie carries which of the two
+ * lists the entry came from and its offset there. Any cookie can be resumed
+ * without server side state.
+ * <p/>
+ * Cookies 1 and 2 are reserved by NFS, numbering starts at 3.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public final class ListingCookies {
+
+	private static final long COOKIE_BASE = 3;
+	private static final long DATA_OBJECT_FLAG = 1L << 40;
+	private static final long MAX_OFFSET = DATA_OBJECT_FLAG - COOKIE_BASE;
+
+	private ListingCookies() {
+	}
+
+	/**
+	 * @param dataObjects
+	 *            <code>boolean</code> if the entry is in the data object list
+	 * @param offset
+	 *            <code>long</code> with the entry's offset in its list
+	 * @return <code>long</code> with the cookie
+	 */
+	public static long cookieOf(final boolean dataObjects, final long offset) {
+		if (offset < 0 || offset >= MAX_OFFSET) {
+			throw new IllegalArgumentException("offset out of range:" + offset);
+		}
+		return (dataObjects ? DATA_OBJECT_FLAG : 0) + COOKIE_BASE + offset;
+	}
+
+	/**
+	 * Check a cookie sent back by a client
+	 *
+	 * @param cookie
+	 *            <code>long</code> with the cookie, 0 for the start
+	 * @throws BadCookieException
+	 *             if it is not a cookie handed out by {@link #cookieOf}
+	 */
+	public static void validate(final long cookie) throws BadCookieException {
+		if (cookie == 0) {
+			return;
+		}
+
+		long position = cookie & ~DATA_OBJECT_FLAG;
+		if (cookie < 0 || position < COOKIE_BASE || position - COOKIE_BASE >= MAX_OFFSET) {
+			throw new BadCookieException("bad cookie:" + cookie);
+		}
+	}
+
+	/**
+	 * @param cookie
+	 *            <code>long</code> with a valid non-zero cookie
+	 * @return <code>boolean</code> if the entry is in the data object list
+	 */
+	public static boolean isDataObject(final long cookie) {
+		return (cookie & DATA_OBJECT_FLAG) != 0;
+	}
+
+	/**
+	 * @param cookie
+	 *            <code>long</code> with a valid non-zero cookie
+	 * @return <code>long</code> with the entry's offset in its list
+	 */
+	public static long offsetOf(final long cookie) {
+		return (cookie & ~DATA_OBJECT_FLAG) - COOKIE_BASE;
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.irods.jargon.nfs.vfs.listing;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.dcache.nfs.vfs.DirectoryEntry;
+
+/**
+ * One page of a collection listing as returned by a single iRODS query,
+ * already turned into directory entries
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class ListingPage {
+
+	private final boolean dataObjects;
+	private final int startOffset;
+	private final List<DirectoryEntry> entries;
+	private final boolean last;
+
+	/**
+	 * @param dataObjects
+	 *            <code>boolean</code> if the page is from the data object list
+	 *            rather than the sub-collection list
+	 * @param startOffset
+	 *            <code>int</code> with the offset of the first entry
+	 * @param entries
+	 *            <code>List</code> of {@link DirectoryEntry}, with cookies from
+	 *            {@link ListingCookies}
+	 * @param last
+	 *            <code>boolean</code> if no entries follow in this list
+	 */
+	public ListingPage(final boolean dataObjects, final int startOffset, final List<DirectoryEntry> entries,
+			final boolean last) {
+		if (startOffset < 0) {
+			throw new IllegalArgumentException("negative startOffset");
+		}
+
+		if (entries == null) {
+			throw new IllegalArgumentException("null entries");
+		}
+
+		this.dataObjects = dataObjects;
+		this.startOffset = startOffset;
+		this.entries = Collections.unmodifiableList(entries);
+		this.last = last;
+	}
+
+	public boolean isDataObjects() {
+		return dataObjects;
+	}
+
+	public int getStartOffset() {
+		return startOffset;
+	}
+
+	public List<DirectoryEntry> getEntries() {
+		return entries;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+
+	/**
+	 * @return <code>int</code> with the offset of the entry after this page
+	 */
+	public int getNextOffset() {
+		return startOffset + entries.size();
+	}
+
+	/**
+	 * @param dataObjects
+	 *            <code>boolean</code> if the offset is in the data object list
+	 * @param offset
+	 *            <code>int</code> with an offset in that list
+	 * @return <code>boolean</code> if this page holds that offset, or is the
+	 *         last page and the offset is just past its end
+	 */
+	public boolean covers(final boolean dataObjects, final int offset) {
+		if (this.dataObjects != dataObjects || offset < startOffset) {
+			return false;
+		}
+		return offset < getNextOffset() || (last && offset == getNextOffset());
+	}
+
+}
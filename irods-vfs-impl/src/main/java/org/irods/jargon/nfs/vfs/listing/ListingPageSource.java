@@ -0,0 +1,37 @@
+package org.irods.jargon.nfs.vfs.listing;
+
+import java.io.IOException;
+
+import org.dcache.nfs.vfs.DirectoryEntry;
+
+/**
+ * Fetches one page of a collection listing from iRODS
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public interface ListingPageSource {
+
+	/**
+	 * @param dataObjects
+	 *            <code>boolean</code> to list data objects rather than
+	 *            sub-collections
+	 * @param offset
+	 *            <code>int</code> with the offset of the first entry wanted
+	 * @return {@link ListingPage} starting at the offset
+	 * @throws IOException
+	 */
+	ListingPage fetch(boolean dataObjects, int offset) throws IOException;
+
+	/**
+	 * Pages are shared by every client listing the directory, each entry
+	 * passes through here on its way to the client that asked
+	 *
+	 * @param entry
+	 *            {@link DirectoryEntry} from a shared page
+	 * @return {@link DirectoryEntry} as the caller should see it
+	 * @throws IOException
+	 */
+	DirectoryEntry entryFor(DirectoryEntry entry) throws IOException;
+
+}
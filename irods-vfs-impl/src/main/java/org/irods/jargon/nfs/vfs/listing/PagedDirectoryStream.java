@@ -0,0 +1,178 @@
+package org.irods.jargon.nfs.vfs.listing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.primitives.Longs;
+
+/**
+ * {@link DirectoryStream} that pages through the iRODS listing of a
+ * collection as it is iterated, starting after a READDIR cookie. Only the
+ * pages the client actually reads are fetched, and pages are shared through
+ * a {@link DirectoryCursorCache} under the directory verifier, so a
+ * continuation picks up the page the previous READDIR stopped in.
+ * <p/>
+ * Sub-collections are listed first, then data objects.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class PagedDirectoryStream extends DirectoryStream {
+
+	private final byte[] verifier;
+	private final long verifierKey;
+	private final long directoryInode;
+	private final long fromCookie;
+	private final ListingPageSource source;
+	private final DirectoryCursorCache cursors;
+	private final ListingPage firstPage;
+
+	/**
+	 * Create the stream and fetch its first page, so that errors listing the
+	 * collection are reported by the caller rather than while iterating
+	 *
+	 * @param verifier
+	 *            <code>byte[]</code> with the current 8 byte directory
+	 *            verifier, pages are shared with streams under the same
+	 *            verifier
+	 * @param directoryInode
+	 *            <code>long</code> with the directory inode number
+	 * @param fromCookie
+	 *            <code>long</code> with the cookie to list after, 0 for the
+	 *            start, already checked with {@link ListingCookies#validate}
+	 * @param source
+	 *            {@link ListingPageSource} that queries iRODS
+	 * @param cursors
+	 *            {@link DirectoryCursorCache} with recently fetched pages
+	 * @throws IOException
+	 */
+	public PagedDirectoryStream(final byte[] verifier, final long directoryInode, final long fromCookie,
+			final ListingPageSource source, final DirectoryCursorCache cursors) throws IOException {
+		super(verifier, Collections.<DirectoryEntry>emptyList());
+
+		if (verifier == null || verifier.length != Longs.BYTES) {
+			throw new IllegalArgumentException("verifier must be 8 bytes");
+		}
+
+		if (source == null) {
+			throw new IllegalArgumentException("null source");
+		}
+
+		if (cursors == null) {
+			throw new IllegalArgumentException("null cursors");
+		}
+
+		this.verifier = verifier;
+		this.verifierKey = Longs.fromByteArray(verifier);
+		this.directoryInode = directoryInode;
+		this.fromCookie = fromCookie;
+		this.source = source;
+		this.cursors = cursors;
+		this.firstPage = pageAt(startsInDataObjects(fromCookie), startOffset(fromCookie));
+	}
+
+	private PagedDirectoryStream(final PagedDirectoryStream stream, final long fromCookie) {
+		super(stream.verifier, Collections.<DirectoryEntry>emptyList());
+		this.verifier = stream.verifier;
+		this.verifierKey = stream.verifierKey;
+		this.directoryInode = stream.directoryInode;
+		this.fromCookie = fromCookie;
+		this.source = stream.source;
+		this.cursors = stream.cursors;
+		this.firstPage = null;
+	}
+
+	@Override
+	public Iterator<DirectoryEntry> iterator() {
+		return new PageIterator();
+	}
+
+	/**
+	 * Every entry from the cookie on. This fetches all remaining pages, READDIR
+	 * only iterates the stream.
+	 */
+	@Override
+	public NavigableSet<DirectoryEntry> getEntries() {
+		NavigableSet<DirectoryEntry> entries = new TreeSet<>();
+		for (DirectoryEntry entry : this) {
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	@Override
+	public DirectoryStream tail(final long fromCookie) {
+		if (fromCookie == this.fromCookie) {
+			return this;
+		}
+		return new PagedDirectoryStream(this, fromCookie);
+	}
+
+	private ListingPage pageAt(final boolean dataObjects, final int offset) throws IOException {
+		ListingPage page = cursors.find(directoryInode, verifierKey, dataObjects, offset);
+		if (page != null) {
+			return page;
+		}
+
+		long epoch = cursors.epoch();
+		page = source.fetch(dataObjects, offset);
+		cursors.put(directoryInode, verifierKey, page, epoch);
+		return page;
+	}
+
+	private static boolean startsInDataObjects(final long cookie) {
+		return cookie != 0 && ListingCookies.isDataObject(cookie);
+	}
+
+	private static int startOffset(final long cookie) {
+		if (cookie == 0) {
+			return 0;
+		}
+		return (int) ListingCookies.offsetOf(cookie) + 1;
+	}
+
+	private class PageIterator extends AbstractIterator<DirectoryEntry> {
+
+		private boolean dataObjects = startsInDataObjects(fromCookie);
+		private int offset = startOffset(fromCookie);
+		private ListingPage page = firstPage;
+
+		@Override
+		protected DirectoryEntry computeNext() {
+			try {
+				while (true) {
+					if (page == null) {
+						page = pageAt(dataObjects, offset);
+					}
+
+					int index = offset - page.getStartOffset();
+					if (index < page.getEntries().size()) {
+						offset++;
+						return source.entryFor(page.getEntries().get(index));
+					}
+
+					if (!page.isLast() && !page.getEntries().isEmpty()) {
+						page = null; // fetch the next page at offset
+					} else if (!dataObjects) {
+						dataObjects = true;
+						offset = 0;
+						page = null;
+					} else {
+						return endOfData();
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+}
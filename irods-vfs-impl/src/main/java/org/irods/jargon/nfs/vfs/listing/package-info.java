@@ -0,0 +1,8 @@
+/**
+ * Paged directory listing, so READDIR on a very large collection streams
+ * through the iRODS listing instead of materializing it per call
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+package org.irods.jargon.nfs.vfs.listing;
@@ -0,0 +1,124 @@
+package org.irods.jargon.nfs.vfs.staging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local file holding staged data at the same offsets as in the data object.
+ * It is accessed through memory mapped regions, mapped on first use. Parts
+ * never written stay sparse on disk.
+ * <p/>
+ * Mapping a region extends the file to the end of the region, so the length
+ * on disk is not the length of the data. {@link #truncate(long)} sets it
+ * before the file is uploaded whole. Writes extend the file first, so they
+ * never touch a mapped page beyond its end.
+ * <p/>
+ * Not thread safe, {@link StagedFile} guards it.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+class SpoolFile implements Closeable {
+
+	static final int REGION_SIZE = 64 * 1024 * 1024;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final List<MappedByteBuffer> regions = new ArrayList<>();
+	private long length;
+
+	SpoolFile(final File file) throws IOException {
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+		this.length = channel.size();
+	}
+
+	void write(final long offset, final byte[] data, final int dataOffset, final int count) throws IOException {
+		long end = offset + count;
+		if (end > length) {
+			randomAccessFile.setLength(end);
+			length = end;
+		}
+
+		int done = 0;
+		while (done < count) {
+			long position = offset + done;
+			ByteBuffer region = region(position).duplicate();
+			int at = (int) (position % REGION_SIZE);
+			int chunk = Math.min(count - done, REGION_SIZE - at);
+			region.position(at);
+			region.put(data, dataOffset + done, chunk);
+			done += chunk;
+		}
+	}
+
+	void read(final long offset, final byte[] data, final int dataOffset, final int count) throws IOException {
+		int done = 0;
+		while (done < count) {
+			long position = offset + done;
+			ByteBuffer region = region(position).duplicate();
+			int at = (int) (position % REGION_SIZE);
+			int chunk = Math.min(count - done, REGION_SIZE - at);
+			region.position(at);
+			region.get(data, dataOffset + done, chunk);
+			done += chunk;
+		}
+	}
+
+	/**
+	 * Write mapped pages to disk
+	 */
+	void force() throws IOException {
+		for (MappedByteBuffer region : regions) {
+			if (region != null) {
+				region.force();
+			}
+		}
+		channel.force(true);
+	}
+
+	/**
+	 * Set the length on disk, only to lengths data was written up to
+	 */
+	void truncate(final long size) throws IOException {
+		force();
+		randomAccessFile.setLength(size);
+		length = size;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// mappings go when they are collected, Java has no unmap
+		regions.clear();
+		randomAccessFile.close();
+	}
+
+	private MappedByteBuffer region(final long position) throws IOException {
+		int index = (int) (position / REGION_SIZE);
+		while (regions.size() <= index) {
+			regions.add(null);
+		}
+
+		MappedByteBuffer region = regions.get(index);
+		if (region == null) {
+			region = channel.map(FileChannel.MapMode.READ_WRITE, (long) index * REGION_SIZE, REGION_SIZE);
+			regions.set(index, region);
+			length = Math.max(length, channel.size());
+		}
+		return region;
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.irods.jargon.nfs.vfs.staging;
+
+import java.io.IOException;
+
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.packinstr.TransferOptions;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+import org.irods.jargon.core.transfer.TransferControlBlock;
+import org.irods.jargon.nfs.vfs.io.StreamLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Range;
+
+/**
+ * Moves staged data to iRODS as the user who wrote it. A spool holding the
+ * whole object is put as a file, which lets Jargon use parallel transfer
+ * threads for large objects. Otherwise the dirty ranges are written in place
+ * through a descriptor.
+ * <p/>
+ * Runs on staging upload threads, each has its own Jargon connection. A put
+ * uses as many transfer threads as the {@link StreamLimiter} grants the
+ * user, so uploads share the gateway's streams with parallel reads.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class SpoolUploader {
+
+	private static final Logger log = LoggerFactory.getLogger(SpoolUploader.class);
+
+	private static final int RANGE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Finds the iRODS account of a user, also for users that have not logged
+	 * in since a restart
+	 */
+	public interface AccountResolver {
+		IRODSAccount accountFor(int uid) throws IOException;
+	}
+
+	private final IRODSAccessObjectFactory irodsAccessObjectFactory;
+	private final AccountResolver accountResolver;
+	private final StreamLimiter streamLimiter;
+
+	/**
+	 * @param irodsAccessObjectFactory
+	 *            {@link IRODSAccessObjectFactory}
+	 * @param accountResolver
+	 *            {@link AccountResolver} for the uploading user
+	 * @param streamLimiter
+	 *            {@link StreamLimiter} bounding concurrent transfer streams
+	 */
+	public SpoolUploader(final IRODSAccessObjectFactory irodsAccessObjectFactory,
+			final AccountResolver accountResolver, final StreamLimiter streamLimiter) {
+		if (irodsAccessObjectFactory == null) {
+			throw new IllegalArgumentException("null irodsAccessObjectFactory");
+		}
+
+		if (accountResolver == null) {
+			throw new IllegalArgumentException("null accountResolver");
+		}
+
+		if (streamLimiter == null) {
+			throw new IllegalArgumentException("null streamLimiter");
+		}
+
+		this.irodsAccessObjectFactory = irodsAccessObjectFactory;
+		this.accountResolver = accountResolver;
+		this.streamLimiter = streamLimiter;
+	}
+
+	void upload(final StagedFile file, final StagedFile.Upload upload) throws IOException {
+		IRODSAccount account = accountResolver.accountFor(file.getUid());
+		if (account == null) {
+			throw new IOException("no iRODS account for uid " + file.getUid());
+		}
+
+		int streams = streamLimiter.acquire(file.getUid(),
+				upload.whole ? streamLimiter.getMaxStreamsPerClient() : 1);
+		try {
+			if (upload.whole) {
+				put(account, file, upload, streams);
+			} else {
+				writeRanges(account, file, upload);
+			}
+		} catch (JargonException e) {
+			throw new IOException("upload of " + file.getIrodsPath() + " failed", e);
+		} finally {
+			streamLimiter.release(file.getUid(), streams);
+			irodsAccessObjectFactory.closeSessionAndEatExceptions();
+		}
+	}
+
+	private void put(final IRODSAccount account, final StagedFile file, final StagedFile.Upload upload,
+			final int streams) throws JargonException {
+		log.debug("putting {} bytes to {} over up to {} streams", upload.size, file.getIrodsPath(), streams);
+		IRODSFile target = irodsAccessObjectFactory.getIRODSFileFactory(account)
+				.instanceIRODSFile(file.getIrodsPath());
+
+		TransferControlBlock transferControlBlock = irodsAccessObjectFactory
+				.buildDefaultTransferControlBlockBasedOnJargonProperties();
+		TransferOptions transferOptions = new TransferOptions(transferControlBlock.getTransferOptions());
+		transferOptions.setForceOption(TransferOptions.ForceOption.USE_FORCE);
+		// Jargon decides by size whether the put goes parallel at all
+		transferOptions.setUseParallelTransfer(streams > 1);
+		transferOptions.setMaxThreads(streams);
+		transferControlBlock.setTransferOptions(transferOptions);
+
+		file.lockForUpload();
+		try {
+			irodsAccessObjectFactory.getDataTransferOperations(account).putOperation(file.getSpoolFile(), target,
+					null, transferControlBlock);
+		} finally {
+			file.unlockForUpload();
+		}
+	}
+
+	private void writeRanges(final IRODSAccount account, final StagedFile file, final StagedFile.Upload upload)
+			throws JargonException, IOException {
+		IRODSRandomAccessFile randomAccessFile = irodsAccessObjectFactory.getIRODSFileFactory(account)
+				.instanceIRODSRandomAccessFile(file.getIrodsPath(), OpenFlags.READ_WRITE);
+		try {
+			byte[] buffer = new byte[RANGE_BUFFER_SIZE];
+			for (Range<Long> range : upload.ranges) {
+				log.debug("writing {} of {}", range, file.getIrodsPath());
+				randomAccessFile.seek(range.lowerEndpoint());
+				for (long position = range.lowerEndpoint(); position < range.upperEndpoint();) {
+					int count = (int) Math.min(buffer.length, range.upperEndpoint() - position);
+					file.lockForUpload();
+					try {
+						file.readSpool(position, buffer, count);
+					} finally {
+						file.unlockForUpload();
+					}
+					randomAccessFile.write(buffer, 0, count);
+					position += count;
+				}
+			}
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+}
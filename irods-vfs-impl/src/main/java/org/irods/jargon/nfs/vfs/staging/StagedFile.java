@@ -0,0 +1,407 @@
+package org.irods.jargon.nfs.vfs.staging;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+/**
+ * One data object being written through the staging area: its spool file,
+ * the ranges written to it and the ranges not yet uploaded.
+ * <p/>
+ * The state is recorded next to the spool file on every COMMIT, so a
+ * restarted gateway can finish the upload. Ranges are half open,
+ * <code>[start, end)</code>.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+class StagedFile {
+
+	static final String SPOOL_SUFFIX = ".spool";
+	static final String STATE_SUFFIX = ".state";
+
+	private final long inodeNumber;
+	private final String irodsPath;
+	private final int uid;
+	private final long baseSize;
+	private final SpoolFile spool;
+	private final File stateFile;
+	private final RangeSet<Long> written;
+	private final RangeSet<Long> dirty;
+	private long highWater;
+	private long lastWriteMillis;
+	private boolean closed = false;
+
+	// writers and uploads that truncate take the write lock, readers and
+	// uploads the read lock
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// guarded by the monitor of this object, for the staging area
+	boolean queued = false;
+	boolean uploading = false;
+	boolean uploadAgain = false;
+	int failedUploads = 0;
+	// set when uploads gave up, until a WRITE or COMMIT reports it
+	IOException failure = null;
+
+	private StagedFile(final long inodeNumber, final String irodsPath, final int uid, final long baseSize,
+			final SpoolFile spool, final File stateFile, final RangeSet<Long> written, final RangeSet<Long> dirty,
+			final long highWater) {
+		this.inodeNumber = inodeNumber;
+		this.irodsPath = irodsPath;
+		this.uid = uid;
+		this.baseSize = baseSize;
+		this.spool = spool;
+		this.stateFile = stateFile;
+		this.written = written;
+		this.dirty = dirty;
+		this.highWater = highWater;
+		this.lastWriteMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Start staging a data object
+	 *
+	 * @param directory
+	 *            {@link File} with the spool directory
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param irodsPath
+	 *            <code>String</code> with the iRODS absolute path to upload to
+	 * @param uid
+	 *            <code>int</code> with the user uploading
+	 * @param baseSize
+	 *            <code>long</code> with the size of the object in iRODS
+	 */
+	static StagedFile create(final File directory, final long inodeNumber, final String irodsPath, final int uid,
+			final long baseSize) throws IOException {
+		String name = Long.toHexString(inodeNumber) + "-" + Long.toHexString(System.nanoTime());
+		return new StagedFile(inodeNumber, irodsPath, uid, baseSize,
+				new SpoolFile(new File(directory, name + SPOOL_SUFFIX)), new File(directory, name + STATE_SUFFIX),
+				TreeRangeSet.<Long> create(), TreeRangeSet.<Long> create(), 0);
+	}
+
+	/**
+	 * Load a staged file left by an earlier run
+	 *
+	 * @param stateFile
+	 *            {@link File} written by {@link #persist()}
+	 */
+	static StagedFile recover(final File stateFile) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(stateFile)) {
+			properties.load(in);
+		}
+
+		String name = stateFile.getName();
+		File spoolFile = new File(stateFile.getParentFile(),
+				name.substring(0, name.length() - STATE_SUFFIX.length()) + SPOOL_SUFFIX);
+		if (!spoolFile.exists()) {
+			throw new IOException("no spool file for " + stateFile);
+		}
+
+		try {
+			return new StagedFile(Long.parseLong(properties.getProperty("inode")), properties.getProperty("path"),
+					Integer.parseInt(properties.getProperty("uid")), Long.parseLong(properties.getProperty("baseSize")),
+					new SpoolFile(spoolFile), stateFile, parseRanges(properties.getProperty("written")),
+					parseRanges(properties.getProperty("dirty")), Long.parseLong(properties.getProperty("highWater")));
+		} catch (RuntimeException e) {
+			throw new IOException("bad staging state " + stateFile, e);
+		}
+	}
+
+	/**
+	 * @return <code>long</code> with the bytes newly covered, or -1 if the
+	 *         file was uploaded and closed, the caller stages again
+	 */
+	long write(final long offset, final byte[] data, final int dataOffset, final int count) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				return -1;
+			}
+
+			Range<Long> range = Range.closedOpen(offset, offset + count);
+			long added = count - coveredBytes(written.subRangeSet(range));
+			spool.write(offset, data, dataOffset, count);
+			written.add(range);
+			dirty.add(range);
+			highWater = Math.max(highWater, offset + count);
+			lastWriteMillis = System.currentTimeMillis();
+			return added;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy staged data starting at an offset
+	 *
+	 * @return <code>int</code> with the contiguous bytes copied, 0 if the
+	 *         offset was not written here
+	 */
+	int copy(final long offset, final byte[] data, final int dataOffset, final int count) throws IOException {
+		lock.readLock().lock();
+		try {
+			Range<Long> range = written.rangeContaining(offset);
+			if (range == null) {
+				return 0;
+			}
+
+			int length = (int) Math.min(count, range.upperEndpoint() - offset);
+			spool.read(offset, data, dataOffset, length);
+			return length;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return <code>long</code> with the next offset at or after the given
+	 *         one that was written here, or <code>Long.MAX_VALUE</code>
+	 */
+	long nextWritten(final long offset) {
+		lock.readLock().lock();
+		try {
+			RangeSet<Long> after = written.subRangeSet(Range.atLeast(offset));
+			return after.isEmpty() ? Long.MAX_VALUE : after.span().lowerEndpoint();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Put staged data on disk and record the state, after this a restarted
+	 * gateway still uploads it
+	 */
+	synchronized void persist() throws IOException {
+		Properties properties = new Properties();
+		lock.readLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+
+			spool.force();
+			properties.setProperty("inode", String.valueOf(inodeNumber));
+			properties.setProperty("path", irodsPath);
+			properties.setProperty("uid", String.valueOf(uid));
+			properties.setProperty("baseSize", String.valueOf(baseSize));
+			properties.setProperty("highWater", String.valueOf(highWater));
+			properties.setProperty("written", formatRanges(written));
+			properties.setProperty("dirty", formatRanges(dirty));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		File temp = new File(stateFile.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			properties.store(out, "staged upload");
+			out.getFD().sync();
+		}
+		Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Take the ranges to upload. If the spool holds the whole object it is
+	 * trimmed to the object's length so it can be put as a file.
+	 */
+	Upload beginUpload() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				return new Upload(new ArrayList<Range<Long>>(), false, 0);
+			}
+
+			List<Range<Long>> ranges = new ArrayList<>(dirty.asRanges());
+			dirty.clear();
+			long size = Math.max(baseSize, highWater);
+			boolean whole = size > 0 && written.encloses(Range.closedOpen(0L, size));
+			if (whole) {
+				spool.truncate(size);
+			}
+			return new Upload(ranges, whole, size);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * An upload failed, its ranges are dirty again
+	 */
+	void failedUpload(final Upload upload) {
+		lock.writeLock().lock();
+		try {
+			for (Range<Long> range : upload.ranges) {
+				dirty.add(range);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Close the file if nothing was written since the upload began
+	 *
+	 * @return <code>boolean</code> if it was closed and can be deleted
+	 */
+	boolean finishUpload() {
+		lock.writeLock().lock();
+		try {
+			if (!dirty.isEmpty()) {
+				return false;
+			}
+			closed = true;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Close and delete the spool and state files
+	 */
+	void delete() throws IOException {
+		lock.writeLock().lock();
+		try {
+			closed = true;
+			spool.close();
+			Files.deleteIfExists(stateFile.toPath());
+			Files.deleteIfExists(spool.getFile().toPath());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Hold off writers and truncation while the spool is read for an upload
+	 */
+	void lockForUpload() {
+		lock.readLock().lock();
+	}
+
+	void unlockForUpload() {
+		lock.readLock().unlock();
+	}
+
+	/**
+	 * Read spool data for an upload, under {@link #lockForUpload()}
+	 */
+	void readSpool(final long offset, final byte[] data, final int count) throws IOException {
+		spool.read(offset, data, 0, count);
+	}
+
+	long coveredBytes() {
+		lock.readLock().lock();
+		try {
+			return coveredBytes(written);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long highWater() {
+		lock.readLock().lock();
+		try {
+			return highWater;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long lastWriteMillis() {
+		lock.readLock().lock();
+		try {
+			return lastWriteMillis;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	boolean isDirty() {
+		lock.readLock().lock();
+		try {
+			return !dirty.isEmpty();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long getInodeNumber() {
+		return inodeNumber;
+	}
+
+	String getIrodsPath() {
+		return irodsPath;
+	}
+
+	int getUid() {
+		return uid;
+	}
+
+	File getSpoolFile() {
+		return spool.getFile();
+	}
+
+	private static long coveredBytes(final RangeSet<Long> ranges) {
+		long bytes = 0;
+		for (Range<Long> range : ranges.asRanges()) {
+			bytes += range.upperEndpoint() - range.lowerEndpoint();
+		}
+		return bytes;
+	}
+
+	static String formatRanges(final RangeSet<Long> ranges) {
+		StringBuilder builder = new StringBuilder();
+		for (Range<Long> range : ranges.asRanges()) {
+			if (builder.length() > 0) {
+				builder.append(',');
+			}
+			builder.append(range.lowerEndpoint()).append('-').append(range.upperEndpoint());
+		}
+		return builder.toString();
+	}
+
+	static RangeSet<Long> parseRanges(final String value) {
+		RangeSet<Long> ranges = TreeRangeSet.create();
+		if (value == null || value.isEmpty()) {
+			return ranges;
+		}
+
+		for (String part : value.split(",")) {
+			int dash = part.indexOf('-');
+			ranges.add(Range.closedOpen(Long.parseLong(part.substring(0, dash)),
+					Long.parseLong(part.substring(dash + 1))));
+		}
+		return ranges;
+	}
+
+	/**
+	 * Ranges taken for one upload
+	 */
+	static final class Upload {
+		final List<Range<Long>> ranges;
+		final boolean whole;
+		final long size;
+
+		private Upload(final List<Range<Long>> ranges, final boolean whole, final long size) {
+			this.ranges = ranges;
+			this.whole = whole;
+			this.size = size;
+		}
+	}
+
+}
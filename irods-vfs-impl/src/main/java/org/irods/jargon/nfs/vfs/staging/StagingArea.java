@@ -0,0 +1,567 @@
+package org.irods.jargon.nfs.vfs.staging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.dcache.nfs.status.NoSpcException;
+import org.irods.jargon.nfs.vfs.io.WriteBackCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local disk staging for writes. WRITEs land in a memory mapped
+ * {@link SpoolFile} per data object, which holds gigabytes where the heap
+ * cannot, and which do not wait on iRODS. A COMMIT puts the spool on disk,
+ * records what it holds, and queues an upload. Uploads run in the background,
+ * a spool holding the whole object is put as a file with Jargon's parallel
+ * transfer, otherwise the dirty ranges are written in place.
+ * <p/>
+ * Reads of a staged object are served from the spool where it was written.
+ * Spool usage is bounded by a quota, a WRITE that would exceed it waits for
+ * uploads to free space and then fails with NOSPC. State recorded at COMMIT
+ * survives a restart, staged files found in the directory are uploaded again.
+ * <p/>
+ * A failed upload is retried a limited number of times. After the last one
+ * the staged data is kept until the next WRITE or COMMIT of the file fails
+ * with the error, so the client writes it again, and only then dropped.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public class StagingArea implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(StagingArea.class);
+
+	private final File directory;
+	private final long quotaBytes;
+	private final long quotaWaitMillis;
+	private final long idleMillis;
+	private final long retryMillis;
+	private final int uploadAttempts;
+	private final SpoolUploader uploader;
+	private final WriteBackCache.Listener listener;
+	private final ConcurrentHashMap<Long, StagedFile> staged = new ConcurrentHashMap<>();
+	// files recovered at startup, by iRODS path, until they are uploaded
+	private final ConcurrentHashMap<String, StagedFile> recovered = new ConcurrentHashMap<>();
+	private final Object space = new Object();
+	private long usedBytes = 0;
+	private final ScheduledExecutorService uploads;
+
+	/**
+	 * @param directory
+	 *            {@link File} with the spool directory, created if needed
+	 * @param quotaBytes
+	 *            <code>long</code> with the most bytes staged at once
+	 * @param quotaWaitMillis
+	 *            <code>long</code> with how long a WRITE waits for space
+	 * @param idleMillis
+	 *            <code>long</code> with how long a staged file is not
+	 *            written before it is uploaded without a COMMIT
+	 * @param retryMillis
+	 *            <code>long</code> with the delay before a failed upload is
+	 *            tried again
+	 * @param uploadAttempts
+	 *            <code>int</code> with how often an upload is tried before
+	 *            the staged data is given up
+	 * @param uploadThreads
+	 *            <code>int</code> with the number of concurrent uploads
+	 * @param uploader
+	 *            {@link SpoolUploader} that moves data to iRODS
+	 * @param listener
+	 *            {@link WriteBackCache.Listener} told when data reached iRODS
+	 * @throws IOException
+	 */
+	public StagingArea(final File directory, final long quotaBytes, final long quotaWaitMillis,
+			final long idleMillis, final long retryMillis, final int uploadAttempts, final int uploadThreads,
+			final SpoolUploader uploader, final WriteBackCache.Listener listener) throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("null directory");
+		}
+
+		if (quotaBytes <= 0) {
+			throw new IllegalArgumentException("quotaBytes must be positive");
+		}
+
+		if (idleMillis <= 0 || retryMillis <= 0) {
+			throw new IllegalArgumentException("idleMillis and retryMillis must be positive");
+		}
+
+		if (uploadAttempts <= 0) {
+			throw new IllegalArgumentException("uploadAttempts must be positive");
+		}
+
+		if (uploadThreads <= 0) {
+			throw new IllegalArgumentException("uploadThreads must be positive");
+		}
+
+		if (uploader == null) {
+			throw new IllegalArgumentException("null uploader");
+		}
+
+		if (listener == null) {
+			throw new IllegalArgumentException("null listener");
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create staging directory " + directory);
+		}
+
+		this.directory = directory;
+		this.quotaBytes = quotaBytes;
+		this.quotaWaitMillis = quotaWaitMillis;
+		this.idleMillis = idleMillis;
+		this.retryMillis = retryMillis;
+		this.uploadAttempts = uploadAttempts;
+		this.uploader = uploader;
+		this.listener = listener;
+
+		uploads = Executors.newScheduledThreadPool(uploadThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "irods-staging-upload");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		recover();
+
+		long sweepMillis = Math.max(idleMillis / 2, 100);
+		uploads.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				uploadIdle();
+			}
+		}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stage a WRITE
+	 *
+	 * @param inodeNumber
+	 *            <code>long</code> with the inode number
+	 * @param uid
+	 *            <code>int</code> with the user writing
+	 * @param irodsPath
+	 *            <code>String</code> with the iRODS absolute path
+	 * @param baseSize
+	 *            <code>long</code> with the size of the object in iRODS,
+	 *            used when staging starts
+	 * @param offset
+	 *            <code>long</code> with the file offset
+	 * @param data
+	 *            <code>byte[]</code> with the data
+	 * @param count
+	 *            <code>int</code> with the number of bytes
+	 * @throws NoSpcException
+	 *             if the quota stayed exhausted
+	 * @throws IOException
+	 *             also if uploads of earlier staged data of the file gave up
+	 */
+	public void write(final long inodeNumber, final int uid, final String irodsPath, final long baseSize,
+			final long offset, final byte[] data, final int count) throws IOException {
+		awaitRecovered(irodsPath);
+		StagedFile failed = staged.get(inodeNumber);
+		if (failed != null) {
+			reportFailure(failed);
+		}
+		reserve(count);
+
+		long added;
+		for (;;) {
+			StagedFile file = staged.get(inodeNumber);
+			if (file == null) {
+				StagedFile created = StagedFile.create(directory, inodeNumber, irodsPath, uid, baseSize);
+				file = staged.putIfAbsent(inodeNumber, created);
+				if (file == null) {
+					file = created;
+				} else {
+					created.delete();
+				}
+			}
+
+			try {
+				added = file.write(offset, data, 0, count);
+			} catch (IOException | RuntimeException e) {
+				release(count);
+				throw e;
+			}
+
+			if (added >= 0) {
+				break;
+			}
+			// uploaded and closed under us, stage in a new file
+			staged.remove(inodeNumber, file);
+		}
+
+		// only the bytes not staged before count against the quota
+		release(count - added);
+	}
+
+	/**
+	 * Put the staged data of an inode on disk so it survives a restart
+	 */
+	public void sync(final long inodeNumber) throws IOException {
+		StagedFile file = staged.get(inodeNumber);
+		if (file != null) {
+			file.persist();
+		}
+	}
+
+	/**
+	 * For an NFS COMMIT, put the staged data on disk and queue its upload
+	 *
+	 * @throws IOException
+	 *             if uploads of the staged data gave up, the client has to
+	 *             write it again
+	 */
+	public void commit(final long inodeNumber) throws IOException {
+		StagedFile file = staged.get(inodeNumber);
+		if (file != null && !reportFailure(file)) {
+			file.persist();
+			scheduleUpload(file, 0);
+		}
+	}
+
+	/**
+	 * Upload the staged data of an inode and wait for it, e.g. before it is
+	 * renamed
+	 */
+	public void drain(final long inodeNumber) throws IOException {
+		StagedFile file = staged.get(inodeNumber);
+		if (file != null && !reportFailure(file)) {
+			file.persist();
+			upload(file);
+		}
+	}
+
+	/**
+	 * Upload everything staged below a collection and wait for it, e.g.
+	 * before the collection is renamed
+	 */
+	public void drainBelow(final String collectionPath) throws IOException {
+		String prefix = collectionPath + "/";
+		for (StagedFile file : staged.values()) {
+			if (file.getIrodsPath().startsWith(prefix)) {
+				drain(file.getInodeNumber());
+			}
+		}
+	}
+
+	/**
+	 * Drop staged data without uploading it, because the object is gone
+	 */
+	public void discard(final long inodeNumber) {
+		StagedFile file = staged.remove(inodeNumber);
+		if (file != null) {
+			deleteFile(file);
+		}
+	}
+
+	/**
+	 * Copy staged data starting at an offset
+	 *
+	 * @return <code>int</code> with the contiguous bytes copied, 0 if the
+	 *         offset was not staged
+	 */
+	public int copy(final long inodeNumber, final long offset, final byte[] data, final int dataOffset,
+			final int count) throws IOException {
+		StagedFile file = staged.get(inodeNumber);
+		return file == null ? 0 : file.copy(offset, data, dataOffset, count);
+	}
+
+	/**
+	 * @return <code>long</code> with the next staged offset at or after the
+	 *         given one, <code>Long.MAX_VALUE</code> if there is none
+	 */
+	public long nextStaged(final long inodeNumber, final long offset) {
+		StagedFile file = staged.get(inodeNumber);
+		return file == null ? Long.MAX_VALUE : file.nextWritten(offset);
+	}
+
+	/**
+	 * @return <code>boolean</code> if the inode has staged data
+	 */
+	public boolean isStaged(final long inodeNumber) {
+		return staged.containsKey(inodeNumber);
+	}
+
+	/**
+	 * @return <code>long</code> with the size including staged data, or -1 if
+	 *         nothing is staged
+	 */
+	public long sizeOf(final long inodeNumber) {
+		StagedFile file = staged.get(inodeNumber);
+		return file == null ? -1 : file.highWater();
+	}
+
+	public long usedBytes() {
+		synchronized (space) {
+			return usedBytes;
+		}
+	}
+
+	/**
+	 * Record staged state and stop uploading, anything not uploaded is
+	 * recovered at the next start
+	 */
+	@Override
+	public void close() {
+		uploads.shutdownNow();
+		for (StagedFile file : staged.values()) {
+			try {
+				file.persist();
+			} catch (IOException e) {
+				log.error("could not record staged state of {}", file.getIrodsPath(), e);
+			}
+		}
+	}
+
+	private void scheduleUpload(final StagedFile file, final long delayMillis) {
+		synchronized (file) {
+			if (file.failure != null) {
+				return; // given up, waiting to be reported
+			}
+
+			if (file.queued) {
+				return; // the queued upload takes the new data too
+			}
+
+			if (file.uploading) {
+				file.uploadAgain = true;
+				return;
+			}
+			file.queued = true;
+		}
+
+		uploads.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (file) {
+					file.queued = false;
+				}
+
+				try {
+					upload(file);
+				} catch (IOException | RuntimeException e) {
+					if (giveUp(file, e)) {
+						log.error("upload of {} failed {} times, giving up", file.getIrodsPath(), uploadAttempts, e);
+					} else {
+						log.warn("upload of {} failed, retrying in {} ms", file.getIrodsPath(), retryMillis, e);
+						scheduleUpload(file, retryMillis);
+					}
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Upload a staged file on the calling thread, again while COMMITs arrive
+	 * during the upload
+	 */
+	private void upload(final StagedFile file) throws IOException {
+		synchronized (file) {
+			while (file.uploading) {
+				try {
+					file.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted waiting for upload of " + file.getIrodsPath());
+				}
+			}
+			file.uploading = true;
+			file.uploadAgain = false;
+		}
+
+		boolean again = false;
+		try {
+			do {
+				StagedFile.Upload upload = file.beginUpload();
+				if (upload.ranges.isEmpty()) {
+					break;
+				}
+
+				try {
+					uploader.upload(file, upload);
+				} catch (IOException | RuntimeException e) {
+					file.failedUpload(upload);
+					throw e;
+				} finally {
+					listener.flushed(file.getInodeNumber());
+				}
+			} while (takeUploadAgain(file));
+
+			synchronized (file) {
+				file.failedUploads = 0;
+			}
+
+			// a file discarded meanwhile is in neither map, and already deleted
+			if (file.finishUpload()
+					&& (staged.remove(file.getInodeNumber(), file) || recovered.remove(file.getIrodsPath(), file))) {
+				log.debug("uploaded {}", file.getIrodsPath());
+				deleteFile(file);
+			}
+		} finally {
+			synchronized (file) {
+				file.uploading = false;
+				again = file.uploadAgain;
+				file.notifyAll();
+			}
+		}
+
+		if (again) {
+			scheduleUpload(file, 0);
+		}
+	}
+
+	/**
+	 * Count a failed background upload
+	 *
+	 * @return <code>boolean</code> if it was the last attempt
+	 */
+	private boolean giveUp(final StagedFile file, final Exception e) {
+		synchronized (file) {
+			if (++file.failedUploads < uploadAttempts) {
+				return false;
+			}
+			file.failure = e instanceof IOException ? (IOException) e : new IOException(e);
+			return true;
+		}
+	}
+
+	/**
+	 * Report that uploads of a file gave up, once, and drop its spool
+	 *
+	 * @return <code>boolean</code> if the file gave up and was reported
+	 *         before
+	 * @throws IOException
+	 *             with the upload failure, to the one caller that reports it
+	 */
+	private boolean reportFailure(final StagedFile file) throws IOException {
+		IOException failure;
+		synchronized (file) {
+			failure = file.failure;
+		}
+
+		if (failure == null) {
+			return false;
+		}
+
+		if (staged.remove(file.getInodeNumber(), file) || recovered.remove(file.getIrodsPath(), file)) {
+			deleteFile(file);
+			throw new IOException("upload of staged data of " + file.getIrodsPath() + " failed", failure);
+		}
+		return true;
+	}
+
+	private boolean takeUploadAgain(final StagedFile file) {
+		synchronized (file) {
+			boolean again = file.uploadAgain;
+			file.uploadAgain = false;
+			return again;
+		}
+	}
+
+	private void uploadIdle() {
+		long idleSince = System.currentTimeMillis() - idleMillis;
+		for (StagedFile file : staged.values()) {
+			if (file.isDirty() && file.lastWriteMillis() <= idleSince) {
+				try {
+					file.persist();
+					scheduleUpload(file, 0);
+				} catch (IOException e) {
+					log.warn("could not record staged state of {}", file.getIrodsPath(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Data staged before a restart must reach iRODS before new writes to the
+	 * same object do
+	 */
+	private void awaitRecovered(final String irodsPath) throws IOException {
+		StagedFile file = recovered.get(irodsPath);
+		if (file != null && !reportFailure(file)) {
+			upload(file);
+		}
+	}
+
+	private void recover() {
+		File[] stateFiles = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File file) {
+				return file.getName().endsWith(StagedFile.STATE_SUFFIX);
+			}
+		});
+
+		if (stateFiles == null) {
+			return;
+		}
+
+		for (File stateFile : stateFiles) {
+			try {
+				StagedFile file = StagedFile.recover(stateFile);
+				log.info("recovered staged upload of {}", file.getIrodsPath());
+				recovered.put(file.getIrodsPath(), file);
+				synchronized (space) {
+					usedBytes += file.coveredBytes();
+				}
+				scheduleUpload(file, 0);
+			} catch (IOException e) {
+				log.error("discarding unreadable staging state {}", stateFile, e);
+				if (!stateFile.delete()) {
+					log.warn("could not delete {}", stateFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for space in the quota and take it
+	 */
+	private void reserve(final long bytes) throws IOException {
+		long deadline = System.currentTimeMillis() + quotaWaitMillis;
+		synchronized (space) {
+			while (usedBytes + bytes > quotaBytes) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new NoSpcException("staging area full");
+				}
+
+				try {
+					space.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new NoSpcException("interrupted waiting for staging space");
+				}
+			}
+			usedBytes += bytes;
+		}
+	}
+
+	private void release(final long bytes) {
+		synchronized (space) {
+			usedBytes -= bytes;
+			space.notifyAll();
+		}
+	}
+
+	private void deleteFile(final StagedFile file) {
+		long bytes = file.coveredBytes();
+		try {
+			file.delete();
+		} catch (IOException e) {
+			log.warn("could not delete spool of {}", file.getIrodsPath(), e);
+		}
+		release(bytes);
+	}
+
+}
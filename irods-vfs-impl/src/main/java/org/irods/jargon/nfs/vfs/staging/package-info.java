@@ -0,0 +1,8 @@
+/**
+ * Local disk staging of WRITEs, with background upload to iRODS and recovery
+ * of staged data after a restart
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+package org.irods.jargon.nfs.vfs.staging;
@@ -0,0 +1,340 @@
+package org.irods.jargon.nfs.vfs.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.dcache.nfs.v4.xdr.aceflag4;
+import org.dcache.nfs.v4.xdr.acemask4;
+import org.dcache.nfs.v4.xdr.acetype4;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.v4.xdr.nfsace4;
+import org.dcache.nfs.v4.xdr.utf8str_mixed;
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.protovalues.UserTypeEnum;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+
+/**
+ * Works out what an iRODS ACL lets a user do, and translates between iRODS
+ * ACL entries and NFSv4 ACEs. iRODS only grants, in three steps of read,
+ * write and own, so each step maps to a fixed ACE mask. ACE principals are
+ * iRODS user and group ids, like the uids the gateway hands out.
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public final class IrodsPermissions {
+
+	/**
+	 * Group every iRODS user belongs to
+	 */
+	public static final String PUBLIC_GROUP = "public";
+
+	/**
+	 * Special ACE principals
+	 */
+	public static final String OWNER_WHO = "OWNER@";
+	public static final String GROUP_WHO = "GROUP@";
+	public static final String EVERYONE_WHO = "EVERYONE@";
+
+	private static final int INHERIT_FLAGS = nfs4_prot.ACE4_FILE_INHERIT_ACE | nfs4_prot.ACE4_DIRECTORY_INHERIT_ACE;
+
+	private static final int READ_ACE_MASK = nfs4_prot.ACE4_READ_DATA | nfs4_prot.ACE4_READ_ATTRIBUTES
+			| nfs4_prot.ACE4_READ_NAMED_ATTRS | nfs4_prot.ACE4_READ_ACL | nfs4_prot.ACE4_EXECUTE
+			| nfs4_prot.ACE4_SYNCHRONIZE;
+
+	private static final int WRITE_ACE_MASK = READ_ACE_MASK | nfs4_prot.ACE4_WRITE_DATA | nfs4_prot.ACE4_APPEND_DATA
+			| nfs4_prot.ACE4_WRITE_ATTRIBUTES | nfs4_prot.ACE4_WRITE_NAMED_ATTRS | nfs4_prot.ACE4_DELETE_CHILD
+			| nfs4_prot.ACE4_DELETE;
+
+	private static final int OWN_ACE_MASK = WRITE_ACE_MASK | nfs4_prot.ACE4_WRITE_ACL | nfs4_prot.ACE4_WRITE_OWNER;
+
+	/**
+	 * Unix mode digit each permission rank grants, on a data object and on a
+	 * collection. iRODS has no execute permission, reading a collection lets
+	 * a client search it. ACCESS bits are derived from these, so what a mode
+	 * shows and what ACCESS answers agree.
+	 */
+	private static final int[][] MODE_BITS_BY_RANK = { { 0, 0 }, { 04, 05 }, { 06, 07 }, { 06, 07 } };
+
+	private IrodsPermissions() {
+	}
+
+	/**
+	 * Get the strongest permission an ACL gives a user, directly or through
+	 * one of the user's groups
+	 *
+	 * @param acl
+	 *            <code>List</code> of {@link UserFilePermission} of the object
+	 * @param userName
+	 *            <code>String</code> with the user name
+	 * @param userZone
+	 *            <code>String</code> with the user's zone, blank matches any
+	 *            zone
+	 * @param groups
+	 *            <code>Set</code> of <code>String</code> with the names of the
+	 *            user's groups, {@link #PUBLIC_GROUP} is implied
+	 * @return {@link FilePermissionEnum} with <code>OWN</code>,
+	 *         <code>WRITE</code>, <code>READ</code> or <code>NONE</code>
+	 */
+	public static FilePermissionEnum effectivePermission(final List<UserFilePermission> acl, final String userName,
+			final String userZone, final Set<String> groups) {
+		if (acl == null) {
+			throw new IllegalArgumentException("null acl");
+		}
+
+		if (userName == null || userName.isEmpty()) {
+			throw new IllegalArgumentException("null or empty userName");
+		}
+
+		FilePermissionEnum effective = FilePermissionEnum.NONE;
+		for (UserFilePermission entry : acl) {
+			String name = entry.getUserName();
+			boolean applies = userName.equals(name) && sameZone(userZone, entry.getUserZone())
+					|| PUBLIC_GROUP.equals(name) || groups != null && groups.contains(name);
+			if (applies && rank(entry.getFilePermissionEnum()) > rank(effective)) {
+				effective = entry.getFilePermissionEnum();
+			}
+		}
+		return effective;
+	}
+
+	/**
+	 * Order permissions by what they allow
+	 *
+	 * @param permission
+	 *            {@link FilePermissionEnum}
+	 * @return <code>int</code> with 3 for <code>OWN</code>, 2 for
+	 *         <code>WRITE</code>, 1 for <code>READ</code> and 0 for anything
+	 *         else
+	 */
+	public static int rank(final FilePermissionEnum permission) {
+		if (permission == null) {
+			return 0;
+		}
+
+		switch (permission) {
+		case OWN:
+			return 3;
+		case WRITE:
+			return 2;
+		case READ:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Translate a permission to the NFS ACCESS bits it grants, the same the
+	 * mode from {@link #modeBits(FilePermissionEnum, boolean)} shows: read
+	 * gives read, search gives lookup and execute, write gives modify, extend
+	 * and delete.
+	 *
+	 * @param permission
+	 *            {@link FilePermissionEnum}
+	 * @param collection
+	 *            <code>boolean</code> if the permission is on a collection
+	 * @return <code>int</code> with <code>ACCESS4_*</code> bits
+	 */
+	public static int accessMask(final FilePermissionEnum permission, final boolean collection) {
+		int bits = modeBits(permission, collection);
+		int mask = 0;
+		if ((bits & 04) != 0) {
+			mask |= nfs4_prot.ACCESS4_READ;
+		}
+
+		if ((bits & 01) != 0) {
+			mask |= nfs4_prot.ACCESS4_LOOKUP | nfs4_prot.ACCESS4_EXECUTE;
+		}
+
+		if ((bits & 02) != 0) {
+			mask |= nfs4_prot.ACCESS4_MODIFY | nfs4_prot.ACCESS4_EXTEND | nfs4_prot.ACCESS4_DELETE;
+		}
+		return mask;
+	}
+
+	/**
+	 * Translate a permission to one digit of a Unix mode: read gives read, and
+	 * search for a collection, write adds write. iRODS has no execute
+	 * permission on data objects.
+	 *
+	 * @param permission
+	 *            {@link FilePermissionEnum}
+	 * @param collection
+	 *            <code>boolean</code> if the permission is on a collection
+	 * @return <code>int</code> from 0 to 7
+	 */
+	public static int modeBits(final FilePermissionEnum permission, final boolean collection) {
+		return MODE_BITS_BY_RANK[rank(permission)][collection ? 1 : 0];
+	}
+
+	/**
+	 * @param acl
+	 *            <code>List</code> of {@link UserFilePermission}
+	 * @param userId
+	 *            <code>String</code> with an iRODS user id
+	 * @return {@link FilePermissionEnum} the ACL gives that user by name,
+	 *         leaving groups aside, <code>NONE</code> if it has no entry
+	 */
+	public static FilePermissionEnum permissionOfUserId(final List<UserFilePermission> acl, final String userId) {
+		FilePermissionEnum permission = FilePermissionEnum.NONE;
+		for (UserFilePermission entry : acl) {
+			if (entry.getUserId() != null && entry.getUserId().equals(userId)
+					&& rank(entry.getFilePermissionEnum()) > rank(permission)) {
+				permission = entry.getFilePermissionEnum();
+			}
+		}
+		return permission;
+	}
+
+	/**
+	 * Translate a permission to the ACE mask it grants
+	 *
+	 * @param permission
+	 *            {@link FilePermissionEnum}
+	 * @return <code>int</code> with <code>ACE4_*</code> mask bits
+	 */
+	public static int aceMask(final FilePermissionEnum permission) {
+		switch (rank(permission)) {
+		case 3:
+			return OWN_ACE_MASK;
+		case 2:
+			return WRITE_ACE_MASK;
+		case 1:
+			return READ_ACE_MASK;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Translate an ACE mask to the weakest iRODS permission that grants all
+	 * the data access in it
+	 *
+	 * @param aceMask
+	 *            <code>int</code> with <code>ACE4_*</code> mask bits
+	 * @return {@link FilePermissionEnum} with <code>OWN</code> for changing
+	 *         the ACL or owner, <code>WRITE</code> for changing data,
+	 *         <code>READ</code> for reading it, otherwise <code>NONE</code>
+	 */
+	public static FilePermissionEnum permissionOfAceMask(final int aceMask) {
+		if ((aceMask & (nfs4_prot.ACE4_WRITE_ACL | nfs4_prot.ACE4_WRITE_OWNER)) != 0) {
+			return FilePermissionEnum.OWN;
+		}
+
+		if ((aceMask & (nfs4_prot.ACE4_WRITE_DATA | nfs4_prot.ACE4_APPEND_DATA | nfs4_prot.ACE4_DELETE
+				| nfs4_prot.ACE4_DELETE_CHILD)) != 0) {
+			return FilePermissionEnum.WRITE;
+		}
+
+		if ((aceMask & (nfs4_prot.ACE4_READ_DATA | nfs4_prot.ACE4_EXECUTE)) != 0) {
+			return FilePermissionEnum.READ;
+		}
+		return FilePermissionEnum.NONE;
+	}
+
+	/**
+	 * Translate an iRODS ACL entry to an allow ACE
+	 *
+	 * @param entry
+	 *            {@link UserFilePermission}
+	 * @param inheritable
+	 *            <code>boolean</code> if the entry is on a collection that
+	 *            passes its ACL on to new children
+	 * @param inherited
+	 *            <code>boolean</code> if the entry came from the parent
+	 *            collection
+	 * @return {@link nfsace4}
+	 */
+	public static nfsace4 toAce(final UserFilePermission entry, final boolean inheritable, final boolean inherited) {
+		if (entry == null) {
+			throw new IllegalArgumentException("null entry");
+		}
+
+		int flags = 0;
+		String who = entry.getUserId();
+		if (PUBLIC_GROUP.equals(entry.getUserName())) {
+			who = EVERYONE_WHO;
+		} else if (entry.getUserType() == UserTypeEnum.RODS_GROUP) {
+			flags |= nfs4_prot.ACE4_IDENTIFIER_GROUP;
+		}
+
+		if (inheritable) {
+			flags |= INHERIT_FLAGS;
+		}
+
+		if (inherited) {
+			flags |= nfs4_prot.ACE4_INHERITED_ACE;
+		}
+
+		nfsace4 ace = new nfsace4();
+		ace.type = new acetype4(nfs4_prot.ACE4_ACCESS_ALLOWED_ACE_TYPE);
+		ace.flag = new aceflag4(flags);
+		ace.access_mask = new acemask4(aceMask(entry.getFilePermissionEnum()));
+		ace.who = new utf8str_mixed(who);
+		return ace;
+	}
+
+	/**
+	 * @param ace
+	 *            {@link nfsace4}
+	 * @return <code>boolean</code> if the ACE asks for its collection's ACL
+	 *         to be passed on to new children
+	 */
+	public static boolean isInheritable(final nfsace4 ace) {
+		return (ace.flag.value & INHERIT_FLAGS) != 0;
+	}
+
+	/**
+	 * @param acl
+	 *            <code>List</code> of {@link UserFilePermission}
+	 * @param entry
+	 *            {@link UserFilePermission}
+	 * @return <code>boolean</code> if the ACL gives the entry's user the
+	 *         entry's permission
+	 */
+	public static boolean contains(final List<UserFilePermission> acl, final UserFilePermission entry) {
+		for (UserFilePermission other : acl) {
+			if (other.getUserName().equals(entry.getUserName())
+					&& sameZone(other.getUserZone(), entry.getUserZone())
+					&& rank(other.getFilePermissionEnum()) == rank(entry.getFilePermissionEnum())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The ACL iRODS gives an object created in a collection that passes its
+	 * ACL on: the collection's entries, and own for the creator
+	 *
+	 * @param parentAcl
+	 *            <code>List</code> of {@link UserFilePermission} of the
+	 *            collection
+	 * @param userName
+	 *            <code>String</code> with the creator's name
+	 * @param userId
+	 *            <code>String</code> with the creator's id
+	 * @param userZone
+	 *            <code>String</code> with the creator's zone
+	 * @return <code>List</code> of {@link UserFilePermission}
+	 */
+	public static List<UserFilePermission> inheritedAcl(final List<UserFilePermission> parentAcl,
+			final String userName, final String userId, final String userZone) {
+		List<UserFilePermission> acl = new ArrayList<>(parentAcl.size() + 1);
+		for (UserFilePermission entry : parentAcl) {
+			if (!(entry.getUserName().equals(userName) && sameZone(entry.getUserZone(), userZone))) {
+				acl.add(entry);
+			}
+		}
+		acl.add(new UserFilePermission(userName, userId, FilePermissionEnum.OWN, UserTypeEnum.RODS_USER, userZone));
+		return acl;
+	}
+
+	private static boolean sameZone(final String userZone, final String entryZone) {
+		return userZone == null || userZone.isEmpty() || entryZone == null || entryZone.isEmpty()
+				|| userZone.equals(entryZone);
+	}
+
+}
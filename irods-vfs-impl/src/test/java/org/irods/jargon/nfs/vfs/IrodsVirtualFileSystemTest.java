@@ -1,10 +1,16 @@
 package org.irods.jargon.nfs.vfs;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PrivilegedExceptionAction;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Properties;
 
 import javax.security.auth.Subject;
 
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.vfs.DirectoryEntry;
 import org.dcache.nfs.vfs.DirectoryStream;
 import org.dcache.nfs.vfs.FsStat;
 import org.dcache.nfs.vfs.Inode;
@@ -16,6 +22,9 @@ import org.irods.jargon.core.pub.IRODSFileSystem;
 import org.irods.jargon.core.pub.TrashOperationsAO;
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.irods.jargon.core.utils.MiscIRODSUtils;
+import org.irods.jargon.nfs.vfs.inode.BoundedInodeCache;
+import org.irods.jargon.nfs.vfs.inode.HandleMode;
+import org.irods.jargon.nfs.vfs.inode.InodeStore;
 import org.irods.jargon.nfs.vfs.utils.PermissionBitmaskUtils;
 import org.irods.jargon.testutils.AssertionHelper;
 import org.irods.jargon.testutils.IRODSTestSetupUtilities;
@@ -27,6 +36,8 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.sun.security.auth.UnixNumericUserPrincipal;
+
 public class IrodsVirtualFileSystemTest {
 
 	private static Properties testingProperties = new Properties();
@@ -68,8 +79,8 @@ public class IrodsVirtualFileSystemTest {
 		IRODSFile rootFile = accessObjectFactory.getIRODSFileFactory(irodsAccount).instanceIRODSFile(homeDir);
 		IrodsVirtualFileSystem vfs = new IrodsVirtualFileSystem(accessObjectFactory, irodsAccount, rootFile);
 		Inode rootNode = vfs.getRootInode();
-		int readBitmask = 0 | PermissionBitmaskUtils.USER_READ;
-		int access = vfs.access(rootNode, readBitmask);
+		int readBitmask = nfs4_prot.ACCESS4_READ;
+		int access = accessAs(subjectOf(accessObjectFactory, irodsAccount), vfs, rootNode, readBitmask);
 		Assert.assertEquals("did not get expected user read acess", readBitmask, access);
 
 	}
@@ -80,9 +91,14 @@ public class IrodsVirtualFileSystemTest {
 		IRODSAccessObjectFactory accessObjectFactory = irodsFileSystem.getIRODSAccessObjectFactory();
 		String homeDir = MiscIRODSUtils.buildIRODSUserHomeForAccountUsingDefaultScheme(irodsAccount);
 		IRODSFile rootFile = accessObjectFactory.getIRODSFileFactory(irodsAccount).instanceIRODSFile(homeDir);
-		IrodsVirtualFileSystem vfs = new IrodsVirtualFileSystem(accessObjectFactory, irodsAccount, rootFile);
-		Inode rootNode = vfs.getRootInode();
-		Stat stat = vfs.getattr(rootNode);
+		final IrodsVirtualFileSystem vfs = new IrodsVirtualFileSystem(accessObjectFactory, irodsAccount, rootFile);
+		final Inode rootNode = vfs.getRootInode();
+		Stat stat = Subject.doAs(subjectOf(accessObjectFactory, irodsAccount), new PrivilegedExceptionAction<Stat>() {
+			@Override
+			public Stat run() throws Exception {
+				return vfs.getattr(rootNode);
+			}
+		});
 		Assert.assertNotNull("null stat", stat);
 	}
 
@@ -94,8 +110,8 @@ public class IrodsVirtualFileSystemTest {
 		IRODSFile rootFile = accessObjectFactory.getIRODSFileFactory(irodsAccount).instanceIRODSFile(homeDir);
 		IrodsVirtualFileSystem vfs = new IrodsVirtualFileSystem(accessObjectFactory, irodsAccount, rootFile);
 		Inode rootNode = vfs.getRootInode();
-		int readBitmask = 0 | PermissionBitmaskUtils.USER_READ;
-		int access = vfs.access(rootNode, readBitmask);
+		int readBitmask = nfs4_prot.ACCESS4_READ | nfs4_prot.ACCESS4_LOOKUP;
+		int access = accessAs(subjectOf(accessObjectFactory, irodsAccount), vfs, rootNode, readBitmask);
 		Assert.assertEquals("did not get expected user read acess", readBitmask, access);
 
 	}
@@ -108,8 +124,8 @@ public class IrodsVirtualFileSystemTest {
 		IRODSFile rootFile = accessObjectFactory.getIRODSFileFactory(irodsAccount).instanceIRODSFile(homeDir);
 		IrodsVirtualFileSystem vfs = new IrodsVirtualFileSystem(accessObjectFactory, irodsAccount, rootFile);
 		Inode rootNode = vfs.getRootInode();
-		int readBitmask = 0 | PermissionBitmaskUtils.USER_READ | PermissionBitmaskUtils.USER_WRITE;
-		int access = vfs.access(rootNode, readBitmask);
+		int readBitmask = nfs4_prot.ACCESS4_READ | nfs4_prot.ACCESS4_MODIFY | nfs4_prot.ACCESS4_EXTEND;
+		int access = accessAs(subjectOf(accessObjectFactory, irodsAccount), vfs, rootNode, readBitmask);
 		Assert.assertEquals("did not get expected user read/write acess", readBitmask, access);
 
 	}
@@ -140,14 +156,18 @@ public class IrodsVirtualFileSystemTest {
             Inode rootNode = vfs.getRootInode();
             //check if null
             Assert.assertNotNull("Inode is null", rootNode);
+            Subject owner = subjectOf(accessObjectFactory, irodsAccount);
             //read test
-            Assert.assertSame("User can read", vfs.access(rootNode,  PermissionBitmaskUtils.USER_READ), 0);
+            Assert.assertEquals("User can read", nfs4_prot.ACCESS4_READ,
+                    accessAs(owner, vfs, rootNode, nfs4_prot.ACCESS4_READ));
             
             //write test
-            Assert.assertSame("User can write", vfs.access(rootNode,  PermissionBitmaskUtils.USER_WRITE), 0);
+            Assert.assertEquals("User can write", nfs4_prot.ACCESS4_MODIFY,
+                    accessAs(owner, vfs, rootNode, nfs4_prot.ACCESS4_MODIFY));
             
-            //execute test
-            Assert.assertSame("User can execute", vfs.access(rootNode,  PermissionBitmaskUtils.USER_EXECUTE), 0);
+            //search test, the root is a collection
+            Assert.assertEquals("User can search", nfs4_prot.ACCESS4_LOOKUP,
+                    accessAs(owner, vfs, rootNode, nfs4_prot.ACCESS4_LOOKUP));
             
         }
         
@@ -261,9 +281,13 @@ public class IrodsVirtualFileSystemTest {
                  vfs.mkdir(vfs.getRootInode(), path+"/"+folder, currentUser, 0);
             }
             
-            DirectoryStream stream = vfs.list(testDirInode, null, 0);
+            DirectoryStream stream = listAs(subjectOf(accessObjectFactory, irodsAccount), vfs, testDirInode);
             
-            Assert.assertFalse("List is empty", stream.getEntries().stream().count() == 0);
+            int count = 0;
+            for (DirectoryEntry entry : stream) {
+                count++;
+            }
+            Assert.assertFalse("List is empty", count == 0);
         }
         
         @Test
@@ -329,7 +353,7 @@ public class IrodsVirtualFileSystemTest {
             Inode file1 = vfs.mkdir(testDir1, dirFile, currentUser, 0);
             
             //move file
-            vfs.move(file1, dirFile, dest, null);
+            moveAs(subjectOf(accessObjectFactory, irodsAccount), vfs, file1, dirFile, dest, null);
             
             //remove folders and files from testing
             Inode root = vfs.getRootInode();
@@ -368,7 +392,7 @@ public class IrodsVirtualFileSystemTest {
             Inode file1 = vfs.mkdir(testDir1, dirFile, currentUser, 0);
             
             //move file
-            vfs.move(file1, dirFile, dest, dirFileRename);
+            moveAs(subjectOf(accessObjectFactory, irodsAccount), vfs, file1, dirFile, dest, dirFileRename);
             
             //remove folders and files from testing
             Inode root = vfs.getRootInode();
@@ -377,6 +401,53 @@ public class IrodsVirtualFileSystemTest {
             
         }
         
+        @Test
+        public void testMoveDirNotInInodeCache() throws Exception{
+            
+            //get irods acct stuff ready
+            IRODSAccount irodsAccount = testingPropertiesHelper.buildIRODSAccountFromTestProperties(testingProperties);
+            IRODSAccessObjectFactory accessObjectFactory = irodsFileSystem.getIRODSAccessObjectFactory();
+            String homeDir = MiscIRODSUtils.buildIRODSUserHomeForAccountUsingDefaultScheme(irodsAccount);
+            IRODSFile rootFile = accessObjectFactory.getIRODSFileFactory(irodsAccount).instanceIRODSFile(homeDir);
+            
+            //create VFS with handles from iRODS ids and a bounded inode cache
+            IrodsVfsConfiguration config = new IrodsVfsConfiguration();
+            config.setHandleMode(HandleMode.IRODS_ID);
+            final InodeStore inodeStore = new BoundedInodeCache(1000);
+            final IrodsVirtualFileSystem vfs = new IrodsVirtualFileSystem(accessObjectFactory, irodsAccount, rootFile,
+                    config, inodeStore);
+            
+            final String dir = "testMoveDirNotCached";
+            final String dirRename = "testMoveDirNotCachedRenamed";
+            final Path dirPath = Paths.get(homeDir, dir);
+            final Path childPath = Paths.get(homeDir, dir, "child");
+            
+            final Subject owner = subjectOf(accessObjectFactory, irodsAccount);
+            Subject.doAs(owner, new PrivilegedExceptionAction<Void>(){
+                @Override
+                public Void run() throws Exception{
+                    Inode root = vfs.getRootInode();
+                    Inode testDir = vfs.mkdir(root, dir, owner, 0755);
+                    vfs.mkdir(testDir, "child", owner, 0755);
+                    long childInodeNumber = inodeStore.inodeOf(childPath);
+                    Assert.assertTrue("child not mapped", childInodeNumber != InodeStore.UNMAPPED);
+                    
+                    //the collection drops out of the cache, its child stays
+                    inodeStore.unmap(inodeStore.inodeOf(dirPath), dirPath);
+                    
+                    vfs.move(root, dir, root, dirRename);
+                    Assert.assertEquals("child should follow the rename", Paths.get(homeDir, dirRename, "child"),
+                            inodeStore.pathOf(childInodeNumber));
+                    Assert.assertEquals("old child path still mapped", InodeStore.UNMAPPED,
+                            inodeStore.inodeOf(childPath));
+                    
+                    vfs.remove(root, dirRename);
+                    return null;
+                }
+            });
+            
+        }
+        
         @Test
         public void testMoveFileWithoutRename() throws Exception{
             
@@ -411,7 +482,7 @@ public class IrodsVirtualFileSystemTest {
             //FileGenerator.generateFileOfFixedLengthGivenName(homeDir+"/"+dir1, dirFile, 12);
             
             //move file
-            vfs.move(file, dirFile, dest, null);
+            moveAs(subjectOf(accessObjectFactory, irodsAccount), vfs, file, dirFile, dest, null);
             
             //remove folders and files from testing
             Inode root = vfs.getRootInode();
@@ -455,7 +526,7 @@ public class IrodsVirtualFileSystemTest {
             //FileGenerator.generateFileOfFixedLengthGivenName(homeDir+"/"+dir1, dirFile, 12);
             
             //move file
-            vfs.move(file, dirFile, dest , dirFileRename);
+            moveAs(subjectOf(accessObjectFactory, irodsAccount), vfs, file, dirFile, dest , dirFileRename);
             
             //remove folders and files from testing
             Inode root = vfs.getRootInode();
@@ -639,6 +710,58 @@ public class IrodsVirtualFileSystemTest {
             
         }
         
+        /**
+         * Subject of the test user the way the login service builds it, with
+         * the iRODS user id as uid
+         */
+        private static Subject subjectOf(IRODSAccessObjectFactory accessObjectFactory, IRODSAccount irodsAccount)
+                throws Exception{
+            String userId = accessObjectFactory.getUserAO(irodsAccount).findByName(irodsAccount.getUserName()).getId();
+            return new Subject(true, Collections.singleton(new UnixNumericUserPrincipal(userId)),
+                    Collections.emptySet(), Collections.emptySet());
+        }
+
+        /**
+         * ACCESS as the given caller, the file system checks iRODS permissions
+         * of the subject the call runs as
+         */
+        private static int accessAs(Subject subject, final IrodsVirtualFileSystem vfs, final Inode inode,
+                final int mode) throws Exception{
+            return Subject.doAs(subject, new PrivilegedExceptionAction<Integer>(){
+                @Override
+                public Integer run() throws Exception{
+                    return vfs.access(inode, mode);
+                }
+            });
+        }
+
+        /**
+         * READDIR as the given caller
+         */
+        private static DirectoryStream listAs(Subject subject, final IrodsVirtualFileSystem vfs, final Inode inode)
+                throws Exception{
+            return Subject.doAs(subject, new PrivilegedExceptionAction<DirectoryStream>(){
+                @Override
+                public DirectoryStream run() throws Exception{
+                    return vfs.list(inode, null, 0);
+                }
+            });
+        }
+
+        /**
+         * RENAME as the given caller
+         */
+        private static void moveAs(Subject subject, final IrodsVirtualFileSystem vfs, final Inode inode,
+                final String oldName, final Inode dest, final String newName) throws Exception{
+            Subject.doAs(subject, new PrivilegedExceptionAction<Void>(){
+                @Override
+                public Void run() throws Exception{
+                    vfs.move(inode, oldName, dest, newName);
+                    return null;
+                }
+            });
+        }
+
         private IrodsVirtualFileSystem getVFS() throws Exception{
             IRODSAccount irodsAccount = testingPropertiesHelper.buildIRODSAccountFromTestProperties(testingProperties);
             IRODSAccessObjectFactory accessObjectFactory = irodsFileSystem.getIRODSAccessObjectFactory();
@@ -0,0 +1,90 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import org.dcache.nfs.vfs.Stat;
+import org.irods.jargon.nfs.vfs.unittest.TestFixtures.ManualTicker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AttributeCacheTest {
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+		AttributeCache cache = new AttributeCache(10, 1000, 1000, new ManualTicker());
+		Assert.assertNull("empty cache should miss", cache.get(1));
+		Stat stat = stat(Stat.S_IFREG | 0644);
+		cache.put(1, stat, cache.epoch());
+		Assert.assertSame("should hit", stat, cache.get(1));
+		Assert.assertEquals("wrong hit count", 1L, cache.getHitCount());
+		Assert.assertEquals("wrong miss count", 1L, cache.getMissCount());
+	}
+
+	@Test
+	public void testExpiryByType() throws Exception {
+		ManualTicker ticker = new ManualTicker();
+		AttributeCache cache = new AttributeCache(10, 1000, 5000, ticker);
+		cache.put(1, stat(Stat.S_IFREG | 0644), cache.epoch());
+		cache.put(2, stat(Stat.S_IFDIR | 0755), cache.epoch());
+		ticker.advance(2000);
+		Assert.assertNull("file should have expired", cache.get(1));
+		Assert.assertNotNull("directory should not have expired", cache.get(2));
+		ticker.advance(4000);
+		Assert.assertNull("directory should have expired", cache.get(2));
+	}
+
+	@Test
+	public void testZeroTtlDisablesCaching() throws Exception {
+		AttributeCache cache = new AttributeCache(10, 0, 1000, new ManualTicker());
+		cache.put(1, stat(Stat.S_IFREG | 0644), cache.epoch());
+		Assert.assertNull("file should not be cached", cache.get(1));
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		AttributeCache cache = new AttributeCache(10, 1000, 1000, new ManualTicker());
+		cache.put(1, stat(Stat.S_IFREG | 0644), cache.epoch());
+		cache.invalidate(1);
+		Assert.assertNull("invalidated entry should miss", cache.get(1));
+	}
+
+	@Test
+	public void testPutAfterInvalidationDropped() throws Exception {
+		AttributeCache cache = new AttributeCache(10, 1000, 1000, new ManualTicker());
+		long epoch = cache.epoch();
+		// another thread changes the object while this one is fetching
+		cache.invalidate(1);
+		cache.put(1, stat(Stat.S_IFREG | 0644), epoch);
+		Assert.assertNull("stale put should be dropped", cache.get(1));
+	}
+
+	@Test
+	public void testPutAfterOtherInvalidationKept() throws Exception {
+		AttributeCache cache = new AttributeCache(10, 1000, 1000, new ManualTicker());
+		long epoch = cache.epoch();
+		// a write to another file must not cost this fetch its cache entry
+		cache.invalidate(2);
+		cache.put(1, stat(Stat.S_IFREG | 0644), epoch);
+		Assert.assertNotNull("put should survive an unrelated invalidation", cache.get(1));
+
+		cache.invalidateAll();
+		cache.put(1, stat(Stat.S_IFREG | 0644), epoch);
+		Assert.assertNull("put should not survive invalidating everything", cache.get(1));
+	}
+
+	@Test
+	public void testVersionOnlyChangesForInvalidatedInode() throws Exception {
+		AttributeCache cache = new AttributeCache(10, 1000, 1000, new ManualTicker());
+		long version = cache.version(1);
+		cache.invalidate(2);
+		Assert.assertEquals("other inode should not change the version", version, cache.version(1));
+
+		cache.invalidate(1);
+		Assert.assertNotEquals("invalidation should change the version", version, cache.version(1));
+	}
+
+	private static Stat stat(final int mode) {
+		Stat stat = new Stat();
+		stat.setMode(mode);
+		return stat;
+	}
+
+}
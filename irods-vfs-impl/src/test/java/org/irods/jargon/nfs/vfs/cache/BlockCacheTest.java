@@ -0,0 +1,95 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+	private static final int BLOCK_SIZE = 16;
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+		BlockCache cache = new BlockCache(BLOCK_SIZE, 1024 * 1024, 0);
+		Assert.assertNull("empty cache should miss", cache.get(1, 100, 0));
+		byte[] block = block(1);
+		cache.put(1, 100, 0, block, cache.epoch());
+		Assert.assertSame("should hit", block, cache.get(1, 100, 0));
+		Assert.assertNull("other block should miss", cache.get(1, 100, 1));
+		Assert.assertEquals("wrong hit count", 1L, cache.getHitCount());
+		Assert.assertEquals("wrong miss count", 2L, cache.getMissCount());
+	}
+
+	@Test
+	public void testNewModifyTimeFreesOldBlocks() throws Exception {
+		BlockCache cache = new BlockCache(BLOCK_SIZE, 1024 * 1024, 0);
+		cache.put(1, 100, 0, block(1), cache.epoch());
+		cache.put(2, 100, 0, block(2), cache.epoch());
+		cache.validate(1, 100);
+		Assert.assertNotNull("same modify time should keep blocks", cache.get(1, 100, 0));
+
+		cache.validate(1, 200);
+		Assert.assertNull("old version should be gone", cache.get(1, 100, 0));
+		Assert.assertNotNull("other objects should stay", cache.get(2, 100, 0));
+		Assert.assertEquals("old version should be freed", BLOCK_SIZE, cache.heapBytes());
+	}
+
+	@Test
+	public void testPutAfterInvalidationDropped() throws Exception {
+		BlockCache cache = new BlockCache(BLOCK_SIZE, 1024 * 1024, 0);
+		long epoch = cache.epoch();
+		cache.invalidate(1);
+		cache.put(1, 100, 0, block(1), epoch);
+		Assert.assertNull("stale put should be dropped", cache.get(1, 100, 0));
+	}
+
+	@Test
+	public void testPutAfterOtherInvalidationKept() throws Exception {
+		BlockCache cache = new BlockCache(BLOCK_SIZE, 1024 * 1024, 0);
+		long epoch = cache.epoch();
+		cache.invalidate(2);
+		cache.put(1, 100, 0, block(1), epoch);
+		Assert.assertNotNull("put should survive an unrelated invalidation", cache.get(1, 100, 0));
+	}
+
+	@Test
+	public void testEvictedBlocksMoveOffHeap() throws Exception {
+		// no heap, every block goes straight to the off-heap tier
+		BlockCache cache = new BlockCache(BLOCK_SIZE, 0, 2 * BLOCK_SIZE);
+		cache.put(1, 100, 0, block(1), cache.epoch());
+		byte[] block = cache.get(1, 100, 0);
+		Assert.assertNotNull("should hit off-heap", block);
+		Assert.assertEquals("wrong content", (byte) 1, block[0]);
+	}
+
+	@Test
+	public void testClockKeepsReferencedBlock() throws Exception {
+		OffHeapBlockStore store = new OffHeapBlockStore(BLOCK_SIZE, 2);
+		BlockCache.BlockKey first = new BlockCache.BlockKey(1, 100, 0);
+		BlockCache.BlockKey second = new BlockCache.BlockKey(2, 100, 0);
+		store.put(first, block(1));
+		store.put(second, block(2));
+		Assert.assertNotNull("should hit", store.get(first));
+
+		store.put(new BlockCache.BlockKey(3, 100, 0), block(3));
+		Assert.assertNotNull("referenced block should survive", store.get(first));
+		Assert.assertNull("unreferenced block should be evicted", store.get(second));
+		Assert.assertEquals("wrong size", 2, store.size());
+	}
+
+	@Test
+	public void testShortLastBlock() throws Exception {
+		OffHeapBlockStore store = new OffHeapBlockStore(BLOCK_SIZE, 1);
+		BlockCache.BlockKey key = new BlockCache.BlockKey(1, 100, 3);
+		store.put(key, new byte[] { 7, 8, 9 });
+		Assert.assertArrayEquals("wrong short block", new byte[] { 7, 8, 9 }, store.get(key));
+	}
+
+	private static byte[] block(final int fill) {
+		byte[] block = new byte[BLOCK_SIZE];
+		Arrays.fill(block, (byte) fill);
+		return block;
+	}
+
+}
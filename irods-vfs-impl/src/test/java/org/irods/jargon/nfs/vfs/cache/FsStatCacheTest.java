@@ -0,0 +1,61 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.dcache.nfs.vfs.FsStat;
+import org.irods.jargon.core.pub.domain.Quota;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FsStatCacheTest {
+
+	@Test
+	public void testFreeSpaceWithoutQuota() throws Exception {
+		FsStat fsStat = FsStatCache.fsStat(1000, Collections.<Quota> emptyList(), 42);
+		Assert.assertEquals("total should be the free space", 1000, fsStat.getTotalSpace());
+		Assert.assertEquals("nothing should be used", 0, fsStat.getUsedSpace());
+		Assert.assertEquals("wrong object count", 42, fsStat.getUsedFiles());
+	}
+
+	@Test
+	public void testTightestQuotaWins() throws Exception {
+		FsStat fsStat = FsStatCache.fsStat(1000, Arrays.asList(quota(500, -100), quota(300, -200)), 0);
+		Assert.assertEquals("used should come from the quota with least room", 400, fsStat.getUsedSpace());
+		Assert.assertEquals("total should be used plus room left", 500, fsStat.getTotalSpace());
+	}
+
+	@Test
+	public void testResourceTighterThanQuota() throws Exception {
+		FsStat fsStat = FsStatCache.fsStat(50, Arrays.asList(quota(500, -400)), 0);
+		Assert.assertEquals("quota should not bind", 0, fsStat.getUsedSpace());
+		Assert.assertEquals("resource should limit", 50, fsStat.getTotalSpace());
+	}
+
+	@Test
+	public void testOverQuotaIsFull() throws Exception {
+		FsStat fsStat = FsStatCache.fsStat(1000, Arrays.asList(quota(500, 20)), 0);
+		Assert.assertEquals("over quota should be full", fsStat.getTotalSpace(), fsStat.getUsedSpace());
+	}
+
+	@Test
+	public void testNothingKnown() throws Exception {
+		FsStat fsStat = FsStatCache.fsStat(0, Arrays.asList(quota(0, 0)), 0);
+		Assert.assertEquals("unlimited without free space or quota", Long.MAX_VALUE, fsStat.getTotalSpace());
+	}
+
+	@Test
+	public void testBelowPatternExcludesSiblings() throws Exception {
+		Assert.assertEquals("should only match below the collection", "/zone/home/%",
+				FsStatCache.belowPattern("/zone/home"));
+		Assert.assertEquals("root should match everything", "/%", FsStatCache.belowPattern("/"));
+	}
+
+	private static Quota quota(final long limit, final long over) {
+		Quota quota = new Quota();
+		quota.setQuotaLimit(limit);
+		quota.setQuotaOver(over);
+		return quota;
+	}
+
+}
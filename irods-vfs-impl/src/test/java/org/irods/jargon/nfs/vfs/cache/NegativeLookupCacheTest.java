@@ -0,0 +1,46 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import org.irods.jargon.nfs.vfs.unittest.TestFixtures.ManualTicker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NegativeLookupCacheTest {
+
+	@Test
+	public void testMissingName() throws Exception {
+		NegativeLookupCache cache = new NegativeLookupCache(10, 1000, new ManualTicker());
+		Assert.assertFalse("unknown name should not be missing", cache.isMissing(1, 0, "a.h"));
+		cache.missing(1, 0, "a.h");
+		Assert.assertTrue("name should be missing", cache.isMissing(1, 0, "a.h"));
+		Assert.assertFalse("other name should not be missing", cache.isMissing(1, 0, "b.h"));
+		Assert.assertFalse("other directory should not have the name", cache.isMissing(2, 0, "a.h"));
+		Assert.assertEquals("wrong hit count", 1L, cache.getHitCount());
+	}
+
+	@Test
+	public void testDirectoryChangeRetiresEntry() throws Exception {
+		NegativeLookupCache cache = new NegativeLookupCache(10, 1000, new ManualTicker());
+		cache.missing(1, 0, "a.h");
+		Assert.assertFalse("name should be looked up again after the directory changed",
+				cache.isMissing(1, 1, "a.h"));
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		ManualTicker ticker = new ManualTicker();
+		NegativeLookupCache cache = new NegativeLookupCache(10, 1000, ticker);
+		cache.missing(1, 0, "a.h");
+		ticker.advance(500);
+		Assert.assertTrue("name should still be missing", cache.isMissing(1, 0, "a.h"));
+		ticker.advance(600);
+		Assert.assertFalse("entry should have expired", cache.isMissing(1, 0, "a.h"));
+	}
+
+	@Test
+	public void testZeroTtlDisablesCaching() throws Exception {
+		NegativeLookupCache cache = new NegativeLookupCache(10, 0, new ManualTicker());
+		cache.missing(1, 0, "a.h");
+		Assert.assertFalse("name should not be cached", cache.isMissing(1, 0, "a.h"));
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.nfs.vfs.unittest.TestFixtures.ManualTicker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PermissionCacheTest {
+
+	@Test
+	public void testAclAndPermission() throws Exception {
+		PermissionCache cache = new PermissionCache(10, 1000, new ManualTicker());
+		List<UserFilePermission> acl = new ArrayList<>();
+		Assert.assertNull("empty cache should miss", cache.acl(1));
+		cache.putAcl(1, acl, cache.epoch());
+		Assert.assertSame("acl should be cached", acl, cache.acl(1));
+		Assert.assertNull("permission not worked out yet", cache.permission(1, 500));
+		cache.putPermission(1, 500, acl, FilePermissionEnum.READ);
+		Assert.assertEquals("permission should be cached", FilePermissionEnum.READ, cache.permission(1, 500));
+		Assert.assertNull("other user should miss", cache.permission(1, 501));
+		Assert.assertEquals("wrong hit count", 1L, cache.getHitCount());
+	}
+
+	@Test
+	public void testInvalidateDropsPermissions() throws Exception {
+		PermissionCache cache = new PermissionCache(10, 1000, new ManualTicker());
+		List<UserFilePermission> acl = new ArrayList<>();
+		cache.putAcl(1, acl, cache.epoch());
+		cache.putPermission(1, 500, acl, FilePermissionEnum.OWN);
+		cache.invalidate(1);
+		Assert.assertNull("acl should be dropped", cache.acl(1));
+		Assert.assertNull("permission should be dropped", cache.permission(1, 500));
+	}
+
+	@Test
+	public void testPutAfterInvalidationDropped() throws Exception {
+		PermissionCache cache = new PermissionCache(10, 1000, new ManualTicker());
+		long epoch = cache.epoch();
+		// the acl is changed while it is being fetched
+		cache.invalidate(1);
+		cache.putAcl(1, new ArrayList<UserFilePermission>(), epoch);
+		Assert.assertNull("stale acl should be dropped", cache.acl(1));
+	}
+
+	@Test
+	public void testPermissionOfReplacedAclDropped() throws Exception {
+		PermissionCache cache = new PermissionCache(10, 1000, new ManualTicker());
+		List<UserFilePermission> oldAcl = new ArrayList<>();
+		cache.putAcl(1, oldAcl, cache.epoch());
+		cache.putAcl(1, new ArrayList<UserFilePermission>(), cache.epoch());
+		cache.putPermission(1, 500, oldAcl, FilePermissionEnum.WRITE);
+		Assert.assertNull("permission from an old acl should be dropped", cache.permission(1, 500));
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		ManualTicker ticker = new ManualTicker();
+		PermissionCache cache = new PermissionCache(10, 1000, ticker);
+		cache.putAcl(1, new ArrayList<UserFilePermission>(), cache.epoch());
+		cache.putGroups(500, Collections.singleton("lab"));
+		ticker.advance(1100);
+		Assert.assertNull("acl should have expired", cache.acl(1));
+		Assert.assertNull("groups should have expired", cache.groups(500));
+	}
+
+	@Test
+	public void testZeroTtlDisablesCaching() throws Exception {
+		PermissionCache cache = new PermissionCache(10, 0, new ManualTicker());
+		cache.putAcl(1, new ArrayList<UserFilePermission>(), cache.epoch());
+		Assert.assertNull("acl should not be cached", cache.acl(1));
+		Assert.assertFalse("cache should say it is off", cache.isEnabled());
+	}
+
+	@Test
+	public void testInheritanceFlag() throws Exception {
+		PermissionCache cache = new PermissionCache(10, 1000, new ManualTicker());
+		Assert.assertNull("empty cache should miss", cache.inherits(1));
+		long epoch = cache.epoch();
+		cache.putInherits(1, true, epoch);
+		Assert.assertEquals("flag should be cached", Boolean.TRUE, cache.inherits(1));
+		cache.invalidate(1);
+		Assert.assertNull("flag should be dropped", cache.inherits(1));
+		cache.putInherits(1, false, epoch);
+		Assert.assertNull("stale flag should not be cached", cache.inherits(1));
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.irods.jargon.nfs.vfs.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	@Test
+	public void testConcurrentCallersShareOneCall() throws Exception {
+		final SingleFlight<String> flights = new SingleFlight<>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final SingleFlight.Key key = new SingleFlight.Key("stat", 42, 1000, 0, 0);
+		final Callable<String> request = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				started.countDown();
+				release.await();
+				return "result";
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			results.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return flights.execute(key, request);
+				}
+			}));
+			Assert.assertTrue("leader should start", started.await(5, TimeUnit.SECONDS));
+
+			for (int i = 0; i < 3; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return flights.execute(key, request);
+					}
+				}));
+			}
+			while (flights.sharedCount() < 3) {
+				Thread.sleep(5);
+			}
+			release.countDown();
+
+			for (Future<String> result : results) {
+				Assert.assertEquals("wrong result", "result", result.get(5, TimeUnit.SECONDS));
+			}
+			Assert.assertEquals("one call for all callers", 1, calls.get());
+			Assert.assertEquals("nothing left in flight", 0, flights.inFlight());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSequentialCallersCallAgain() throws Exception {
+		SingleFlight<Integer> flights = new SingleFlight<>();
+		final AtomicInteger calls = new AtomicInteger();
+		Callable<Integer> request = new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return calls.incrementAndGet();
+			}
+		};
+		SingleFlight.Key key = new SingleFlight.Key("stat", 1, 1000, 0, 0);
+		Assert.assertEquals("first call", Integer.valueOf(1), flights.execute(key, request));
+		Assert.assertEquals("results are not kept", Integer.valueOf(2), flights.execute(key, request));
+	}
+
+	@Test(expected = IOException.class)
+	public void testFailureIsThrown() throws Exception {
+		SingleFlight<String> flights = new SingleFlight<>();
+		flights.execute(new SingleFlight.Key("stat", 1, 1000, 0, 0), new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				throw new IOException("iRODS down");
+			}
+		});
+	}
+
+	@Test
+	public void testKeyIdentity() {
+		SingleFlight.Key key = new SingleFlight.Key("stat", 1, 1000, 0, 7);
+		Assert.assertEquals("same request", key, new SingleFlight.Key("stat", 1, 1000, 0, 7));
+		Assert.assertNotEquals("other user", key, new SingleFlight.Key("stat", 1, 1001, 0, 7));
+		Assert.assertNotEquals("other epoch", key, new SingleFlight.Key("stat", 1, 1000, 0, 8));
+		Assert.assertNotEquals("other operation", key, new SingleFlight.Key("listCollections", 1, 1000, 0, 7));
+	}
+
+}
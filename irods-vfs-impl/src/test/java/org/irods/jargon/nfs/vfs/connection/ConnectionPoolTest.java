@@ -0,0 +1,144 @@
+package org.irods.jargon.nfs.vfs.connection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+	private static final class Connection {
+		boolean healthy = true;
+		boolean destroyed = false;
+	}
+
+	private static final ConnectionPool.Lifecycle<Connection> LIFECYCLE = new ConnectionPool.Lifecycle<Connection>() {
+		@Override
+		public boolean isHealthy(final Connection connection) {
+			return connection.healthy && !connection.destroyed;
+		}
+
+		@Override
+		public void destroy(final Connection connection) {
+			connection.destroyed = true;
+		}
+	};
+
+	private static ConnectionPool.Factory<Connection> factory(final AtomicInteger creates) {
+		return new ConnectionPool.Factory<Connection>() {
+			@Override
+			public Connection create() {
+				creates.incrementAndGet();
+				return new Connection();
+			}
+
+			@Override
+			public void exhausted() {
+			}
+		};
+	}
+
+	@Test
+	public void testReturnedConnectionIsReused() throws Exception {
+		ConnectionPool<String, Connection> pool = new ConnectionPool<>(4, 2, 0, 60000, 100, LIFECYCLE);
+		AtomicInteger creates = new AtomicInteger();
+		Connection first = pool.borrow("alice", factory(creates));
+		Assert.assertTrue("should be pooled", pool.giveBack(first));
+		Connection second = pool.borrow("alice", factory(creates));
+		Assert.assertSame("idle connection should be reused", first, second);
+		Assert.assertEquals("only one connect", 1, creates.get());
+	}
+
+	@Test
+	public void testKeysDoNotShare() throws Exception {
+		ConnectionPool<String, Connection> pool = new ConnectionPool<>(4, 2, 0, 60000, 100, LIFECYCLE);
+		AtomicInteger creates = new AtomicInteger();
+		pool.giveBack(pool.borrow("alice", factory(creates)));
+		pool.borrow("bob", factory(creates));
+		Assert.assertEquals("other user needs its own connection", 2, creates.get());
+	}
+
+	@Test(expected = JargonException.class)
+	public void testLimitPerKeyTimesOut() throws Exception {
+		ConnectionPool<String, Connection> pool = new ConnectionPool<>(1, 1, 0, 60000, 50, LIFECYCLE);
+		AtomicInteger creates = new AtomicInteger();
+		pool.borrow("alice", factory(creates));
+		pool.borrow("alice", factory(creates));
+	}
+
+	@Test
+	public void testExhaustedBorrowerGetsConnectionGivenBack() throws Exception {
+		final ConnectionPool<String, Connection> pool = new ConnectionPool<>(1, 1, 0, 60000, 50, LIFECYCLE);
+		final AtomicInteger creates = new AtomicInteger();
+		final Connection first = pool.borrow("alice", factory(creates));
+		final AtomicInteger asked = new AtomicInteger();
+		Connection second = pool.borrow("alice", new ConnectionPool.Factory<Connection>() {
+			@Override
+			public Connection create() {
+				creates.incrementAndGet();
+				return new Connection();
+			}
+
+			@Override
+			public void exhausted() {
+				asked.incrementAndGet();
+				pool.giveBack(first);
+			}
+		});
+		Assert.assertSame("given back connection should be reused", first, second);
+		Assert.assertEquals("should be asked once", 1, asked.get());
+		Assert.assertEquals("only one connect", 1, creates.get());
+	}
+
+	@Test
+	public void testBrokenConnectionIsReplaced() throws Exception {
+		ConnectionPool<String, Connection> pool = new ConnectionPool<>(1, 1, 0, 60000, 100, LIFECYCLE);
+		AtomicInteger creates = new AtomicInteger();
+		Connection first = pool.borrow("alice", factory(creates));
+		pool.giveBack(first);
+		first.healthy = false;
+		Connection second = pool.borrow("alice", factory(creates));
+		Assert.assertNotSame("broken connection should not be handed out", first, second);
+		Assert.assertTrue("broken connection should be closed", first.destroyed);
+	}
+
+	@Test
+	public void testIdleLimitClosesExtra() throws Exception {
+		ConnectionPool<String, Connection> pool = new ConnectionPool<>(4, 1, 0, 60000, 100, LIFECYCLE);
+		AtomicInteger creates = new AtomicInteger();
+		Connection first = pool.borrow("alice", factory(creates));
+		Connection second = pool.borrow("alice", factory(creates));
+		pool.giveBack(first);
+		pool.giveBack(second);
+		Assert.assertEquals("one kept idle", 1, pool.idleConnections());
+		Assert.assertTrue("extra should be closed", second.destroyed);
+	}
+
+	@Test
+	public void testEvictionKeepsMinimum() throws Exception {
+		ConnectionPool<String, Connection> pool = new ConnectionPool<>(4, 4, 1, 1, 100, LIFECYCLE);
+		AtomicInteger creates = new AtomicInteger();
+		Connection first = pool.borrow("alice", factory(creates));
+		Connection second = pool.borrow("alice", factory(creates));
+		pool.giveBack(first);
+		pool.giveBack(second);
+		Thread.sleep(20);
+		pool.evictIdle();
+		Assert.assertEquals("minimum idle should stay", 1, pool.idleConnections());
+		Assert.assertTrue("oldest should be evicted", first.destroyed);
+		Assert.assertFalse("newest should stay", second.destroyed);
+	}
+
+	@Test
+	public void testInvalidateFreesSlot() throws Exception {
+		ConnectionPool<String, Connection> pool = new ConnectionPool<>(1, 1, 0, 60000, 50, LIFECYCLE);
+		AtomicInteger creates = new AtomicInteger();
+		Connection first = pool.borrow("alice", factory(creates));
+		pool.invalidate(first);
+		pool.borrow("alice", factory(creates));
+		Assert.assertEquals("slot should be free again", 2, creates.get());
+		Assert.assertFalse("unknown connection is not pooled", pool.giveBack(new Connection()));
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedInodeCacheTest {
+
+	@Test
+	public void testMapAndResolve() throws Exception {
+		BoundedInodeCache cache = new BoundedInodeCache(10);
+		cache.map(5, Paths.get("/zone/home/rods"));
+		Assert.assertEquals("did not resolve path", Paths.get("/zone/home/rods"), cache.pathOf(5));
+		Assert.assertEquals("did not resolve inode", 5L, cache.inodeOf(Paths.get("/zone/home/rods")));
+		Assert.assertEquals("unmapped path should not resolve", InodeStore.UNMAPPED,
+				cache.inodeOf(Paths.get("/zone/home/other")));
+		Assert.assertNull("unmapped inode should not resolve", cache.pathOf(6));
+	}
+
+	@Test
+	public void testMapReplacesStaleEntries() throws Exception {
+		BoundedInodeCache cache = new BoundedInodeCache(10);
+		cache.map(5, Paths.get("/zone/home/rods/a"));
+		// renamed behind the gateway's back
+		cache.map(5, Paths.get("/zone/home/rods/b"));
+		Assert.assertEquals("new path should win", Paths.get("/zone/home/rods/b"), cache.pathOf(5));
+		Assert.assertEquals("old path should be dropped", InodeStore.UNMAPPED,
+				cache.inodeOf(Paths.get("/zone/home/rods/a")));
+
+		// replaced by another object
+		cache.map(6, Paths.get("/zone/home/rods/b"));
+		Assert.assertEquals("new object should win", 6L, cache.inodeOf(Paths.get("/zone/home/rods/b")));
+	}
+
+	@Test
+	public void testEvictionDropsReverseEntry() throws Exception {
+		BoundedInodeCache cache = new BoundedInodeCache(2);
+		for (long inodeNumber = 1; inodeNumber <= 20; inodeNumber++) {
+			cache.map(inodeNumber, Paths.get("/zone/home/rods/" + inodeNumber));
+		}
+		Assert.assertTrue("cache should stay bounded", cache.size() <= 2);
+
+		int resolvable = 0;
+		for (long inodeNumber = 1; inodeNumber <= 20; inodeNumber++) {
+			long mapped = cache.inodeOf(Paths.get("/zone/home/rods/" + inodeNumber));
+			if (mapped != InodeStore.UNMAPPED) {
+				Assert.assertEquals("reverse entry of a live inode", Paths.get("/zone/home/rods/" + inodeNumber),
+						cache.pathOf(mapped));
+				resolvable++;
+			}
+		}
+		Assert.assertTrue("evicted paths should not resolve", resolvable <= 2);
+	}
+
+	@Test
+	public void testMoveTree() throws Exception {
+		BoundedInodeCache cache = new BoundedInodeCache(10);
+		cache.map(1, Paths.get("/zone/home/rods/a"));
+		cache.map(2, Paths.get("/zone/home/rods/a/b"));
+		cache.map(3, Paths.get("/zone/home/rods/ab"));
+		cache.moveTree(1, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/rods/z"));
+		Assert.assertEquals("descendant should move", Paths.get("/zone/home/rods/z/b"), cache.pathOf(2));
+		Assert.assertEquals("sibling sharing the prefix should stay", Paths.get("/zone/home/rods/ab"),
+				cache.pathOf(3));
+	}
+
+	@Test
+	public void testMoveTreeOfUnmappedCollection() throws Exception {
+		BoundedInodeCache cache = new BoundedInodeCache(10);
+		cache.map(2, Paths.get("/zone/home/rods/a/b"));
+		cache.map(3, Paths.get("/zone/home/rods/a/b/c.txt"));
+		cache.map(4, Paths.get("/zone/home/rods/ab"));
+		cache.moveTree(InodeStore.UNMAPPED, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/rods/z"));
+		Assert.assertEquals("descendant should move", Paths.get("/zone/home/rods/z/b/c.txt"), cache.pathOf(3));
+		Assert.assertEquals("old path should be unmapped", InodeStore.UNMAPPED,
+				cache.inodeOf(Paths.get("/zone/home/rods/a/b")));
+		Assert.assertEquals("sibling sharing the prefix should stay", Paths.get("/zone/home/rods/ab"),
+				cache.pathOf(4));
+	}
+
+}
@@ -0,0 +1,201 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactInodeStoreTest {
+
+	@Test
+	public void testMapAndResolve() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		long inodeNumber = store.nextInodeNumber();
+		Assert.assertEquals("numbering should start at 1", 1L, inodeNumber);
+		store.map(inodeNumber, Paths.get("/zone/home/rods"));
+		Assert.assertEquals("did not resolve path", Paths.get("/zone/home/rods"), store.pathOf(inodeNumber));
+		Assert.assertEquals("did not resolve inode", inodeNumber, store.inodeOf(Paths.get("/zone/home/rods")));
+		Assert.assertEquals("unmapped path should not resolve", InodeStore.UNMAPPED,
+				store.inodeOf(Paths.get("/zone/home/other")));
+		Assert.assertEquals("unmapped parent should not resolve", InodeStore.UNMAPPED,
+				store.inodeOf(Paths.get("/zone/home")));
+		Assert.assertNull("unmapped inode should not resolve", store.pathOf(99));
+		Assert.assertEquals("wrong size", 1L, store.size());
+	}
+
+	@Test
+	public void testResolveWithoutPathCache() throws Exception {
+		CompactInodeStore store = new CompactInodeStore(0);
+		store.map(1, Paths.get("/"));
+		store.map(2, Paths.get("/zone/home/rods/my data.txt"));
+		Assert.assertEquals("did not resolve root", Paths.get("/"), store.pathOf(1));
+		Assert.assertEquals("did not resolve path", Paths.get("/zone/home/rods/my data.txt"),
+				store.pathOf(2));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testMapDuplicatePath() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(1, Paths.get("/zone/home/rods"));
+		store.map(2, Paths.get("/zone/home/rods"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testMapDuplicateInode() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(1, Paths.get("/zone/home/rods"));
+		store.map(1, Paths.get("/zone/home/other"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUnmapWrongPath() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(1, Paths.get("/zone/home/rods"));
+		store.unmap(1, Paths.get("/zone/home/other"));
+	}
+
+	@Test
+	public void testUnmapParentKeepsChildren() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(1, Paths.get("/zone/home/rods"));
+		store.map(2, Paths.get("/zone/home/rods/a"));
+		store.unmap(1, Paths.get("/zone/home/rods"));
+		Assert.assertEquals("parent should be unmapped", InodeStore.UNMAPPED,
+				store.inodeOf(Paths.get("/zone/home/rods")));
+		Assert.assertEquals("child should keep its path", Paths.get("/zone/home/rods/a"), store.pathOf(2));
+		store.map(3, Paths.get("/zone/home/rods"));
+		Assert.assertEquals("parent should map again", 3L, store.inodeOf(Paths.get("/zone/home/rods")));
+		Assert.assertEquals("wrong size", 2L, store.size());
+	}
+
+	@Test
+	public void testRemap() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(1, Paths.get("/zone/home/rods/a"));
+		Assert.assertEquals("did not resolve path", Paths.get("/zone/home/rods/a"), store.pathOf(1));
+		store.remap(1, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/rods/b"));
+		Assert.assertEquals("cached path should follow the remap", Paths.get("/zone/home/rods/b"), store.pathOf(1));
+		Assert.assertEquals("old path should be unmapped", InodeStore.UNMAPPED,
+				store.inodeOf(Paths.get("/zone/home/rods/a")));
+		Assert.assertEquals("new path should resolve", 1L, store.inodeOf(Paths.get("/zone/home/rods/b")));
+	}
+
+	@Test
+	public void testMoveTree() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(1, Paths.get("/zone/home/rods/a"));
+		store.map(2, Paths.get("/zone/home/rods/a/b"));
+		store.map(3, Paths.get("/zone/home/rods/a/b/c.txt"));
+		store.map(4, Paths.get("/zone/home/rods/other"));
+		Assert.assertEquals("did not resolve path", Paths.get("/zone/home/rods/a/b/c.txt"), store.pathOf(3));
+		Assert.assertEquals("did not resolve path", Paths.get("/zone/home/rods/other"), store.pathOf(4));
+		int nodes = store.nodeCount();
+
+		store.moveTree(1, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/archive/z"));
+		Assert.assertEquals("moved node", Paths.get("/zone/home/archive/z"), store.pathOf(1));
+		Assert.assertEquals("cached path of a descendant should follow", Paths.get("/zone/home/archive/z/b/c.txt"),
+				store.pathOf(3));
+		Assert.assertEquals("descendant should resolve at the new path", 2L,
+				store.inodeOf(Paths.get("/zone/home/archive/z/b")));
+		Assert.assertEquals("old descendant path should be unmapped", InodeStore.UNMAPPED,
+				store.inodeOf(Paths.get("/zone/home/rods/a/b/c.txt")));
+		Assert.assertEquals("unrelated path should stay", Paths.get("/zone/home/rods/other"), store.pathOf(4));
+		Assert.assertEquals("one node for the new archive directory", nodes + 1, store.nodeCount());
+		Assert.assertEquals("wrong size", 4L, store.size());
+	}
+
+	@Test
+	public void testMoveTreeOfUnmappedCollection() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(2, Paths.get("/zone/home/rods/a/b"));
+		store.map(3, Paths.get("/zone/home/rods/a/b/c.txt"));
+		Assert.assertEquals("did not resolve path", Paths.get("/zone/home/rods/a/b/c.txt"), store.pathOf(3));
+
+		store.moveTree(InodeStore.UNMAPPED, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/rods/z"));
+		Assert.assertEquals("cached path of a descendant should follow", Paths.get("/zone/home/rods/z/b/c.txt"),
+				store.pathOf(3));
+		Assert.assertEquals("old path should be unmapped", InodeStore.UNMAPPED,
+				store.inodeOf(Paths.get("/zone/home/rods/a/b")));
+		store.moveTree(InodeStore.UNMAPPED, Paths.get("/zone/home/rods/gone"), Paths.get("/zone/home/rods/y"));
+		Assert.assertEquals("wrong size", 2L, store.size());
+	}
+
+	@Test
+	public void testMoveTreeOverStaleNode() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(1, Paths.get("/zone/home/rods/s"));
+		store.map(2, Paths.get("/zone/home/rods/t"));
+		store.map(3, Paths.get("/zone/home/rods/t/x"));
+		// the collection was unmapped without its contents
+		store.unmap(2, Paths.get("/zone/home/rods/t"));
+
+		store.moveTree(1, Paths.get("/zone/home/rods/s"), Paths.get("/zone/home/rods/t"));
+		Assert.assertEquals("moved node", Paths.get("/zone/home/rods/t"), store.pathOf(1));
+		Assert.assertNull("stale descendant should be unmapped", store.pathOf(3));
+		Assert.assertEquals("stale path should not resolve", InodeStore.UNMAPPED,
+				store.inodeOf(Paths.get("/zone/home/rods/t/x")));
+		Assert.assertEquals("wrong size", 1L, store.size());
+	}
+
+	@Test
+	public void testUnmapTree() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(4, Paths.get("/zone/home/rods/ab"));
+		int nodes = store.nodeCount();
+		store.map(1, Paths.get("/zone/home/rods/a"));
+		store.map(2, Paths.get("/zone/home/rods/a/b"));
+		store.map(3, Paths.get("/zone/home/rods/a/b/c/d.txt"));
+
+		store.unmapTree(1, Paths.get("/zone/home/rods/a"));
+		Assert.assertNull("collection should be unmapped", store.pathOf(1));
+		Assert.assertNull("descendant should be unmapped", store.pathOf(3));
+		Assert.assertEquals("sibling sharing the prefix should stay", Paths.get("/zone/home/rods/ab"),
+				store.pathOf(4));
+		Assert.assertEquals("nodes of the removed tree should be released", nodes, store.nodeCount());
+		Assert.assertEquals("wrong size", 1L, store.size());
+	}
+
+	@Test
+	public void testUnmapTreeOfUnmappedCollection() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(3, Paths.get("/zone/home/rods/a/b/c.txt"));
+		store.unmapTree(InodeStore.UNMAPPED, Paths.get("/zone/home/rods/a"));
+		Assert.assertNull("descendant should be unmapped", store.pathOf(3));
+		Assert.assertEquals("wrong size", 0L, store.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMoveTreeIntoItself() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		store.map(1, Paths.get("/zone/home/rods/a"));
+		store.moveTree(1, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/rods/a/b"));
+	}
+
+	@Test
+	public void testUnmapReleasesNodes() throws Exception {
+		CompactInodeStore store = new CompactInodeStore();
+		int emptyNodes = store.nodeCount();
+		for (int i = 1; i <= 1000; i++) {
+			store.map(i, path(i));
+		}
+		Assert.assertEquals("wrong size", 1000L, store.size());
+		for (int i = 1; i <= 1000; i += 2) {
+			store.unmap(i, path(i));
+		}
+		for (int i = 2; i <= 1000; i += 2) {
+			Assert.assertEquals("lost a mapping", path(i), store.pathOf(i));
+			Assert.assertEquals("lost a reverse mapping", i, store.inodeOf(path(i)));
+		}
+		for (int i = 2; i <= 1000; i += 2) {
+			store.unmap(i, path(i));
+		}
+		Assert.assertEquals("wrong size", 0L, store.size());
+		Assert.assertEquals("nodes left behind", emptyNodes, store.nodeCount());
+	}
+
+	private static Path path(final int i) {
+		return Paths.get("/zone/home/rods/dir" + (i % 10) + "/file" + i);
+	}
+
+}
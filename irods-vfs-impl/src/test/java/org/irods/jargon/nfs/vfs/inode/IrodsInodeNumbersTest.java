@@ -0,0 +1,25 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IrodsInodeNumbersTest {
+
+	@Test
+	public void testForObject() throws Exception {
+		long dataObject = IrodsInodeNumbers.forObject(10012, false);
+		long collection = IrodsInodeNumbers.forObject(10012, true);
+		Assert.assertNotEquals("collection and data object must not collide", dataObject, collection);
+		Assert.assertFalse("data object flagged as collection", IrodsInodeNumbers.isCollection(dataObject));
+		Assert.assertTrue("collection not flagged", IrodsInodeNumbers.isCollection(collection));
+		Assert.assertEquals("data id not recovered", 10012L, IrodsInodeNumbers.irodsId(dataObject));
+		Assert.assertEquals("collection id not recovered", 10012L, IrodsInodeNumbers.irodsId(collection));
+		Assert.assertTrue("inode numbers must be positive", collection > 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadId() throws Exception {
+		IrodsInodeNumbers.forObject(0, false);
+	}
+
+}
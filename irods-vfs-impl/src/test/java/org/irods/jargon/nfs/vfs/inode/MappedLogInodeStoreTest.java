@@ -0,0 +1,292 @@
+package org.irods.jargon.nfs.vfs.inode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedLogInodeStoreTest {
+
+	private static final int SMALL_LOG = 64 * 1024;
+
+	private Path storeDir;
+
+	@Before
+	public void setUp() throws Exception {
+		storeDir = Files.createTempDirectory("MappedLogInodeStoreTest");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.walkFileTree(storeDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void testMapAndResolve() throws Exception {
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			long inodeNumber = store.nextInodeNumber();
+			Assert.assertEquals("numbering should start at 1", 1L, inodeNumber);
+			store.map(inodeNumber, Paths.get("/zone/home/rods"));
+			Assert.assertEquals("did not resolve path", Paths.get("/zone/home/rods"), store.pathOf(inodeNumber));
+			Assert.assertEquals("did not resolve inode", inodeNumber, store.inodeOf(Paths.get("/zone/home/rods")));
+			Assert.assertEquals("unmapped path should not resolve", InodeStore.UNMAPPED,
+					store.inodeOf(Paths.get("/zone/home/other")));
+			Assert.assertEquals("wrong size", 1L, store.size());
+		}
+	}
+
+	@Test
+	public void testMoveTreeRecovered() throws Exception {
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a/b"));
+			store.checkpoint();
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a/b/c.txt"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/ab"));
+			store.moveTree(1, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/rods/z"));
+			Assert.assertEquals("checkpointed descendant should move", Paths.get("/zone/home/rods/z/b"),
+					store.pathOf(2));
+			Assert.assertEquals("logged descendant should move", Paths.get("/zone/home/rods/z/b/c.txt"),
+					store.pathOf(3));
+			Assert.assertEquals("sibling sharing the prefix should stay", Paths.get("/zone/home/rods/ab"),
+					store.pathOf(4));
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			Assert.assertEquals("move not recovered", 3L, store.inodeOf(Paths.get("/zone/home/rods/z/b/c.txt")));
+			Assert.assertEquals("old path still mapped", InodeStore.UNMAPPED,
+					store.inodeOf(Paths.get("/zone/home/rods/a/b")));
+			store.checkpoint();
+			Assert.assertEquals("move lost in checkpoint", Paths.get("/zone/home/rods/z/b"), store.pathOf(2));
+			Assert.assertEquals("wrong size", 4L, store.size());
+		}
+	}
+
+	@Test
+	public void testMoveTreeIsOneRecord() throws Exception {
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a"));
+			for (int i = 0; i < 100; i++) {
+				store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a/file" + i));
+				store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/unmapped/file" + i));
+			}
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/z/stale.txt"));
+			store.checkpoint();
+
+			int logSize = store.logSize();
+			store.moveTree(1, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/rods/z"));
+			store.moveTree(InodeStore.UNMAPPED, Paths.get("/zone/home/rods/unmapped"),
+					Paths.get("/zone/home/rods/moved"));
+			int recordSize = 4 + 1 + 8 + "/zone/home/rods/a".length() + 1 + "/zone/home/rods/z".length() + 4;
+			int unmappedRecordSize = 4 + 1 + 8 + "/zone/home/rods/unmapped".length() + 1
+					+ "/zone/home/rods/moved".length() + 4;
+			Assert.assertEquals("each move should log one record", logSize + recordSize + unmappedRecordSize,
+					store.logSize());
+
+			Assert.assertEquals("mapped collection did not move", Paths.get("/zone/home/rods/z/file7"),
+					store.pathOf(16));
+			Assert.assertEquals("unmapped collection contents did not move", 11L,
+					store.inodeOf(Paths.get("/zone/home/rods/moved/file4")));
+			Assert.assertNull("stale mapping at the target not dropped", store.pathOf(202));
+			Assert.assertEquals("wrong size", 201L, store.size());
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			Assert.assertEquals("move not recovered", Paths.get("/zone/home/rods/z/file7"), store.pathOf(16));
+			Assert.assertEquals("unmapped move not recovered", Paths.get("/zone/home/rods/moved/file4"),
+					store.pathOf(11));
+			Assert.assertEquals("old path still mapped", InodeStore.UNMAPPED,
+					store.inodeOf(Paths.get("/zone/home/rods/unmapped/file4")));
+			Assert.assertNull("stale mapping recovered", store.pathOf(202));
+			Assert.assertEquals("wrong size", 201L, store.size());
+		}
+	}
+
+	@Test
+	public void testUnmapTree() throws Exception {
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a/b/c.txt"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/ab"));
+			store.checkpoint();
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a/d.txt"));
+			store.unmapTree(1, Paths.get("/zone/home/rods/a"));
+			Assert.assertNull("checkpointed descendant still mapped", store.pathOf(2));
+			Assert.assertNull("logged descendant still mapped", store.pathOf(4));
+			Assert.assertEquals("sibling sharing the prefix should stay", Paths.get("/zone/home/rods/ab"),
+					store.pathOf(3));
+			Assert.assertEquals("wrong size", 1L, store.size());
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			Assert.assertNull("unmap not recovered", store.pathOf(1));
+			Assert.assertEquals("old path still mapped", InodeStore.UNMAPPED,
+					store.inodeOf(Paths.get("/zone/home/rods/a/b/c.txt")));
+			Assert.assertEquals("wrong size", 1L, store.size());
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a"));
+		}
+	}
+
+	@Test
+	public void testReplayMovesOverCheckpoint() throws Exception {
+		int count = 1000;
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a"));
+			for (int i = 0; i < count; i++) {
+				store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a/dir" + i + "/file.txt"));
+			}
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/b/file.txt"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/c"));
+			store.checkpoint();
+
+			// only moves after the checkpoint, each replayed as one record
+			store.moveTree(1, Paths.get("/zone/home/rods/a"), Paths.get("/zone/home/rods/x"));
+			store.moveTree(InodeStore.UNMAPPED, Paths.get("/zone/home/rods/x/dir5"),
+					Paths.get("/zone/home/rods/c/dir5"));
+			store.moveTree(1, Paths.get("/zone/home/rods/x"), Paths.get("/zone/home/rods/c/x"));
+			store.moveTree(InodeStore.UNMAPPED, Paths.get("/zone/home/rods/b"), Paths.get("/zone/home/rods/y"));
+			store.unmapTree(InodeStore.UNMAPPED, Paths.get("/zone/home/rods/c/x/dir9"));
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			Assert.assertEquals("move not replayed", Paths.get("/zone/home/rods/c/x"), store.pathOf(1));
+			Assert.assertEquals("descendant did not follow the replayed moves",
+					Paths.get("/zone/home/rods/c/x/dir7/file.txt"), store.pathOf(9));
+			Assert.assertEquals("unmapped collection move not replayed", 7L,
+					store.inodeOf(Paths.get("/zone/home/rods/c/dir5/file.txt")));
+			Assert.assertEquals("unmapped collection move not replayed", Paths.get("/zone/home/rods/y/file.txt"),
+					store.pathOf(count + 2));
+			Assert.assertNull("unmapped subtree replayed as mapped", store.pathOf(11));
+			Assert.assertEquals("old path still mapped", InodeStore.UNMAPPED,
+					store.inodeOf(Paths.get("/zone/home/rods/a/dir7/file.txt")));
+			Assert.assertEquals("wrong size", count + 2L, store.size());
+
+			store.checkpoint();
+			Assert.assertEquals("replayed move lost in checkpoint", Paths.get("/zone/home/rods/c/x/dir7/file.txt"),
+					store.pathOf(9));
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			Assert.assertEquals("moves lost after checkpoint", 9L,
+					store.inodeOf(Paths.get("/zone/home/rods/c/x/dir7/file.txt")));
+			Assert.assertEquals("wrong size after checkpoint", count + 2L, store.size());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testMapDuplicatePath() throws Exception {
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods"));
+		}
+	}
+
+	@Test
+	public void testRecoverAfterReopen() throws Exception {
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a.txt"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/b.txt"));
+			store.unmap(3, Paths.get("/zone/home/rods/b.txt"));
+			store.remap(2, Paths.get("/zone/home/rods/a.txt"), Paths.get("/zone/home/rods/c.txt"));
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			Assert.assertEquals("root not recovered", Paths.get("/zone/home/rods"), store.pathOf(1));
+			Assert.assertEquals("remap not recovered", Paths.get("/zone/home/rods/c.txt"), store.pathOf(2));
+			Assert.assertEquals("old path still mapped", InodeStore.UNMAPPED,
+					store.inodeOf(Paths.get("/zone/home/rods/a.txt")));
+			Assert.assertNull("unmap not recovered", store.pathOf(3));
+			Assert.assertEquals("inode numbers must not be reused", 4L, store.nextInodeNumber());
+			Assert.assertEquals("wrong size", 2L, store.size());
+		}
+	}
+
+	@Test
+	public void testTornRecordIgnored() throws Exception {
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods"));
+			store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/a.txt"));
+		}
+
+		// corrupt the last byte of the second record's path
+		try (FileChannel channel = FileChannel.open(storeDir.resolve(MappedLogInodeStore.LOG_FILE_NAME),
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			channel.read(length, MappedLogInodeStore.LOG_HEADER_SIZE);
+			length.flip();
+			long secondRecord = MappedLogInodeStore.LOG_HEADER_SIZE + 4 + length.getInt() + 4;
+			length.clear();
+			channel.read(length, secondRecord);
+			length.flip();
+			channel.write(ByteBuffer.wrap(new byte[] { 'X' }), secondRecord + 4 + length.getInt() - 1);
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			Assert.assertEquals("first record lost", Paths.get("/zone/home/rods"), store.pathOf(1));
+			Assert.assertNull("torn record applied", store.pathOf(2));
+			store.map(2, Paths.get("/zone/home/rods/b.txt"));
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir)) {
+			Assert.assertEquals("record after torn tail lost", Paths.get("/zone/home/rods/b.txt"), store.pathOf(2));
+		}
+	}
+
+	@Test
+	public void testCheckpointWhenLogFills() throws Exception {
+		int count = 2000;
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir, SMALL_LOG, false)) {
+			for (int i = 0; i < count; i++) {
+				store.map(store.nextInodeNumber(), Paths.get("/zone/home/rods/file" + i));
+			}
+			// touch checkpointed entries after the log rolled
+			store.remap(1, Paths.get("/zone/home/rods/file0"), Paths.get("/zone/home/rods/renamed"));
+			store.unmap(2, Paths.get("/zone/home/rods/file1"));
+			Assert.assertTrue("no checkpoint written",
+					Files.exists(storeDir.resolve(MappedLogInodeStore.CHECKPOINT_FILE_NAME)));
+			Assert.assertEquals("wrong size", count - 1, store.size());
+		}
+
+		try (MappedLogInodeStore store = MappedLogInodeStore.open(storeDir, SMALL_LOG, false)) {
+			Assert.assertEquals("wrong size after reopen", count - 1, store.size());
+			Assert.assertEquals("remap lost", Paths.get("/zone/home/rods/renamed"), store.pathOf(1));
+			Assert.assertEquals("old name still resolves", InodeStore.UNMAPPED,
+					store.inodeOf(Paths.get("/zone/home/rods/file0")));
+			Assert.assertNull("unmap lost", store.pathOf(2));
+			for (int i = 2; i < count; i++) {
+				Assert.assertEquals("lost mapping for file" + i, i + 1L,
+						store.inodeOf(Paths.get("/zone/home/rods/file" + i)));
+			}
+			Assert.assertEquals("inode numbers must not be reused", count + 1L, store.nextInodeNumber());
+
+			store.checkpoint();
+			Assert.assertEquals("wrong size after explicit checkpoint", count - 1, store.size());
+			Assert.assertEquals("remap lost in checkpoint", 1L, store.inodeOf(Paths.get("/zone/home/rods/renamed")));
+		}
+	}
+
+}
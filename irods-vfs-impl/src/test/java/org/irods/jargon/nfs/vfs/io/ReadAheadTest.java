@@ -0,0 +1,98 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadAheadTest {
+
+	private static final int BUFFER_SIZE = 100;
+
+	@Test
+	public void testWindowGrowsOnSequentialReads() {
+		ReadAhead readAhead = new ReadAhead(new BufferPool(BUFFER_SIZE, 16), 4);
+		Assert.assertEquals("first read should prefetch one buffer", Arrays.asList(50L),
+				readAhead.accessed(0, 50));
+		Assert.assertEquals("window should double", Arrays.asList(150L, 250L), readAhead.accessed(50, 50));
+		Assert.assertEquals("window should stop at the maximum", Arrays.asList(350L, 450L),
+				readAhead.accessed(100, 50));
+	}
+
+	@Test
+	public void testRandomReadCollapsesWindow() {
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 16);
+		ReadAhead readAhead = new ReadAhead(pool, 4);
+		List<Long> starts = readAhead.accessed(0, 50);
+		readAhead.fill(readAhead.generation(), starts.get(0), pool.acquire(), BUFFER_SIZE);
+		long generation = readAhead.generation();
+
+		Assert.assertTrue("random read should not prefetch", readAhead.accessed(10000, 50).isEmpty());
+		Assert.assertNotEquals("generation should change", generation, readAhead.generation());
+		Assert.assertEquals("buffers should go back to the pool", 0, pool.inUse());
+		Assert.assertEquals("sequential read after a seek restarts the window", Arrays.asList(10100L),
+				readAhead.accessed(10050, 50));
+	}
+
+	@Test
+	public void testNearbyReadKeepsWindow() {
+		ReadAhead readAhead = new ReadAhead(new BufferPool(BUFFER_SIZE, 16), 8);
+		readAhead.accessed(0, 50);
+		readAhead.accessed(50, 50);
+		long generation = readAhead.generation();
+		readAhead.accessed(150, 50);
+		Assert.assertEquals("reordered read should not collapse the window", generation, readAhead.generation());
+	}
+
+	@Test
+	public void testCopyFromPrefetchedData() {
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 16);
+		ReadAhead readAhead = new ReadAhead(pool, 4);
+		byte[] buffer = pool.acquire();
+		for (int i = 0; i < buffer.length; i++) {
+			buffer[i] = (byte) i;
+		}
+		List<Long> starts = readAhead.accessed(0, 50);
+		readAhead.fill(readAhead.generation(), starts.get(0), buffer, BUFFER_SIZE);
+
+		byte[] data = new byte[80];
+		Assert.assertEquals("should copy up to the end of the chunk", 80, readAhead.copy(50, data, 0, 80));
+		Assert.assertEquals("wrong byte copied", (byte) 0, data[0]);
+		Assert.assertEquals("nothing prefetched before the window", 0, readAhead.copy(0, data, 0, 10));
+		Assert.assertEquals("should stop at the end of prefetched data", 20, readAhead.copy(130, data, 0, 50));
+	}
+
+	@Test
+	public void testShortFillMarksEof() {
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 16);
+		ReadAhead readAhead = new ReadAhead(pool, 4);
+		List<Long> starts = readAhead.accessed(0, 50);
+		readAhead.fill(readAhead.generation(), starts.get(0), pool.acquire(), 30);
+		Assert.assertTrue("end of file should be known", readAhead.atEof(80));
+		Assert.assertFalse("data before the end", readAhead.atEof(79));
+		Assert.assertTrue("nothing to prefetch past the end", readAhead.accessed(50, 30).isEmpty());
+	}
+
+	@Test
+	public void testStaleFillReleasesBuffer() {
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 16);
+		ReadAhead readAhead = new ReadAhead(pool, 4);
+		long generation = readAhead.generation();
+		readAhead.accessed(0, 50);
+		readAhead.clear();
+		readAhead.fill(generation, 50, pool.acquire(), BUFFER_SIZE);
+		Assert.assertEquals("stale prefetch should give its buffer back", 0, pool.inUse());
+	}
+
+	@Test
+	public void testPoolBound() {
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 2);
+		byte[] first = pool.acquire();
+		Assert.assertNotNull("pool should have a second buffer", pool.acquire());
+		Assert.assertNull("pool should be exhausted", pool.acquire());
+		pool.release(first);
+		Assert.assertSame("released buffer should be reused", first, pool.acquire());
+	}
+
+}
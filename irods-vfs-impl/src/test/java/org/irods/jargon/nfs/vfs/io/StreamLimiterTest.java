@@ -0,0 +1,40 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamLimiterTest {
+
+	@Test
+	public void testGrantCappedPerClient() throws Exception {
+		StreamLimiter limiter = new StreamLimiter(16, 4);
+		Assert.assertEquals("client limit should cap the grant", 4, limiter.acquire(1, 8));
+		Assert.assertEquals("wrong gateway streams left", 12, limiter.availableStreams());
+		limiter.release(1, 4);
+		Assert.assertEquals("streams should be back", 16, limiter.availableStreams());
+	}
+
+	@Test
+	public void testGrantCappedByGateway() throws Exception {
+		StreamLimiter limiter = new StreamLimiter(5, 4);
+		Assert.assertEquals("wrong first grant", 4, limiter.acquire(1, 4));
+		Assert.assertEquals("other client gets what the gateway has left", 1, limiter.acquire(2, 4));
+		Assert.assertEquals("gateway should be exhausted", 0, limiter.availableStreams());
+		limiter.release(1, 4);
+		limiter.release(2, 1);
+	}
+
+	@Test
+	public void testBusyClientGetsOneStream() throws Exception {
+		StreamLimiter limiter = new StreamLimiter(16, 4);
+		Assert.assertEquals("wrong first grant", 3, limiter.acquire(1, 3));
+		Assert.assertEquals("only one client stream left", 1, limiter.acquire(1, 4));
+		Assert.assertEquals("other clients are not limited by it", 4, limiter.acquire(2, 4));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroLimitRejected() {
+		new StreamLimiter(0, 1);
+	}
+
+}
@@ -0,0 +1,102 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import static org.irods.jargon.nfs.vfs.unittest.TestFixtures.bytes;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBackCacheTest {
+
+	private static final Callable<OpenFile> FAILING_OPENER = new Callable<OpenFile>() {
+		@Override
+		public OpenFile call() throws Exception {
+			throw new IOException("iRODS unavailable");
+		}
+	};
+
+	private static final WriteBackCache.Listener LISTENER = new WriteBackCache.Listener() {
+		@Override
+		public void flushed(final long inodeNumber) {
+		}
+	};
+
+	private OpenFileTable openFiles;
+	private WriteBackCache cache;
+
+	@Before
+	public void setUp() {
+		openFiles = new OpenFileTable(10, 60000);
+		cache = new WriteBackCache(openFiles, 50, 1000, 60000, LISTENER);
+	}
+
+	@After
+	public void tearDown() {
+		cache.close();
+		openFiles.close();
+	}
+
+	@Test
+	public void testFailedFlushKeepsData() throws Exception {
+		try {
+			cache.write(1, 500, FAILING_OPENER, 0, bytes(1, 100), 100);
+			Assert.fail("flush over the per file limit should fail");
+		} catch (IOException e) {
+			// expected
+		}
+
+		Assert.assertEquals("unwritten data should stay dirty", 100, cache.dirtyBytes());
+		Assert.assertTrue("inode should still be written", cache.isWritten(1));
+		Assert.assertEquals("wrong size", 100, cache.sizeOf(1));
+	}
+
+	@Test
+	public void testFailedFlushReportedAtCommit() throws Exception {
+		cache.write(1, 500, FAILING_OPENER, 0, bytes(1, 10), 10);
+		try {
+			cache.commit(1, 0, Long.MAX_VALUE);
+			Assert.fail("commit should report the failed write back");
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertEquals("unwritten data should stay dirty", 10, cache.dirtyBytes());
+	}
+
+	@Test
+	public void testWriteLeavesFailureForCommit() throws Exception {
+		cache.write(1, 500, FAILING_OPENER, 0, bytes(1, 10), 10);
+		try {
+			cache.flush(1);
+			Assert.fail("flush should fail");
+		} catch (IOException e) {
+			// expected
+		}
+
+		cache.write(1, 500, FAILING_OPENER, 10, bytes(1, 10), 10);
+		Assert.assertEquals("both writes should be dirty", 20, cache.dirtyBytes());
+		try {
+			cache.commit(1, 0, Long.MAX_VALUE);
+			Assert.fail("commit should report the failed write back");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDiscardAfterFailedFlush() throws Exception {
+		try {
+			cache.write(1, 500, FAILING_OPENER, 0, bytes(1, 100), 100);
+		} catch (IOException e) {
+			// expected
+		}
+
+		cache.discard(1);
+		Assert.assertEquals("discard should drop the kept data", 0, cache.dirtyBytes());
+		Assert.assertFalse("inode should not be written", cache.isWritten(1));
+	}
+
+}
@@ -0,0 +1,97 @@
+package org.irods.jargon.nfs.vfs.io;
+
+import static org.irods.jargon.nfs.vfs.unittest.TestFixtures.bytes;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WriteBufferTest {
+
+	@Test
+	public void testSequentialWritesCoalesce() {
+		WriteBuffer buffer = new WriteBuffer(1, null);
+		for (int i = 0; i < 10; i++) {
+			buffer.write(i * 4, bytes(i, 4), 0, 4);
+		}
+		List<WriteBuffer.Extent> extents = buffer.drain(0, Long.MAX_VALUE);
+		Assert.assertEquals("contiguous writes should be one extent", 1, extents.size());
+		Assert.assertEquals("wrong extent length", 40, extents.get(0).getLength());
+		Assert.assertEquals("wrong byte", (byte) 9, extents.get(0).getBuffer()[39]);
+		Assert.assertEquals("buffer should be clean", 0, buffer.dirtyBytes());
+	}
+
+	@Test
+	public void testOutOfOrderWritesMerge() {
+		WriteBuffer buffer = new WriteBuffer(1, null);
+		buffer.write(0, bytes(1, 4), 0, 4);
+		buffer.write(8, bytes(3, 4), 0, 4);
+		Assert.assertEquals("wrong dirty bytes with a gap", 8, buffer.dirtyBytes());
+		buffer.write(4, bytes(2, 4), 0, 4);
+
+		List<WriteBuffer.Extent> extents = buffer.drain(0, Long.MAX_VALUE);
+		Assert.assertEquals("filled gap should merge", 1, extents.size());
+		byte[] data = extents.get(0).getBuffer();
+		Assert.assertEquals("wrong byte", (byte) 1, data[0]);
+		Assert.assertEquals("wrong byte", (byte) 2, data[4]);
+		Assert.assertEquals("wrong byte", (byte) 3, data[11]);
+	}
+
+	@Test
+	public void testOverwriteKeepsNewestData() {
+		WriteBuffer buffer = new WriteBuffer(1, null);
+		buffer.write(0, bytes(1, 8), 0, 8);
+		long added = buffer.write(2, bytes(2, 4), 0, 4);
+		Assert.assertEquals("overwrite should not add dirty bytes", 0, added);
+
+		WriteBuffer.Extent extent = buffer.drain(0, Long.MAX_VALUE).get(0);
+		Assert.assertEquals("wrong byte", (byte) 1, extent.getBuffer()[1]);
+		Assert.assertEquals("wrong byte", (byte) 2, extent.getBuffer()[2]);
+		Assert.assertEquals("wrong byte", (byte) 1, extent.getBuffer()[7]);
+	}
+
+	@Test
+	public void testDrainSplitsAtRange() {
+		WriteBuffer buffer = new WriteBuffer(1, null);
+		buffer.write(0, bytes(1, 100), 0, 100);
+		List<WriteBuffer.Extent> extents = buffer.drain(20, 30);
+		Assert.assertEquals("one extent in range", 1, extents.size());
+		Assert.assertEquals("wrong offset", 20, extents.get(0).getOffset());
+		Assert.assertEquals("wrong length", 10, extents.get(0).getLength());
+		Assert.assertEquals("rest should stay dirty", 90, buffer.dirtyBytes());
+		Assert.assertEquals("two pieces should remain", 2, buffer.drain(0, Long.MAX_VALUE).size());
+	}
+
+	@Test
+	public void testHighWater() {
+		WriteBuffer buffer = new WriteBuffer(1, null);
+		buffer.write(100, bytes(1, 10), 0, 10);
+		buffer.write(0, bytes(1, 10), 0, 10);
+		buffer.drain(0, Long.MAX_VALUE);
+		Assert.assertEquals("high water should survive a flush", 110, buffer.highWater());
+	}
+
+	@Test
+	public void testRestoreKeepsNewerData() {
+		WriteBuffer buffer = new WriteBuffer(1, null);
+		buffer.write(0, bytes(1, 100), 0, 100);
+		List<WriteBuffer.Extent> drained = buffer.drain(0, Long.MAX_VALUE);
+		buffer.write(10, bytes(2, 10), 0, 10);
+
+		long restored = buffer.restore(drained);
+		Assert.assertEquals("only the uncovered bytes are restored", 90, restored);
+		Assert.assertEquals("wrong dirty bytes", 100, buffer.dirtyBytes());
+
+		List<WriteBuffer.Extent> extents = buffer.drain(0, Long.MAX_VALUE);
+		Assert.assertEquals("restored data should fill around the newer write", 3, extents.size());
+		Assert.assertEquals("wrong length", 10, extents.get(0).getLength());
+		Assert.assertEquals("wrong byte", (byte) 1, extents.get(0).getBuffer()[5]);
+		Assert.assertEquals("wrong offset", 10, extents.get(1).getOffset());
+		Assert.assertEquals("newer data should win", (byte) 2, extents.get(1).getBuffer()[5]);
+		Assert.assertEquals("wrong offset", 20, extents.get(2).getOffset());
+		Assert.assertEquals("wrong length", 80, extents.get(2).getLength());
+		Assert.assertEquals("wrong byte", (byte) 1, extents.get(2).getBuffer()[0]);
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.irods.jargon.nfs.vfs.listing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PagedDirectoryStreamTest {
+
+	private static final long DIRECTORY_INODE = 42;
+
+	@Test
+	public void testListAcrossPages() throws Exception {
+		FakeSource source = new FakeSource(5, 7, 3);
+		List<String> names = names(stream(source, 0));
+		Assert.assertEquals("wrong entry count", 12, names.size());
+		Assert.assertEquals("collections should come first", "coll0", names.get(0));
+		Assert.assertEquals("data objects should follow", "data0", names.get(5));
+		Assert.assertEquals("wrong last entry", "data6", names.get(11));
+	}
+
+	@Test
+	public void testResumeFromCookieUsesCachedPage() throws Exception {
+		FakeSource source = new FakeSource(0, 10, 5);
+		DirectoryCursorCache cursors = new DirectoryCursorCache(1000, 4, 60000);
+
+		List<DirectoryEntry> firstCall = new ArrayList<>();
+		for (DirectoryEntry entry : new PagedDirectoryStream(DirectoryStream.ZERO_VERIFIER, DIRECTORY_INODE, 0,
+				source, cursors)) {
+			firstCall.add(entry);
+			if (firstCall.size() == 2) {
+				break; // reply full
+			}
+		}
+		int fetches = source.fetches;
+
+		long cookie = firstCall.get(1).getCookie();
+		List<String> names = names(
+				new PagedDirectoryStream(DirectoryStream.ZERO_VERIFIER, DIRECTORY_INODE, cookie, source, cursors));
+		Assert.assertEquals("wrong resume point", "data2", names.get(0));
+		Assert.assertEquals("wrong entry count after resume", 8, names.size());
+		// the continuation reads the rest of the cached page, then one more page
+		Assert.assertEquals("continuation should resume from the cached page", fetches + 1, source.fetches);
+	}
+
+	@Test
+	public void testSnapshotSharedUnderSameVerifier() throws Exception {
+		FakeSource source = new FakeSource(3, 3, 10);
+		DirectoryCursorCache cursors = new DirectoryCursorCache(1000, 4, 60000);
+		byte[] verifier = new byte[] { 0, 0, 0, 0, 0, 0, 0, 1 };
+		names(new PagedDirectoryStream(verifier, DIRECTORY_INODE, 0, source, cursors));
+		int fetches = source.fetches;
+
+		names(new PagedDirectoryStream(verifier, DIRECTORY_INODE, 0, source, cursors));
+		Assert.assertEquals("second listing should come from the snapshot", fetches, source.fetches);
+
+		byte[] changed = new byte[] { 0, 0, 0, 0, 0, 0, 0, 2 };
+		names(new PagedDirectoryStream(changed, DIRECTORY_INODE, 0, source, cursors));
+		Assert.assertEquals("new verifier should list again", fetches * 2, source.fetches);
+	}
+
+	@Test
+	public void testCachedEntriesAdaptedPerCaller() throws Exception {
+		FakeSource source = new FakeSource(3, 3, 10);
+		DirectoryCursorCache cursors = new DirectoryCursorCache(1000, 4, 60000);
+		names(new PagedDirectoryStream(DirectoryStream.ZERO_VERIFIER, DIRECTORY_INODE, 0, source, cursors));
+		names(new PagedDirectoryStream(DirectoryStream.ZERO_VERIFIER, DIRECTORY_INODE, 0, source, cursors));
+		Assert.assertEquals("every entry of both listings should be adapted", 12, source.adapted);
+	}
+
+	@Test
+	public void testTail() throws Exception {
+		FakeSource source = new FakeSource(2, 2, 10);
+		DirectoryStream stream = stream(source, 0);
+		long cookie = ListingCookies.cookieOf(false, 1);
+		List<String> names = names(stream.tail(cookie));
+		Assert.assertEquals("tail should start with the data objects", "data0", names.get(0));
+		Assert.assertEquals("wrong tail count", 2, names.size());
+	}
+
+	@Test
+	public void testGetEntriesReadsAllPages() throws Exception {
+		FakeSource source = new FakeSource(5, 7, 3);
+		Assert.assertEquals("wrong entry count", 12, stream(source, 0).getEntries().size());
+	}
+
+	@Test
+	public void testEmptyCollection() throws Exception {
+		Assert.assertTrue("should be empty", names(stream(new FakeSource(0, 0, 10), 0)).isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void testBadCookie() throws Exception {
+		ListingCookies.validate(2);
+	}
+
+	private static DirectoryStream stream(final FakeSource source, final long cookie) throws IOException {
+		return new PagedDirectoryStream(DirectoryStream.ZERO_VERIFIER, DIRECTORY_INODE, cookie, source,
+				new DirectoryCursorCache(1000, 4, 60000));
+	}
+
+	private static List<String> names(final DirectoryStream stream) {
+		List<String> names = new ArrayList<>();
+		for (DirectoryEntry entry : stream) {
+			names.add(entry.getName());
+		}
+		return names;
+	}
+
+	private static class FakeSource implements ListingPageSource {
+		private final int collections;
+		private final int dataObjects;
+		private final int pageSize;
+		private int fetches;
+		private int adapted;
+
+		FakeSource(final int collections, final int dataObjects, final int pageSize) {
+			this.collections = collections;
+			this.dataObjects = dataObjects;
+			this.pageSize = pageSize;
+		}
+
+		@Override
+		public ListingPage fetch(final boolean data, final int offset) {
+			fetches++;
+			int total = data ? dataObjects : collections;
+			List<DirectoryEntry> entries = new ArrayList<>();
+			for (int i = offset; i < Math.min(total, offset + pageSize); i++) {
+				entries.add(new DirectoryEntry((data ? "data" : "coll") + i, null, null,
+						ListingCookies.cookieOf(data, i)));
+			}
+			return new ListingPage(data, offset, entries, offset + entries.size() >= total);
+		}
+
+		@Override
+		public DirectoryEntry entryFor(final DirectoryEntry entry) {
+			adapted++;
+			return entry;
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package org.irods.jargon.nfs.vfs.staging;
+
+import static org.irods.jargon.nfs.vfs.unittest.TestFixtures.bytes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StagedFileTest {
+
+	private Path stagingDir;
+
+	@Before
+	public void setUp() throws Exception {
+		stagingDir = Files.createTempDirectory("StagedFileTest");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.walkFileTree(stagingDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void testWriteAndCopySparseRanges() throws Exception {
+		StagedFile file = StagedFile.create(stagingDir.toFile(), 5, "/zone/home/test/a.dat", 1000, 0);
+		try {
+			Assert.assertEquals("new bytes should count", 10, file.write(0, bytes(1, 10), 0, 10));
+			Assert.assertEquals("new bytes should count", 10, file.write(100, bytes(2, 10), 0, 10));
+			Assert.assertEquals("overwrite should not count", 5, file.write(5, bytes(3, 10), 0, 10));
+			Assert.assertEquals("wrong covered bytes", 25, file.coveredBytes());
+			Assert.assertEquals("wrong high water", 110, file.highWater());
+
+			byte[] data = new byte[50];
+			Assert.assertEquals("copy should stop at the gap", 15, file.copy(0, data, 0, 50));
+			Assert.assertEquals("wrong byte", (byte) 1, data[4]);
+			Assert.assertEquals("wrong byte", (byte) 3, data[14]);
+			Assert.assertEquals("gap should not copy", 0, file.copy(20, data, 0, 10));
+			Assert.assertEquals("wrong next written", 100, file.nextWritten(20));
+			Assert.assertEquals("nothing after the end", Long.MAX_VALUE, file.nextWritten(110));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testPersistAndRecover() throws Exception {
+		StagedFile file = StagedFile.create(stagingDir.toFile(), 7, "/zone/home/test/b.dat", 1001, 4);
+		file.write(0, bytes(4, 8), 0, 8);
+		file.write(64, bytes(5, 8), 0, 8);
+		file.persist();
+
+		File[] stateFiles = stagingDir.toFile().listFiles();
+		File stateFile = null;
+		for (File candidate : stateFiles) {
+			if (candidate.getName().endsWith(StagedFile.STATE_SUFFIX)) {
+				stateFile = candidate;
+			}
+		}
+		Assert.assertNotNull("state should be recorded", stateFile);
+
+		StagedFile recovered = StagedFile.recover(stateFile);
+		try {
+			Assert.assertEquals("wrong inode", 7, recovered.getInodeNumber());
+			Assert.assertEquals("wrong path", "/zone/home/test/b.dat", recovered.getIrodsPath());
+			Assert.assertEquals("wrong uid", 1001, recovered.getUid());
+			Assert.assertEquals("wrong high water", 72, recovered.highWater());
+			Assert.assertTrue("recovered data should be dirty", recovered.isDirty());
+
+			byte[] data = new byte[8];
+			Assert.assertEquals("wrong copy length", 8, recovered.copy(64, data, 0, 8));
+			Assert.assertEquals("wrong byte", (byte) 5, data[7]);
+		} finally {
+			recovered.delete();
+		}
+		Assert.assertFalse("state should be deleted", stateFile.exists());
+	}
+
+	@Test
+	public void testUploadWholeTruncatesSpool() throws Exception {
+		StagedFile file = StagedFile.create(stagingDir.toFile(), 9, "/zone/home/test/c.dat", 1000, 0);
+		try {
+			file.write(0, bytes(6, 100), 0, 100);
+			StagedFile.Upload upload = file.beginUpload();
+			Assert.assertTrue("whole object staged", upload.whole);
+			Assert.assertEquals("wrong size", 100, upload.size);
+			Assert.assertEquals("spool should be trimmed", 100, file.getSpoolFile().length());
+			Assert.assertFalse("upload took the dirty ranges", file.isDirty());
+			Assert.assertTrue("nothing new, should close", file.finishUpload());
+			Assert.assertEquals("closed file takes no writes", -1, file.write(0, bytes(1, 1), 0, 1));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testUploadPartialKeepsRanges() throws Exception {
+		StagedFile file = StagedFile.create(stagingDir.toFile(), 11, "/zone/home/test/d.dat", 1000, 500);
+		try {
+			file.write(100, bytes(7, 10), 0, 10);
+			StagedFile.Upload upload = file.beginUpload();
+			Assert.assertFalse("object in iRODS is larger", upload.whole);
+			Assert.assertEquals("one dirty range", 1, upload.ranges.size());
+
+			file.failedUpload(upload);
+			Assert.assertTrue("failed ranges are dirty again", file.isDirty());
+			Assert.assertFalse("dirty file should not close", file.finishUpload());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testRangesRoundTrip() {
+		String formatted = StagedFile.formatRanges(StagedFile.parseRanges("0-10,20-30"));
+		Assert.assertEquals("wrong ranges", "0-10,20-30", formatted);
+		Assert.assertEquals("empty ranges", "", StagedFile.formatRanges(StagedFile.parseRanges("")));
+	}
+
+}
@@ -0,0 +1,147 @@
+package org.irods.jargon.nfs.vfs.staging;
+
+import static org.irods.jargon.nfs.vfs.unittest.TestFixtures.bytes;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.nfs.vfs.io.StreamLimiter;
+import org.irods.jargon.nfs.vfs.io.WriteBackCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class StagingAreaTest {
+
+	private Path stagingDir;
+	private FailingUploader uploader;
+	private StagingArea staging;
+
+	@Before
+	public void setUp() throws Exception {
+		stagingDir = Files.createTempDirectory("StagingAreaTest");
+		uploader = new FailingUploader();
+		staging = new StagingArea(stagingDir.toFile(), 1024 * 1024, 0, 60000, 10, 3, 1, uploader,
+				new WriteBackCache.Listener() {
+					@Override
+					public void flushed(final long inodeNumber) {
+					}
+				});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		staging.close();
+		Files.walkFileTree(stagingDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void testUploadGivesUpAndReportsAtCommit() throws Exception {
+		staging.write(1, 500, "/zone/home/test/file", 0, 0, bytes(1, 100), 100);
+		staging.commit(1);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		boolean reported = false;
+		while (!reported && System.currentTimeMillis() < deadline) {
+			try {
+				staging.commit(1);
+				Thread.sleep(10);
+			} catch (IOException e) {
+				reported = true;
+			}
+		}
+
+		Assert.assertTrue("commit should report the failed upload", reported);
+		Assert.assertEquals("uploads should stop after the last attempt", 3, uploader.attempts.get());
+		Assert.assertFalse("spool should be dropped once reported", staging.isStaged(1));
+		Assert.assertEquals("spool space should be released", 0, staging.usedBytes());
+
+		staging.commit(1);
+	}
+
+	@Test
+	public void testUploadFailureReportedAtWrite() throws Exception {
+		staging.write(1, 500, "/zone/home/test/file", 0, 0, bytes(1, 100), 100);
+		staging.commit(1);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (uploader.attempts.get() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+
+		try {
+			staging.write(1, 500, "/zone/home/test/file", 0, 0, bytes(2, 10), 10);
+			Assert.fail("write should report the failed upload");
+		} catch (IOException e) {
+			// expected
+		}
+
+		staging.write(1, 500, "/zone/home/test/file", 0, 0, bytes(2, 10), 10);
+		Assert.assertEquals("only the new write should be staged", 10, staging.usedBytes());
+	}
+
+	@Test
+	public void testDrainBelowUploadsOnlyThatCollection() throws Exception {
+		staging.write(1, 500, "/zone/home/test/a/file", 0, 0, bytes(1, 100), 100);
+		staging.write(2, 500, "/zone/home/test/ab", 0, 0, bytes(1, 100), 100);
+
+		try {
+			staging.drainBelow("/zone/home/test/a");
+			Assert.fail("drain should report the failed upload");
+		} catch (IOException e) {
+			// expected
+		}
+
+		Assert.assertEquals("only the file below the collection should upload",
+				Collections.singletonList("/zone/home/test/a/file"), uploader.paths);
+	}
+
+	private static class FailingUploader extends SpoolUploader {
+
+		private final AtomicInteger attempts = new AtomicInteger();
+		private final List<String> paths = new CopyOnWriteArrayList<>();
+
+		FailingUploader() {
+			super(Mockito.mock(IRODSAccessObjectFactory.class), new AccountResolver() {
+				@Override
+				public IRODSAccount accountFor(final int uid) {
+					return null;
+				}
+			}, new StreamLimiter(1, 1));
+		}
+
+		@Override
+		void upload(final StagedFile file, final StagedFile.Upload upload) throws IOException {
+			attempts.incrementAndGet();
+			paths.add(file.getIrodsPath());
+			throw new IOException("iRODS unavailable");
+		}
+
+	}
+
+}
@@ -1,11 +1,36 @@
 package org.irods.jargon.nfs.vfs.unittest;
 
 import org.irods.jargon.nfs.vfs.IrodsVirtualFileSystemTest;
+import org.irods.jargon.nfs.vfs.cache.AttributeCacheTest;
+import org.irods.jargon.nfs.vfs.cache.BlockCacheTest;
+import org.irods.jargon.nfs.vfs.cache.FsStatCacheTest;
+import org.irods.jargon.nfs.vfs.cache.NegativeLookupCacheTest;
+import org.irods.jargon.nfs.vfs.cache.PermissionCacheTest;
+import org.irods.jargon.nfs.vfs.cache.SingleFlightTest;
+import org.irods.jargon.nfs.vfs.connection.ConnectionPoolTest;
+import org.irods.jargon.nfs.vfs.inode.BoundedInodeCacheTest;
+import org.irods.jargon.nfs.vfs.inode.CompactInodeStoreTest;
+import org.irods.jargon.nfs.vfs.inode.IrodsInodeNumbersTest;
+import org.irods.jargon.nfs.vfs.inode.MappedLogInodeStoreTest;
+import org.irods.jargon.nfs.vfs.io.ReadAheadTest;
+import org.irods.jargon.nfs.vfs.io.StreamLimiterTest;
+import org.irods.jargon.nfs.vfs.io.WriteBackCacheTest;
+import org.irods.jargon.nfs.vfs.io.WriteBufferTest;
+import org.irods.jargon.nfs.vfs.listing.PagedDirectoryStreamTest;
+import org.irods.jargon.nfs.vfs.staging.StagedFileTest;
+import org.irods.jargon.nfs.vfs.staging.StagingAreaTest;
+import org.irods.jargon.nfs.vfs.utils.IrodsPermissionsTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses({ IrodsVirtualFileSystemTest.class })
+@Suite.SuiteClasses({ IrodsVirtualFileSystemTest.class, MappedLogInodeStoreTest.class, AttributeCacheTest.class,
+		PagedDirectoryStreamTest.class, ReadAheadTest.class, BlockCacheTest.class,
+		WriteBufferTest.class, StagedFileTest.class, StreamLimiterTest.class,
+		ConnectionPoolTest.class, SingleFlightTest.class, NegativeLookupCacheTest.class,
+		CompactInodeStoreTest.class, PermissionCacheTest.class, IrodsPermissionsTest.class,
+		FsStatCacheTest.class, BoundedInodeCacheTest.class, IrodsInodeNumbersTest.class,
+		WriteBackCacheTest.class, StagingAreaTest.class })
 
 /**
  * Suite to run all tests (except long running and functional), further refined
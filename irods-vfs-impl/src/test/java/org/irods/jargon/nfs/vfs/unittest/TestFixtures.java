@@ -0,0 +1,44 @@
+package org.irods.jargon.nfs.vfs.unittest;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Fixtures shared by the unit tests
+ *
+ * @author Mike Conway - NIEHS
+ *
+ */
+public final class TestFixtures {
+
+	private TestFixtures() {
+	}
+
+	/**
+	 * @return <code>byte[]</code> of the given length holding one value
+	 */
+	public static byte[] bytes(final int fill, final int count) {
+		byte[] data = new byte[count];
+		Arrays.fill(data, (byte) fill);
+		return data;
+	}
+
+	/**
+	 * {@link Ticker} that only moves when told to, for caches with expiry
+	 */
+	public static final class ManualTicker extends Ticker {
+		private long nanos;
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+
+		public void advance(final long millis) {
+			nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+	}
+
+}
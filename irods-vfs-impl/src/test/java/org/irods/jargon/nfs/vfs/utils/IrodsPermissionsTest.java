@@ -0,0 +1,145 @@
+package org.irods.jargon.nfs.vfs.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.nfs.v4.xdr.nfsace4;
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.protovalues.UserTypeEnum;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IrodsPermissionsTest {
+
+	@Test
+	public void testStrongestEntryWins() throws Exception {
+		List<UserFilePermission> acl = Arrays.asList(user("alice", FilePermissionEnum.READ),
+				group("lab", FilePermissionEnum.WRITE), user("bob", FilePermissionEnum.OWN));
+		Assert.assertEquals("group write should beat user read", FilePermissionEnum.WRITE,
+				IrodsPermissions.effectivePermission(acl, "alice", "zone", Collections.singleton("lab")));
+		Assert.assertEquals("user read without the group", FilePermissionEnum.READ,
+				IrodsPermissions.effectivePermission(acl, "alice", "zone", Collections.<String> emptySet()));
+		Assert.assertEquals("owner should own", FilePermissionEnum.OWN,
+				IrodsPermissions.effectivePermission(acl, "bob", "zone", null));
+		Assert.assertEquals("stranger should have nothing", FilePermissionEnum.NONE,
+				IrodsPermissions.effectivePermission(acl, "carol", "zone", null));
+	}
+
+	@Test
+	public void testOtherZoneDoesNotMatch() throws Exception {
+		List<UserFilePermission> acl = Arrays.asList(user("alice", FilePermissionEnum.OWN));
+		Assert.assertEquals("same name in another zone is another user", FilePermissionEnum.NONE,
+				IrodsPermissions.effectivePermission(acl, "alice", "otherZone", null));
+	}
+
+	@Test
+	public void testPublicGroupApplies() throws Exception {
+		List<UserFilePermission> acl = Arrays.asList(group(IrodsPermissions.PUBLIC_GROUP, FilePermissionEnum.READ));
+		Assert.assertEquals("public should apply to everyone", FilePermissionEnum.READ,
+				IrodsPermissions.effectivePermission(acl, "carol", "zone", null));
+	}
+
+	@Test
+	public void testAccessMask() throws Exception {
+		Assert.assertEquals("none should grant nothing", 0,
+				IrodsPermissions.accessMask(FilePermissionEnum.NONE, false));
+		int read = IrodsPermissions.accessMask(FilePermissionEnum.READ, false);
+		Assert.assertTrue("read should grant read", (read & nfs4_prot.ACCESS4_READ) != 0);
+		Assert.assertEquals("read should not grant modify", 0, read & nfs4_prot.ACCESS4_MODIFY);
+		int write = IrodsPermissions.accessMask(FilePermissionEnum.WRITE, false);
+		Assert.assertTrue("write should grant modify", (write & nfs4_prot.ACCESS4_MODIFY) != 0);
+		Assert.assertEquals("own should grant what write does", write,
+				IrodsPermissions.accessMask(FilePermissionEnum.OWN, false));
+	}
+
+	@Test
+	public void testAccessMaskMatchesModeBits() throws Exception {
+		for (FilePermissionEnum permission : new FilePermissionEnum[] { FilePermissionEnum.NONE,
+				FilePermissionEnum.READ, FilePermissionEnum.WRITE, FilePermissionEnum.OWN }) {
+			for (boolean collection : new boolean[] { false, true }) {
+				int bits = IrodsPermissions.modeBits(permission, collection);
+				int mask = IrodsPermissions.accessMask(permission, collection);
+				Assert.assertEquals("execute should match the x bit of " + permission, (bits & 01) != 0,
+						(mask & nfs4_prot.ACCESS4_EXECUTE) != 0);
+				Assert.assertEquals("read should match the r bit of " + permission, (bits & 04) != 0,
+						(mask & nfs4_prot.ACCESS4_READ) != 0);
+				Assert.assertEquals("modify should match the w bit of " + permission, (bits & 02) != 0,
+						(mask & nfs4_prot.ACCESS4_MODIFY) != 0);
+			}
+		}
+		Assert.assertEquals("reading a data object should not execute it", 0,
+				IrodsPermissions.accessMask(FilePermissionEnum.READ, false) & nfs4_prot.ACCESS4_EXECUTE);
+	}
+
+	@Test
+	public void testModeBits() throws Exception {
+		Assert.assertEquals("none should give no bits", 0, IrodsPermissions.modeBits(FilePermissionEnum.NONE, true));
+		Assert.assertEquals("read file", 04, IrodsPermissions.modeBits(FilePermissionEnum.READ, false));
+		Assert.assertEquals("read collection should be searchable", 05,
+				IrodsPermissions.modeBits(FilePermissionEnum.READ, true));
+		Assert.assertEquals("write file", 06, IrodsPermissions.modeBits(FilePermissionEnum.WRITE, false));
+		Assert.assertEquals("own collection", 07, IrodsPermissions.modeBits(FilePermissionEnum.OWN, true));
+	}
+
+	@Test
+	public void testPermissionOfUserId() throws Exception {
+		List<UserFilePermission> acl = Arrays.asList(user("alice", FilePermissionEnum.OWN),
+				group("lab", FilePermissionEnum.WRITE));
+		Assert.assertEquals("user 1 should own", FilePermissionEnum.OWN, IrodsPermissions.permissionOfUserId(acl, "1"));
+		Assert.assertEquals("unknown id should have nothing", FilePermissionEnum.NONE,
+				IrodsPermissions.permissionOfUserId(acl, "3"));
+	}
+
+	@Test
+	public void testAceMaskRoundTrip() throws Exception {
+		for (FilePermissionEnum permission : new FilePermissionEnum[] { FilePermissionEnum.READ,
+				FilePermissionEnum.WRITE, FilePermissionEnum.OWN }) {
+			Assert.assertEquals("mask should translate back to " + permission, permission,
+					IrodsPermissions.permissionOfAceMask(IrodsPermissions.aceMask(permission)));
+		}
+		Assert.assertEquals("append only should need write", FilePermissionEnum.WRITE,
+				IrodsPermissions.permissionOfAceMask(nfs4_prot.ACE4_APPEND_DATA));
+		Assert.assertEquals("attributes alone should give nothing", FilePermissionEnum.NONE,
+				IrodsPermissions.permissionOfAceMask(nfs4_prot.ACE4_READ_ATTRIBUTES));
+	}
+
+	@Test
+	public void testToAce() throws Exception {
+		nfsace4 ace = IrodsPermissions.toAce(group("lab", FilePermissionEnum.WRITE), true, false);
+		Assert.assertEquals("should be an allow ace", nfs4_prot.ACE4_ACCESS_ALLOWED_ACE_TYPE, ace.type.value);
+		Assert.assertEquals("who should be the group id", "2", ace.who.toString());
+		Assert.assertTrue("group flag missing", (ace.flag.value & nfs4_prot.ACE4_IDENTIFIER_GROUP) != 0);
+		Assert.assertTrue("should be inheritable", IrodsPermissions.isInheritable(ace));
+		Assert.assertEquals("not inherited", 0, ace.flag.value & nfs4_prot.ACE4_INHERITED_ACE);
+
+		ace = IrodsPermissions.toAce(group(IrodsPermissions.PUBLIC_GROUP, FilePermissionEnum.READ), false, true);
+		Assert.assertEquals("public should be everyone", IrodsPermissions.EVERYONE_WHO, ace.who.toString());
+		Assert.assertEquals("everyone is not a group id", 0, ace.flag.value & nfs4_prot.ACE4_IDENTIFIER_GROUP);
+		Assert.assertFalse("should not be inheritable", IrodsPermissions.isInheritable(ace));
+		Assert.assertTrue("should be inherited", (ace.flag.value & nfs4_prot.ACE4_INHERITED_ACE) != 0);
+	}
+
+	@Test
+	public void testInheritedAcl() throws Exception {
+		List<UserFilePermission> parentAcl = Arrays.asList(user("alice", FilePermissionEnum.OWN),
+				user("bob", FilePermissionEnum.READ), group("lab", FilePermissionEnum.WRITE));
+		List<UserFilePermission> acl = IrodsPermissions.inheritedAcl(parentAcl, "bob", "7", "zone");
+		Assert.assertEquals("wrong number of entries", 3, acl.size());
+		Assert.assertTrue("parent owner should be kept", IrodsPermissions.contains(acl, parentAcl.get(0)));
+		Assert.assertTrue("group should be kept", IrodsPermissions.contains(acl, parentAcl.get(2)));
+		Assert.assertEquals("creator should own", FilePermissionEnum.OWN,
+				IrodsPermissions.effectivePermission(acl, "bob", "zone", null));
+	}
+
+	private static UserFilePermission user(final String name, final FilePermissionEnum permission) {
+		return new UserFilePermission(name, "1", permission, UserTypeEnum.RODS_USER, "zone");
+	}
+
+	private static UserFilePermission group(final String name, final FilePermissionEnum permission) {
+		return new UserFilePermission(name, "2", permission, UserTypeEnum.RODS_GROUP, "zone");
+	}
+
+}